@@ -135,6 +135,24 @@ public abstract class DirectoryFactory implements NamedListInitializedPlugin,
     fromDir.copy(toDir, fileName, fileName, ioContext);
     fromDir.deleteFile(fileName);
   }
+
+  /**
+   * Override for more efficient renames.  Renames a file within a directory, replacing any file
+   * that has the new name.
+   * 
+   * Intended for use with replication - use
+   * carefully - some Directory wrappers will
+   * cache files for example.
+   * 
+   * @throws IOException If there is a low-level I/O error.
+   */
+  public void rename(Directory dir, String fileName, String toName, IOContext ioContext) throws IOException {
+    if (dir.fileExists(toName)) {
+      dir.deleteFile(toName);
+    }
+    dir.copy(dir, fileName, toName, ioContext);
+    dir.deleteFile(fileName);
+  }
   
   /**
    * Returns the Directory for a given path, using the specified rawLockType.
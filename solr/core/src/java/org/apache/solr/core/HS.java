@@ -1,16 +1,40 @@
 package org.apache.solr.core;
 
 import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sun.misc.Unsafe;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class HS
 {
@@ -39,11 +63,189 @@ public class HS
   }
 
 
+  /** Notified when an {@link Account} goes over one of its limits so that memory may be released (i.e. by evicting cache entries) */
+  public static interface MemoryListener {
+    public void memoryLimitReached(Account account);
+  }
+
+  /**
+   * Keeps track of the native memory allocated on behalf of an owner (the nCache, the filterCache, the documentCache, requests...).
+   * Exceeding the soft limit asks the registered listeners to free memory, and an allocation that would still
+   * exceed the hard limit is rejected.  Usage is also charged to the parent account, if any.
+   * <p>
+   * Allocations are charged to the account of the current thread (see {@link HS#setAccount}).
+   */
+  public static class Account {
+    // the listeners are asked to free memory when a limit is first crossed, and then no more often than this
+    // while the account stays over it, so that caches that can't get it back under its limit aren't evicted
+    // over and over
+    private static final long FREEING_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final String name;
+    private final Account parent;
+    private volatile int id;          // stored in the header of each allocation so that frees are credited to the right account
+    private volatile boolean closed;
+    private final AtomicBoolean idReleased = new AtomicBoolean();
+    private volatile long lastFreeingNs;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong numAllocations = new AtomicLong();
+    private final AtomicLong numLimitReached = new AtomicLong();
+    private final AtomicLong numRejected = new AtomicLong();
+    private final AtomicBoolean freeing = new AtomicBoolean();
+    private final List<MemoryListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile long peakBytes;
+    private volatile long softLimit = Long.MAX_VALUE;
+    private volatile long hardLimit = Long.MAX_VALUE;
+
+    private Account(String name, Account parent, int id) {
+      this.name = name;
+      this.parent = parent;
+      this.id = id;
+    }
+
+    public String getName() { return name; }
+    public Account getParent() { return parent; }
+
+    /** The number of bytes currently allocated */
+    public long getBytes() { return bytes.get(); }
+    public long getPeakBytes() { return peakBytes; }
+    public long getSoftLimit() { return softLimit; }
+    public long getHardLimit() { return hardLimit; }
+    public void setSoftLimit(long softLimit) { this.softLimit = softLimit; }
+    public void setHardLimit(long hardLimit) { this.hardLimit = hardLimit; }
+
+    public void addListener(MemoryListener listener) { listeners.add(listener); }
+    public void removeListener(MemoryListener listener) { listeners.remove(listener); }
+
+    /** The id recorded in the header of allocations charged to this account */
+    int getId() {
+      int id = this.id;
+      return id != UNASSIGNED_ID ? id : assignId();
+    }
+
+    // a per-request account takes an id once it allocates
+    private synchronized int assignId() {
+      if (id == UNASSIGNED_ID) {
+        Integer freeId = freeRequestIds.poll();
+        if (freeId != null) {
+          accounts.set(freeId, this);
+          id = freeId;
+        } else {
+          // too many requests at once to tell their frees apart: frees are credited to the parent only
+          id = parent.getId();
+        }
+      }
+      return id;
+    }
+
+    /**
+     * Called once the request a per-request account is for is done.  Its id is re-used once the allocations
+     * still charged to it, those that outlive the request, have been freed.
+     */
+    public void close() {
+      closed = true;
+      releaseId();
+    }
+
+    private void releaseId() {
+      int id = this.id;
+      if (id >= FIRST_REQUEST_ID && bytes.get() <= 0 && idReleased.compareAndSet(false, true)) {
+        accounts.set(id, parent);
+        freeRequestIds.add(id);
+      }
+    }
+
+    void charge(long sz) {
+      charge(sz, true);
+    }
+
+    /** Charges an allocation, or an array moved to this account (which is never rejected), to this account and its parents */
+    private void charge(long sz, boolean allocation) {
+      for (Account account = this; account != null; account = account.parent) {
+        long now = account.bytes.addAndGet(sz);
+        if (allocation) account.numAllocations.incrementAndGet();
+        if (now > account.softLimit || now > account.hardLimit) {
+          now = account.limitReached(now - sz, now);
+          if (allocation && now > account.hardLimit) {
+            account.numRejected.incrementAndGet();
+            for (Account a = this; a != account.parent; a = a.parent) {
+              a.bytes.addAndGet(-sz);
+            }
+            throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "Native memory limit for " + account.name
+                + " exceeded: allocated=" + (now - sz) + " requested=" + sz + " hardLimit=" + account.hardLimit);
+          }
+        }
+        if (now > account.peakBytes) account.peakBytes = now;
+      }
+    }
+
+    void release(long sz) {
+      for (Account account = this; account != null; account = account.parent) {
+        account.bytes.addAndGet(-sz);
+      }
+      if (closed) releaseId();
+    }
+
+    private long limitReached(long before, long now) {
+      boolean crossed = (before <= softLimit && now > softLimit) || (before <= hardLimit && now > hardLimit);
+      if (!crossed && System.nanoTime() - lastFreeingNs < FREEING_INTERVAL_NS) {
+        return now;
+      }
+      // only one thread at a time tries to free memory for an account, others just continue
+      if (freeing.compareAndSet(false, true)) {
+        numLimitReached.incrementAndGet();
+        try {
+          if (parent == null) {
+            allocator.trim();
+          }
+          for (MemoryListener listener : listeners) {
+            if (bytes.get() <= softLimit) break;
+            listener.memoryLimitReached(this);
+          }
+        } catch (RuntimeException e) {
+          SolrException.log(log, "Error freeing memory for account " + name, e);
+        } finally {
+          lastFreeingNs = System.nanoTime();
+          freeing.set(false);
+        }
+      }
+      return bytes.get();
+    }
+
+    public NamedList<Object> getStatistics() {
+      NamedList<Object> stats = new SimpleOrderedMap<>();
+      stats.add("bytes", getBytes());
+      stats.add("peakBytes", peakBytes);
+      stats.add("allocations", numAllocations.get());
+      if (softLimit != Long.MAX_VALUE) stats.add("softLimit", softLimit);
+      if (hardLimit != Long.MAX_VALUE) stats.add("hardLimit", hardLimit);
+      stats.add("limitReached", numLimitReached.get());
+      stats.add("rejected", numRejected.get());
+      return stats;
+    }
+
+    @Override
+    public String toString() {
+      return name + "{bytes=" + getBytes() + "}";
+    }
+  }
+
   public static class Allocator {
     public long allocArray(long numElements, int elementSize, boolean zero) throws OutOfMemoryError {
       // any JVM accounting for memory allocated this way?
       long sz = numElements * elementSize;
-      long addr = unsafe.allocateMemory(sz + HEADER_SIZE);
+      Account account = getAccount();
+      account.charge(sz);
+
+      long addr;
+      try {
+        addr = allocateMemory(sz + HEADER_SIZE);
+      } catch (OutOfMemoryError e) {
+        for (Account a = account; a != null; a = a.parent) {
+          a.bytes.addAndGet(-sz);
+        }
+        throw e;
+      }
 
       numAlloc.incrementAndGet();
 
@@ -55,15 +257,35 @@ public class HS
       // should never be 0 since we always add a header
       addr += HEADER_SIZE;
       unsafe.putLong(addr - SIZE_OFFSET, sz);
+      unsafe.putInt(addr - ACCOUNT_OFFSET, account.getId());
 
       return addr;
     }
 
     public void freeArray(long ptr) {
       assert arraySizeBytes(ptr) >= 0;
+      long sz = unsafe.getLong(ptr - SIZE_OFFSET);
+      accounts.get(unsafe.getInt(ptr - ACCOUNT_OFFSET)).release(sz);
       numFree.incrementAndGet();
       unsafe.putLong(ptr - SIZE_OFFSET, -123456789L);  // put negative length to trip asserts
-      unsafe.freeMemory(ptr - HEADER_SIZE);
+      freeMemory(ptr - HEADER_SIZE, sz + HEADER_SIZE);
+    }
+
+    /** Returns a block of native memory of at least the given size */
+    protected long allocateMemory(long bytes) throws OutOfMemoryError {
+      return unsafe.allocateMemory(bytes);
+    }
+
+    /** Releases a block returned by {@link #allocateMemory}, where <code>bytes</code> is the size that was requested */
+    protected void freeMemory(long addr, long bytes) {
+      unsafe.freeMemory(addr);
+    }
+
+    /** Releases any memory held for re-use */
+    public void trim() {
+    }
+
+    public void getStatistics(NamedList<Object> stats) {
     }
 
     public void reset() {
@@ -75,6 +297,121 @@ public class HS
     }
   }
 
+  /**
+   * An allocator that keeps freed blocks in per size-class free lists (slabs) so that they can be
+   * re-used without going back to the system allocator.  This mostly helps with the bit sets and arrays
+   * that are sized by maxDoc, since those are repeatedly allocated with the same size.
+   * <p>
+   * Size classes are spaced at quarter powers of two (so at most 25% of a block is wasted) up to
+   * <code>maxPooledBlock</code>; larger blocks are allocated directly.  The total size of the free
+   * blocks held is bounded by <code>maxPooledBytes</code>.
+   */
+  public static class SlabAllocator extends Allocator {
+    static final int MIN_SHIFT = 6;  // the smallest size class is 64 bytes
+
+    private static class Slab {
+      long[] blocks = new long[8];
+      int size;
+    }
+
+    private final Slab[] slabs;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SlabAllocator(long maxPooledBytes, long maxPooledBlock) {
+      this.maxPooledBytes = maxPooledBytes;
+      slabs = new Slab[sizeClass(maxPooledBlock) + 1];
+      for (int i=0; i<slabs.length; i++) {
+        slabs[i] = new Slab();
+      }
+    }
+
+    static int sizeClass(long bytes) {
+      if (bytes <= (1L << MIN_SHIFT)) return 0;
+      long x = bytes - 1;
+      int p = 63 - Long.numberOfLeadingZeros(x);  // 2^p <= x < 2^(p+1)
+      return 1 + ((p - MIN_SHIFT) << 2) + (int)((x >>> (p - 2)) & 0x3);
+    }
+
+    static long classSize(int sizeClass) {
+      if (sizeClass == 0) return 1L << MIN_SHIFT;
+      int p = MIN_SHIFT + ((sizeClass - 1) >> 2);
+      return (5L + ((sizeClass - 1) & 0x3)) << (p - 2);
+    }
+
+    @Override
+    protected long allocateMemory(long bytes) throws OutOfMemoryError {
+      int sizeClass = sizeClass(bytes);
+      if (sizeClass >= slabs.length) {
+        return super.allocateMemory(bytes);
+      }
+
+      Slab slab = slabs[sizeClass];
+      synchronized (slab) {
+        if (slab.size > 0) {
+          pooledBytes.addAndGet(-classSize(sizeClass));
+          hits.incrementAndGet();
+          return slab.blocks[--slab.size];
+        }
+      }
+
+      misses.incrementAndGet();
+      return unsafe.allocateMemory(classSize(sizeClass));
+    }
+
+    @Override
+    protected void freeMemory(long addr, long bytes) {
+      int sizeClass = sizeClass(bytes);
+      if (sizeClass >= slabs.length) {
+        super.freeMemory(addr, bytes);
+        return;
+      }
+
+      long blockSize = classSize(sizeClass);
+      if (pooledBytes.addAndGet(blockSize) <= maxPooledBytes) {
+        Slab slab = slabs[sizeClass];
+        synchronized (slab) {
+          if (slab.size >= slab.blocks.length) {
+            slab.blocks = Arrays.copyOf(slab.blocks, slab.blocks.length << 1);
+          }
+          slab.blocks[slab.size++] = addr;
+        }
+        return;
+      }
+
+      pooledBytes.addAndGet(-blockSize);
+      unsafe.freeMemory(addr);
+    }
+
+    @Override
+    public void trim() {
+      for (int sizeClass=0; sizeClass<slabs.length; sizeClass++) {
+        Slab slab = slabs[sizeClass];
+        synchronized (slab) {
+          for (int i=0; i<slab.size; i++) {
+            unsafe.freeMemory(slab.blocks[i]);
+          }
+          pooledBytes.addAndGet(-classSize(sizeClass) * slab.size);
+          slab.size = 0;
+        }
+      }
+    }
+
+    public long getPooledBytes() {
+      return pooledBytes.get();
+    }
+
+    @Override
+    public void getStatistics(NamedList<Object> stats) {
+      stats.add("pooledBytes", pooledBytes.get());
+      stats.add("maxPooledBytes", maxPooledBytes);
+      stats.add("poolHits", hits.get());
+      stats.add("poolMisses", misses.get());
+    }
+  }
+
   // An allocator for debugging that tracks every allocation
   public static class TrackingAllocator extends Allocator {
     private static class Info {
@@ -138,14 +475,135 @@ public class HS
     }
   }
 
+  /** The parent of all other accounts */
+  public static final Account totalAccount = new Account("total", null, -1);
+  /** Allocations made when no other account is current */
+  public static final Account otherAccount = new Account("other", totalAccount, 0);
+  public static final Account nCacheAccount = new Account("nCache", totalAccount, 1);
+  public static final Account filterCacheAccount = new Account("filterCache", totalAccount, 2);
+  /** The parent of all per-request accounts */
+  public static final Account requestAccount = new Account("request", totalAccount, 3);
+  /** The stored fields held by native documentCaches */
+  public static final Account documentCacheAccount = new Account("documentCache", totalAccount, 4);
+
+  private static final int UNASSIGNED_ID = -2;
+  private static final int FIRST_REQUEST_ID = 5;
+  private static final int MAX_REQUEST_ACCOUNTS = 4096;
+  // the accounts by id, including the per-request accounts that have allocated
+  private static final AtomicReferenceArray<Account> accounts = new AtomicReferenceArray<>(FIRST_REQUEST_ID + MAX_REQUEST_ACCOUNTS);
+  private static final ConcurrentLinkedQueue<Integer> freeRequestIds = new ConcurrentLinkedQueue<>();
+  static {
+    Account[] fixed = {otherAccount, nCacheAccount, filterCacheAccount, requestAccount, documentCacheAccount};
+    for (Account account : fixed) {
+      accounts.set(account.id, account);
+    }
+    for (int i = FIRST_REQUEST_ID; i < accounts.length(); i++) {
+      accounts.set(i, requestAccount);
+      freeRequestIds.add(i);
+    }
+  }
+  private static volatile long perRequestLimit = Long.MAX_VALUE;
+
+  private static final ThreadLocal<Account> currentAccount = new ThreadLocal<>();
+
   public static Allocator allocator = new Allocator();
   // public static Allocator allocator = new TrackingAllocator();
 
+  static {
+    // limits are node wide (accounts are shared by all cores), so they are configured with system properties
+    for (Account account : getAccounts()) {
+      account.setSoftLimit(getSizeProperty("solr.hs.limit." + account.getName() + ".soft", Long.MAX_VALUE));
+      account.setHardLimit(getSizeProperty("solr.hs.limit." + account.getName() + ".hard", Long.MAX_VALUE));
+    }
+    perRequestLimit = getSizeProperty("solr.hs.limit.perRequest", Long.MAX_VALUE);
+
+    String allocatorName = System.getProperty("solr.hs.allocator", "default");
+    if ("slab".equals(allocatorName)) {
+      allocator = new SlabAllocator(getSizeProperty("solr.hs.slab.maxPooledBytes", 64L << 20), getSizeProperty("solr.hs.slab.maxBlockSize", 4L << 20));
+    } else if ("tracking".equals(allocatorName)) {
+      allocator = new TrackingAllocator();
+    }
+  }
+
   private static final AtomicLong numAlloc = new AtomicLong();
   private static final AtomicLong numFree = new AtomicLong();
 
   public static final int HEADER_SIZE = 16;
   public static final int SIZE_OFFSET = 8;
+  public static final int ACCOUNT_OFFSET = 16;
+
+  /** Parses a number of bytes with an optional k, m, or g suffix */
+  public static long parseSize(String size) {
+    String s = size.trim().toLowerCase(Locale.ROOT);
+    int shift = 0;
+    switch (s.charAt(s.length() - 1)) {
+      case 'k': shift = 10; break;
+      case 'm': shift = 20; break;
+      case 'g': shift = 30; break;
+    }
+    if (shift != 0) s = s.substring(0, s.length() - 1);
+    return Long.parseLong(s.trim()) << shift;
+  }
+
+  private static long getSizeProperty(String name, long def) {
+    String val = System.getProperty(name);
+    return val == null ? def : parseSize(val);
+  }
+
+  /** The account allocations made by the current thread are charged to */
+  public static Account getAccount() {
+    Account account = currentAccount.get();
+    return account == null ? otherAccount : account;
+  }
+
+  /**
+   * Sets the account that allocations made by the current thread will be charged to and returns the previous
+   * account (which may be null), which should be restored when done.
+   */
+  public static Account setAccount(Account account) {
+    Account prev = currentAccount.get();
+    currentAccount.set(account);
+    return prev;
+  }
+
+  /** Returns the accounts that allocations may be charged to, starting with the total */
+  public static List<Account> getAccounts() {
+    return Collections.unmodifiableList(Arrays.asList(totalAccount, otherAccount, nCacheAccount, filterCacheAccount, requestAccount, documentCacheAccount));
+  }
+
+  /**
+   * Creates an account for a single request.  The account counts the bytes allocated while it is current that
+   * have not been freed, and rejects allocations past the per-request limit.  It should be closed when the
+   * request is done.
+   */
+  public static Account newRequestAccount() {
+    Account account = new Account("request", requestAccount, UNASSIGNED_ID);
+    account.setHardLimit(perRequestLimit);
+    return account;
+  }
+
+  /**
+   * Charges an array to another account, as when a set computed by a request is put in a cache that outlives
+   * it.  The array must not be freed meanwhile.
+   */
+  public static void setArrayAccount(long ptr, Account account) {
+    int id = unsafe.getInt(ptr - ACCOUNT_OFFSET);
+    if (id == MAPPED_ARRAY) return;
+    int newId = account.getId();
+    if (id == newId) return;
+    long sz = unsafe.getLong(ptr - SIZE_OFFSET);
+    account.charge(sz, false);
+    unsafe.putInt(ptr - ACCOUNT_OFFSET, newId);
+    accounts.get(id).release(sz);
+  }
+
+  public static long getPerRequestLimit() {
+    return perRequestLimit;
+  }
+
+  public static void setPerRequestLimit(long limit) {
+    perRequestLimit = limit;
+  }
 
   public static long getNumAllocations() {
     return numAlloc.get();
@@ -160,9 +618,135 @@ public class HS
   }
 
   public static void freeArray(long ptr) {
+    assert arraySizeBytes(ptr) >= 0;
+    if (unsafe.getInt(ptr - ACCOUNT_OFFSET) == MAPPED_ARRAY) {
+      freeMappedArray(ptr);
+      return;
+    }
     allocator.freeArray(ptr);
   }
 
+
+  /** Marks the header of an array that is part of a {@link MappedFile} (in place of the account id) */
+  public static final int MAPPED_ARRAY = 0x4d415050;
+
+  private static final ConcurrentSkipListMap<Long, MappedFile> mappedFiles = new ConcurrentSkipListMap<>();
+  private static final AtomicLong mappedBytes = new AtomicLong();
+  private static final long bufferAddressOffset;
+  static {
+    try {
+      bufferAddressOffset = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+    } catch (NoSuchFieldException e) {
+      throw new RuntimeException("HS: can't find address of direct buffers", e);
+    }
+  }
+
+  /**
+   * A file mapped into memory that contains HS arrays, each preceded by an array header
+   * (see {@link #writeMappedArrayHeader}).  Arrays obtained from the file are freed as usual, and
+   * the file is unmapped once it has been closed and all of its arrays have been freed.
+   * <p>
+   * The mapping is private, so changes to arrays are never written back to the file.
+   */
+  public static class MappedFile implements Closeable {
+    private final MappedByteBuffer buffer;
+    private final long address;
+    private final long size;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private MappedFile(MappedByteBuffer buffer, long size) {
+      this.buffer = buffer;
+      this.address = unsafe.getLong(buffer, bufferAddressOffset);
+      this.size = size;
+    }
+
+    /** Returns a new view of the file in native byte order, for reading anything other than arrays */
+    public ByteBuffer getBuffer() {
+      return buffer.duplicate().order(ByteOrder.nativeOrder());
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /** Returns the array whose data starts at <code>offset</code> in the file. */
+    public long getArray(long offset) throws IOException {
+      long ptr = address + offset;
+      if (offset < HEADER_SIZE || offset > size || (ptr & 0x7) != 0
+          || unsafe.getInt(ptr - ACCOUNT_OFFSET) != MAPPED_ARRAY
+          || unsafe.getLong(ptr - SIZE_OFFSET) < 0 || offset + unsafe.getLong(ptr - SIZE_OFFSET) > size) {
+        throw new IOException("No array found at offset " + offset + " of mapped file");
+      }
+      refCount.incrementAndGet();
+      return ptr;
+    }
+
+    @Override
+    public void close() {
+      release();
+    }
+
+    private void release() {
+      if (refCount.decrementAndGet() == 0) {
+        mappedFiles.remove(address);
+        mappedBytes.addAndGet(-size);
+        unmap(buffer);
+      }
+    }
+  }
+
+  /** Maps a file written with array headers (see {@link #writeMappedArrayHeader}) into memory */
+  public static MappedFile mapFile(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("File is too large to map: " + file);
+      }
+      MappedFile mapped = new MappedFile(channel.map(FileChannel.MapMode.PRIVATE, 0, size), size);
+      mappedFiles.put(mapped.address, mapped);
+      mappedBytes.addAndGet(size);
+      return mapped;
+    }
+  }
+
+  /** Writes the header that must precede an array in a file that will be mapped with {@link #mapFile} */
+  public static void writeMappedArrayHeader(long numBytes, ByteBuffer target) {
+    assert target.order() == ByteOrder.nativeOrder();
+    target.putInt(MAPPED_ARRAY);
+    target.putInt(0);
+    target.putLong(numBytes);
+  }
+
+  /** The number of bytes of all files currently mapped with {@link #mapFile} */
+  public static long getMappedBytes() {
+    return mappedBytes.get();
+  }
+
+  private static void freeMappedArray(long ptr) {
+    Map.Entry<Long, MappedFile> entry = mappedFiles.floorEntry(ptr);
+    if (entry == null || ptr >= entry.getKey() + entry.getValue().size) {
+      throw new RuntimeException("HS ERROR: no mapped file contains " + ptr);
+    }
+    unsafe.putLong(ptr - SIZE_OFFSET, -123456789L);  // put negative length to trip asserts
+    entry.getValue().release();
+  }
+
+  /** Releases the mapping of a buffer right away.  The buffer, and any views of it, must not be used afterwards. */
+  public static void unmap(MappedByteBuffer buffer) {
+    try {
+      Method getCleaner = buffer.getClass().getMethod("cleaner");
+      getCleaner.setAccessible(true);
+      Object cleaner = getCleaner.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (Exception e) {
+      // the mapping will be released when the buffer is garbage collected
+      log.warn("HS: unable to unmap file", e);
+    }
+  }
+
   public static long arraySizeBytes(long ptr) {
     assert ptr >= 4095 && unsafe.getLong(ptr - SIZE_OFFSET) >= 0;     // if this assertion trips, it's most likely because of a double free
     long sz = unsafe.getLong(ptr - SIZE_OFFSET);
@@ -326,6 +910,11 @@ public class HS
     unsafe.copyMemory(srcArray, Unsafe.ARRAY_BYTE_BASE_OFFSET + (((long)srcOff)), null, targetPointer+targetOff, nbytes);
   }
 
+  public static void copyBytes(long srcPointer, long srcOff, byte[] targetArray, int targetOff, int numBytes) {
+    assert srcOff>=0 && targetOff>=0 && (srcOff + numBytes) <= arraySizeBytes(srcPointer) && (targetOff+numBytes<=targetArray.length);
+    unsafe.copyMemory(null, srcPointer+srcOff, targetArray, Unsafe.ARRAY_BYTE_BASE_OFFSET + ((long)targetOff), numBytes);
+  }
+
   public static void copyBytes(long srcPointer, long srcOff, long targetPointer, long targetOff,  long numBytes) {
     assert srcOff>=0 && targetOff>=0 && (targetOff + numBytes) <= arraySizeBytes(targetPointer) && (srcOff + numBytes) <= arraySizeBytes(srcPointer);
     unsafe.copyMemory(srcPointer + srcOff, targetPointer + targetOff, numBytes);
@@ -338,6 +927,13 @@ public class HS
     unsafe.copyMemory(srcArray, Unsafe.ARRAY_INT_BASE_OFFSET + (((long)srcOff)<<2), null, targetPointer+targetOffBytes, nbytes);
   }
 
+  public static void copyShorts(short[] srcArray, int srcOff, long targetPointer, long targetOff,  int numElements) {
+    long targetOffBytes = targetOff<<1;
+    long nbytes = ((long)numElements) << 1;
+    assert srcOff>=0 && targetOff>=0 && (targetOffBytes + nbytes) <= arraySizeBytes(targetPointer);
+    unsafe.copyMemory(srcArray, Unsafe.ARRAY_SHORT_BASE_OFFSET + (((long)srcOff)<<1), null, targetPointer+targetOffBytes, nbytes);
+  }
+
   public static void copyLongs(long[] srcArray, int srcOff, long targetPointer, long targetOff,  int numElements) {
     long targetOffBytes = targetOff<<3;
     long nbytes = ((long)numElements) << 3;
@@ -359,6 +955,43 @@ public class HS
     unsafe.copyMemory(null, sourcePointer+srcOffBytes, targetArray, Unsafe.ARRAY_LONG_BASE_OFFSET + (((long)targetOff)<<3), nbytes);
   }
 
+  /**
+   * ANDs <code>numElements</code> longs of the native array into the target array.  Bounds are only checked once,
+   * and the loop is unrolled over the raw address so that the JIT can vectorize it.
+   */
+  public static void andLongs(long srcPointer, long srcOff, long[] targetArray, int targetOff, int numElements) {
+    assert srcOff>=0 && targetOff>=0 && ((srcOff + numElements)<<3) <= arraySizeBytes(srcPointer) && (targetOff+numElements<=targetArray.length);
+    long addr = srcPointer + (srcOff<<3);
+    int i = targetOff;
+    int end = targetOff + numElements;
+    for (; i+3 < end; i+=4, addr+=32) {
+      targetArray[i] &= unsafe.getLong(addr);
+      targetArray[i+1] &= unsafe.getLong(addr+8);
+      targetArray[i+2] &= unsafe.getLong(addr+16);
+      targetArray[i+3] &= unsafe.getLong(addr+24);
+    }
+    for (; i < end; i++, addr+=8) {
+      targetArray[i] &= unsafe.getLong(addr);
+    }
+  }
+
+  /** Clears the bits of <code>numElements</code> longs of the native array from the target array.  See {@link #andLongs} */
+  public static void andNotLongs(long srcPointer, long srcOff, long[] targetArray, int targetOff, int numElements) {
+    assert srcOff>=0 && targetOff>=0 && ((srcOff + numElements)<<3) <= arraySizeBytes(srcPointer) && (targetOff+numElements<=targetArray.length);
+    long addr = srcPointer + (srcOff<<3);
+    int i = targetOff;
+    int end = targetOff + numElements;
+    for (; i+3 < end; i+=4, addr+=32) {
+      targetArray[i] &= ~unsafe.getLong(addr);
+      targetArray[i+1] &= ~unsafe.getLong(addr+8);
+      targetArray[i+2] &= ~unsafe.getLong(addr+16);
+      targetArray[i+3] &= ~unsafe.getLong(addr+24);
+    }
+    for (; i < end; i++, addr+=8) {
+      targetArray[i] &= ~unsafe.getLong(addr);
+    }
+  }
+
   public static void copyInts(long src, long srcOff, long dest, long destOff, long len) {
     long srcOffBytes = srcOff<<2;
     long destOffBytes = destOff<<2;
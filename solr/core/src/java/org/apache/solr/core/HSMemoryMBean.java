@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.core;
+
+import java.net.URL;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * A SolrInfoMBean that reports the native memory allocated through {@link HS}, broken down by account.
+ * The accounts are shared by all cores in the JVM.
+ */
+public class HSMemoryMBean implements SolrInfoMBean {
+
+  @Override
+  public String getName() { return this.getClass().getName(); }
+  @Override
+  public String getVersion() { return SolrCore.version; }
+  @Override
+  public String getDescription() {
+    return "Native memory usage and limits (shared by all cores)";
+  }
+  @Override
+  public Category getCategory() { return Category.OTHER; }
+  @Override
+  public String getSource() {
+    return "$URL$";
+  }
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+  @Override
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new SimpleOrderedMap<>();
+    stats.add("allocator", HS.allocator.getClass().getSimpleName());
+    stats.add("allocations", HS.getNumAllocations());
+    stats.add("frees", HS.getNumFrees());
+    stats.add("mappedBytes", HS.getMappedBytes());
+    if (HS.getPerRequestLimit() != Long.MAX_VALUE) {
+      stats.add("perRequestLimit", HS.getPerRequestLimit());
+    }
+    HS.allocator.getStatistics(stats);
+    for (HS.Account account : HS.getAccounts()) {
+      stats.add(account.getName(), account.getStatistics());
+    }
+    return stats;
+  }
+
+}
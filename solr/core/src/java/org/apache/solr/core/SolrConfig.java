@@ -193,6 +193,7 @@ public class SolrConfig extends Config {
       conf.clazz = FastLRUCache.class;
     }
     filterCacheConfig = conf;
+    perSegmentFilterCache = getBool("query/filterCache/@perSegment", false);
 
     conf = CacheConfig.getConfig(this, "query/nCache");
     if (conf == null) {
@@ -206,10 +207,19 @@ public class SolrConfig extends Config {
       conf.clazz = FastLRUCache.class;
     }
     nCacheConfig = conf;
+    nCachePersist = getBool("query/nCache/@persist", false);
+    nCacheWarmThreads = getInt("query/nCache/@warmThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
 
 
     queryResultCacheConfig = CacheConfig.getConfig(this, "query/queryResultCache");
-    documentCacheConfig = CacheConfig.getConfig(this, "query/documentCache");
+    facetCacheConfig = CacheConfig.getConfig(this, "query/facetCache");
+    conf = CacheConfig.getConfig(this, "query/documentCache");
+    documentCacheNative = conf != null && getBool("query/documentCache/@native", false);
+    if (documentCacheNative) {
+      // native documents are reference counted, which only the FastLRUCache supports
+      conf.clazz = FastLRUCache.class;
+    }
+    documentCacheConfig = conf;
     conf = CacheConfig.getConfig(this, "query/fieldValueCache");
     if (conf == null) {
       Map<String,String> args = new HashMap<>();
@@ -357,10 +367,15 @@ public class SolrConfig extends Config {
   // SolrIndexSearcher - caches configurations
   public final CacheConfig filterCacheConfig ;
   public final CacheConfig queryResultCacheConfig;
+  public final CacheConfig facetCacheConfig;
   public final CacheConfig documentCacheConfig;
+  public final boolean documentCacheNative;
   public final CacheConfig fieldValueCacheConfig;
   public final CacheConfig nCacheConfig;
   public final CacheConfig[] userCacheConfigs;
+  public final boolean perSegmentFilterCache;
+  public final boolean nCachePersist;
+  public final int nCacheWarmThreads;
   // SolrIndexSearcher - more...
   public final boolean useFilterForSortedQuery;
   public final int queryResultWindowSize;
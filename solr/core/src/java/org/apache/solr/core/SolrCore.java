@@ -711,6 +711,7 @@ public final class SolrCore implements SolrInfoMBean {
     }
 
     infoRegistry.put("fieldCache", new SolrFieldCacheMBean());
+    infoRegistry.put("nativeMemory", new HSMemoryMBean());
 
     if (schema==null) {
       schema = IndexSchemaFactory.buildIndexSchema(IndexSchema.DEFAULT_SCHEMA_FILE, config);
@@ -1053,6 +1054,20 @@ public final class SolrCore implements SolrInfoMBean {
       }
     }
 
+    try {
+      // no searcher is warming any more
+      synchronized (this) {
+        if (nCacheWarmExecutor != null) {
+          ExecutorUtil.shutdownAndAwaitTermination(nCacheWarmExecutor);
+        }
+      }
+    } catch (Throwable e) {
+      SolrException.log(log, e);
+      if (e instanceof Error) {
+        throw (Error) e;
+      }
+    }
+
     try {
       // Since we waited for the searcherExecutor to shut down,
       // there should be no more searchers warming in the background
@@ -1273,6 +1288,21 @@ public final class SolrCore implements SolrInfoMBean {
   // Update Handler
   ////////////////////////////////////////////////////////////////////////////////
 
+  /**
+   * Returns the pool that creates nCache segments in parallel while a searcher is warmed, or null
+   * if warming is single threaded or the core is closing.
+   */
+  public synchronized ExecutorService getNCacheWarmExecutor() {
+    if (solrConfig.nCacheWarmThreads <= 1 || isClosed()) {
+      return null;
+    }
+    if (nCacheWarmExecutor == null) {
+      nCacheWarmExecutor = Executors.newFixedThreadPool(solrConfig.nCacheWarmThreads,
+          new DefaultSolrThreadFactory("nCacheWarming"));
+    }
+    return nCacheWarmExecutor;
+  }
+
   /**
    * RequestHandlers need access to the updateHandler so they can all talk to the
    * same RAM indexer.  
@@ -1298,6 +1328,8 @@ public final class SolrCore implements SolrInfoMBean {
 
   final ExecutorService searcherExecutor = Executors.newSingleThreadExecutor(
       new DefaultSolrThreadFactory("searcherExecutor"));
+  // creates nCache segments in parallel while searchers are warmed, shared by all searchers of the core
+  private ExecutorService nCacheWarmExecutor;
   private int onDeckSearchers;  // number of searchers preparing
   // Lock ordering: one can acquire the openSearcherLock and then the searcherLock, but not vice-versa.
   private Object searcherLock = new Object();  // the sync object for the searcher
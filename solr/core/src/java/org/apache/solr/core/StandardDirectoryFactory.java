@@ -109,6 +109,27 @@ public class StandardDirectoryFactory extends CachingDirectoryFactory {
     super.move(fromDir, toDir, fileName, ioContext);
   }
 
+  @Override
+  public void rename(Directory dir, String fileName, String toName, IOContext ioContext)
+      throws IOException {
+    
+    Directory baseDir = getBaseDir(dir);
+    
+    if (baseDir instanceof FSDirectory) {
+      File file = new File(((FSDirectory) baseDir).getDirectory(), fileName);
+      File toFile = new File(((FSDirectory) baseDir).getDirectory(), toName);
+      if (toFile.exists()) {
+        dir.deleteFile(toName);
+      }
+      boolean success = file.renameTo(toFile);
+      if (success) {
+        return;
+      }
+    }
+
+    super.rename(dir, fileName, toName, ioContext);
+  }
+
   // special hack to work with NRTCachingDirectory and RateLimitedDirectoryWrapper
   private Directory getBaseDir(Directory dir) {
     Directory baseDir;
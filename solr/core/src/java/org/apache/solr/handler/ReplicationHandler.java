@@ -25,6 +25,8 @@ import java.io.OutputStream;
 import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -47,6 +49,9 @@ import org.apache.lucene.index.IndexCommit;
 import org.apache.lucene.index.IndexDeletionPolicy;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.store.ByteArrayDataOutput;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
@@ -207,6 +212,8 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
       getFileStream(solrParams, rsp);
     } else if (command.equals(CMD_GET_FILE_LIST)) {
       getFileList(solrParams, rsp);
+    } else if (command.equals(CMD_GET_BLOCK_CHECKSUMS)) {
+      getBlockChecksums(solrParams, rsp);
     } else if (command.equalsIgnoreCase(CMD_BACKUP)) {
       doSnapShoot(new ModifiableSolrParams(solrParams), rsp,req);
       rsp.add(STATUS, OK_STATUS);
@@ -309,6 +316,10 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
 
   private volatile SnapPuller tempSnapPuller;
 
+  // the temp index dir of a fetch whose download was interrupted, kept for the next fetch to resume (and in
+  // replication.properties, so that it is also resumed after a restart)
+  volatile String resumeIndexDirName;
+
   public boolean doFetch(SolrParams solrParams, boolean forceReplication) {
     String masterUrl = solrParams == null ? null : solrParams.get(MASTER_URL);
     if (!snapPullLock.tryLock())
@@ -430,6 +441,9 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
       LOG.error("Unable to get file names for indexCommit generation: " + gen, e);
     }
     rsp.add(CMD_GET_FILE_LIST, result);
+    // let the slave know what it may ask for when fetching the files
+    rsp.add(PACKET_COMPRESSION, Arrays.asList(LZ4, DEFLATE));
+    rsp.add(CMD_GET_BLOCK_CHECKSUMS, true);
     if (confFileNameAlias.size() < 1 || core.getCoreDescriptor().getCoreContainer().isZooKeeperAware())
       return;
     LOG.debug("Adding config files to list: " + includeConfFiles);
@@ -437,6 +451,101 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
     rsp.add(CONF_FILES, getConfFileInfoFromCache(confFileNameAlias, confFileInfoCache));
   }
 
+  private void getBlockChecksums(SolrParams solrParams, SolrQueryResponse rsp) {
+    String fileName = solrParams.get(FILE);
+    String v = solrParams.get(GENERATION);
+    if (fileName == null || v == null) {
+      rsp.add("status", "no file name or index generation specified");
+      return;
+    }
+    long gen = Long.parseLong(v);
+    if (core.getDeletionPolicy().getCommitPoint(gen) == null) {
+      rsp.add("status", "invalid index generation");
+      return;
+    }
+    core.getDeletionPolicy().setReserveDuration(gen, reserveCommitDuration);
+    int blockSize = solrParams.getInt(BLOCK_SIZE, PACKET_SZ);
+    String sOffset = solrParams.get(OFFSET);
+    String sEnd = solrParams.get(END);
+    Directory dir = null;
+    try {
+      dir = core.getDirectoryFactory().get(core.getNewIndexDir(), DirContext.DEFAULT, core.getSolrConfig().indexConfig.lockType);
+      try {
+        rsp.add(CMD_GET_BLOCK_CHECKSUMS, getBlockChecksums(dir, fileName, blockSize,
+            sOffset == null ? 0 : Long.parseLong(sOffset), sEnd == null ? -1 : Long.parseLong(sEnd)));
+      } finally {
+        core.getDirectoryFactory().release(dir);
+      }
+    } catch (IOException e) {
+      rsp.add("status", "unable to get block checksums for " + fileName);
+      rsp.add("exception", e);
+      LOG.error("Unable to get block checksums for " + fileName, e);
+    }
+  }
+
+  /**
+   * The checksums of consecutive blocks of an index file (the first 8 bytes of each block's MD5), which the
+   * slave compares with those of its own copy to only fetch the blocks that differ.
+   */
+  static List<Long> getBlockChecksums(Directory dir, String fileName, int blockSize) throws IOException {
+    return getBlockChecksums(dir, fileName, blockSize, 0, -1);
+  }
+
+  /**
+   * The checksums of consecutive blocks of the range of an index file from offset to end (or to the end of the
+   * file if end is negative), which lets the slave verify a range it has fetched.
+   */
+  static List<Long> getBlockChecksums(Directory dir, String fileName, int blockSize, long offset, long end)
+      throws IOException {
+    if (blockSize < SnapPuller.MIN_DELTA_BLOCK_SIZE || blockSize > PACKET_SZ) {
+      throw new SolrException(ErrorCode.BAD_REQUEST, "Invalid block size: " + blockSize
+          + " (must be between " + SnapPuller.MIN_DELTA_BLOCK_SIZE + " and " + PACKET_SZ + ")");
+    }
+    MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    List<Long> checksums = new ArrayList<>();
+    IndexInput in = dir.openInput(fileName, IOContext.READONCE);
+    try {
+      long limit = end < 0 ? in.length() : Math.min(end, in.length());
+      byte[] buf = new byte[(int) Math.max(0, Math.min(blockSize, limit - offset))];
+      if (offset > 0 && offset < limit) {
+        in.seek(offset);
+      }
+      for (long pos = offset; pos < limit; pos += blockSize) {
+        int len = (int) Math.min(blockSize, limit - pos);
+        in.readBytes(buf, 0, len);
+        md5.update(buf, 0, len);
+        byte[] digest = md5.digest();
+        long checksum = 0;
+        for (int i = 0; i < 8; i++) {
+          checksum = (checksum << 8) | (digest[i] & 0xff);
+        }
+        checksums.add(checksum);
+      }
+    } finally {
+      in.close();
+    }
+    return checksums;
+  }
+
+  /**
+   * The compression mode used for a packet compression named by a slave, or null if it isn't one we know
+   */
+  static CompressionMode getPacketCompressionMode(String name) {
+    if (LZ4.equals(name)) return CompressionMode.FAST;
+    if (DEFLATE.equals(name)) return CompressionMode.HIGH_COMPRESSION;
+    return null;
+  }
+
+  /** Room for a compressed packet, which is larger than the packet if its bytes don't compress */
+  static int maxCompressedLength(int len) {
+    return len + (len >>> 7) + 64;
+  }
+
   /**
    * For configuration files, checksum of the file is included because, unlike index files, they may have same content
    * but different timestamps.
@@ -583,6 +692,10 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
           list.add("timeElapsed", elapsed);
           list.add("bytesDownloaded", val);
           list.add("downloadSpeed", val / elapsed);
+          long transferred = snapPuller.getBytesTransferred();
+          list.add("bytesTransferred", transferred);
+          list.add("transferSpeed", transferred / elapsed);
+          if (val > 0) list.add("transferRatio", (float) transferred / val);
         }
         Properties props = loadReplicationProperties();
         addVal(list, SnapPuller.PREVIOUS_CYCLE_TIME_TAKEN, props, Long.class);
@@ -592,6 +705,8 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
         addVal(list, SnapPuller.TIMES_FAILED, props, Integer.class);
         addVal(list, SnapPuller.TIMES_INDEX_REPLICATED, props, Integer.class);
         addVal(list, SnapPuller.LAST_CYCLE_BYTES_DOWNLOADED, props, Long.class);
+        addVal(list, SnapPuller.LAST_CYCLE_BYTES_TRANSFERRED, props, Long.class);
+        addTransferStats(list, props);
         addVal(list, SnapPuller.TIMES_CONFIG_REPLICATED, props, Integer.class);
         addVal(list, SnapPuller.CONF_FILES_REPLICATED, props, String.class);
       }
@@ -666,6 +781,8 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
       addVal(slave, SnapPuller.TIMES_CONFIG_REPLICATED, props, Integer.class);
       addVal(slave, SnapPuller.CONF_FILES_REPLICATED_AT, props, Integer.class);
       addVal(slave, SnapPuller.LAST_CYCLE_BYTES_DOWNLOADED, props, Long.class);
+      addVal(slave, SnapPuller.LAST_CYCLE_BYTES_TRANSFERRED, props, Long.class);
+      addTransferStats(slave, props);
       addVal(slave, SnapPuller.TIMES_FAILED, props, Integer.class);
       addVal(slave, SnapPuller.REPLICATION_FAILED_AT, props, Date.class);
       addVal(slave, SnapPuller.PREVIOUS_CYCLE_TIME_TAKEN, props, Long.class);
@@ -748,6 +865,12 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
           slave.add("totalPercent", String.valueOf(totalPercent));
           slave.add("timeRemaining", String.valueOf(estimatedTimeRemaining) + "s");
           slave.add("downloadSpeed", NumberUtils.readableSize(downloadSpeed));
+          long bytesTransferred = snapPuller.getBytesTransferred();
+          slave.add("bytesTransferred", NumberUtils.readableSize(bytesTransferred));
+          if (bytesDownloaded > 0)
+            slave.add("transferRatio", String.valueOf((float) bytesTransferred / bytesDownloaded));
+          if (elapsed > 0)
+            slave.add("transferSpeed", NumberUtils.readableSize(bytesTransferred / elapsed));
         } catch (Exception e) {
           LOG.error("Exception while writing replication details: ", e);
         }
@@ -766,6 +889,25 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
     return details;
   }
 
+  /**
+   * The ratio of the bytes that came over the wire to the index bytes they stood for (after packet compression and
+   * block deltas), and the throughput, of the last replication
+   */
+  private void addTransferStats(NamedList<Object> nl, Properties props) {
+    try {
+      String downloaded = props.getProperty(SnapPuller.LAST_CYCLE_BYTES_DOWNLOADED);
+      String transferred = props.getProperty(SnapPuller.LAST_CYCLE_BYTES_TRANSFERRED);
+      String timeTaken = props.getProperty(SnapPuller.PREVIOUS_CYCLE_TIME_TAKEN);
+      if (downloaded == null || Long.parseLong(downloaded) == 0) return;
+      if (transferred != null) {
+        nl.add("lastCycleTransferRatio", String.valueOf((float) Long.parseLong(transferred) / Long.parseLong(downloaded)));
+      }
+      if (timeTaken != null && Long.parseLong(timeTaken) > 0) {
+        nl.add("lastCycleDownloadSpeed", NumberUtils.readableSize(Long.parseLong(downloaded) / Long.parseLong(timeTaken)));
+      }
+    } catch (NumberFormatException e) {/*no op*/ }
+  }
+
   private void addVal(NamedList<Object> nl, String key, Properties props, Class clzz) {
     String s = props.getProperty(key);
     if (s == null || s.trim().length() == 0) return;
@@ -805,6 +947,27 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
     return timeElapsed;
   }
 
+  /**
+   * Restores the temp index dir of a download interrupted before the core was last closed, so that the next fetch
+   * resumes it.  The dir is ignored if it no longer exists, or if it was installed as the index.
+   */
+  private void loadResumeIndexDirName() {
+    try {
+      String name = loadReplicationProperties().getProperty(SnapPuller.RESUME_INDEX_DIR);
+      if (name == null) return;
+      DirectoryFactory directoryFactory = core.getDirectoryFactory();
+      String path = core.getDataDir() + name;
+      if (!directoryFactory.exists(path)
+          || directoryFactory.normalize(path).equals(directoryFactory.normalize(core.getNewIndexDir()))) {
+        return;
+      }
+      LOG.info("Keeping " + name + " to resume the download interrupted before the core was closed");
+      resumeIndexDirName = name;
+    } catch (Exception e) {
+      LOG.warn("Unable to restore the interrupted download", e);
+    }
+  }
+
   Properties loadReplicationProperties() {
     Directory dir = null;
     try {
@@ -859,6 +1022,7 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
     if (enableSlave) {
       tempSnapPuller = snapPuller = new SnapPuller(slave, this, core);
       isSlave = true;
+      loadResumeIndexDirName();
     }
     NamedList master = (NamedList) initArgs.get("master");
     boolean enableMaster = isEnabled( master );
@@ -1100,6 +1264,8 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
       String cfileName = params.get(CONF_FILE_SHORT);
       String sOffset = params.get(OFFSET);
       String sLen = params.get(LEN);
+      String sEnd = params.get(END);
+      CompressionMode packetMode = getPacketCompressionMode(params.get(PACKET_COMPRESSION));
       String compress = params.get(COMPRESSION);
       String sChecksum = params.get(CHECKSUM);
       String sGen = params.get(GENERATION);
@@ -1138,8 +1304,17 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
         byte[] buf = new byte[(len == -1 || len > PACKET_SZ) ? PACKET_SZ : len];
         Checksum checksum = null;
         if (useChecksum) checksum = new Adler32();
+        // each packet is compressed on its own, and sent as it is if that doesn't make it smaller
+        Compressor compressor = null;
+        byte[] cbuf = null;
+        if (packetMode != null) {
+          compressor = packetMode.newCompressor();
+          cbuf = new byte[maxCompressedLength(buf.length)];
+        }
         
         long filelen = dir.fileLength(fileName);
+        // if a range is asked for, stop at its end
+        if (sEnd != null) filelen = Math.min(filelen, Long.parseLong(sEnd));
         while (true) {
           offset = offset == -1 ? 0 : offset;
           int read = (int) Math.min(buf.length, filelen - offset);
@@ -1151,7 +1326,19 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
             checksum.update(buf, 0, read);
             fos.writeLong(checksum.getValue());
           }
-          fos.write(buf, 0, read);
+          if (compressor != null) {
+            ByteArrayDataOutput cout = new ByteArrayDataOutput(cbuf);
+            compressor.compress(buf, 0, read, cout);
+            if (cout.getPosition() < read) {
+              fos.writeInt(cout.getPosition());
+              fos.write(cbuf, 0, cout.getPosition());
+            } else {
+              fos.writeInt(-1);
+              fos.write(buf, 0, read);
+            }
+          } else {
+            fos.write(buf, 0, read);
+          }
           fos.flush();
           if (indexGen != null && (packetsWritten % 5 == 0)) {
             // after every 5 packets reserve the commitpoint for some time
@@ -1290,6 +1477,8 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
 
   public static final String CMD_GET_FILE = "filecontent";
 
+  public static final String CMD_GET_BLOCK_CHECKSUMS = "blockchecksums";
+
   public static final String CMD_DISABLE_POLL = "disablepoll";
 
   public static final String CMD_DISABLE_REPL = "disablereplication";
@@ -1308,6 +1497,9 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
 
   public static final String LEN = "len";
 
+  /** The (exclusive) end of the range of an index file to stream, from {@link #OFFSET} */
+  public static final String END = "end";
+
   public static final String FILE = "file";
 
   public static final String NAME = "name";
@@ -1338,6 +1530,14 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
 
   public static final String INTERNAL = "internal";
 
+  public static final String PACKET_COMPRESSION = "packetCompression";
+
+  public static final String LZ4 = "lz4";
+
+  public static final String DEFLATE = "deflate";
+
+  public static final String BLOCK_SIZE = "blockSize";
+
   public static final String ERR_STATUS = "ERROR";
 
   public static final String OK_STATUS = "OK";
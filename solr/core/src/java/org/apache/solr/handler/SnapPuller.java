@@ -18,8 +18,10 @@ package org.apache.solr.handler;
 
 import static org.apache.lucene.util.IOUtils.CHARSET_UTF_8;
 import static org.apache.solr.handler.ReplicationHandler.ALIAS;
+import static org.apache.solr.handler.ReplicationHandler.BLOCK_SIZE;
 import static org.apache.solr.handler.ReplicationHandler.CHECKSUM;
 import static org.apache.solr.handler.ReplicationHandler.CMD_DETAILS;
+import static org.apache.solr.handler.ReplicationHandler.CMD_GET_BLOCK_CHECKSUMS;
 import static org.apache.solr.handler.ReplicationHandler.CMD_GET_FILE;
 import static org.apache.solr.handler.ReplicationHandler.CMD_GET_FILE_LIST;
 import static org.apache.solr.handler.ReplicationHandler.CMD_INDEX_VERSION;
@@ -27,6 +29,7 @@ import static org.apache.solr.handler.ReplicationHandler.COMMAND;
 import static org.apache.solr.handler.ReplicationHandler.COMPRESSION;
 import static org.apache.solr.handler.ReplicationHandler.CONF_FILES;
 import static org.apache.solr.handler.ReplicationHandler.CONF_FILE_SHORT;
+import static org.apache.solr.handler.ReplicationHandler.END;
 import static org.apache.solr.handler.ReplicationHandler.EXTERNAL;
 import static org.apache.solr.handler.ReplicationHandler.FILE;
 import static org.apache.solr.handler.ReplicationHandler.FILE_STREAM;
@@ -35,6 +38,8 @@ import static org.apache.solr.handler.ReplicationHandler.INTERNAL;
 import static org.apache.solr.handler.ReplicationHandler.MASTER_URL;
 import static org.apache.solr.handler.ReplicationHandler.NAME;
 import static org.apache.solr.handler.ReplicationHandler.OFFSET;
+import static org.apache.solr.handler.ReplicationHandler.PACKET_COMPRESSION;
+import static org.apache.solr.handler.ReplicationHandler.PACKET_SZ;
 import static org.apache.solr.handler.ReplicationHandler.SIZE;
 
 import java.io.File;
@@ -51,12 +56,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -65,6 +72,8 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.Adler32;
@@ -72,12 +81,17 @@ import java.util.zip.Checksum;
 import java.util.zip.InflaterInputStream;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ProxyInputStream;
 import org.apache.http.client.HttpClient;
 import org.apache.lucene.index.IndexCommit;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.codecs.compressing.Decompressor;
+import org.apache.lucene.store.ByteArrayDataInput;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.BytesRef;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpClientUtil;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
@@ -154,6 +168,28 @@ public class SnapPuller {
 
   private volatile boolean stop = false;
 
+  // set when one of several parallel fetches fails, so the others give up too
+  private volatile boolean fetchFailed = false;
+
+  private final int fetchThreads;
+
+  private final long fetchRangeSize;
+
+  private final String packetCompression;
+
+  private final boolean deltaFetch;
+
+  // what the master supports, which is found out with the file list
+  private volatile String fetchPacketCompression;
+
+  private volatile boolean fetchDeltas;
+
+  // whether the master can send the checksums of the blocks of a file, to verify files kept from an interrupted fetch
+  private volatile boolean masterBlockChecksums;
+
+  // the bytes read from the master during the current replication, as they came over the wire
+  private final AtomicLong bytesTransferred = new AtomicLong();
+
   private boolean useInternal = false;
 
   private boolean useExternal = false;
@@ -202,6 +238,15 @@ public class SnapPuller {
     String httpBasicAuthUser = (String) initArgs.get(HttpClientUtil.PROP_BASIC_AUTH_USER);
     String httpBasicAuthPassword = (String) initArgs.get(HttpClientUtil.PROP_BASIC_AUTH_PASS);
     myHttpClient = createHttpClient(solrCore, connTimeout, readTimeout, httpBasicAuthUser, httpBasicAuthPassword, useExternal);
+    fetchThreads = Math.max(1, params.getInt(FETCH_THREADS, Integer.getInteger("solr.replication.fetchThreads", 1)));
+    fetchRangeSize = Math.max(1, params.getInt(FETCH_RANGE_SIZE_MB,
+        Integer.getInteger("solr.replication.fetchRangeSizeMB", 64))) * 1024L * 1024L;
+    packetCompression = params.get(PACKET_COMPRESSION);
+    if (packetCompression != null && ReplicationHandler.getPacketCompressionMode(packetCompression) == null) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "Unknown " + PACKET_COMPRESSION + ": " + packetCompression);
+    }
+    deltaFetch = params.getBool(DELTA_FETCH, true);
     if (pollInterval != null && pollInterval > 0) {
       startExecutorService();
     } else {
@@ -286,6 +331,16 @@ public class SnapPuller {
       if (files != null)
         confFilesToDownload = Collections.synchronizedList(files);
 
+      List<String> compressions = (List<String>) response.get(PACKET_COMPRESSION);
+      if (packetCompression != null && (compressions == null || !compressions.contains(packetCompression))) {
+        LOG.warn("Master does not support " + PACKET_COMPRESSION + "=" + packetCompression + ", fetching uncompressed packets");
+        fetchPacketCompression = null;
+      } else {
+        fetchPacketCompression = packetCompression;
+      }
+      masterBlockChecksums = Boolean.TRUE.equals(response.get(CMD_GET_BLOCK_CHECKSUMS));
+      fetchDeltas = deltaFetch && masterBlockChecksums;
+
     } catch (SolrServerException e) {
       throw new IOException(e);
     } finally {
@@ -307,11 +362,17 @@ public class SnapPuller {
   boolean fetchLatestIndex(final SolrCore core, boolean forceReplication) throws IOException, InterruptedException {
     successfulInstall = false;
     replicationStartTime = System.currentTimeMillis();
+    bytesTransferred.set(0);
     Directory tmpIndexDir = null;
     String tmpIndex = null;
     Directory indexDir = null;
     String indexDirPath = null;
     boolean deleteTmpIdxDir = true;
+    String tmpIdxDirName = null;
+    // the temp index dir of an earlier fetch whose download was interrupted
+    String resumeIdxDirName = replicationHandler.resumeIndexDirName;
+    replicationHandler.resumeIndexDirName = null;
+    boolean downloading = false;
     try {
       //get the current 'replicateable' index version in the master
       NamedList response = null;
@@ -388,7 +449,14 @@ public class SnapPuller {
           .getCommitTimestamp(commit) >= latestVersion
           || commit.getGeneration() >= latestGeneration || forceReplication;
 
-      String tmpIdxDirName = "index." + new SimpleDateFormat(SnapShooter.DATE_FMT, Locale.ROOT).format(new Date());
+      if (resumeIdxDirName != null) {
+        // files that were completely fetched before are not fetched again
+        LOG.info("Resuming the interrupted download to " + resumeIdxDirName);
+        tmpIdxDirName = resumeIdxDirName;
+        resumeIdxDirName = null;
+      } else {
+        tmpIdxDirName = "index." + new SimpleDateFormat(SnapShooter.DATE_FMT, Locale.ROOT).format(new Date());
+      }
       tmpIndex = createTempindexDir(core, tmpIdxDirName);
 
       tmpIndexDir = core.getDirectoryFactory().get(tmpIndex, DirContext.DEFAULT, core.getSolrConfig().indexConfig.lockType);
@@ -418,8 +486,10 @@ public class SnapPuller {
               + isFullCopyNeeded);
           successfulInstall = false;
           
+          downloading = true;
           downloadIndexFiles(isFullCopyNeeded, indexDir, tmpIndexDir,
               latestGeneration);
+          downloading = false;
           LOG.info("Total time taken for download : "
               + ((System.currentTimeMillis() - replicationStartTime) / 1000)
               + " secs");
@@ -503,8 +573,23 @@ public class SnapPuller {
         throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Index fetch failed : ", e);
       }
     } finally {
+      if (downloading && deleteTmpIdxDir && tmpIndexDir != null) {
+        // keep what was fetched for the next attempt
+        LOG.info("Keeping " + tmpIdxDirName + " to resume the interrupted download");
+        replicationHandler.resumeIndexDirName = tmpIdxDirName;
+        deleteTmpIdxDir = false;
+      }
+      if (resumeIdxDirName != null) {
+        // there was nothing to download this time
+        if (successfulInstall) {
+          removeTempIndexDir(core, createTempindexDir(core, resumeIdxDirName));
+        } else {
+          replicationHandler.resumeIndexDirName = resumeIdxDirName;
+        }
+      }
       try {
         if (!successfulInstall) {
+          // also records the dir to resume
           logReplicationTimeAndConfFiles(null, successfulInstall);
         }
         filesToDownload = filesDownloaded = confFilesDownloaded = confFilesToDownload = null;
@@ -515,6 +600,7 @@ public class SnapPuller {
             .shutdownNow();
         fsyncService = null;
         stop = false;
+        fetchFailed = false;
         fsyncException = null;
       } finally {
         if (deleteTmpIdxDir && tmpIndexDir != null) {
@@ -588,7 +674,14 @@ public class SnapPuller {
         props.setProperty(TIMES_CONFIG_REPLICATED, String.valueOf(confFilesCount));
       }
 
+      if (replicationHandler.resumeIndexDirName != null) {
+        props.setProperty(RESUME_INDEX_DIR, replicationHandler.resumeIndexDirName);
+      } else {
+        props.remove(RESUME_INDEX_DIR);
+      }
+
       props.setProperty(LAST_CYCLE_BYTES_DOWNLOADED, String.valueOf(getTotalBytesDownloaded(this)));
+      props.setProperty(LAST_CYCLE_BYTES_TRANSFERRED, String.valueOf(getBytesTransferred()));
       if (!successfulInstall) {
         int numFailures = 1;
         if (props.containsKey(TIMES_FAILED)) {
@@ -693,6 +786,25 @@ public class SnapPuller {
   /**
    * All the files are copied to a temp dir first
    */
+  private void removeTempIndexDir(SolrCore core, String tmpIndex) {
+    Directory dir = null;
+    try {
+      dir = core.getDirectoryFactory().get(tmpIndex, DirContext.DEFAULT, core.getSolrConfig().indexConfig.lockType);
+      core.getDirectoryFactory().doneWithDirectory(dir);
+      core.getDirectoryFactory().remove(dir);
+    } catch (IOException e) {
+      SolrException.log(LOG, "Error removing directory " + tmpIndex, e);
+    } finally {
+      if (dir != null) {
+        try {
+          core.getDirectoryFactory().release(dir);
+        } catch (IOException e) {
+          SolrException.log(LOG, "Error releasing directory " + tmpIndex, e);
+        }
+      }
+    }
+  }
+
   private String createTempindexDir(SolrCore core, String tmpIdxDirName) {
     // TODO: there should probably be a DirectoryFactory#concatPath(parent, name)
     // or something
@@ -750,6 +862,9 @@ public class SnapPuller {
 
   /**
    * Download the index files. If a new index is needed, download all the files.
+   * With more than one fetch thread, several files are fetched at once, and files larger than
+   * the fetch range size are fetched in ranges that are joined once they have all been fetched.
+   * Files (or ranges) already fetched to tmpIndexDir by an interrupted download are not fetched again.
    *
    * @param downloadCompleteIndex is it a fresh index copy
    * @param tmpIndexDir              the directory to which files need to be downloadeed to
@@ -762,19 +877,378 @@ public class SnapPuller {
     if (LOG.isDebugEnabled()) {
       LOG.debug("Download files to dir: " + Arrays.asList(indexDir.listAll()));
     }
+    List<Map<String,Object>> files = new ArrayList<>();
     for (Map<String,Object> file : filesToDownload) {
       if (!indexDir.fileExists((String) file.get(NAME))
           || downloadCompleteIndex) {
-        dirFileFetcher = new DirectoryFileFetcher(tmpIndexDir, file,
-            (String) file.get(NAME), false, latestGeneration);
-        currentFile = file;
-        dirFileFetcher.fetchFile();
-        filesDownloaded.add(new HashMap<>(file));
+        if (isFetched(tmpIndexDir, file, (String) file.get(NAME), 0, (Long) file.get(SIZE), latestGeneration)) {
+          fsync(tmpIndexDir, (String) file.get(NAME));
+          filesDownloaded.add(new HashMap<>(file));
+        } else {
+          files.add(file);
+        }
       } else {
         LOG.info("Skipping download for " + file.get(NAME)
             + " because it already exists");
       }
     }
+
+    if (fetchThreads == 1) {
+      for (Map<String,Object> file : files) {
+        if (isDeltaFetchable(downloadCompleteIndex, indexDir, file)) {
+          fetchIndexFileDelta(tmpIndexDir, indexDir, file, latestGeneration);
+        } else {
+          fetchIndexFile(tmpIndexDir, file, (String) file.get(NAME), 0, (Long) file.get(SIZE), latestGeneration);
+        }
+        filesDownloaded.add(new HashMap<>(file));
+      }
+      return;
+    }
+
+    // the largest files first, so their ranges are fetched alongside the small files
+    Collections.sort(files, new Comparator<Map<String,Object>>() {
+      @Override
+      public int compare(Map<String,Object> a, Map<String,Object> b) {
+        return ((Long) b.get(SIZE)).compareTo((Long) a.get(SIZE));
+      }
+    });
+    ExecutorService fetchService = Executors.newFixedThreadPool(fetchThreads,
+        new DefaultSolrThreadFactory("snapPullerFetch"));
+    try {
+      List<Future<Object>> futures = new ArrayList<>();
+      for (Map<String,Object> file : files) {
+        long size = (Long) file.get(SIZE);
+        if (isDeltaFetchable(downloadCompleteIndex, indexDir, file)) {
+          futures.add(fetchService.submit(new FetchTask(tmpIndexDir, indexDir, file, -1, null, latestGeneration)));
+          continue;
+        }
+        int numParts = (int) Math.max(1, (size + fetchRangeSize - 1) / fetchRangeSize);
+        AtomicInteger partsLeft = new AtomicInteger(numParts);
+        for (int part = 0; part < numParts; part++) {
+          futures.add(fetchService.submit(new FetchTask(tmpIndexDir, indexDir, file, part, partsLeft, latestGeneration)));
+        }
+      }
+
+      Exception failure = null;
+      for (Future<Object> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            // the other fetches give up, and are waited for so nothing writes to tmpIndexDir after we return
+            fetchFailed = true;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    } finally {
+      ExecutorUtil.shutdownNowAndAwaitTermination(fetchService);
+    }
+  }
+
+  /**
+   * Fetches a range of an index file (or all of it) from the master to saveAs in tmpIndexDir.  If an interrupted
+   * download left part of it there, fetching resumes after the bytes that were fetched.
+   */
+  private void fetchIndexFile(Directory tmpIndexDir, Map<String,Object> file, String saveAs,
+                              long offset, long size, long latestGeneration) throws Exception {
+    if (isFetched(tmpIndexDir, file, saveAs, offset, size, latestGeneration)) {
+      LOG.info("Skipping download for " + saveAs + " because it was already fetched");
+      return;
+    }
+    String resumeName = saveAs + RESUME_SUFFIX;
+    String resumeFrom = null;
+    if (tmpIndexDir.fileExists(saveAs)) {
+      if (tmpIndexDir.fileLength(saveAs) < size) {
+        solrCore.getDirectoryFactory().rename(tmpIndexDir, saveAs, resumeName, DirectoryFactory.IOCONTEXT_NO_CACHE);
+        resumeFrom = resumeName;
+      } else {
+        tmpIndexDir.deleteFile(saveAs);
+      }
+    } else if (tmpIndexDir.fileExists(resumeName)) {
+      // interrupted while resuming, before anything was copied
+      resumeFrom = resumeName;
+    }
+
+    DirectoryFileFetcher fetcher = new DirectoryFileFetcher(tmpIndexDir, file, saveAs, false, latestGeneration,
+        offset, size, resumeFrom);
+    dirFileFetcher = fetcher;
+    currentFile = file;
+    fetcher.fetchFile();
+
+    if (resumeFrom != null && !isFetched(tmpIndexDir, file, saveAs, offset, size, latestGeneration)) {
+      tmpIndexDir.deleteFile(saveAs);
+      fetcher = new DirectoryFileFetcher(tmpIndexDir, file, saveAs, false, latestGeneration, offset, size, null);
+      dirFileFetcher = fetcher;
+      fetcher.fetchFile();
+    }
+  }
+
+  /**
+   * A file of a complete index copy that the slave has a file of the same name and length of, which probably
+   * differs in only some blocks, such as a segments_N or deleted docs file of an index that diverged.
+   */
+  private boolean isDeltaFetchable(boolean downloadCompleteIndex, Directory indexDir, Map<String,Object> file)
+      throws IOException {
+    String name = (String) file.get(NAME);
+    long size = (Long) file.get(SIZE);
+    return fetchDeltas && downloadCompleteIndex && size >= 2 * MIN_DELTA_BLOCK_SIZE
+        && indexDir.fileExists(name) && indexDir.fileLength(name) == size;
+  }
+
+  /** Blocks are large enough that there are no more than about MAX_DELTA_BLOCKS of them, but no larger than a packet */
+  static int getDeltaBlockSize(long size) {
+    int blockSize = MIN_DELTA_BLOCK_SIZE;
+    while (blockSize < PACKET_SZ && (size + blockSize - 1) / blockSize > MAX_DELTA_BLOCKS) {
+      blockSize <<= 1;
+    }
+    return blockSize;
+  }
+
+  /**
+   * Fetches only the blocks of an index file that differ from those of the slave's copy in indexDir,
+   * and copies the rest from that copy.
+   */
+  private void fetchIndexFileDelta(Directory tmpIndexDir, Directory indexDir, Map<String,Object> file,
+                                   long latestGeneration) throws Exception {
+    String name = (String) file.get(NAME);
+    long size = (Long) file.get(SIZE);
+    int blockSize = getDeltaBlockSize(size);
+    List<Long> masterChecksums = getBlockChecksums(name, latestGeneration, blockSize);
+    List<Long> checksums = ReplicationHandler.getBlockChecksums(indexDir, name, blockSize);
+    if (masterChecksums == null || masterChecksums.size() != checksums.size()) {
+      LOG.warn("Could not compare the blocks of " + name + ", fetching all of it");
+      fetchIndexFile(tmpIndexDir, file, name, 0, size, latestGeneration);
+      return;
+    }
+
+    // fetch each run of blocks that differ
+    List<long[]> ranges = new ArrayList<>();
+    long fetched = 0;
+    for (int i = 0; i < checksums.size(); ) {
+      if (checksums.get(i).equals(masterChecksums.get(i))) {
+        i++;
+        continue;
+      }
+      int j = i + 1;
+      while (j < checksums.size() && !checksums.get(j).equals(masterChecksums.get(j))) {
+        j++;
+      }
+      long offset = (long) i * blockSize;
+      long end = Math.min((long) j * blockSize, size);
+      fetchIndexFile(tmpIndexDir, file, partName(name, offset), offset, end - offset, latestGeneration);
+      ranges.add(new long[] {offset, end});
+      fetched += end - offset;
+      i = j;
+    }
+    LOG.info("Fetched " + fetched + " of the " + size + " bytes of " + name + ", the rest is the same as the local copy");
+    joinParts(tmpIndexDir, name, size, ranges, indexDir);
+
+    // the local blocks could have changed since they were compared
+    if (!masterChecksums.equals(ReplicationHandler.getBlockChecksums(tmpIndexDir, name, blockSize))) {
+      LOG.warn(name + " assembled from local blocks is not the same as the master's copy, fetching all of it");
+      tmpIndexDir.deleteFile(name);
+      fetchIndexFile(tmpIndexDir, file, name, 0, size, latestGeneration);
+    }
+  }
+
+  /**
+   * Asks the master for the checksums of the blocks of one of its index files
+   */
+  private List<Long> getBlockChecksums(String fileName, long gen, int blockSize) throws IOException {
+    return getBlockChecksums(fileName, gen, blockSize, 0, -1);
+  }
+
+  /**
+   * Asks the master for the checksums of the blocks of a range of one of its index files
+   */
+  @SuppressWarnings("unchecked")
+  private List<Long> getBlockChecksums(String fileName, long gen, int blockSize, long offset, long end)
+      throws IOException {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(COMMAND, CMD_GET_BLOCK_CHECKSUMS);
+    params.set(FILE, fileName);
+    params.set(GENERATION, String.valueOf(gen));
+    params.set(BLOCK_SIZE, blockSize);
+    if (offset > 0) {
+      params.set(OFFSET, Long.toString(offset));
+    }
+    if (end >= 0) {
+      params.set(END, Long.toString(end));
+    }
+    params.set(CommonParams.WT, "javabin");
+    params.set(CommonParams.QT, "/replication");
+    QueryRequest req = new QueryRequest(params);
+    HttpSolrServer server = new HttpSolrServer(masterUrl, myHttpClient);  //XXX modify to use shardhandler
+    try {
+      server.setSoTimeout(60000);
+      server.setConnectionTimeout(15000);
+      List<Long> checksums = (List<Long>) server.request(req).get(CMD_GET_BLOCK_CHECKSUMS);
+      if (checksums != null) {
+        bytesTransferred.addAndGet(checksums.size() * 9L);
+      }
+      return checksums;
+    } catch (SolrServerException e) {
+      throw new IOException(e);
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  /** Adds what is read from a stream from the master to the bytes transferred */
+  private InputStream countTransferred(InputStream is) {
+    return new ProxyInputStream(is) {
+      @Override
+      protected void afterRead(int n) {
+        if (n > 0) bytesTransferred.addAndGet(n);
+      }
+    };
+  }
+
+  long getBytesTransferred() {
+    return bytesTransferred.get();
+  }
+
+  /**
+   * Whether saveAs in dir holds the range of the master's file from offset, of the given size: it has the size
+   * of the range and, if the master can send them, the same block checksums.
+   */
+  private boolean isFetched(Directory dir, Map<String,Object> file, String saveAs, long offset, long size,
+                            long latestGeneration) throws IOException {
+    if (!dir.fileExists(saveAs) || dir.fileLength(saveAs) != size) {
+      return false;
+    }
+    if (!masterBlockChecksums) {
+      return true;
+    }
+    int blockSize = getDeltaBlockSize(size);
+    List<Long> masterChecksums = getBlockChecksums((String) file.get(NAME), latestGeneration, blockSize, offset,
+        offset + size);
+    if (masterChecksums != null && masterChecksums.equals(ReplicationHandler.getBlockChecksums(dir, saveAs, blockSize))) {
+      return true;
+    }
+    LOG.warn(saveAs + " is not the same as the master's copy, fetching it again");
+    return false;
+  }
+
+  private void fsync(final Directory dir, final String name) {
+    fsyncService.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          dir.sync(Collections.singleton(name));
+        } catch (IOException e) {
+          fsyncException = e;
+        }
+      }
+    });
+  }
+
+  /** The name of the file the range of an index file that starts at offset is fetched to */
+  static String partName(String name, long offset) {
+    return name + PART_SUFFIX + offset;
+  }
+
+  /**
+   * Fetches one range of an index file, and if it is the last of the file's ranges to be fetched,
+   * joins them into the file.  A task without a range fetches the file as a delta.
+   */
+  private class FetchTask implements Callable<Object> {
+    private final Directory tmpIndexDir;
+    private final Directory indexDir;
+    private final Map<String,Object> file;
+    private final int part;
+    private final AtomicInteger partsLeft;
+    private final long latestGeneration;
+
+    FetchTask(Directory tmpIndexDir, Directory indexDir, Map<String,Object> file, int part, AtomicInteger partsLeft,
+              long latestGeneration) {
+      this.tmpIndexDir = tmpIndexDir;
+      this.indexDir = indexDir;
+      this.file = file;
+      this.part = part;
+      this.partsLeft = partsLeft;
+      this.latestGeneration = latestGeneration;
+    }
+
+    @Override
+    public Object call() throws Exception {
+      String name = (String) file.get(NAME);
+      long size = (Long) file.get(SIZE);
+      if (partsLeft == null) {
+        fetchIndexFileDelta(tmpIndexDir, indexDir, file, latestGeneration);
+        filesDownloaded.add(new HashMap<>(file));
+        return null;
+      }
+      if (size <= fetchRangeSize) {
+        fetchIndexFile(tmpIndexDir, file, name, 0, size, latestGeneration);
+      } else {
+        long offset = part * fetchRangeSize;
+        fetchIndexFile(tmpIndexDir, file, partName(name, offset), offset, Math.min(fetchRangeSize, size - offset),
+            latestGeneration);
+      }
+      if (partsLeft.decrementAndGet() == 0) {
+        if (size > fetchRangeSize) {
+          List<long[]> ranges = new ArrayList<>();
+          for (long offset = 0; offset < size; offset += fetchRangeSize) {
+            ranges.add(new long[] {offset, Math.min(offset + fetchRangeSize, size)});
+          }
+          joinParts(tmpIndexDir, name, size, ranges, null);
+        }
+        filesDownloaded.add(new HashMap<>(file));
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Writes an index file from the parts its ranges were fetched to, copying the bytes between the ranges
+   * from the slave's own copy of the file in localDir, and deletes the parts.
+   */
+  private void joinParts(Directory dir, String name, long size, List<long[]> ranges, Directory localDir)
+      throws IOException {
+    if (dir.fileExists(name)) {
+      // an earlier join was interrupted
+      dir.deleteFile(name);
+    }
+    IndexOutput out = dir.createOutput(name, DirectoryFactory.IOCONTEXT_NO_CACHE);
+    IndexInput local = null;
+    try {
+      if (localDir != null) {
+        local = localDir.openInput(name, IOContext.READONCE);
+      }
+      long pos = 0;
+      for (long[] range : ranges) {
+        if (range[0] > pos) {
+          local.seek(pos);
+          out.copyBytes(local, range[0] - pos);
+        }
+        IndexInput in = dir.openInput(partName(name, range[0]), IOContext.READONCE);
+        try {
+          out.copyBytes(in, in.length());
+        } finally {
+          in.close();
+        }
+        pos = range[1];
+      }
+      if (size > pos) {
+        local.seek(pos);
+        out.copyBytes(local, size - pos);
+      }
+    } finally {
+      try {
+        out.close();
+      } finally {
+        if (local != null) local.close();
+      }
+    }
+    for (long[] range : ranges) {
+      dir.deleteFile(partName(name, range[0]));
+    }
+    fsync(dir, name);
   }
 
   /**
@@ -1145,17 +1619,51 @@ public class SnapPuller {
 
     private IndexOutput outStream;
 
+    // the start of the range of the file to fetch
+    private final long offset;
+
+    // if only a range of the file is fetched, it is synced when the ranges are joined
+    private final boolean isRange;
+
+    // set if the packets are compressed
+    private final String packetCompression;
+
+    private Decompressor decompressor;
+
+    private byte[] cbuf;
+
+    private final BytesRef decompressed = new BytesRef();
+
     DirectoryFileFetcher(Directory tmpIndexDir, Map<String, Object> fileDetails, String saveAs,
-                boolean isConf, long latestGen) throws IOException {
+                boolean isConf, long latestGen, long offset, long size, String resumeFrom) throws IOException {
       this.copy2Dir = tmpIndexDir;
       this.fileName = (String) fileDetails.get(NAME);
-      this.size = (Long) fileDetails.get(SIZE);
+      this.offset = offset;
+      this.size = size;
+      this.isRange = offset != 0 || size != (Long) fileDetails.get(SIZE);
+      this.packetCompression = fetchPacketCompression;
+      if (packetCompression != null) {
+        decompressor = ReplicationHandler.getPacketCompressionMode(packetCompression).newDecompressor();
+        cbuf = new byte[ReplicationHandler.maxCompressedLength(PACKET_SZ)];
+      }
       this.isConf = isConf;
       this.saveAs = saveAs;
 
       indexGen = latestGen;
       
       outStream = copy2Dir.createOutput(saveAs, DirectoryFactory.IOCONTEXT_NO_CACHE);
+      if (resumeFrom != null) {
+        // what an interrupted download wrote was verified packet by packet, so fetching goes on from there
+        IndexInput in = copy2Dir.openInput(resumeFrom, IOContext.READONCE);
+        try {
+          bytesDownloaded = Math.min(in.length(), size);
+          outStream.copyBytes(in, bytesDownloaded);
+        } finally {
+          in.close();
+        }
+        copy2Dir.deleteFile(resumeFrom);
+        LOG.info("Resuming the download of " + saveAs + " after " + bytesDownloaded + " bytes");
+      }
 
       if (includeChecksum)
         checksum = new Adler32();
@@ -1166,7 +1674,7 @@ public class SnapPuller {
      */
     void fetchFile() throws Exception {
       try {
-        while (true) {
+        while (bytesDownloaded == 0 || bytesDownloaded < size) {
           final FastInputStream is = getStream();
           int result;
           try {
@@ -1184,16 +1692,9 @@ public class SnapPuller {
       } finally {
         cleanup();
         //if cleanup suceeds . The file is downloaded fully. do an fsync
-        fsyncService.submit(new Runnable(){
-          @Override
-          public void run() {
-            try {
-              copy2Dir.sync(Collections.singleton(saveAs));
-            } catch (IOException e) {
-              fsyncException = e;
-            }
-          }
-        });
+        if (!isRange) {
+          fsync(copy2Dir, saveAs);
+        }
       }
     }
 
@@ -1203,10 +1704,14 @@ public class SnapPuller {
       try {
         while (true) {
           if (stop) {
-            stop = false;
+            // reset once the fetch is over, as other fetches may be running
             aborted = true;
             throw new ReplicationHandlerException("User aborted replication");
           }
+          if (fetchFailed) {
+            aborted = true;
+            throw new ReplicationHandlerException("Aborted because another fetch failed");
+          }
           long checkSumServer = -1;
           fis.readFully(intbytes);
           //read the size of the packet
@@ -1223,7 +1728,11 @@ public class SnapPuller {
             checkSumServer = readLong(longbytes);
           }
           //then read the packet of bytes
-          fis.readFully(buf, 0, packetSize);
+          if (decompressor != null) {
+            readCompressedPacket(fis, intbytes, packetSize);
+          } else {
+            fis.readFully(buf, 0, packetSize);
+          }
           //compare the checksum as sent from the master
           if (includeChecksum) {
             checksum.reset();
@@ -1236,6 +1745,8 @@ public class SnapPuller {
             }
           }
           //if everything is fine, write down the packet to the file
+          //(a master that ignores the end of a range sends more than was asked for)
+          packetSize = (int) Math.min(packetSize, size - bytesDownloaded);
           writeBytes(packetSize);
           bytesDownloaded += packetSize;
           if (bytesDownloaded >= size)
@@ -1258,6 +1769,24 @@ public class SnapPuller {
       }
     }
 
+    /**
+     * A compressed packet has the length it was compressed to, or -1 if it was sent as it is, before its bytes
+     */
+    private void readCompressedPacket(FastInputStream fis, byte[] intbytes, int packetSize) throws IOException {
+      fis.readFully(intbytes);
+      int compressedSize = readInt(intbytes);
+      if (compressedSize < 0) {
+        fis.readFully(buf, 0, packetSize);
+        return;
+      }
+      if (cbuf.length < compressedSize) {
+        cbuf = new byte[compressedSize];
+      }
+      fis.readFully(cbuf, 0, compressedSize);
+      decompressor.decompress(new ByteArrayDataInput(cbuf, 0, compressedSize), packetSize, 0, packetSize, decompressed);
+      System.arraycopy(decompressed.bytes, decompressed.offset, buf, 0, packetSize);
+    }
+
     protected void writeBytes(int packetSize) throws IOException {
       outStream.writeBytes(buf, 0, packetSize);
     }
@@ -1293,13 +1822,7 @@ public class SnapPuller {
           LOG.error("Error closing the file stream: "+ this.saveAs ,e);
       }
       if (bytesDownloaded != size) {
-        //if the download is not complete then
-        //delete the file being downloaded
-        try {
-          copy2Dir.deleteFile(saveAs);
-        } catch (Exception e) {
-          LOG.error("Error deleting file in cleanup" + e.getMessage());
-        }
+        //if the download is not complete, what was downloaded is kept for the next fetch to resume from
         //if the failure is due to a user abort it is returned nomally else an exception is thrown
         if (!aborted)
           throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
@@ -1326,7 +1849,9 @@ public class SnapPuller {
       } else {
         params.set(FILE, fileName);
       }
-      if (useInternal) {
+      if (packetCompression != null) {
+        params.set(PACKET_COMPRESSION, packetCompression);
+      } else if (useInternal) {
         params.set(COMPRESSION, "true"); 
       }
       //use checksum
@@ -1337,8 +1862,11 @@ public class SnapPuller {
       params.set(CommonParams.WT, FILE_STREAM);
         // This happen if there is a failure there is a retry. the offset=<sizedownloaded> ensures that
         // the server starts from the offset
-      if (bytesDownloaded > 0) {
-        params.set(OFFSET, Long.toString(bytesDownloaded));
+      if (offset + bytesDownloaded > 0) {
+        params.set(OFFSET, Long.toString(offset + bytesDownloaded));
+      }
+      if (isRange) {
+        params.set(END, Long.toString(offset + size));
       }
       
 
@@ -1351,8 +1879,8 @@ public class SnapPuller {
         s.setConnectionTimeout(15000);
         QueryRequest req = new QueryRequest(params);
         response = s.request(req);
-        is = (InputStream) response.get("stream");
-        if(useInternal) {
+        is = countTransferred((InputStream) response.get("stream"));
+        if(useInternal && packetCompression == null) {
           is = new InflaterInputStream(is);
         }
         return new FastInputStream(is);
@@ -1615,7 +2143,7 @@ public class SnapPuller {
         s.setConnectionTimeout(15000);
         QueryRequest req = new QueryRequest(params);
         response = s.request(req);
-        is = (InputStream) response.get("stream");
+        is = countTransferred((InputStream) response.get("stream"));
         if(useInternal) {
           is = new InflaterInputStream(is);
         }
@@ -1703,6 +2231,24 @@ public class SnapPuller {
 
   private static final int MAX_RETRIES = 5;
 
+  public static final String FETCH_THREADS = "fetchThreads";
+
+  public static final String FETCH_RANGE_SIZE_MB = "fetchRangeSizeMB";
+
+  static final String PART_SUFFIX = ".part";
+
+  // what an interrupted download of a file fetched to, while fetching the rest of the file
+  static final String RESUME_SUFFIX = ".resume";
+
+  static final String RESUME_INDEX_DIR = "resumeIndexDir";
+
+  public static final String DELTA_FETCH = "deltaFetch";
+
+  // small enough that a segments_N or deleted docs file of a few hundred bytes has blocks to compare
+  static final int MIN_DELTA_BLOCK_SIZE = 256;
+
+  static final int MAX_DELTA_BLOCKS = 1024;
+
   private static final int NO_CONTENT = 1;
 
   private static final int ERR = 2;
@@ -1727,6 +2273,8 @@ public class SnapPuller {
 
   static final String LAST_CYCLE_BYTES_DOWNLOADED = "lastCycleBytesDownloaded";
 
+  static final String LAST_CYCLE_BYTES_TRANSFERRED = "lastCycleBytesTransferred";
+
   static final String TIMES_FAILED = "timesFailed";
 
   static final String REPLICATION_FAILED_AT = "replicationFailedAt";
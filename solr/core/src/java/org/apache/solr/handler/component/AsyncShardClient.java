@@ -0,0 +1,678 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.BinaryResponseParser;
+import org.apache.solr.client.solrj.impl.HttpSolrServer.RemoteSolrException;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A non-blocking HTTP client for shard requests, built on the asynchronous socket channels of NIO.2.
+ * A request holds no thread while it waits on the network: the channels of all requests share a small
+ * fixed pool of threads, which parse each response as it completes and hand it to a {@link Callback}.
+ * <p>
+ * Only what shard requests need is supported: a form encoded POST over plain http, answered in javabin,
+ * on keep-alive connections pooled per host.  At most <code>maxConnectionsPerHost</code> connections to a
+ * host are open at once, and the requests beyond that wait for one to be released.  Like {@link org.apache.solr.client.solrj.impl.LBHttpSolrServer}
+ * the replicas of a shard are tried in order, moving on when one cannot be reached or answers 404, 403,
+ * 503 or 500.
+ */
+class AsyncShardClient implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(AsyncShardClient.class);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] CRLFCRLF = {'\r', '\n', '\r', '\n'};
+  private static final Set<Integer> RETRY_CODES = new HashSet<>(Arrays.asList(404, 403, 503, 500));
+  private static final int BUFFER_SIZE = 8192;
+
+  /** Receives the outcome of a request, on one of the threads of the client */
+  interface Callback {
+    /** The replica at <code>url</code> answered */
+    void completed(String url, NamedList<Object> rsp);
+
+    /** No replica answered */
+    void failed(Exception e);
+  }
+
+  private final AsynchronousChannelGroup group;
+  private final ScheduledExecutorService connectTimer;
+  private final int connectionTimeout;
+  private final int soTimeout;
+  private final int maxConnectionsPerHost;
+
+  // the connections to each host:port
+  private final ConcurrentMap<String,HostPool> pools = new ConcurrentHashMap<>();
+  private volatile boolean closed;
+
+  AsyncShardClient(int threads, int connectionTimeout, int soTimeout, int maxConnectionsPerHost) throws IOException {
+    this.group = AsynchronousChannelGroup.withFixedThreadPool(threads, new DefaultSolrThreadFactory("httpShardAsync"));
+    this.connectTimer = Executors.newSingleThreadScheduledExecutor(new DefaultSolrThreadFactory("httpShardAsyncTimer"));
+    this.connectionTimeout = connectionTimeout;
+    this.soTimeout = soTimeout;
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+  }
+
+  /**
+   * Sends a request to the first live replica of the list, without waiting for it.
+   *
+   * @return the exchange, which can be cancelled
+   */
+  Exchange request(QueryRequest req, List<String> urls, Callback callback) {
+    Exchange exchange = new Exchange(req, urls, callback);
+    exchange.next();
+    return exchange;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    connectTimer.shutdownNow();
+    try {
+      group.shutdownNow();  // closes all the channels, idle or not
+    } catch (IOException e) {
+      log.warn("Could not close the channels of shard requests", e);
+    }
+    for (HostPool pool : pools.values()) {
+      for (Exchange exchange : pool.drainWaiting()) {
+        exchange.fail(new SolrServerException("The client of shard requests was closed"));
+      }
+    }
+    pools.clear();
+  }
+
+  private static void close(AsynchronousSocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  private HostPool getPool(String host) {
+    HostPool pool = pools.get(host);
+    if (pool == null) {
+      pool = new HostPool();
+      HostPool prev = pools.putIfAbsent(host, pool);
+      if (prev != null) {
+        pool = prev;
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * The connections to one host.  An exchange holds one of the <code>maxConnectionsPerHost</code> slots
+   * of the host from the time it is given a connection (or may open one) until it releases it.
+   */
+  private class HostPool {
+    private final Queue<AsynchronousSocketChannel> idle = new ArrayDeque<>();
+    private final Queue<Exchange> waiting = new ArrayDeque<>();
+    private int active;  // slots held by exchanges
+
+    /** Gives the exchange a slot, with an idle connection if there is one, now or once another exchange releases its slot */
+    void acquire(Exchange exchange) {
+      AsynchronousSocketChannel channel;
+      synchronized (this) {
+        while ((channel = idle.poll()) != null && !channel.isOpen()) {
+          // closed by the server
+        }
+        if (channel == null && active >= maxConnectionsPerHost) {
+          waiting.add(exchange);
+          return;
+        }
+        active++;
+      }
+      exchange.acquired(channel);
+    }
+
+    /**
+     * Releases the slot of an exchange.  It is passed on to the next exchange waiting, along with the
+     * connection if it can be reused.
+     */
+    void release(AsynchronousSocketChannel channel, boolean reuse) {
+      if (channel != null && !reuse) {
+        close(channel);
+        channel = null;
+      }
+      Exchange next;
+      synchronized (this) {
+        while ((next = waiting.poll()) != null && next.isDone()) {
+          // cancelled while waiting
+        }
+        if (next == null) {
+          active--;
+          if (channel != null && !closed) {
+            idle.add(channel);
+            channel = null;
+          }
+        }
+      }
+      if (next != null) {
+        next.acquired(channel);
+      } else if (channel != null) {
+        close(channel);
+      }
+    }
+
+    synchronized List<Exchange> drainWaiting() {
+      List<Exchange> exchanges = new ArrayList<>(waiting);
+      waiting.clear();
+      return exchanges;
+    }
+  }
+
+  private static int indexOf(byte[] buf, int from, int to, byte[] target) {
+    outer:
+    for (int i = Math.max(from, 0); i <= to - target.length; i++) {
+      for (int j = 0; j < target.length; j++) {
+        if (buf[i + j] != target[j]) continue outer;
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Incrementally parses a response as its bytes arrive: the status line and headers, then a body
+   * delimited by its Content-Length, by chunks, or by the end of the connection.
+   */
+  static class ResponseReader {
+    byte[] buf = new byte[BUFFER_SIZE];
+    int len;
+
+    int headerEnd = -1;  // offset of the body
+    int status;
+    String reason = "";
+    String contentType = "";
+    long contentLength = -1;
+    boolean chunked;
+    boolean keepAlive;
+
+    // decoded chunked body
+    byte[] body;
+    int bodyLen;
+    int chunkPos;
+
+    boolean complete;
+
+    boolean isEmpty() {
+      return len == 0;
+    }
+
+    void add(ByteBuffer in) throws IOException {
+      int n = in.remaining();
+      if (len + n > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length << 1, len + n));
+      }
+      in.get(buf, len, n);
+      int scanFrom = len - CRLFCRLF.length + 1;
+      len += n;
+
+      if (headerEnd < 0) {
+        int end = indexOf(buf, scanFrom, len, CRLFCRLF);
+        if (end < 0) return;
+        parseHeaders(new String(buf, 0, end, LATIN1));
+        headerEnd = chunkPos = end + CRLFCRLF.length;
+        if (status == 204 || status == 304) {
+          contentLength = 0;
+        }
+      }
+
+      if (chunked) {
+        readChunks();
+      } else if (contentLength >= 0) {
+        complete = len - headerEnd >= contentLength;
+      }
+    }
+
+    /** The connection was closed by the server */
+    void eof() {
+      if (headerEnd >= 0 && !chunked && contentLength < 0) {
+        complete = true;
+      }
+      keepAlive = false;
+    }
+
+    private void parseHeaders(String headers) throws IOException {
+      String[] lines = headers.split("\r\n");
+      String[] statusLine = lines[0].split(" ", 3);
+      if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+        throw new IOException("Invalid status line: " + lines[0]);
+      }
+      try {
+        status = Integer.parseInt(statusLine[1]);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid status line: " + lines[0]);
+      }
+      if (statusLine.length > 2) {
+        reason = statusLine[2];
+      }
+      keepAlive = "HTTP/1.1".equals(statusLine[0]);
+
+      for (int i = 1; i < lines.length; i++) {
+        int colon = lines[i].indexOf(':');
+        if (colon < 0) continue;
+        String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+        String value = lines[i].substring(colon + 1).trim();
+        if ("content-length".equals(name)) {
+          try {
+            contentLength = Long.parseLong(value);
+          } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + value);
+          }
+        } else if ("transfer-encoding".equals(name)) {
+          chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+        } else if ("content-type".equals(name)) {
+          contentType = value;
+        } else if ("connection".equals(name)) {
+          String connection = value.toLowerCase(Locale.ROOT);
+          if (connection.contains("close")) {
+            keepAlive = false;
+          } else if (connection.contains("keep-alive")) {
+            keepAlive = true;
+          }
+        }
+      }
+    }
+
+    private void readChunks() throws IOException {
+      if (body == null) {
+        body = new byte[BUFFER_SIZE];
+      }
+      while (!complete) {
+        int lineEnd = indexOf(buf, chunkPos, len, CRLF);
+        if (lineEnd < 0) return;
+        String line = new String(buf, chunkPos, lineEnd - chunkPos, LATIN1);
+        int semi = line.indexOf(';');
+        int size;
+        try {
+          size = Integer.parseInt((semi < 0 ? line : line.substring(0, semi)).trim(), 16);
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid chunk size: " + line);
+        }
+        if (size == 0) {
+          // the last chunk, followed by optional trailers and an empty line
+          complete = indexOf(buf, lineEnd, len, CRLFCRLF) >= 0;
+          return;
+        }
+        int dataStart = lineEnd + CRLF.length;
+        if (dataStart + size + CRLF.length > len) return;
+        if (bodyLen + size > body.length) {
+          body = Arrays.copyOf(body, Math.max(body.length << 1, bodyLen + size));
+        }
+        System.arraycopy(buf, dataStart, body, bodyLen, size);
+        bodyLen += size;
+        chunkPos = dataStart + size + CRLF.length;
+      }
+    }
+
+    ByteArrayInputStream getBody() {
+      if (chunked) {
+        return new ByteArrayInputStream(body, 0, bodyLen);
+      }
+      int bodyLen = contentLength >= 0 ? (int)contentLength : len - headerEnd;
+      return new ByteArrayInputStream(buf, headerEnd, bodyLen);
+    }
+  }
+
+  /**
+   * A request to the replicas of one shard, moving from one replica to the next as they fail.
+   * Only one I/O operation is outstanding at a time, so the state needs no locking: each completion
+   * handler runs after the operation that set it up.  The channel in use is the exception, since
+   * {@link #cancel} may close it from another thread: whichever of them clears it first owns it.
+   */
+  class Exchange {
+    private final List<String> urls;
+    private final Callback callback;
+    private final String path;
+    private final byte[] body;
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private int urlIndex = -1;
+    private String url;
+    private String host;
+    private HostPool pool;
+    private InetSocketAddress address;
+    private byte[] request;
+    private Exception lastError;
+
+    private final AtomicReference<AsynchronousSocketChannel> channel = new AtomicReference<>();
+    private boolean pooled;
+    private volatile boolean connectTimedOut;
+    private ScheduledFuture<?> connectTimeout;
+    private ByteBuffer out;
+    private ByteBuffer in;
+    private ResponseReader reader;
+
+    Exchange(QueryRequest req, List<String> urls, Callback callback) {
+      this.urls = urls;
+      this.callback = callback;
+      String path = req.getPath();
+      this.path = path == null || !path.startsWith("/") ? "/select" : path;
+
+      // the same params HttpSolrServer would send, in the body of a POST
+      ModifiableSolrParams params = new ModifiableSolrParams(req.getParams());
+      BinaryResponseParser parser = new BinaryResponseParser();
+      params.set(CommonParams.WT, parser.getWriterType());
+      params.set(CommonParams.VERSION, parser.getVersion());
+      String query = ClientUtils.toQueryString(params, false);
+      this.body = (query.startsWith("?") ? query.substring(1) : query).getBytes(UTF8);
+    }
+
+    /**
+     * Stops the request, closing its connection.  The callback is not called.
+     *
+     * @return false if the request had already completed
+     */
+    boolean cancel() {
+      if (!done.compareAndSet(false, true)) return false;
+      AsynchronousSocketChannel channel = this.channel.getAndSet(null);
+      if (channel != null) {
+        close(channel);  // its outstanding operation fails, and the handler releases the slot
+      }
+      return true;
+    }
+
+    boolean isDone() {
+      return done.get();
+    }
+
+    /** Fails the request, unless it completed already */
+    void fail(Exception e) {
+      if (done.compareAndSet(false, true)) {
+        callback.failed(e);
+      }
+    }
+
+    /** Sends the request to the next replica */
+    private void next() {
+      if (done.get()) return;
+      if (++urlIndex >= urls.size()) {
+        fail(urls.size() == 1 ? lastError :
+            new SolrServerException("No live SolrServers available to handle this request:" + urls, lastError));
+        return;
+      }
+
+      url = urls.get(urlIndex);
+      try {
+        URL u = new URL(url);
+        int port = u.getPort() < 0 ? u.getDefaultPort() : u.getPort();
+        host = u.getHost() + ":" + port;
+        address = new InetSocketAddress(u.getHost(), port);
+        String basePath = u.getPath().endsWith("/") ? u.getPath().substring(0, u.getPath().length() - 1) : u.getPath();
+        byte[] head = ("POST " + basePath + path + " HTTP/1.1\r\n"
+            + "Host: " + host + "\r\n"
+            + "Content-Type: application/x-www-form-urlencoded; charset=UTF-8\r\n"
+            + "Content-Length: " + body.length + "\r\n"
+            + "\r\n").getBytes(LATIN1);
+        request = new byte[head.length + body.length];
+        System.arraycopy(head, 0, request, 0, head.length);
+        System.arraycopy(body, 0, request, head.length, body.length);
+      } catch (MalformedURLException e) {
+        lastError = new SolrServerException("Invalid shard url: " + url, e);
+        next();
+        return;
+      }
+      pool = getPool(host);
+      pool.acquire(this);
+    }
+
+    /** Called by the pool once the exchange has a slot, with an idle connection to reuse or null to open one */
+    void acquired(AsynchronousSocketChannel idleChannel) {
+      reader = null;
+      if (idleChannel == null) {
+        connect();
+        return;
+      }
+      pooled = true;
+      channel.set(idleChannel);
+      if (done.get()) {
+        error(new IOException("Cancelled"));
+        return;
+      }
+      send(idleChannel);
+    }
+
+    private void connect() {
+      pooled = false;
+      connectTimedOut = false;
+      final AsynchronousSocketChannel channel;
+      try {
+        channel = AsynchronousSocketChannel.open(group);
+      } catch (IOException e) {
+        error(e);
+        return;
+      }
+      this.channel.set(channel);
+      if (done.get()) {
+        error(new IOException("Cancelled"));
+        return;
+      }
+      if (connectionTimeout > 0) {
+        connectTimeout = connectTimer.schedule(new Runnable() {
+          @Override
+          public void run() {
+            connectTimedOut = true;
+            close(channel);
+          }
+        }, connectionTimeout, TimeUnit.MILLISECONDS);
+      }
+      channel.connect(address, channel, connected);
+    }
+
+    private void send(AsynchronousSocketChannel channel) {
+      out = ByteBuffer.wrap(request);
+      channel.write(out, channel, written);
+    }
+
+    private void read(AsynchronousSocketChannel channel) {
+      channel.read(in, soTimeout, TimeUnit.MILLISECONDS, channel, received);
+    }
+
+    private final CompletionHandler<Void,AsynchronousSocketChannel> connected = new CompletionHandler<Void,AsynchronousSocketChannel>() {
+      @Override
+      public void completed(Void result, AsynchronousSocketChannel channel) {
+        if (connectTimeout != null) {
+          connectTimeout.cancel(false);
+        }
+        send(channel);
+      }
+
+      @Override
+      public void failed(Throwable t, AsynchronousSocketChannel channel) {
+        if (connectTimeout != null) {
+          connectTimeout.cancel(false);
+        }
+        error(connectTimedOut ? new SocketTimeoutException("connect timed out") : t);
+      }
+    };
+
+    private final CompletionHandler<Integer,AsynchronousSocketChannel> written = new CompletionHandler<Integer,AsynchronousSocketChannel>() {
+      @Override
+      public void completed(Integer n, AsynchronousSocketChannel channel) {
+        if (out.hasRemaining()) {
+          channel.write(out, channel, this);
+          return;
+        }
+        reader = new ResponseReader();
+        if (in == null) {
+          in = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        in.clear();
+        read(channel);
+      }
+
+      @Override
+      public void failed(Throwable t, AsynchronousSocketChannel channel) {
+        error(t);
+      }
+    };
+
+    private final CompletionHandler<Integer,AsynchronousSocketChannel> received = new CompletionHandler<Integer,AsynchronousSocketChannel>() {
+      @Override
+      public void completed(Integer n, AsynchronousSocketChannel channel) {
+        try {
+          if (n < 0) {
+            reader.eof();
+          } else {
+            in.flip();
+            reader.add(in);
+            in.clear();
+          }
+        } catch (IOException e) {
+          error(e);
+          return;
+        }
+
+        if (reader.complete) {
+          response(channel);
+        } else if (n < 0) {
+          error(new IOException("Connection closed before the response was complete"));
+        } else {
+          read(channel);
+        }
+      }
+
+      @Override
+      public void failed(Throwable t, AsynchronousSocketChannel channel) {
+        error(t instanceof InterruptedByTimeoutException ? new SocketTimeoutException("Read timed out") : t);
+      }
+    };
+
+    /** The replica could not be reached, the connection failed, or the request was cancelled */
+    private void error(Throwable t) {
+      AsynchronousSocketChannel channel = this.channel.getAndSet(null);
+      if (channel != null) {
+        close(channel);
+      }
+      if (done.get()) {
+        pool.release(null, false);
+        return;
+      }
+
+      if (pooled && (reader == null || reader.isEmpty())) {
+        // the server closed the idle connection: not a failure of the replica, so open another in its slot
+        connect();
+        return;
+      }
+
+      pool.release(null, false);
+      if (t instanceof ConnectException) {
+        lastError = new SolrServerException("Server refused connection at: " + url, t);
+      } else if (t instanceof IOException) {
+        lastError = new SolrServerException("IOException occured when talking to server at: " + url, t);
+      } else {
+        lastError = new SolrServerException("Error talking to server at: " + url, t);
+      }
+      next();
+    }
+
+    /** The replica answered */
+    private void response(AsynchronousSocketChannel channel) {
+      ResponseReader reader = this.reader;
+      if (this.channel.compareAndSet(channel, null)) {
+        pool.release(channel, reader.keepAlive);
+      } else {
+        pool.release(null, false);  // closed by cancel
+      }
+      if (done.get()) return;
+
+      int status = reader.status;
+      NamedList<Object> rsp = null;
+      RemoteSolrException err = null;
+      if (status == 200) {
+        try {
+          rsp = new BinaryResponseParser().processResponse(reader.getBody(), null);
+        } catch (Exception e) {
+          err = new RemoteSolrException(status, e.getMessage(), e);
+        }
+      } else {
+        String msg = null;
+        if (reader.contentType.startsWith(BinaryResponseParser.BINARY_CONTENT_TYPE)) {
+          try {
+            NamedList<?> error = (NamedList<?>) new BinaryResponseParser().processResponse(reader.getBody(), null).get("error");
+            if (error != null) {
+              msg = (String) error.get("msg");
+              if (msg == null) {
+                msg = (String) error.get("trace");
+              }
+            }
+          } catch (Exception e) {
+            // fall back to the status line
+          }
+        }
+        if (msg == null) {
+          msg = "Server at " + url + " returned non ok status:" + status + ", message:" + reader.reason;
+        }
+        err = new RemoteSolrException(status, msg, null);
+      }
+
+      if (err == null) {
+        if (done.compareAndSet(false, true)) {
+          callback.completed(url, rsp);
+        }
+      } else if (RETRY_CODES.contains(status)) {
+        lastError = err;
+        next();
+      } else {
+        fail(err);
+      }
+    }
+  }
+}
@@ -21,11 +21,16 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.lucene.util.FixedBitSet;
 import org.apache.solr.common.SolrException;
@@ -41,6 +46,7 @@ import org.apache.solr.common.util.StrUtils;
 import org.apache.solr.request.SimpleFacets;
 import org.apache.solr.request.SimpleFacetsHS;
 import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.TrieDateField;
 import org.apache.solr.search.QueryParsing;
 import org.apache.solr.search.SyntaxError;
 import org.slf4j.Logger;
@@ -59,6 +65,7 @@ public class FacetComponent extends SearchComponent
   public static final String COMPONENT_NAME = "facet";
 
   static final String PIVOT_KEY = "facet_pivot";
+  static final String PIVOT_REFINE_KEY = "facet_pivot_refine";
 
   @Override
   public void prepare(ResponseBuilder rb) throws IOException
@@ -89,9 +96,14 @@ public class FacetComponent extends SearchComponent
             rb.getResults().docSet,
             params,
             rb );
-        NamedList v = pivotHelper.process(pivots);
-        if( v != null ) {
-          counts.add( PIVOT_KEY, v );
+        String[] refinements = params.getParams( PivotFacetHelper.PIVOT_REFINE );
+        if( refinements != null ) {
+          counts.add( PIVOT_REFINE_KEY, pivotHelper.processRefinements(pivots, refinements) );
+        } else {
+          NamedList v = pivotHelper.process(pivots);
+          if( v != null ) {
+            counts.add( PIVOT_KEY, v );
+          }
         }
       }
       
@@ -150,7 +162,18 @@ public class FacetComponent extends SearchComponent
           refinements.add(termsVal);
         }
 
-        if (refinements == null) continue;
+        // all of the pivot refinements for a shard go out in the same request
+        List<String> pivotRefinements = null;
+        for (PivotFacet pf : rb._facetInfo.pivotFacets) {
+          List<String> refList = pf._toRefine[shardNum];
+          if (refList == null || refList.size()==0) continue;
+          if (pivotRefinements == null) {
+            pivotRefinements = new ArrayList<>();
+          }
+          pivotRefinements.addAll(refList);
+        }
+
+        if (refinements == null && pivotRefinements == null) continue;
 
 
         String shard = rb.shards[shardNum];
@@ -187,8 +210,18 @@ public class FacetComponent extends SearchComponent
         refine.params.set(FacetParams.FACET, "true");
         refine.params.remove(FacetParams.FACET_FIELD);
         refine.params.remove(FacetParams.FACET_QUERY);
+        refine.params.remove(FacetParams.FACET_PIVOT);
+
+        if (pivotRefinements != null) {
+          // the pivots are needed to interpret the refinements, which replace them on the shard
+          refine.params.set(FacetParams.FACET_PIVOT, rb.req.getParams().getParams(FacetParams.FACET_PIVOT));
+          refine.params.set(PivotFacetHelper.PIVOT_REFINE, pivotRefinements.toArray(new String[pivotRefinements.size()]));
+          for (PivotFacet pf : rb._facetInfo.pivotFacets) {
+            pf.setShardParams(refine.params);
+          }
+        }
 
-        for (int i=0; i<refinements.size();) {
+        for (int i=0; refinements != null && i<refinements.size();) {
           String facetCommand=refinements.get(i++);
           String termsKey=refinements.get(i++);
           String termsVal=refinements.get(i++);
@@ -269,6 +302,10 @@ public class FacetComponent extends SearchComponent
 
           sreq.params.set(paramStart + FacetParams.FACET_LIMIT,  dff.initialLimit);
       }
+
+      for (PivotFacet pf : fi.pivotFacets) {
+        pf.setShardParams(sreq.params);
+      }
     } else {
       // turn off faceting on other requests
       sreq.params.set(FacetParams.FACET, "false");
@@ -326,6 +363,17 @@ public class FacetComponent extends SearchComponent
         }
       }
 
+      // merge the pivot trees of this shard
+      @SuppressWarnings("unchecked")
+      NamedList<List<NamedList<Object>>> facet_pivot =
+        (NamedList<List<NamedList<Object>>>) facet_counts.get(PIVOT_KEY);
+
+      if (facet_pivot != null) {
+        for (PivotFacet pf : fi.pivotFacets) {
+          pf.add(pf.root, shardNum, facet_pivot.get(pf.getKey()), 0);
+        }
+      }
+
       // Distributed facet_dates
       //
       // The implementation below uses the first encountered shard's 
@@ -479,6 +527,10 @@ public class FacetComponent extends SearchComponent
         }
       }
     }
+
+    for (PivotFacet pf : fi.pivotFacets) {
+      pf.findRefinements(pf.root, 0, new ArrayList<String>());
+    }
   }
 
 
@@ -486,8 +538,31 @@ public class FacetComponent extends SearchComponent
     FacetInfo fi = rb._facetInfo;
 
     for (ShardResponse srsp: sreq.responses) {
-      // int shardNum = rb.getShardNum(srsp.shard);
+      int shardNum = rb.getShardNum(srsp.getShard());
       NamedList facet_counts = (NamedList)srsp.getSolrResponse().getResponse().get("facet_counts");
+
+      NamedList<?> pivotRefinements = (NamedList<?>)facet_counts.get(PIVOT_REFINE_KEY);
+      if (pivotRefinements != null) {
+        for (int i=0; i<pivotRefinements.size(); i++) {
+          String name = pivotRefinements.getName(i);
+          @SuppressWarnings("unchecked")
+          NamedList<Object> shardValue = (NamedList<Object>)pivotRefinements.getVal(i);
+          boolean found = false;
+          for (PivotFacet pf : fi.pivotFacets) {
+            PivotFacetValue pfv = pf.refining.get(name);
+            if (pfv != null) {
+              pf.addRefinement(pfv, shardNum, shardValue);
+              found = true;
+              break;
+            }
+          }
+          if (!found) {
+            log.error("Unexpected pivot returned for facet refining. refinement='" + name + "'"
+              + "\n\trequest params=" + sreq.params);
+          }
+        }
+      }
+
       NamedList facet_fields = (NamedList)facet_counts.get("facet_fields");
 
       if (facet_fields == null) continue; // this can happen when there's an exception      
@@ -591,6 +666,14 @@ public class FacetComponent extends SearchComponent
     facet_counts.add("facet_dates", fi.dateFacets);
     facet_counts.add("facet_ranges", fi.rangeFacets);
 
+    if (fi.pivotFacets.size() > 0) {
+      SimpleOrderedMap<List<NamedList<Object>>> facet_pivot = new SimpleOrderedMap<>();
+      for (PivotFacet pf : fi.pivotFacets) {
+        facet_pivot.add(pf.getKey(), pf.getPivots(pf.root, 0, new int[1]));
+      }
+      facet_counts.add(PIVOT_KEY, facet_pivot);
+    }
+
     rb.rsp.add("facet_counts", facet_counts);
 
     rb._facetInfo = null;  // could be big, so release asap
@@ -598,11 +681,11 @@ public class FacetComponent extends SearchComponent
 
 
   // use <int> tags for smaller facet counts (better back compatibility)
-  private Number num(long val) {
+  private static Number num(long val) {
    if (val < Integer.MAX_VALUE) return (int)val;
    else return val;
   }
-  private Number num(Long val) {
+  private static Number num(Long val) {
     if (val.longValue() < Integer.MAX_VALUE) return val.intValue();
     else return val;
   }
@@ -638,6 +721,7 @@ public class FacetComponent extends SearchComponent
       = new SimpleOrderedMap<>();
     public SimpleOrderedMap<SimpleOrderedMap<Object>> rangeFacets
       = new SimpleOrderedMap<>();
+    public List<PivotFacet> pivotFacets;
 
     void parse(SolrParams params, ResponseBuilder rb) {
       queryFacets = new LinkedHashMap<>();
@@ -659,6 +743,14 @@ public class FacetComponent extends SearchComponent
           facets.put(ff.getKey(), ff);
         }
       }
+
+      pivotFacets = new ArrayList<>();
+      String[] facetPs = params.getParams(FacetParams.FACET_PIVOT);
+      if (facetPs != null) {
+        for (int i=0; i<facetPs.length; i++) {
+          pivotFacets.add(new PivotFacet(rb, facetPs[i], i));
+        }
+      }
     }
   }
 
@@ -871,4 +963,265 @@ public class FacetComponent extends SearchComponent
       return "{term="+name+",termNum="+termNum+",count="+count+"}";
     }
   }
+
+  /**
+   * A facet.pivot, merged from the pivots of each shard.
+   * <b>This API is experimental and subject to change</b>
+   */
+  public static class PivotFacet extends FacetBase {
+    public int index;           // position among the facet.pivot params, which names its refinements
+    public String[] fields;
+    public FieldType[] ftypes;
+    public int[] offset;
+    public int[] limit;
+    public boolean[] indexSort;
+    public boolean[] zeros;     // whether the facet list of each field includes values with no documents
+    public int[] initialLimit;  // how many values of each field are requested from each shard
+    public int minCount;
+    public PivotFacetValue root = new PivotFacetValue(null, null);
+    public List<String>[] _toRefine; // a List<String> of refinements needed, one for each shard.
+    public HashMap<String,PivotFacetValue> refining = new HashMap<>();
+
+    PivotFacet(ResponseBuilder rb, String facetStr, int index) {
+      super(rb, FacetParams.FACET_PIVOT, facetStr);
+      SolrParams params = rb.req.getParams();
+      this.index = index;
+      this.fields = facetOn.split(",");
+      this.ftypes = new FieldType[fields.length];
+      this.offset = new int[fields.length];
+      this.limit = new int[fields.length];
+      this.indexSort = new boolean[fields.length];
+      this.zeros = new boolean[fields.length];
+      this.initialLimit = new int[fields.length];
+
+      for (int i=0; i<fields.length; i++) {
+        String field = fields[i];
+        ftypes[i] = rb.req.getSchema().getFieldTypeNoEx(field);
+        offset[i] = params.getFieldInt(field, FacetParams.FACET_OFFSET, 0);
+        // the same default as the pivots computed by each shard
+        limit[i] = params.getFieldInt(field, FacetParams.FACET_LIMIT, 10);
+        String sort = params.getFieldParam(field, FacetParams.FACET_SORT, limit[i]>0 ? FacetParams.FACET_SORT_COUNT : FacetParams.FACET_SORT_INDEX);
+        indexSort[i] = sort.equals(FacetParams.FACET_SORT_INDEX) || sort.equals(FacetParams.FACET_SORT_INDEX_LEGACY);
+        Integer mincount = params.getFieldInt(field, FacetParams.FACET_MINCOUNT);
+        if (mincount == null) {
+          Boolean zeroCounts = params.getFieldBool(field, FacetParams.FACET_ZEROS);
+          mincount = (zeroCounts!=null && !zeroCounts) ? 1 : 0;
+        }
+        zeros[i] = mincount <= 0;
+
+        if (limit[i] < 0) {
+          initialLimit[i] = -1;
+        } else {
+          initialLimit[i] = offset[i] + limit[i];
+          if (!indexSort[i]) {
+            // set the initial limit higher to increase accuracy
+            initialLimit[i] = (int)(initialLimit[i] * 1.5) + 10;
+          }
+        }
+      }
+      this.minCount = params.getInt(FacetParams.FACET_PIVOT_MINCOUNT, 1);
+
+      @SuppressWarnings("unchecked") // generic array's are annoying
+      List<String>[] tmp = (List<String>[]) new List[rb.shards.length];
+      _toRefine = tmp;
+    }
+
+    /** Over-requests the values of each field from a shard, and any count of them that is not zero */
+    void setShardParams(ModifiableSolrParams params) {
+      for (int i=0; i<fields.length; i++) {
+        String paramStart = "f." + fields[i] + '.';
+        params.remove(paramStart + FacetParams.FACET_OFFSET);
+        if (initialLimit[i] >= 0) {
+          // another facet on the same field may already ask for more
+          int current = params.getInt(paramStart + FacetParams.FACET_LIMIT, 0);
+          if (current < 0 || current > initialLimit[i]) continue;
+        }
+        params.set(paramStart + FacetParams.FACET_LIMIT, initialLimit[i]);
+      }
+      params.set(FacetParams.FACET_PIVOT_MINCOUNT, 1);
+    }
+
+    /** Adds the values a shard returned for a level of the pivot beneath parent, and their pivots */
+    void add(PivotFacetValue parent, int shardNum, List<NamedList<Object>> shardValues, int level) {
+      int numReceived = 0;
+      if (shardValues != null) {  // could be null if there was an exception, or no values
+        for (NamedList<Object> shardValue : shardValues) {
+          Object value = shardValue.get("value");
+          PivotFacetValue pfv = parent.children.get(value);
+          if (pfv == null) {
+            pfv = new PivotFacetValue(value, ftypes[level]);
+            parent.children.put(value, pfv);
+          }
+          pfv.count += ((Number)shardValue.get("count")).longValue();
+          pfv.reported.add(shardNum);
+          if (value != null) {
+            numReceived++;
+          }
+          if (level+1 < fields.length) {
+            @SuppressWarnings("unchecked")
+            List<NamedList<Object>> pivot = (List<NamedList<Object>>)shardValue.get("pivot");
+            add(pfv, shardNum, pivot, level+1);
+          }
+        }
+      }
+
+      // a shard may have values it did not return if it returned as many as were asked for.
+      // Shards also leave out values less than the pivot mincount, so a list in index order is
+      // never known to be complete.
+      if (initialLimit[level] >= 0 && (indexSort[level] || numReceived >= initialLimit[level])) {
+        parent.truncated.add(shardNum);
+      }
+    }
+
+    /** Adds a refinement returned by a shard: the count of a value, and the pivots beneath it */
+    void addRefinement(PivotFacetValue pfv, int shardNum, NamedList<Object> shardValue) {
+      pfv.count += ((Number)shardValue.get("count")).longValue();
+      pfv.reported.add(shardNum);
+      if (pfv.level+1 < fields.length) {
+        @SuppressWarnings("unchecked")
+        List<NamedList<Object>> pivot = (List<NamedList<Object>>)shardValue.get("pivot");
+        add(pfv, shardNum, pivot, pfv.level+1);
+      }
+    }
+
+    /**
+     * Flags the top values beneath parent for refinement by each shard that may have a count for them
+     * but did not return it.  A shard asked for a value also returns its pivots, so only the values
+     * beneath those that a shard did return are looked at for that shard at the next level.
+     */
+    void findRefinements(PivotFacetValue parent, int level, List<String> path) {
+      if (path.isEmpty()) {
+        path.add(Integer.toString(index));
+      }
+      List<PivotFacetValue> sorted = parent.getSorted(indexSort[level]);
+      int ntop = limit[level] < 0 ? sorted.size() : Math.min(sorted.size(), offset[level] + limit[level]);
+
+      for (int i=0; i<ntop; i++) {
+        PivotFacetValue pfv = sorted.get(i);
+        pfv.level = level;
+        // an empty value can't be sent as part of a refinement
+        if (pfv.readable.length() == 0) continue;
+
+        path.add(pfv.readable);
+        String refinement = null;
+        for (int shardNum : parent.truncated) {
+          if (pfv.reported.contains(shardNum)) continue;
+          if (refinement == null) {
+            refinement = StrUtils.join(path, ',');
+            refining.put(refinement, pfv);
+          }
+          List<String> lst = _toRefine[shardNum];
+          if (lst == null) {
+            lst = _toRefine[shardNum] = new ArrayList<>();
+          }
+          lst.add(refinement);
+        }
+
+        if (level+1 < fields.length) {
+          findRefinements(pfv, level+1, path);
+        }
+        path.remove(path.size()-1);
+      }
+    }
+
+    /**
+     * Returns the merged pivots beneath parent, in the same form as the pivots of a single shard.
+     * listSize is set to the length of the facet list the values were picked from, before the pivot
+     * mincount is applied.  When the list includes values with no documents, a shard fills it up to the
+     * limit with them, so the limit is taken to be its length.
+     */
+    List<NamedList<Object>> getPivots(PivotFacetValue parent, int level, int[] listSize) {
+      List<NamedList<Object>> values = new ArrayList<>();
+      List<PivotFacetValue> sorted = parent.getSorted(indexSort[level]);
+      int end = limit[level] < 0 ? sorted.size() : Math.min(offset[level] + limit[level], sorted.size());
+      listSize[0] = zeros[level] && limit[level] >= 0 ? limit[level] : Math.max(0, end - offset[level]);
+      for (int i=offset[level]; i<end; i++) {
+        PivotFacetValue pfv = sorted.get(i);
+        if (pfv.count >= minCount) {
+          addPivot(values, pfv, level);
+        }
+      }
+      PivotFacetValue missing = parent.children.get(null);
+      if (missing != null) {
+        listSize[0]++;
+        if (missing.count >= minCount) {
+          addPivot(values, missing, level);
+        }
+      }
+      return values;
+    }
+
+    private void addPivot(List<NamedList<Object>> values, PivotFacetValue pfv, int level) {
+      SimpleOrderedMap<Object> pivot = new SimpleOrderedMap<>();
+      pivot.add("field", fields[level]);
+      pivot.add("value", pfv.value);
+      pivot.add("count", num(pfv.count));
+      if (level+1 == fields.length) {
+        values.add(pivot);
+      } else {
+        // like each shard, leave out a value when the list beneath it is shorter than the pivot mincount
+        int[] listSize = new int[1];
+        List<NamedList<Object>> subPivots = getPivots(pfv, level+1, listSize);
+        if (listSize[0] >= minCount) {
+          pivot.add("pivot", subPivots);
+          values.add(pivot);
+        }
+      }
+    }
+  }
+
+  /**
+   * <b>This API is experimental and subject to change</b>
+   */
+  public static class PivotFacetValue {
+    public Object value;     // null for the documents missing the field
+    public String readable;  // the readable form of the value, used in refinements
+    public String indexed;   // the indexed form of the value... used for comparisons.
+    public long count;
+    public int level;
+    public Set<Integer> reported = new HashSet<>();   // the shards that returned a count for this value
+    public Set<Integer> truncated = new TreeSet<>();  // the shards that may have more values beneath this one
+    public LinkedHashMap<Object,PivotFacetValue> children = new LinkedHashMap<>();
+
+    PivotFacetValue(Object value, FieldType ftype) {
+      this.value = value;
+      if (value != null) {
+        readable = value instanceof Date ? TrieDateField.formatExternal((Date)value) : value.toString();
+        indexed = ftype == null ? readable : ftype.toInternal(readable);
+      }
+    }
+
+    /** Returns the values beneath this one, other than the missing value */
+    List<PivotFacetValue> getSorted(boolean indexSort) {
+      List<PivotFacetValue> sorted = new ArrayList<>(children.size());
+      for (PivotFacetValue pfv : children.values()) {
+        if (pfv.value != null) {
+          sorted.add(pfv);
+        }
+      }
+      Collections.sort(sorted, indexSort ? INDEX_ORDER : COUNT_ORDER);
+      return sorted;
+    }
+
+    @Override
+    public String toString() {
+      return "{value="+value+",count="+count+",children="+children.size()+"}";
+    }
+  }
+
+  private static final Comparator<PivotFacetValue> INDEX_ORDER = new Comparator<PivotFacetValue>() {
+    @Override
+    public int compare(PivotFacetValue o1, PivotFacetValue o2) {
+      return o1.indexed.compareTo(o2.indexed);
+    }
+  };
+
+  private static final Comparator<PivotFacetValue> COUNT_ORDER = new Comparator<PivotFacetValue>() {
+    @Override
+    public int compare(PivotFacetValue o1, PivotFacetValue o2) {
+      if (o2.count < o1.count) return -1;
+      else if (o1.count < o2.count) return 1;
+      return o1.indexed.compareTo(o2.indexed);
+    }
+  };
 }
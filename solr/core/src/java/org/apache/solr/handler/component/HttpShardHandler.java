@@ -16,7 +16,12 @@ package org.apache.solr.handler.component;
  * limitations under the License.
  */
 
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.RequestWrapper;
+import org.apache.http.protocol.HttpContext;
 import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrResponse;
 import org.apache.solr.client.solrj.SolrServer;
@@ -43,22 +48,29 @@ import org.apache.solr.core.CoreDescriptor;
 import org.apache.solr.request.SolrQueryRequest;
 
 import java.net.ConnectException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 public class HttpShardHandler extends ShardHandler {
 
   private HttpShardHandlerFactory httpShardHandlerFactory;
   private CompletionService<ShardResponse> completionService;
+  // requests sent from the pool, and asynchronous requests, are queued here as they complete
+  private BlockingQueue<Future<ShardResponse>> completed;
   private Set<Future<ShardResponse>> pending;
   private Map<String,List<String>> shardToURLs;
   private HttpClient httpClient;
@@ -67,7 +79,8 @@ public class HttpShardHandler extends ShardHandler {
   public HttpShardHandler(HttpShardHandlerFactory httpShardHandlerFactory, HttpClient httpClient) {
     this.httpClient = httpClient;
     this.httpShardHandlerFactory = httpShardHandlerFactory;
-    completionService = httpShardHandlerFactory.newCompletionService();
+    completed = new LinkedBlockingQueue<>();
+    completionService = httpShardHandlerFactory.newCompletionService(completed);
     pending = new HashSet<>();
 
     // maps "localhost:8983|localhost:7574" to a shuffled List("http://localhost:8983","http://localhost:7574")
@@ -116,31 +129,24 @@ public class HttpShardHandler extends ShardHandler {
     // do this outside of the callable for thread safety reasons
     final List<String> urls = getURLs(shard);
 
+    AsyncShardClient asyncClient = httpShardHandlerFactory.getAsyncClient(httpClient, urls);
+    if (asyncClient != null) {
+      AsyncShardRequest task = new AsyncShardRequest(newShardResponse(sreq, shard), urls);
+      pending.add(task);
+      task.send(asyncClient, newRequest(params));
+      return;
+    }
+
     Callable<ShardResponse> task = new Callable<ShardResponse>() {
       @Override
       public ShardResponse call() throws Exception {
 
-        ShardResponse srsp = new ShardResponse();
-        if (sreq.nodeName != null) {
-          srsp.setNodeName(sreq.nodeName);
-        }
-        srsp.setShardRequest(sreq);
-        srsp.setShard(shard);
-        SimpleSolrResponse ssr = new SimpleSolrResponse();
-        srsp.setSolrResponse(ssr);
+        ShardResponse srsp = newShardResponse(sreq, shard);
+        SimpleSolrResponse ssr = (SimpleSolrResponse) srsp.getSolrResponse();
         long startTime = System.nanoTime();
 
         try {
-          params.remove(CommonParams.WT); // use default (currently javabin)
-          params.remove(CommonParams.VERSION);
-
-          // SolrRequest req = new QueryRequest(SolrRequest.METHOD.POST, "/select");
-          // use generic request to avoid extra processing of queries
-          QueryRequest req = new QueryRequest(params);
-          req.setMethod(SolrRequest.METHOD.POST);
-
-          // no need to set the response parser as binary is the default
-          // req.setResponseParser(new BinaryResponseParser());
+          QueryRequest req = newRequest(params);
 
           // if there are no shards available for a slice, urls.size()==0
           if (urls.size()==0) {
@@ -149,30 +155,15 @@ public class HttpShardHandler extends ShardHandler {
             throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "no servers hosting shard: " + shard);
           }
 
-          if (urls.size() <= 1) {
-            String url = urls.get(0);
-            srsp.setShardAddress(url);
-            SolrServer server = new HttpSolrServer(url, httpClient);
-            try {
-              ssr.nl = server.request(req);
-            } finally {
-              server.shutdown();
-            }
-          } else {
-            LBHttpSolrServer.Rsp rsp = httpShardHandlerFactory.makeLoadBalancedRequest(req, urls);
-            ssr.nl = rsp.getResponse();
-            srsp.setShardAddress(rsp.getServer());
-          }
+          long hedgeDelay = urls.size() > 1 ? httpShardHandlerFactory.getHedgeDelay(httpClient, urls.get(0)) : -1;
+          ReplicaResponse rsp = hedgeDelay < 0 ? request(req, urls) : hedgedRequest(req, urls, hedgeDelay);
+          ssr.nl = rsp.nl;
+          srsp.setShardAddress(rsp.url);
         }
         catch( ConnectException cex ) {
           srsp.setException(cex); //????
         } catch (Exception th) {
-          srsp.setException(th);
-          if (th instanceof SolrException) {
-            srsp.setResponseCode(((SolrException)th).code());
-          } else {
-            srsp.setResponseCode(-1);
-          }
+          setShardException(srsp, th);
         }
 
         ssr.elapsedTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
@@ -184,12 +175,287 @@ public class HttpShardHandler extends ShardHandler {
     pending.add( completionService.submit(task) );
   }
 
+  private static ShardResponse newShardResponse(ShardRequest sreq, String shard) {
+    ShardResponse srsp = new ShardResponse();
+    if (sreq.nodeName != null) {
+      srsp.setNodeName(sreq.nodeName);
+    }
+    srsp.setShardRequest(sreq);
+    srsp.setShard(shard);
+    srsp.setSolrResponse(new SimpleSolrResponse());
+    return srsp;
+  }
+
+  private static QueryRequest newRequest(ModifiableSolrParams params) {
+    params.remove(CommonParams.WT); // use default (currently javabin)
+    params.remove(CommonParams.VERSION);
+
+    // SolrRequest req = new QueryRequest(SolrRequest.METHOD.POST, "/select");
+    // use generic request to avoid extra processing of queries
+    QueryRequest req = new QueryRequest(params);
+    req.setMethod(SolrRequest.METHOD.POST);
+
+    // no need to set the response parser as binary is the default
+    // req.setResponseParser(new BinaryResponseParser());
+    return req;
+  }
+
+  private static void setShardException(ShardResponse srsp, Exception th) {
+    srsp.setException(th);
+    if (th instanceof SolrException) {
+      srsp.setResponseCode(((SolrException)th).code());
+    } else {
+      srsp.setResponseCode(-1);
+    }
+  }
+
+  /**
+   * A request sent by the {@link AsyncShardClient}.  No thread waits on it: the callback of the client
+   * completes it, and it is queued with the requests completed by the pool.
+   */
+  private class AsyncShardRequest extends FutureTask<ShardResponse> implements AsyncShardClient.Callback {
+    private final ShardResponse srsp;
+    private final List<String> urls;
+    private final ReplicaStats stats;
+    private long startTime;
+    private volatile AsyncShardClient.Exchange exchange;
+
+    AsyncShardRequest(final ShardResponse srsp, List<String> urls) {
+      super(new Callable<ShardResponse>() {
+        @Override
+        public ShardResponse call() {
+          return srsp;
+        }
+      });
+      this.srsp = srsp;
+      this.urls = urls;
+      this.stats = httpShardHandlerFactory.getReplicaStats(urls.get(0));
+    }
+
+    void send(AsyncShardClient client, QueryRequest req) {
+      stats.start();
+      startTime = System.nanoTime();
+      exchange = client.request(req, urls, this);
+    }
+
+    private void finish(boolean error) {
+      long elapsed = System.nanoTime() - startTime;
+      stats.finish(elapsed, error);
+      ((SimpleSolrResponse) srsp.getSolrResponse()).elapsedTime = TimeUnit.MILLISECONDS.convert(elapsed, TimeUnit.NANOSECONDS);
+      run();
+    }
+
+    @Override
+    public void completed(String url, NamedList<Object> rsp) {
+      ((SimpleSolrResponse) srsp.getSolrResponse()).nl = rsp;
+      srsp.setShardAddress(url);
+      finish(!url.equals(urls.get(0)));  // the first replica failed, and another answered
+    }
+
+    @Override
+    public void failed(Exception e) {
+      setShardException(srsp, e);
+      finish(true);
+    }
+
+    @Override
+    protected void done() {
+      completed.add(this);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      AsyncShardClient.Exchange exchange = this.exchange;
+      if (exchange != null && exchange.cancel()) {
+        stats.finish(System.nanoTime() - startTime, true);
+      }
+      return super.cancel(mayInterruptIfRunning);
+    }
+  }
+
+  private static class ReplicaResponse {
+    final String url;
+    final NamedList<Object> nl;
+
+    ReplicaResponse(String url, NamedList<Object> nl) {
+      this.url = url;
+      this.nl = nl;
+    }
+  }
+
+  /** Sends a request to the first live replica of the list, recording its latency */
+  private ReplicaResponse request(QueryRequest req, List<String> urls) throws Exception {
+    ReplicaStats stats = httpShardHandlerFactory.getReplicaStats(urls.get(0));
+    stats.start();
+    long startTime = System.nanoTime();
+    boolean error = true;
+    try {
+      ReplicaResponse rsp;
+      if (urls.size() <= 1) {
+        String url = urls.get(0);
+        SolrServer server = new HttpSolrServer(url, httpClient);
+        try {
+          rsp = new ReplicaResponse(url, server.request(req));
+        } finally {
+          server.shutdown();
+        }
+      } else {
+        LBHttpSolrServer.Rsp lbRsp = httpShardHandlerFactory.makeLoadBalancedRequest(req, urls);
+        rsp = new ReplicaResponse(lbRsp.getServer(), lbRsp.getResponse());
+      }
+      error = !urls.get(0).equals(rsp.url);  // the first replica failed, and another answered
+      return rsp;
+    } finally {
+      stats.finish(System.nanoTime() - startTime, error);
+    }
+  }
+
+  /**
+   * Sends a request to the first replica of the list, and a duplicate to the second if the first
+   * has not answered after <code>hedgeDelay</code> milliseconds.  Whichever answers first is used,
+   * and the other request is aborted.  If both fail, the request fails over to the other replicas.
+   */
+  private ReplicaResponse hedgedRequest(QueryRequest req, List<String> urls, long hedgeDelay) throws Exception {
+    CompletionService<ReplicaResponse> attempts = httpShardHandlerFactory.newHedgeCompletionService();
+    List<HedgeAttempt> sent = new ArrayList<>(2);
+    try {
+      if (!submit(attempts, new HedgeAttempt(req, urls.get(0)), sent)) {
+        return request(req, urls);  // too many hedged requests already
+      }
+
+      Future<ReplicaResponse> done = attempts.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+      if (done == null) {
+        // slower than the replica usually is, so try the next one too
+        if (submit(attempts, new HedgeAttempt(req, urls.get(1)), sent)) {
+          httpShardHandlerFactory.hedged(urls.get(1));
+        }
+        done = attempts.take();
+      }
+
+      Exception failure;
+      for (int pending = sent.size(); ; done = attempts.take()) {
+        try {
+          ReplicaResponse rsp = done.get();
+          if (!rsp.url.equals(urls.get(0))) {
+            httpShardHandlerFactory.hedgeWon();
+          }
+          return rsp;
+        } catch (ExecutionException e) {
+          failure = unwrap(e);
+        }
+        if (--pending == 0) break;
+        // the other request may still succeed
+      }
+
+      if (sent.size() == urls.size()) {
+        throw failure;
+      }
+      return request(req, urls.subList(sent.size(), urls.size()));
+    } finally {
+      for (HedgeAttempt attempt : sent) {
+        attempt.abort();
+      }
+    }
+  }
+
+  /** Submits an attempt of a hedged request, returning false if the pool of attempts is full */
+  private static boolean submit(CompletionService<ReplicaResponse> attempts, HedgeAttempt attempt, List<HedgeAttempt> sent) {
+    try {
+      attempts.submit(attempt);
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+    sent.add(attempt);
+    return true;
+  }
+
+  // the attempt of a hedged request the current thread is sending
+  private static final ThreadLocal<HedgeAttempt> currentAttempt = new ThreadLocal<>();
+
+  /**
+   * Records the http request sent by the attempt of a hedged request (if any) the current thread is running.
+   * Interrupting the thread would not stop it waiting on the socket, so the request is aborted instead.
+   */
+  static final HttpRequestInterceptor HEDGE_ATTEMPT_INTERCEPTOR = new HttpRequestInterceptor() {
+    @Override
+    public void process(HttpRequest request, HttpContext context) {
+      HedgeAttempt attempt = currentAttempt.get();
+      if (attempt == null) return;
+      if (request instanceof RequestWrapper) {
+        request = ((RequestWrapper) request).getOriginal();
+      }
+      if (request instanceof HttpUriRequest) {
+        attempt.sending((HttpUriRequest) request);
+      }
+    }
+  };
+
+  /** A request to a single replica, sent on its own thread as one of the attempts of a hedged request */
+  private class HedgeAttempt implements Callable<ReplicaResponse> {
+    private final QueryRequest req;
+    private final String url;
+    private HttpUriRequest httpRequest;  // guarded by this
+    private boolean aborted;  // guarded by this
+
+    HedgeAttempt(QueryRequest req, String url) {
+      this.req = req;
+      this.url = url;
+    }
+
+    @Override
+    public ReplicaResponse call() throws Exception {
+      ReplicaStats stats = httpShardHandlerFactory.getReplicaStats(url);
+      stats.start();
+      long startTime = System.nanoTime();
+      boolean error = true;
+      SolrServer server = new HttpSolrServer(url, httpClient);
+      currentAttempt.set(this);
+      try {
+        ReplicaResponse rsp = new ReplicaResponse(url, server.request(req));
+        error = false;
+        return rsp;
+      } finally {
+        currentAttempt.remove();
+        server.shutdown();
+        boolean aborted = finished();
+        // the replica was slower than the other, not broken, if the request was aborted
+        stats.finish(System.nanoTime() - startTime, error && !aborted);
+      }
+    }
+
+    synchronized void sending(HttpUriRequest httpRequest) {
+      if (aborted) {
+        httpRequest.abort();
+      } else {
+        this.httpRequest = httpRequest;
+      }
+    }
+
+    /** Marks the attempt done, returning whether it had been aborted */
+    private synchronized boolean finished() {
+      httpRequest = null;
+      return aborted;
+    }
+
+    synchronized void abort() {
+      aborted = true;
+      if (httpRequest != null) {
+        httpRequest.abort();
+        httpRequest = null;
+      }
+    }
+  }
+
+  private static Exception unwrap(ExecutionException e) {
+    return e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+  }
+
   /** returns a ShardResponse of the last response correlated with a ShardRequest.  This won't 
    * return early if it runs into an error.  
    **/
   @Override
   public ShardResponse takeCompletedIncludingErrors() {
-    return take(false);
+    return take(false, false);
   }
 
 
@@ -198,14 +464,19 @@ public class HttpShardHandler extends ShardHandler {
    */
   @Override
   public ShardResponse takeCompletedOrError() {
-    return take(true);
+    return take(true, false);
+  }
+
+  @Override
+  public ShardResponse takeResponse(boolean bailOnError) {
+    return take(bailOnError, true);
   }
   
-  private ShardResponse take(boolean bailOnError) {
+  private ShardResponse take(boolean bailOnError, boolean eachResponse) {
     
     while (pending.size() > 0) {
       try {
-        Future<ShardResponse> future = completionService.take();
+        Future<ShardResponse> future = completed.take();
         pending.remove(future);
         ShardResponse rsp = future.get();
         if (bailOnError && rsp.getException() != null) return rsp; // if exception, return immediately
@@ -214,7 +485,7 @@ public class HttpShardHandler extends ShardHandler {
         // for a request was received.  Otherwise we might return the same
         // request more than once.
         rsp.getShardRequest().responses.add(rsp);
-        if (rsp.getShardRequest().responses.size() == rsp.getShardRequest().actualShards.length) {
+        if (eachResponse || rsp.getShardRequest().responses.size() == rsp.getShardRequest().actualShards.length) {
           return rsp;
         }
       } catch (InterruptedException e) {
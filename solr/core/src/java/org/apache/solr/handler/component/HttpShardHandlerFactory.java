@@ -18,34 +18,47 @@ package org.apache.solr.handler.component;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.AbstractHttpClient;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpClientUtil;
 import org.apache.solr.client.solrj.impl.LBHttpSolrServer;
 import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.StrUtils;
 import org.apache.solr.common.util.URLUtil;
+import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.core.PluginInfo;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.util.DefaultSolrThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.URL;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
-public class HttpShardHandlerFactory extends ShardHandlerFactory implements org.apache.solr.util.plugin.PluginInfoInitialized {
+public class HttpShardHandlerFactory extends ShardHandlerFactory implements org.apache.solr.util.plugin.PluginInfoInitialized, SolrInfoMBean {
   protected static Logger log = LoggerFactory.getLogger(HttpShardHandlerFactory.class);
   private static final String DEFAULT_SCHEME = "http";
   
@@ -74,6 +87,23 @@ public class HttpShardHandlerFactory extends ShardHandlerFactory implements org.
   int keepAliveTime = 5;
   int queueSize = -1;
   boolean accessPolicy = false;
+  String replicaSelection = REPLICA_SELECTION_RANDOM;
+  boolean hedgeRequests = false;
+  int hedgeMinDelay = 10;
+  int hedgeMaxThreads = 100;
+  boolean asyncRequests = false;
+  int asyncThreads = Runtime.getRuntime().availableProcessors();
+
+  // latencies of each replica (url) requests have been sent to
+  private final ConcurrentMap<String,ReplicaStats> replicaStats = new ConcurrentHashMap<>();
+  private final AtomicLong hedgedRequests = new AtomicLong();
+  private final AtomicLong hedgesWon = new AtomicLong();
+
+  private AsyncShardClient asyncClient;
+
+  // runs the attempts of hedged requests: the threads of commExecutor wait on them, so they cannot
+  // share its (possibly bounded) pool.  When all its threads are busy, requests are sent without hedging.
+  private ThreadPoolExecutor hedgeExecutor;
 
   private String scheme = null;
 
@@ -97,6 +127,38 @@ public class HttpShardHandlerFactory extends ShardHandlerFactory implements org.
   // Configure if the threadpool favours fairness over throughput
   static final String INIT_FAIRNESS_POLICY = "fairnessPolicy";
 
+  // How the replica of a shard to send requests to is chosen: "random", or "latency" for the
+  // replica with the lowest moving average latency, taking into account the requests waiting on it
+  static final String INIT_REPLICA_SELECTION = "replicaSelection";
+  static final String REPLICA_SELECTION_RANDOM = "random";
+  static final String REPLICA_SELECTION_LATENCY = "latency";
+
+  // Whether a duplicate of a request is sent to another replica of the shard when the first has not
+  // answered within its 95th percentile latency.  The first answer is used, and the other request is
+  // aborted.  The attempts run on a pool of their own, while the request waits on them.  Only requests
+  // sent with the default http client are hedged.
+  static final String INIT_HEDGE_REQUESTS = "hedgeRequests";
+
+  // The least time in milliseconds to wait for a replica before sending a duplicate request
+  static final String INIT_HEDGE_MIN_DELAY = "hedgeMinDelay";
+
+  // The most threads sending the attempts of hedged requests at once
+  static final String INIT_HEDGE_MAX_THREADS = "hedgeMaxThreads";
+
+  // Replicas are only hedged once this many of their requests have completed
+  static final int HEDGE_MIN_REQUESTS = 20;
+
+  // The latency in milliseconds a replica is charged for a failed request, when there is no socket timeout
+  static final int DEFAULT_ERROR_PENALTY = 30000;
+
+  // Whether requests to shards over plain http are sent without blocking a thread of the pool while
+  // they wait on the network, so the number of threads no longer grows with the number of shards
+  // times the requests in flight.  Requests are not hedged in this mode.
+  static final String INIT_ASYNC_REQUESTS = "asyncRequests";
+
+  // The number of threads handling the connections of asynchronous requests, and parsing their responses
+  static final String INIT_ASYNC_THREADS = "asyncThreads";
+
   /**
    * Get {@link ShardHandler} that uses the default http client.
    */
@@ -127,6 +189,12 @@ public class HttpShardHandlerFactory extends ShardHandlerFactory implements org.
     this.keepAliveTime = getParameter(args, MAX_THREAD_IDLE_TIME, keepAliveTime);
     this.queueSize = getParameter(args, INIT_SIZE_OF_QUEUE, queueSize);
     this.accessPolicy = getParameter(args, INIT_FAIRNESS_POLICY, accessPolicy);
+    this.replicaSelection = getParameter(args, INIT_REPLICA_SELECTION, replicaSelection);
+    this.hedgeRequests = getParameter(args, INIT_HEDGE_REQUESTS, hedgeRequests);
+    this.hedgeMinDelay = getParameter(args, INIT_HEDGE_MIN_DELAY, hedgeMinDelay);
+    this.hedgeMaxThreads = getParameter(args, INIT_HEDGE_MAX_THREADS, hedgeMaxThreads);
+    this.asyncRequests = getParameter(args, INIT_ASYNC_REQUESTS, asyncRequests);
+    this.asyncThreads = getParameter(args, INIT_ASYNC_THREADS, asyncThreads);
     
     // magic sysprop to make tests reproducible: set by SolrTestCaseJ4.
     String v = System.getProperty("tests.shardhandler.randomSeed");
@@ -154,6 +222,30 @@ public class HttpShardHandlerFactory extends ShardHandlerFactory implements org.
     clientParams.set(HttpClientUtil.PROP_USE_RETRY, false);
     this.defaultClient = HttpClientUtil.createClient(clientParams);
     this.loadbalancer = createLoadbalancer(defaultClient);
+
+    if (hedgeRequests && !(defaultClient instanceof AbstractHttpClient)) {
+      log.warn("Requests can't be hedged with an http client of type " + defaultClient.getClass().getName());
+      this.hedgeRequests = false;
+    }
+    if (hedgeRequests) {
+      // records the http requests of hedged attempts, so the one that loses can be aborted
+      ((AbstractHttpClient) defaultClient).addRequestInterceptor(HttpShardHandler.HEDGE_ATTEMPT_INTERCEPTOR);
+      this.hedgeExecutor = new ThreadPoolExecutor(
+          0,
+          this.hedgeMaxThreads,
+          this.keepAliveTime, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(),
+          new DefaultSolrThreadFactory("httpShardHedgeExecutor")
+      );
+    }
+
+    if (asyncRequests) {
+      try {
+        this.asyncClient = new AsyncShardClient(asyncThreads, connectionTimeout, soTimeout, maxConnectionsPerHost);
+      } catch (IOException e) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Could not create the asynchronous shard client", e);
+      }
+    }
   }
 
   protected ThreadPoolExecutor getThreadPoolExecutor(){
@@ -179,6 +271,9 @@ public class HttpShardHandlerFactory extends ShardHandlerFactory implements org.
   public void close() {
     try {
       ExecutorUtil.shutdownNowAndAwaitTermination(commExecutor);
+      if (hedgeExecutor != null) {
+        ExecutorUtil.shutdownNowAndAwaitTermination(hedgeExecutor);
+      }
     } finally {
       try {
         if (defaultClient != null) {
@@ -186,8 +281,14 @@ public class HttpShardHandlerFactory extends ShardHandlerFactory implements org.
         }
       } finally {
         
-        if (loadbalancer != null) {
-          loadbalancer.shutdown();
+        try {
+          if (loadbalancer != null) {
+            loadbalancer.shutdown();
+          }
+        } finally {
+          if (asyncClient != null) {
+            asyncClient.close();
+          }
         }
       }
     }
@@ -227,16 +328,145 @@ public class HttpShardHandlerFactory extends ShardHandlerFactory implements org.
     if (urls.size() > 1)
       Collections.shuffle(urls, r);
 
+    // Then prefer the replicas that are expected to answer first.  The sort is stable, so
+    // replicas that cost the same stay shuffled.
+    if (urls.size() > 1 && REPLICA_SELECTION_LATENCY.equals(replicaSelection)) {
+      final Map<String,Double> costs = new HashMap<>();
+      for (String url : urls) {
+        costs.put(url, getReplicaStats(url).getCost());
+      }
+      Collections.sort(urls, new Comparator<String>() {
+        @Override
+        public int compare(String url1, String url2) {
+          return Double.compare(costs.get(url1), costs.get(url2));
+        }
+      });
+    }
+
     return urls;
   }
 
+  /**
+   * Returns the latency statistics of requests to a replica.
+   */
+  public ReplicaStats getReplicaStats(String url) {
+    ReplicaStats stats = replicaStats.get(url);
+    if (stats == null) {
+      stats = new ReplicaStats(soTimeout > 0 ? soTimeout : DEFAULT_ERROR_PENALTY);
+      ReplicaStats prev = replicaStats.putIfAbsent(url, stats);
+      if (prev != null) {
+        stats = prev;
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Returns how long in milliseconds to wait for a request to a replica before sending a duplicate to
+   * another replica, or -1 if the request should not be hedged.
+   */
+  long getHedgeDelay(HttpClient httpClient, String url) {
+    if (!hedgeRequests || httpClient != defaultClient) return -1;
+    ReplicaStats stats = replicaStats.get(url);
+    if (stats == null || stats.getCount() < HEDGE_MIN_REQUESTS) return -1;
+    return Math.max(hedgeMinDelay, (long)Math.ceil(stats.getSnapshot().get95thPercentile()));
+  }
+
+  /** Called when a duplicate of a slow request has been sent to another replica */
+  void hedged(String url) {
+    hedgedRequests.incrementAndGet();
+    getReplicaStats(url).hedged();
+  }
+
+  /** Called when the duplicate of a slow request answered first */
+  void hedgeWon() {
+    hedgesWon.incrementAndGet();
+  }
+
+  /**
+   * Returns the client to send a request to the given replicas without blocking a thread, or null if
+   * the request should be sent from a thread of the pool: when asynchronous requests are off, when
+   * a custom http client is used, or when the replicas are not plain http.
+   */
+  AsyncShardClient getAsyncClient(HttpClient httpClient, List<String> urls) {
+    if (asyncClient == null || httpClient != defaultClient || urls.isEmpty()) return null;
+    for (String url : urls) {
+      if (!url.startsWith("http://")) return null;
+    }
+    return asyncClient;
+  }
+
   /**
    * Creates a new completion service for use by a single set of distributed requests.
    */
   public CompletionService newCompletionService() {
     return new ExecutorCompletionService<ShardResponse>(commExecutor);
   }
+
+  /**
+   * Creates a new completion service for the attempts of a single hedged request.  Submitting an attempt
+   * throws a {@link java.util.concurrent.RejectedExecutionException} when all the threads of the pool are busy.
+   */
+  <T> CompletionService<T> newHedgeCompletionService() {
+    return new ExecutorCompletionService<>(hedgeExecutor);
+  }
+
+  /**
+   * Creates a new completion service for use by a single set of distributed requests, which adds the
+   * completed requests to the given queue.
+   */
+  public CompletionService<ShardResponse> newCompletionService(BlockingQueue<Future<ShardResponse>> completionQueue) {
+    return new ExecutorCompletionService<>(commExecutor, completionQueue);
+  }
   
+  //////////////////////// SolrInfoMBean methods //////////////////////
+
+  @Override
+  public String getName() {
+    return HttpShardHandlerFactory.class.getName();
+  }
+
+  @Override
+  public String getVersion() {
+    return SolrCore.version;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Sends requests to shards, and tracks the latency of each replica (shared by all cores)";
+  }
+
+  @Override
+  public Category getCategory() {
+    return Category.OTHER;
+  }
+
+  @Override
+  public String getSource() {
+    return "$URL$";
+  }
+
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+
+  @Override
+  public NamedList getStatistics() {
+    NamedList<Object> stats = new SimpleOrderedMap<>();
+    stats.add("replicaSelection", replicaSelection);
+    stats.add("hedgeRequests", hedgeRequests);
+    stats.add("hedgedRequests", hedgedRequests.get());
+    stats.add("hedgesWon", hedgesWon.get());
+    stats.add("asyncRequests", asyncClient != null);
+    NamedList<Object> replicas = new SimpleOrderedMap<>();
+    for (Map.Entry<String,ReplicaStats> entry : replicaStats.entrySet()) {
+      replicas.add(entry.getKey(), entry.getValue().getStatistics());
+    }
+    stats.add("replicas", replicas);
+    return stats;
+  }
+
   /**
    * Rebuilds the URL replacing the URL scheme of the passed URL with the
    * configured scheme replacement.If no scheme was configured, the passed URL's
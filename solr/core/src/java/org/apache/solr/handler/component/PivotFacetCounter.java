@@ -0,0 +1,482 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.handler.component;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.GroupParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QueryContext;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.field.IntFieldValues;
+import org.apache.solr.search.field.IntLeafValues;
+import org.apache.solr.search.field.OrdinalMap;
+import org.apache.solr.search.field.StrFieldValues;
+import org.apache.solr.search.field.StrLeafValues;
+import org.apache.solr.search.field.StrTopValues;
+import org.apache.solr.search.field.TopValues;
+import org.apache.solr.search.function.ValueSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Computes a whole pivot with a single pass over the base docset, rather than one facet pass and one
+ * intersection per parent value.  The value of each pivot field for each document is read from the nCache
+ * (global ords of single-valued string fields, or the values of single-valued int fields), the number of
+ * documents with each combination of values is counted in an open-addressed hash, and the tree is then
+ * built from the sorted combinations.  The result is the same as that of
+ * {@link PivotFacetHelper#doPivots}, so it is only used for the fields and params it can reproduce.
+ */
+public class PivotFacetCounter {
+  /** Set to false to count pivots one facet pass per parent value (currently for testing only) */
+  public static final String SINGLE_PASS = FacetParams.FACET_PIVOT + ".singlePass";
+
+  private final SolrIndexSearcher searcher;
+  private final String[] fields;
+  private final Level[] levels;
+  private final int minMatch;
+
+  private CompositeKeyCounts counts;
+  private int[] entries;  // the slots of counts, sorted by key
+
+  private static class Level {
+    SchemaField sf;
+    FieldType ft;
+    boolean isInt;
+    int offset;
+    int limit;
+    int mincount;
+    boolean zeros;    // terms with no documents are part of the facet list
+    boolean missing;
+    boolean indexSort;
+    long numTerms;    // for strings, the number of values in the index
+    boolean hasTerms; // whether there are any values in the index
+    OrdinalMap ordMap;
+    TopValues topValues;
+  }
+
+  private PivotFacetCounter(SolrIndexSearcher searcher, String[] fields, Level[] levels, int minMatch) {
+    this.searcher = searcher;
+    this.fields = fields;
+    this.levels = levels;
+    this.minMatch = minMatch;
+  }
+
+  /**
+   * Returns a counter for the pivot of fields, using the same facet params for each field as
+   * {@link org.apache.solr.request.SimpleFacetsHS#getTermCounts}, or null if the pivot can't be counted
+   * in a single pass.
+   */
+  public static PivotFacetCounter create(SolrIndexSearcher searcher, SolrParams params, String[] fields, int minMatch) throws IOException {
+    if (!params.getBool(SINGLE_PASS, true) || searcher.getnCache() == null || minMatch < 1 || fields.length > 31) {
+      return null;
+    }
+
+    Level[] levels = new Level[fields.length];
+    for (int i=0; i<fields.length; i++) {
+      String field = fields[i];
+      SchemaField sf = searcher.getSchema().getFieldOrNull(field);
+      if (sf == null || !sf.indexed() || sf.multiValued() || sf.hasDocValues()) return null;
+      if (params.getFieldParam(field, FacetParams.FACET_PREFIX) != null) return null;
+      if (params.getFieldBool(field, GroupParams.GROUP_FACET, false)) return null;
+
+      Level level = new Level();
+      level.sf = sf;
+      level.ft = sf.getType();
+      if (level.ft.multiValuedFieldCache()) return null;
+      ValueSource vs = level.ft.getValueSource(sf, null);
+      if (vs instanceof IntFieldValues) {
+        level.isInt = true;
+      } else if (!(vs instanceof StrFieldValues)) {
+        return null;
+      }
+
+      level.offset = params.getFieldInt(field, FacetParams.FACET_OFFSET, 0);
+      level.limit = params.getFieldInt(field, FacetParams.FACET_LIMIT, 10);
+      Integer mincount = params.getFieldInt(field, FacetParams.FACET_MINCOUNT);
+      if (mincount==null) {
+        Boolean zeros = params.getFieldBool(field, FacetParams.FACET_ZEROS);
+        mincount = (zeros!=null && !zeros) ? 1 : 0;
+      }
+      level.mincount = mincount;
+      level.zeros = mincount <= 0;
+      level.missing = params.getFieldBool(field, FacetParams.FACET_MISSING, false);
+      String sort = params.getFieldParam(field, FacetParams.FACET_SORT, level.limit>0 ? FacetParams.FACET_SORT_COUNT : FacetParams.FACET_SORT_INDEX);
+      level.indexSort = !(sort.equals(FacetParams.FACET_SORT_COUNT) || sort.equals(FacetParams.FACET_SORT_COUNT_LEGACY));
+      level.hasTerms = MultiFields.getTerms(searcher.getIndexReader(), field) != null;
+
+      // Numeric facets merge the terms with no documents in from the terms dictionary, so which of them
+      // are part of the list (and how long it is) is only known in a few cases.
+      if (level.isInt && level.zeros && level.hasTerms) {
+        if (level.indexSort) return null;
+        // below the first level, the length of the list only matters when compared with minMatch
+        if (i > 0 && (level.offset != 0 || minMatch != 1)) return null;
+      }
+
+      levels[i] = level;
+    }
+    return new PivotFacetCounter(searcher, fields, levels, minMatch);
+  }
+
+  /** Returns the pivots of the documents in docs, in the same form as {@link PivotFacetHelper#doPivots} */
+  public List<NamedList<Object>> getPivots(DocSet docs) throws IOException {
+    QueryContext qcontext = QueryContext.newContext(searcher);
+    try {
+      for (Level level : levels) {
+        if (level.isInt) {
+          level.topValues = new IntFieldValues(level.sf, null).getTopValues(qcontext);
+        } else {
+          StrTopValues topValues = (StrTopValues)new StrFieldValues(level.sf, null).getTopValues(qcontext);
+          level.topValues = topValues;
+          level.ordMap = topValues.getOrdinalMap(qcontext);
+          level.numTerms = level.ordMap.getValueCount();
+        }
+      }
+
+      count(docs, qcontext);
+      sortEntries();
+      return build(0, 0, entries.length, new int[1]);
+    } finally {
+      counts = null;
+      entries = null;
+      qcontext.close();  // releases the TopValues
+    }
+  }
+
+  private void count(DocSet docs, QueryContext qcontext) throws IOException {
+    final int numFields = fields.length;
+    counts = new CompositeKeyCounts(numFields + 1);  // the values, then a bit for each missing value
+    int[] key = new int[numFields + 1];
+    StrLeafValues[] strValues = new StrLeafValues[numFields];
+    IntLeafValues[] intValues = new IntLeafValues[numFields];
+
+    Filter filter = docs.getTopFilter();
+    for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+      DocIdSet idSet = filter.getDocIdSet(leaf, null);  // this set only includes live docs
+      DocIdSetIterator iter = idSet == null ? null : idSet.iterator();
+      if (iter == null) continue;
+
+      for (int i=0; i<numFields; i++) {
+        Level level = levels[i];
+        if (level.isInt) {
+          intValues[i] = (IntLeafValues)level.topValues.getLeafValues(qcontext, leaf);
+        } else {
+          strValues[i] = level.ordMap.getLeaf(leaf.ord);
+        }
+      }
+
+      int doc;
+      while ((doc = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        int missing = 0;
+        for (int i=0; i<numFields; i++) {
+          int val;
+          if (intValues[i] != null) {
+            if (intValues[i].exists(doc)) {
+              val = intValues[i].intVal(doc);
+            } else {
+              val = 0;
+              missing |= 1 << i;
+            }
+          } else {
+            int segOrd = strValues[i].ordVal(doc);
+            if (segOrd >= 0) {
+              val = levels[i].ordMap.getGlobalOrd(leaf.ord, segOrd);
+            } else {
+              val = 0;
+              missing |= 1 << i;
+            }
+          }
+          key[i] = val;
+        }
+        key[numFields] = missing;
+        counts.add(key);
+      }
+    }
+  }
+
+  private void sortEntries() {
+    entries = counts.getSlots();
+    new InPlaceMergeSorter() {
+      @Override
+      protected int compare(int i, int j) {
+        int slot1 = entries[i];
+        int slot2 = entries[j];
+        for (int level=0; level<fields.length; level++) {
+          int cmp = compareValue(slot1, slot2, level);
+          if (cmp != 0) return cmp;
+        }
+        return 0;
+      }
+
+      @Override
+      protected void swap(int i, int j) {
+        int tmp = entries[i];
+        entries[i] = entries[j];
+        entries[j] = tmp;
+      }
+    }.sort(0, entries.length);
+  }
+
+  /** Compares the values of two combinations for a field, with documents missing the field last */
+  private int compareValue(int slot1, int slot2, int level) {
+    int missing1 = (counts.get(slot1, fields.length) >>> level) & 1;
+    int missing2 = (counts.get(slot2, fields.length) >>> level) & 1;
+    if (missing1 != missing2) return missing1 - missing2;
+    return Integer.compare(counts.get(slot1, level), counts.get(slot2, level));
+  }
+
+  /**
+   * Builds the pivots for the combinations in entries[start,end), which all have the same values for the
+   * fields before level.  The size of the facet list the values were picked from is returned in listSize.
+   */
+  private List<NamedList<Object>> build(int levelNum, int start, int end, int[] listSize) throws IOException {
+    Level level = levels[levelNum];
+    if (level.limit == 0) {
+      listSize[0] = 0;
+      return new ArrayList<NamedList<Object>>(0);
+    }
+
+    // group the combinations by the value of this field
+    int numGroups = 0;
+    int[] groupStart = new int[end - start + 1];
+    long[] groupCount = new long[end - start];
+    int missingStart = end;
+    long missingCount = 0;
+    for (int i=start; i<end; ) {
+      int slot = entries[i];
+      long count = 0;
+      int j = i;
+      while (j < end && compareValue(entries[j], slot, levelNum) == 0) {
+        count += counts.getCount(entries[j]);
+        j++;
+      }
+      if (((counts.get(slot, fields.length) >>> levelNum) & 1) != 0) {
+        missingStart = i;   // sorted last
+        missingCount = count;
+      } else {
+        groupStart[numGroups] = i;
+        groupCount[numGroups] = count;
+        numGroups++;
+      }
+      i = j;
+    }
+    groupStart[numGroups] = missingStart;
+
+    // pick the values the facet list would have, in order
+    List<Integer> picked = new ArrayList<Integer>();
+    long lim = level.limit < 0 ? Long.MAX_VALUE : (long)level.offset + level.limit;
+    long size;
+    if (level.zeros && level.indexSort) {
+      // the list is a range of ords, whether or not they have any documents (only strings get here)
+      size = Math.max(0, Math.min(lim, level.numTerms) - level.offset);
+      for (int g=0; g<numGroups; g++) {
+        int ord = counts.get(entries[groupStart[g]], levelNum);
+        if (ord >= level.offset && ord < lim) {
+          picked.add(g);
+        }
+      }
+    } else {
+      int minCount = Math.max(level.mincount, 1);
+      for (int g=0; g<numGroups; g++) {
+        if (groupCount[g] >= minCount) {
+          picked.add(g);
+        }
+      }
+      if (!level.indexSort) {
+        final long[] groupCounts = groupCount;
+        Collections.sort(picked, new Comparator<Integer>() {
+          @Override
+          public int compare(Integer g1, Integer g2) {
+            long c1 = groupCounts[g1];
+            long c2 = groupCounts[g2];
+            if (c1 != c2) return c1 > c2 ? -1 : 1;
+            return g1.compareTo(g2);  // groups are in index order
+          }
+        });
+      }
+
+      long numCandidates = picked.size();
+      if (level.zeros) {
+        // values with no documents come after the others in count order
+        numCandidates = level.isInt ? Math.max(numCandidates, level.hasTerms ? 1 : 0) : level.numTerms;
+      }
+      size = Math.max(0, Math.min(lim, numCandidates) - level.offset);
+      int from = Math.min(level.offset, picked.size());
+      int to = (int)Math.min(lim, picked.size());
+      picked = picked.subList(from, to);
+    }
+    if (level.missing) {
+      size++;
+    }
+    listSize[0] = (int)Math.min(size, Integer.MAX_VALUE);
+
+    List<NamedList<Object>> values = new ArrayList<NamedList<Object>>(picked.size() + 1);
+    for (int g : picked) {
+      if (groupCount[g] >= minMatch) {
+        int slot = entries[groupStart[g]];
+        addPivot(values, levelNum, getValue(level, counts.get(slot, levelNum)), groupCount[g], groupStart[g], groupStart[g+1]);
+      }
+    }
+    if (level.missing && missingCount >= minMatch) {
+      addPivot(values, levelNum, null, missingCount, missingStart, end);
+    }
+    return values;
+  }
+
+  private void addPivot(List<NamedList<Object>> values, int levelNum, Object value, long count, int start, int end) throws IOException {
+    SimpleOrderedMap<Object> pivot = new SimpleOrderedMap<Object>();
+    pivot.add( "field", fields[levelNum] );
+    pivot.add( "value", value );
+    pivot.add( "count", (int)count );
+    if (levelNum+1 == fields.length) {
+      values.add( pivot );
+    } else {
+      int[] listSize = new int[1];
+      List<NamedList<Object>> subPivots = build(levelNum+1, start, end, listSize);
+      if (listSize[0] >= minMatch) {
+        pivot.add( "pivot", subPivots );
+        values.add( pivot ); // only add response if there are some counts
+      }
+    }
+  }
+
+  private Object getValue(Level level, int val) {
+    BytesRef termval = new BytesRef();
+    if (level.isInt) {
+      level.ft.readableToIndexed(Integer.toString(val), termval);
+    } else {
+      level.ordMap.lookupOrd(val, termval);
+    }
+    return level.ft.toObject(level.sf, termval);
+  }
+
+
+  /**
+   * Counts of fixed-width int keys, in an open-addressed hash with linear probing.  A slot with a count
+   * of zero is empty.
+   */
+  static final class CompositeKeyCounts {
+    private final int width;
+    private int[] keys;
+    private int[] counts;
+    private int mask;
+    private int size;
+
+    CompositeKeyCounts(int width) {
+      this.width = width;
+      this.counts = new int[16];
+      this.keys = new int[16 * width];
+      this.mask = 15;
+    }
+
+    void add(int[] key) {
+      int slot = hash(key) & mask;
+      for (;;) {
+        if (counts[slot] == 0) {
+          System.arraycopy(key, 0, keys, slot * width, width);
+          counts[slot] = 1;
+          if (++size > (counts.length >> 1) + (counts.length >> 2)) {
+            rehash();
+          }
+          return;
+        }
+        if (equals(slot, key)) {
+          counts[slot]++;
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    private boolean equals(int slot, int[] key) {
+      int base = slot * width;
+      for (int i=0; i<width; i++) {
+        if (keys[base + i] != key[i]) return false;
+      }
+      return true;
+    }
+
+    private static int hash(int[] key) {
+      int h = 0;
+      for (int i=0; i<key.length; i++) {
+        h = h * 31 + key[i];
+      }
+      // finalize as in murmur3 so that similar keys are spread over the table
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+      return h;
+    }
+
+    private void rehash() {
+      int[] oldKeys = keys;
+      int[] oldCounts = counts;
+      counts = new int[oldCounts.length << 1];
+      keys = new int[counts.length * width];
+      mask = counts.length - 1;
+      int[] key = new int[width];
+      for (int oldSlot=0; oldSlot<oldCounts.length; oldSlot++) {
+        if (oldCounts[oldSlot] == 0) continue;
+        System.arraycopy(oldKeys, oldSlot * width, key, 0, width);
+        int slot = hash(key) & mask;
+        while (counts[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        System.arraycopy(key, 0, keys, slot * width, width);
+        counts[slot] = oldCounts[oldSlot];
+      }
+    }
+
+    int get(int slot, int i) {
+      return keys[slot * width + i];
+    }
+
+    int getCount(int slot) {
+      return counts[slot];
+    }
+
+    /** Returns the slots that have a count */
+    int[] getSlots() {
+      int[] slots = new int[size];
+      int n = 0;
+      for (int slot=0; slot<counts.length; slot++) {
+        if (counts[slot] != 0) {
+          slots[n++] = slot;
+        }
+      }
+      return slots;
+    }
+  }
+}
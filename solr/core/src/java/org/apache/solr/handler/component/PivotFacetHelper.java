@@ -25,6 +25,7 @@ import org.apache.solr.search.DocSet;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.common.util.StrUtils;
 import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.params.FacetParams;
@@ -39,16 +40,25 @@ import org.apache.solr.search.SyntaxError;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * @since solr 4.0
  */
 public class PivotFacetHelper extends SimpleFacetsHS
 {
+  /**
+   * Sent to shards by a distributed request to refine its merged pivots: each value names a pivot by
+   * its position among the <code>facet.pivot</code> params, followed by the values of its fields down
+   * to the one whose count is wanted, separated by commas.
+   */
+  public static final String PIVOT_REFINE = FacetParams.FACET_PIVOT + ".refine";
 
   protected int minMatch;
 
@@ -89,10 +99,14 @@ public class PivotFacetHelper extends SimpleFacetsHS
           fnames.push( fields[i] );
         }
 
-        NamedList<Integer> superFacets = this.getTermCounts(field, this.docs);
-
         //super.key usually == pivot unless local-param 'key' used
-        pivotResponse.add(key, doPivots(superFacets, field, subField, fnames, docs));
+        PivotFacetCounter counter = PivotFacetCounter.create(searcher, params, fields, minMatch);
+        if (counter != null) {
+          pivotResponse.add(key, counter.getPivots(docs));
+        } else {
+          NamedList<Integer> superFacets = this.getTermCounts(field, this.docs);
+          pivotResponse.add(key, doPivots(superFacets, field, subField, fnames, docs));
+        }
       } finally {
         this.docs = saveDocs;  // restore so cleanup will work
         cleanup();
@@ -101,6 +115,120 @@ public class PivotFacetHelper extends SimpleFacetsHS
     return pivotResponse;
   }
 
+  /**
+   * Returns the count of each refinement ({@link #PIVOT_REFINE}), named by the refinement, along with
+   * the pivots beneath it when there are more fields.  Refinements of the same parent share its
+   * intersection with the base docset, which is computed once, and each of their counts is an
+   * intersection with that set.
+   */
+  public SimpleOrderedMap<Object> processRefinements(String[] pivots, String[] refinements) throws IOException {
+    SimpleOrderedMap<Object> refined = new SimpleOrderedMap<Object>();
+    if (!rb.doFacets || pivots == null || refinements == null)
+      return refined;
+
+    // group the refinements by pivot, then by parent
+    Map<Integer,Map<List<String>,NamedList<String>>> byPivot = new TreeMap<Integer,Map<List<String>,NamedList<String>>>();
+    for (String refinement : refinements) {
+      List<String> path = StrUtils.splitSmart(refinement, ",", true);
+      int pivotNum = path.size() < 2 ? -1 : Integer.parseInt(path.get(0));
+      if (pivotNum < 0 || pivotNum >= pivots.length) {
+        throw new SolrException( ErrorCode.BAD_REQUEST, "Invalid pivot refinement: "+refinement );
+      }
+      Map<List<String>,NamedList<String>> parents = byPivot.get(pivotNum);
+      if (parents == null) {
+        parents = new LinkedHashMap<List<String>,NamedList<String>>();
+        byPivot.put(pivotNum, parents);
+      }
+      List<String> parent = path.subList(1, path.size()-1);
+      NamedList<String> children = parents.get(parent);
+      if (children == null) {
+        children = new NamedList<String>();
+        parents.put(parent, children);
+      }
+      children.add(refinement, path.get(path.size()-1));
+    }
+
+    for (Map.Entry<Integer,Map<List<String>,NamedList<String>>> entry : byPivot.entrySet()) {
+      DocSet saveDocs = null;
+      try {
+        try {
+          this.parseParams(FacetParams.FACET_PIVOT, pivots[entry.getKey()]);
+          saveDocs = this.docs;
+        } catch (SyntaxError e) {
+          throw new SolrException(ErrorCode.BAD_REQUEST, e);
+        }
+        String[] fields = facetValue.split(",");
+
+        for (Map.Entry<List<String>,NamedList<String>> parent : entry.getValue().entrySet()) {
+          if (parent.getKey().size() >= fields.length) {
+            throw new SolrException( ErrorCode.BAD_REQUEST,
+                "Pivot refinement has more values than fields: "+parent.getValue().getName(0) );
+          }
+          refineChildren(fields, parent.getKey(), parent.getValue(), refined);
+        }
+      } finally {
+        this.docs = saveDocs;  // restore so cleanup will work
+        cleanup();
+      }
+    }
+    return refined;
+  }
+
+  private void refineChildren(String[] fields, List<String> parentValues, NamedList<String> children,
+                              SimpleOrderedMap<Object> refined) throws IOException
+  {
+    SolrIndexSearcher searcher = rb.req.getSearcher();
+    DocSet parentDocs = docs;
+    parentDocs.incref();
+    try {
+      for (int i=0; i<parentValues.size(); i++) {
+        DocSet subset = searcher.getDocSet(getTermQuery(fields[i], parentValues.get(i)), parentDocs);
+        parentDocs.decref();
+        parentDocs = subset;
+      }
+
+      int level = parentValues.size();
+      String field = fields[level];
+      String subField = level+1 < fields.length ? fields[level+1] : null;
+      for (int i=0; i<children.size(); i++) {
+        Query query = getTermQuery(field, children.getVal(i));
+        SimpleOrderedMap<Object> pivot = new SimpleOrderedMap<Object>();
+        if (subField == null) {
+          pivot.add( "count", searcher.numDocs(query, parentDocs) );
+        } else {
+          DocSet subset = searcher.getDocSet(query, parentDocs);
+          try {
+            pivot.add( "count", subset.size() );
+            String[] subFields = Arrays.copyOfRange(fields, level+1, fields.length);
+            PivotFacetCounter counter = PivotFacetCounter.create(searcher, params, subFields, minMatch);
+            if (counter != null) {
+              pivot.add( "pivot", counter.getPivots(subset) );
+            } else {
+              Deque<String> fnames = new LinkedList<String>();
+              for( int j=fields.length-1; j>level+2; j-- ) {
+                fnames.push( fields[j] );
+              }
+              String nextField = level+2 < fields.length ? fields[level+2] : null;
+              pivot.add( "pivot", doPivots( this.getTermCounts(subField, subset), subField, nextField, fnames, subset) );
+            }
+          } finally {
+            subset.decref();
+          }
+        }
+        refined.add(children.getName(i), pivot);
+      }
+    } finally {
+      parentDocs.decref();
+    }
+  }
+
+  private Query getTermQuery(String field, String readableValue) {
+    FieldType ftype = rb.req.getSearcher().getSchema().getField(field).getType();
+    BytesRef termval = new BytesRef();
+    ftype.readableToIndexed(readableValue, termval);
+    return new TermQuery(new Term(field, termval));
+  }
+
   /**
    * Recursive function to do all the pivots
    */
@@ -170,118 +298,4 @@ public class PivotFacetHelper extends SimpleFacetsHS
     fnames.push( nextField );
     return values;
   }
-
-// TODO: This is code from various patches to support distributed search.
-//  Some parts may be helpful for whoever implements distributed search.
-//
-//  @Override
-//  public int distributedProcess(ResponseBuilder rb) throws IOException {
-//    if (!rb.doFacets) {
-//      return ResponseBuilder.STAGE_DONE;
-//    }
-//
-//    if (rb.stage == ResponseBuilder.STAGE_GET_FIELDS) {
-//      SolrParams params = rb.req.getParams();
-//      String[] pivots = params.getParams(FacetParams.FACET_PIVOT);
-//      for ( ShardRequest sreq : rb.outgoing ) {
-//        if (( sreq.purpose & ShardRequest.PURPOSE_GET_FIELDS ) != 0
-//            && sreq.shards != null && sreq.shards.length == 1 ) {
-//          sreq.params.set( FacetParams.FACET, "true" );
-//          sreq.params.set( FacetParams.FACET_PIVOT, pivots );
-//          sreq.params.set( FacetParams.FACET_PIVOT_MINCOUNT, 1 ); // keep this at 1 regardless so that it accumulates everything
-//            }
-//      }
-//    }
-//    return ResponseBuilder.STAGE_DONE;
-//  }
-//
-//  @Override
-//  public void handleResponses(ResponseBuilder rb, ShardRequest sreq) {
-//    if (!rb.doFacets) return;
-//
-//
-//    if ((sreq.purpose & ShardRequest.PURPOSE_GET_FACETS)!=0) {
-//      SimpleOrderedMap<List<NamedList<Object>>> tf = rb._pivots;
-//      if ( null == tf ) {
-//        tf = new SimpleOrderedMap<List<NamedList<Object>>>();
-//        rb._pivots = tf;
-//      }
-//      for (ShardResponse srsp: sreq.responses) {
-//        int shardNum = rb.getShardNum(srsp.getShard());
-//
-//        NamedList facet_counts = (NamedList)srsp.getSolrResponse().getResponse().get("facet_counts");
-//
-//        // handle facet trees from shards
-//        SimpleOrderedMap<List<NamedList<Object>>> shard_pivots = 
-//          (SimpleOrderedMap<List<NamedList<Object>>>)facet_counts.get( PIVOT_KEY );
-//        
-//        if ( shard_pivots != null ) {
-//          for (int j=0; j< shard_pivots.size(); j++) {
-//            // TODO -- accumulate the results from each shard
-//            // The following code worked to accumulate facets for an previous 
-//            // two level patch... it is here for reference till someone can upgrade
-//            /**
-//            String shard_tree_name = (String) shard_pivots.getName( j );
-//            SimpleOrderedMap<NamedList> shard_tree = (SimpleOrderedMap<NamedList>)shard_pivots.getVal( j );
-//            SimpleOrderedMap<NamedList> facet_tree = tf.get( shard_tree_name );
-//            if ( null == facet_tree) { 
-//              facet_tree = new SimpleOrderedMap<NamedList>(); 
-//              tf.add( shard_tree_name, facet_tree );
-//            }
-//
-//            for( int o = 0; o < shard_tree.size() ; o++ ) {
-//              String shard_outer = (String) shard_tree.getName( o );
-//              NamedList shard_innerList = (NamedList) shard_tree.getVal( o );
-//              NamedList tree_innerList  = (NamedList) facet_tree.get( shard_outer );
-//              if ( null == tree_innerList ) { 
-//                tree_innerList = new NamedList();
-//                facet_tree.add( shard_outer, tree_innerList );
-//              }
-//
-//              for ( int i = 0 ; i < shard_innerList.size() ; i++ ) {
-//                String shard_term = (String) shard_innerList.getName( i );
-//                long shard_count  = ((Number) shard_innerList.getVal(i)).longValue();
-//                int tree_idx      = tree_innerList.indexOf( shard_term, 0 );
-//
-//                if ( -1 == tree_idx ) {
-//                  tree_innerList.add( shard_term, shard_count );
-//                } else {
-//                  long tree_count = ((Number) tree_innerList.getVal( tree_idx )).longValue();
-//                  tree_innerList.setVal( tree_idx, shard_count + tree_count );
-//                }
-//              } // innerList loop
-//            } // outer loop
-//              **/
-//          } // each tree loop
-//        }
-//      }
-//    } 
-//    return ;
-//  }
-//
-//  @Override
-//  public void finishStage(ResponseBuilder rb) {
-//    if (!rb.doFacets || rb.stage != ResponseBuilder.STAGE_GET_FIELDS) return;
-//    // wait until STAGE_GET_FIELDS
-//    // so that "result" is already stored in the response (for aesthetics)
-//
-//    SimpleOrderedMap<List<NamedList<Object>>> tf = rb._pivots;
-//
-//    // get 'facet_counts' from the response
-//    NamedList facetCounts = (NamedList) rb.rsp.getValues().get("facet_counts");
-//    if (facetCounts == null) {
-//      facetCounts = new NamedList();
-//      rb.rsp.add("facet_counts", facetCounts);
-//    }
-//    facetCounts.add( PIVOT_KEY, tf );
-//    rb._pivots = null;
-//  }
-//
-//  public String getDescription() {
-//    return "Handle Pivot (multi-level) Faceting";
-//  }
-//
-//  public String getSource() {
-//    return "$URL$";
-//  }
 }
@@ -18,8 +18,6 @@
 package org.apache.solr.handler.component;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -49,14 +47,12 @@ import org.apache.solr.search.grouping.SearchGroup;
 import org.apache.solr.search.grouping.TopGroups;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.InPlaceMergeSorter;
-import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.*;
 import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.util.NamedList;
-import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.common.util.StrUtils;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.ResultContext;
@@ -824,157 +820,65 @@ public class QueryComponent extends SearchComponent
 
 
 
+  @Override
+  public void handleResponse(ResponseBuilder rb, ShardResponse srsp) {
+    // read the top ids of each shard as they arrive, so only the merge is left when the last one does
+    if (!rb.grouping() && (srsp.getShardRequest().purpose & ShardRequest.PURPOSE_GET_TOP_IDS) != 0) {
+      getShardDocMerger(rb, srsp.getShardRequest()).add(srsp);
+    }
+  }
+
+  private ShardDocMerger getShardDocMerger(ResponseBuilder rb, ShardRequest sreq) {
+    if (rb._shardDocMerger == null || rb._shardDocMerger.sreq != sreq) {
+      rb._shardDocMerger = new ShardDocMerger(rb, sreq);
+    }
+    return rb._shardDocMerger;
+  }
+
   private void mergeIds(ResponseBuilder rb, ShardRequest sreq) {
       SortSpec ss = rb.getSortSpec();
-      Sort sort = ss.getSort();
-
-      SortField[] sortFields = null;
-      if(sort != null) sortFields = sort.getSort();
-      else {
-        sortFields = new SortField[]{SortField.FIELD_SCORE};
-      }
- 
       IndexSchema schema = rb.req.getSchema();
-      SchemaField uniqueKeyField = schema.getUniqueKeyField();
-
-
-      // id to shard mapping, to eliminate any accidental dups
-      HashMap<Object,String> uniqueDoc = new HashMap<>();
 
-      // Merge the docs via a priority queue so we don't have to sort *all* of the
-      // documents... we only need to order the top (rows+start)
-      ShardFieldSortedHitQueue queue;
-      queue = new ShardFieldSortedHitQueue(sortFields, ss.getOffset() + ss.getCount(), rb.req.getSearcher());
-
-      NamedList<Object> shardInfo = null;
-      if(rb.req.getParams().getBool(ShardParams.SHARDS_INFO, false)) {
-        shardInfo = new SimpleOrderedMap<>();
-        rb.rsp.getValues().add(ShardParams.SHARDS_INFO,shardInfo);
-      }
-      
-      long numFound = 0;
-      Float maxScore=null;
-      boolean partialResults = false;
+      ShardDocMerger merger = getShardDocMerger(rb, sreq);
+      rb._shardDocMerger = null;
       for (ShardResponse srsp : sreq.responses) {
-        SolrDocumentList docs = null;
-
-        if(shardInfo!=null) {
-          SimpleOrderedMap<Object> nl = new SimpleOrderedMap<>();
-          
-          if (srsp.getException() != null) {
-            Throwable t = srsp.getException();
-            if(t instanceof SolrServerException) {
-              t = ((SolrServerException)t).getCause();
-            }
-            nl.add("error", t.toString() );
-            StringWriter trace = new StringWriter();
-            t.printStackTrace(new PrintWriter(trace));
-            nl.add("trace", trace.toString() );
-            if (srsp.getShardAddress() != null) {
-              nl.add("shardAddress", srsp.getShardAddress());
-            }
-          }
-          else {
-            docs = (SolrDocumentList)srsp.getSolrResponse().getResponse().get("response");
-            nl.add("numFound", docs.getNumFound());
-            nl.add("maxScore", docs.getMaxScore());
-            nl.add("shardAddress", srsp.getShardAddress());
-          }
-          if(srsp.getSolrResponse()!=null) {
-            nl.add("time", srsp.getSolrResponse().getElapsedTime());
-          }
-
-          shardInfo.add(srsp.getShard(), nl);
+        if (!merger.isAdded(srsp)) {
+          merger.add(srsp);
         }
-        // now that we've added the shard info, let's only proceed if we have no error.
-        if (srsp.getException() != null) {
-          partialResults = true;
-          continue;
-        }
-
-        if (docs == null) { // could have been initialized in the shards info block above
-          docs = (SolrDocumentList)srsp.getSolrResponse().getResponse().get("response");
-        }
-        
-        NamedList<?> responseHeader = (NamedList<?>)srsp.getSolrResponse().getResponse().get("responseHeader");
-        if (responseHeader != null && Boolean.TRUE.equals(responseHeader.get("partialResults"))) {
-          partialResults = true;
-        }
-        
-        // calculate global maxScore and numDocsFound
-        if (docs.getMaxScore() != null) {
-          maxScore = maxScore==null ? docs.getMaxScore() : Math.max(maxScore, docs.getMaxScore());
-        }
-        numFound += docs.getNumFound();
-
-        NamedList sortFieldValues = (NamedList)(srsp.getSolrResponse().getResponse().get("sort_values"));
-
-        // go through every doc in this response, construct a ShardDoc, and
-        // put it in the priority queue so it can be ordered.
-        for (int i=0; i<docs.size(); i++) {
-          SolrDocument doc = docs.get(i);
-          Object id = doc.getFieldValue(uniqueKeyField.getName());
-
-          String prevShard = uniqueDoc.put(id, srsp.getShard());
-          if (prevShard != null) {
-            // duplicate detected
-            numFound--;
-
-            // For now, just always use the first encountered since we can't currently
-            // remove the previous one added to the priority queue.  If we switched
-            // to the Java5 PriorityQueue, this would be easier.
-            continue;
-            // make which duplicate is used deterministic based on shard
-            // if (prevShard.compareTo(srsp.shard) >= 0) {
-            //  TODO: remove previous from priority queue
-            //  continue;
-            // }
-          }
-
-          ShardDoc shardDoc = new ShardDoc();
-          shardDoc.id = id;
-          shardDoc.shard = srsp.getShard();
-          shardDoc.orderInShard = i;
-          Object scoreObj = doc.getFieldValue("score");
-          if (scoreObj != null) {
-            if (scoreObj instanceof String) {
-              shardDoc.score = Float.parseFloat((String)scoreObj);
-            } else {
-              shardDoc.score = (Float)scoreObj;
-            }
-          }
+      }
 
-          shardDoc.sortFieldValues = unmarshalSortValues(ss, sortFieldValues, schema);
-
-          queue.insertWithOverflow(shardDoc);
-        } // end for-each-doc-in-response
-      } // end for-each-response
-      
-      // The queue now has 0 -> queuesize docs, where queuesize <= start + rows
-      // So we want to pop the last documents off the queue to get
-      // the docs offset -> queuesize
-      int resultSize = queue.size() - ss.getOffset();
-      resultSize = Math.max(0, resultSize);  // there may not be any docs in range
+      // Each shard's list is sorted, so we only need to merge them up to (rows+start)
+      List<ShardDoc> page = merger.merge(ss.getOffset(), ss.getCount());
 
       Map<Object,ShardDoc> resultIds = new HashMap<>();
-      for (int i=resultSize-1; i>=0; i--) {
-        ShardDoc shardDoc = queue.pop();
-        shardDoc.positionInResponse = i;
+      Map<String,NamedList> sortValuesByShard = rb.getCursorMark() == null ? null : new HashMap<String,NamedList>();
+      for (ShardDoc shardDoc : page) {
         // Need the toString() for correlation with other lists that must
         // be strings (like keys in highlighting, explain, etc)
         resultIds.put(shardDoc.id.toString(), shardDoc);
+        if (sortValuesByShard != null) {
+          // the next cursorMark is taken from the sort values of the last doc
+          NamedList sortFieldValues = sortValuesByShard.get(shardDoc.shard);
+          if (sortFieldValues == null) {
+            sortFieldValues = unmarshalSortValues(ss, merger.sortValues(shardDoc.shard), schema);
+            sortValuesByShard.put(shardDoc.shard, sortFieldValues);
+          }
+          shardDoc.sortFieldValues = sortFieldValues;
+        }
       }
 
+      long numFound = merger.numFound;
+
       // Add hits for distributed requests
       // https://issues.apache.org/jira/browse/SOLR-3518
       rb.rsp.addToLog("hits", numFound);
 
       SolrDocumentList responseDocs = new SolrDocumentList();
-      if (maxScore!=null) responseDocs.setMaxScore(maxScore);
+      if (merger.maxScore!=null) responseDocs.setMaxScore(merger.maxScore);
       responseDocs.setNumFound(numFound);
       responseDocs.setStart(ss.getOffset());
       // size appropriately
-      for (int i=0; i<resultSize; i++) responseDocs.add(null);
+      for (int i=0; i<page.size(); i++) responseDocs.add(null);
 
       // save these results in a private area so we can access them
       // again when retrieving stored fields.
@@ -984,7 +888,7 @@ public class QueryComponent extends SearchComponent
 
       populateNextCursorMarkFromMergedShards(rb);
 
-      if (partialResults) {
+      if (merger.partialResults) {
         rb.rsp.getResponseHeader().add( "partialResults", Boolean.TRUE );
       }
   }
@@ -0,0 +1,171 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.util.stats.Clock;
+import org.apache.solr.util.stats.EWMA;
+import org.apache.solr.util.stats.Snapshot;
+import org.apache.solr.util.stats.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latencies of the requests a {@link HttpShardHandlerFactory} has sent to one replica.  The moving
+ * average latency is the ratio of two one-minute {@link EWMA}s, of the time taken and of the number of
+ * requests, so it follows the replica as it slows down (during a GC or a merge) and recovers.  The
+ * percentiles come from a histogram biased to the last five minutes.  Failed requests take no time
+ * to record, so each adds a penalty to the cost of the replica instead, which decays over a minute.
+ */
+public class ReplicaStats {
+  private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+  private static final long SNAPSHOT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+  private static final double ERROR_DECAY = TimeUnit.MINUTES.toNanos(1);
+
+  private final Clock clock = Clock.defaultClock();
+  private final Timer requestTimes = new Timer();
+  private final EWMA elapsedRate = EWMA.oneMinuteEWMA();  // microseconds
+  private final EWMA requestRate = EWMA.oneMinuteEWMA();
+  private final AtomicLong lastTick = new AtomicLong(clock.getTick());
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+
+  private volatile Snapshot snapshot;
+  private volatile long snapshotTime;
+
+  private final double errorPenalty;  // milliseconds
+  private double errorScore;          // the recent errors, decayed exponentially
+  private long errorScoreTime;
+
+  /**
+   * @param errorPenalty the latency in milliseconds a replica is charged for a request that
+   *                     just failed, usually the socket timeout
+   */
+  public ReplicaStats(double errorPenalty) {
+    this.errorPenalty = errorPenalty;
+  }
+
+  /** Called as a request is sent to the replica */
+  void start() {
+    inFlight.incrementAndGet();
+  }
+
+  /** Called when a request to the replica completes, or fails */
+  void finish(long elapsedNanos, boolean error) {
+    inFlight.decrementAndGet();
+    if (error) {
+      errors.incrementAndGet();
+      addError();
+      return;
+    }
+    tickIfNecessary();
+    requestTimes.update(elapsedNanos, TimeUnit.NANOSECONDS);
+    elapsedRate.update(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+    requestRate.update(1);
+  }
+
+  /** Called when a request to another replica was slow, so a duplicate was sent to this one */
+  void hedged() {
+    hedges.incrementAndGet();
+  }
+
+  private void tickIfNecessary() {
+    final long oldTick = lastTick.get();
+    final long newTick = clock.getTick();
+    final long age = newTick - oldTick;
+    if (age > TICK_INTERVAL && lastTick.compareAndSet(oldTick, newTick)) {
+      final long requiredTicks = age / TICK_INTERVAL;
+      for (long i = 0; i < requiredTicks; i++) {
+        elapsedRate.tick();
+        requestRate.tick();
+      }
+    }
+  }
+
+  private synchronized void addError() {
+    long now = clock.getTick();
+    errorScore = getErrorScore(now) + 1;
+    errorScoreTime = now;
+  }
+
+  private synchronized double getErrorScore(long now) {
+    return errorScore == 0 ? 0 : errorScore * Math.exp((errorScoreTime - now) / ERROR_DECAY);
+  }
+
+  /** The number of requests that have completed */
+  public long getCount() {
+    return requestTimes.getCount();
+  }
+
+  /** The number of requests that have been sent and not yet completed */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /** The moving average latency in milliseconds, or 0 if no request has completed */
+  public double getLatency() {
+    tickIfNecessary();
+    double requests = requestRate.getRate(TimeUnit.SECONDS);
+    if (requests == 0) {
+      // not yet ticked, or idle for long enough that the averages have decayed away
+      return requestTimes.getMean();
+    }
+    return elapsedRate.getRate(TimeUnit.SECONDS) / requests / 1000.0;
+  }
+
+  /**
+   * The cost of sending a request to this replica, for ordering replicas: the expected latency, plus
+   * the penalty for recent errors, scaled by the requests already waiting on it.  Replicas that have
+   * not been sent a request yet cost nothing, so they are tried.
+   */
+  public double getCost() {
+    double penalty = errorPenalty * Math.min(1, getErrorScore(clock.getTick()));
+    return (getLatency() + penalty) * (getInFlight() + 1);
+  }
+
+  /** The latencies of recent requests in milliseconds, recomputed at most once a second */
+  public Snapshot getSnapshot() {
+    long now = clock.getTick();
+    Snapshot snapshot = this.snapshot;
+    if (snapshot == null || now - snapshotTime > SNAPSHOT_INTERVAL) {
+      snapshot = requestTimes.getSnapshot();
+      this.snapshot = snapshot;
+      this.snapshotTime = now;
+    }
+    return snapshot;
+  }
+
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> lst = new SimpleOrderedMap<>();
+    Snapshot snapshot = getSnapshot();
+    lst.add("requests", getCount());
+    lst.add("errors", errors.get());
+    lst.add("inFlight", getInFlight());
+    lst.add("hedges", hedges.get());
+    lst.add("latency", getLatency());
+    lst.add("avgTimePerRequest", requestTimes.getMean());
+    lst.add("medianRequestTime", snapshot.getMedian());
+    lst.add("95thPcRequestTime", snapshot.get95thPercentile());
+    lst.add("99thPcRequestTime", snapshot.get99thPercentile());
+    return lst;
+  }
+}
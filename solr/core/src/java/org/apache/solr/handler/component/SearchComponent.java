@@ -65,6 +65,13 @@ public abstract class SearchComponent implements SolrInfoMBean, NamedListInitial
   public void modifyRequest(ResponseBuilder rb, SearchComponent who, ShardRequest sreq) {
   }
 
+  /**
+   * Called as each response to a request is received, before {@link #handleResponses} is called for the
+   * request.  Errors are only passed on when the request is tolerant of them.
+   */
+  public void handleResponse(ResponseBuilder rb, ShardResponse srsp) {
+  }
+
   /** Called after all responses for a single request were received */
   public void handleResponses(ResponseBuilder rb, ShardRequest sreq) {
   }
@@ -34,6 +34,7 @@ import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.PluginInfo;
 import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.handler.RequestHandlerBase;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
@@ -158,6 +159,11 @@ public class SearchHandler extends RequestHandlerBase implements SolrCoreAware ,
         }
       });
     }
+    if (shardHandlerFactory instanceof SolrInfoMBean) {
+      // the statistics of the factory are those of all handlers (and cores) sharing it
+      SolrInfoMBean mbean = (SolrInfoMBean)shardHandlerFactory;
+      core.getInfoRegistry().put(mbean.getName(), mbean);
+    }
 
   }
 
@@ -296,9 +302,7 @@ public class SearchHandler extends RequestHandlerBase implements SolrCoreAware ,
           // this loop)
           boolean tolerant = rb.req.getParams().getBool(ShardParams.SHARDS_TOLERANT, false);
           while (rb.outgoing.size() == 0) {
-            ShardResponse srsp = tolerant ? 
-                shardHandler1.takeCompletedIncludingErrors():
-                shardHandler1.takeCompletedOrError();
+            ShardResponse srsp = shardHandler1.takeResponse(!tolerant);
             if (srsp == null) break;  // no more requests to wait for
 
             // Was there an exception?  
@@ -318,11 +322,18 @@ public class SearchHandler extends RequestHandlerBase implements SolrCoreAware ,
               }
             }
 
-            rb.finished.add(srsp.getShardRequest());
+            // let the components start on each response as it arrives
+            for(SearchComponent c : components) {
+              c.handleResponse(rb, srsp);
+            }
+            ShardRequest sreq = srsp.getShardRequest();
+            if (sreq.responses.size() < sreq.actualShards.length) continue;  // more responses to come
+
+            rb.finished.add(sreq);
 
             // let the components see the responses to the request
             for(SearchComponent c : components) {
-              c.handleResponses(rb, srsp.getShardRequest());
+              c.handleResponses(rb, sreq);
             }
           }
         }
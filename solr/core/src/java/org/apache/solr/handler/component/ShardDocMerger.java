@@ -0,0 +1,466 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.PriorityQueue;
+import org.apache.lucene.util.UnicodeUtil;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
+import org.apache.solr.schema.TrieDateField;
+import org.apache.solr.schema.TrieField;
+import org.apache.solr.search.SortSpec;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merges the top ids returned by each shard for a distributed query.  Each shard's response is read as
+ * it arrives: its ids are checked for duplicates, and its sort values are encoded into primitive arrays
+ * (numbers as sortable longs, strings as UTF-8 bytes).  Since each shard's list is already sorted, the
+ * lists are then merged with a queue holding the head of each, stopping once offset+rows documents
+ * have been taken, and only the documents of the page become {@link ShardDoc}s.
+ * <p>
+ * Sort values of other types (functions, collated strings, custom comparators) are compared with the
+ * {@link FieldComparator} of their sort, as they always were.
+ */
+class ShardDocMerger {
+  private static final int SCORE = 0;
+  private static final int NUMBER = 1;
+  private static final int BYTES = 2;
+  private static final int OBJECT = 3;
+  private static final int DOC = 4;  // not returned by shards; ties are broken by shard as for any other
+
+  final ShardRequest sreq;
+  private final ResponseBuilder rb;
+  private final SortField[] sortFields;
+  private final int[] kinds;
+  private final int[] signs;       // 1 if a smaller value comes first, -1 if a larger value does
+  private final int[] missingCmp;  // how a missing value compares to any other
+  private final int[] valueIndex;  // position of the field in the sort_values of a response
+  private FieldComparator[] comparators;  // for OBJECT fields, created when first needed
+  private final String uniqueKey;
+
+  private final Set<ShardResponse> added = Collections.newSetFromMap(new IdentityHashMap<ShardResponse,Boolean>());
+  private final Set<Object> ids = new HashSet<>();  // to eliminate any accidental dups
+  private final List<ShardDocs> shards = new ArrayList<>();
+  private NamedList<Object> shardInfo;
+
+  long numFound;
+  Float maxScore;
+  boolean partialResults;
+
+  ShardDocMerger(ResponseBuilder rb, ShardRequest sreq) {
+    this.rb = rb;
+    this.sreq = sreq;
+    this.uniqueKey = rb.req.getSchema().getUniqueKeyField().getName();
+
+    SortSpec ss = rb.getSortSpec();
+    Sort sort = ss.getSort();
+    sortFields = sort != null ? sort.getSort() : new SortField[]{SortField.FIELD_SCORE};
+    List<SchemaField> schemaFields = sort != null ? ss.getSchemaFields() : null;
+
+    int n = sortFields.length;
+    kinds = new int[n];
+    signs = new int[n];
+    missingCmp = new int[n];
+    valueIndex = new int[n];
+    int numValues = 0;
+    for (int i=0; i<n; i++) {
+      SortField sortField = sortFields[i];
+      SchemaField sf = schemaFields == null ? null : schemaFields.get(i);
+      FieldType ft = sf == null ? null : sf.getType();
+      boolean reverse = sortField.getReverse();
+      signs[i] = reverse ? -1 : 1;
+      missingCmp[i] = -1;
+      valueIndex[i] = -1;
+
+      if (sortField.getType() == SortField.Type.SCORE) {
+        kinds[i] = SCORE;
+        signs[i] = -signs[i];  // highest scores first unless reversed
+        continue;
+      } else if (sortField.getType() == SortField.Type.DOC) {
+        kinds[i] = DOC;
+        continue;
+      }
+
+      valueIndex[i] = numValues++;
+      if (ft instanceof TrieField || ft instanceof TrieDateField) {
+        // missing values are substituted on the shards
+        kinds[i] = NUMBER;
+      } else if (ft instanceof StrField) {
+        kinds[i] = BYTES;
+        boolean missingLast = sf.sortMissingLast() ? !reverse : sf.sortMissingFirst() && reverse;
+        missingCmp[i] = missingLast ? 1 : -1;
+      } else {
+        kinds[i] = OBJECT;
+      }
+    }
+
+    if (rb.req.getParams().getBool(ShardParams.SHARDS_INFO, false)) {
+      shardInfo = new SimpleOrderedMap<>();
+      rb.rsp.getValues().add(ShardParams.SHARDS_INFO, shardInfo);
+    }
+  }
+
+  /** Returns true if the response has already been added */
+  boolean isAdded(ShardResponse srsp) {
+    return added.contains(srsp);
+  }
+
+  /** Reads the ids and sort values of a shard's response */
+  void add(ShardResponse srsp) {
+    added.add(srsp);
+    SolrDocumentList docs = null;
+
+    if (shardInfo != null) {
+      SimpleOrderedMap<Object> nl = new SimpleOrderedMap<>();
+
+      if (srsp.getException() != null) {
+        Throwable t = srsp.getException();
+        if (t instanceof SolrServerException) {
+          t = ((SolrServerException)t).getCause();
+        }
+        nl.add("error", t.toString() );
+        StringWriter trace = new StringWriter();
+        t.printStackTrace(new PrintWriter(trace));
+        nl.add("trace", trace.toString() );
+        if (srsp.getShardAddress() != null) {
+          nl.add("shardAddress", srsp.getShardAddress());
+        }
+      }
+      else {
+        docs = (SolrDocumentList)srsp.getSolrResponse().getResponse().get("response");
+        nl.add("numFound", docs.getNumFound());
+        nl.add("maxScore", docs.getMaxScore());
+        nl.add("shardAddress", srsp.getShardAddress());
+      }
+      if (srsp.getSolrResponse() != null) {
+        nl.add("time", srsp.getSolrResponse().getElapsedTime());
+      }
+
+      shardInfo.add(srsp.getShard(), nl);
+    }
+    // now that we've added the shard info, let's only proceed if we have no error.
+    if (srsp.getException() != null) {
+      partialResults = true;
+      return;
+    }
+
+    if (docs == null) { // could have been initialized in the shards info block above
+      docs = (SolrDocumentList)srsp.getSolrResponse().getResponse().get("response");
+    }
+
+    NamedList<?> responseHeader = (NamedList<?>)srsp.getSolrResponse().getResponse().get("responseHeader");
+    if (responseHeader != null && Boolean.TRUE.equals(responseHeader.get("partialResults"))) {
+      partialResults = true;
+    }
+
+    // calculate global maxScore and numDocsFound
+    if (docs.getMaxScore() != null) {
+      maxScore = maxScore==null ? docs.getMaxScore() : Math.max(maxScore, docs.getMaxScore());
+    }
+    numFound += docs.getNumFound();
+
+    if (docs.size() == 0) return;
+    ShardDocs shardDocs = new ShardDocs(srsp, docs.size());
+
+    for (int i=0; i<docs.size(); i++) {
+      SolrDocument doc = docs.get(i);
+      Object id = doc.getFieldValue(uniqueKey);
+      shardDocs.ids[i] = id;
+      if (!ids.add(id)) {
+        // duplicate detected: always use the first encountered
+        numFound--;
+        shardDocs.duplicates.set(i);
+        continue;
+      }
+
+      Object scoreObj = doc.getFieldValue("score");
+      if (scoreObj != null) {
+        shardDocs.scored = true;
+        shardDocs.scores[i] = scoreObj instanceof String ? Float.parseFloat((String)scoreObj) : (Float)scoreObj;
+      }
+    }
+
+    for (int f=0; f<sortFields.length; f++) {
+      if (valueIndex[f] < 0) continue;
+      List<?> vals = (List<?>)shardDocs.sortValues.getVal(valueIndex[f]);
+      assert sortFields[f].getField().equals(shardDocs.sortValues.getName(valueIndex[f]))
+          : "sortFieldValues name key does not match expected SortField.getField";
+      switch (kinds[f]) {
+        case NUMBER: shardDocs.setNumbers(f, vals); break;
+        case BYTES: shardDocs.setBytes(f, vals); break;
+        case OBJECT: shardDocs.setObjects(f, vals, rb.getSortSpec().getSchemaFields()); break;
+      }
+    }
+
+    shards.add(shardDocs);
+  }
+
+  /**
+   * Merges the lists of the shards, returning the documents from <code>offset</code> up to
+   * <code>offset+count</code> in order.
+   */
+  List<ShardDoc> merge(int offset, int count) {
+    if (comparators == null) {
+      comparators = new FieldComparator[sortFields.length];
+      for (int f=0; f<sortFields.length; f++) {
+        if (kinds[f] == OBJECT) {
+          comparators[f] = getComparator(sortFields[f]);
+        }
+      }
+    }
+
+    PriorityQueue<ShardDocs> queue = new PriorityQueue<ShardDocs>(shards.size()) {
+      @Override
+      protected boolean lessThan(ShardDocs a, ShardDocs b) {
+        return compare(a, a.pos, b, b.pos) < 0;
+      }
+    };
+    for (ShardDocs shardDocs : shards) {
+      if (shardDocs.next()) {
+        queue.add(shardDocs);
+      }
+    }
+
+    long end = (long)offset + count;
+    List<ShardDoc> page = new ArrayList<>();
+    for (long position=0; position<end && queue.size() > 0; position++) {
+      ShardDocs top = queue.top();
+      if (position >= offset) {
+        ShardDoc shardDoc = new ShardDoc();
+        shardDoc.id = top.ids[top.pos];
+        shardDoc.shard = top.shard;
+        shardDoc.orderInShard = top.pos;
+        if (top.scored) {
+          shardDoc.score = top.scores[top.pos];
+        }
+        shardDoc.positionInResponse = page.size();
+        page.add(shardDoc);
+      }
+      if (top.next()) {
+        queue.updateTop();
+      } else {
+        queue.pop();
+      }
+    }
+    return page;
+  }
+
+  /** Returns the sort values returned by a shard, or null if it returned no documents */
+  NamedList sortValues(String shard) {
+    for (ShardDocs shardDocs : shards) {
+      if (shardDocs.shard.equals(shard)) {
+        return shardDocs.sortValues;
+      }
+    }
+    return null;
+  }
+
+  /** Negative if the document of shard <code>a</code> comes first */
+  private int compare(ShardDocs a, int i, ShardDocs b, int j) {
+    for (int f=0; f<kinds.length; f++) {
+      int c;
+      switch (kinds[f]) {
+        case SCORE:
+          float fa = a.scores[i];
+          float fb = b.scores[j];
+          c = fa < fb ? -1 : (fa > fb ? 1 : 0);
+          break;
+        case NUMBER:
+          c = compareMissing(a.missing[f], i, b.missing[f], j, missingCmp[f]);
+          if (c == 2) {
+            c = Long.compare(a.numbers[f][i], b.numbers[f][j]);
+          }
+          break;
+        case BYTES:
+          c = compareMissing(a.missing[f], i, b.missing[f], j, missingCmp[f]);
+          if (c == 2) {
+            c = compareBytes(a.bytes[f], a.offsets[f][i], a.offsets[f][i+1], b.bytes[f], b.offsets[f][j], b.offsets[f][j+1]);
+          }
+          break;
+        case OBJECT:
+          //noinspection unchecked
+          c = comparators[f].compareValues(a.objects[f][i], b.objects[f][j]);
+          break;
+        default:
+          c = 0;
+      }
+      if (c != 0) {
+        return c * signs[f];
+      }
+    }
+
+    // solve tiebreaks by comparing shards (similar to using docid)
+    return a.shard.compareTo(b.shard);
+  }
+
+  /** Compares two values if either is missing, or returns 2 if neither is */
+  private static int compareMissing(FixedBitSet missingA, int i, FixedBitSet missingB, int j, int missingCmp) {
+    boolean ma = missingA != null && missingA.get(i);
+    boolean mb = missingB != null && missingB.get(j);
+    if (ma) {
+      return mb ? 0 : missingCmp;
+    } else if (mb) {
+      return -missingCmp;
+    }
+    return 2;
+  }
+
+  /** Compares UTF-8 bytes as unsigned, which is the same as comparing the strings by code point */
+  private static int compareBytes(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+    int len = Math.min(aEnd - aStart, bEnd - bStart);
+    for (int k=0; k<len; k++) {
+      int diff = (a[aStart + k] & 0xff) - (b[bStart + k] & 0xff);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return (aEnd - aStart) - (bEnd - bStart);
+  }
+
+  private FieldComparator getComparator(SortField sortField) {
+    try {
+      if (sortField.getType() == SortField.Type.REWRITEABLE) {
+        sortField = sortField.rewrite(rb.req.getSearcher());
+      }
+      return sortField.getComparator(0, 0);
+    } catch (IOException e) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unable to get FieldComparator for sortField " + sortField, e);
+    }
+  }
+
+  /** The documents returned by one shard, and a cursor over them for the merge */
+  private class ShardDocs {
+    final String shard;
+    final NamedList sortValues;
+    final Object[] ids;
+    final FixedBitSet duplicates;
+    final float[] scores;
+    boolean scored;
+    final long[][] numbers = new long[sortFields.length][];
+    final byte[][] bytes = new byte[sortFields.length][];
+    final int[][] offsets = new int[sortFields.length][];
+    final Object[][] objects = new Object[sortFields.length][];
+    final FixedBitSet[] missing = new FixedBitSet[sortFields.length];
+    int pos = -1;
+
+    ShardDocs(ShardResponse srsp, int size) {
+      shard = srsp.getShard();
+      sortValues = (NamedList)srsp.getSolrResponse().getResponse().get("sort_values");
+      ids = new Object[size];
+      duplicates = new FixedBitSet(size);
+      scores = new float[size];
+    }
+
+    /** Moves to the next document that is not a duplicate, returning false if there are none left */
+    boolean next() {
+      do {
+        pos++;
+      } while (pos < ids.length && duplicates.get(pos));
+      return pos < ids.length;
+    }
+
+    private FixedBitSet setMissing(int f, int i) {
+      if (missing[f] == null) {
+        missing[f] = new FixedBitSet(ids.length);
+      }
+      missing[f].set(i);
+      return missing[f];
+    }
+
+    void setNumbers(int f, List<?> vals) {
+      long[] keys = new long[ids.length];
+      for (int i=0; i<keys.length; i++) {
+        Object val = vals.get(i);
+        if (val == null) {
+          setMissing(f, i);
+        } else if (val instanceof Float) {
+          keys[i] = NumericUtils.floatToSortableInt((Float)val);
+        } else if (val instanceof Double) {
+          keys[i] = NumericUtils.doubleToSortableLong((Double)val);
+        } else if (val instanceof Date) {
+          keys[i] = ((Date)val).getTime();
+        } else {
+          keys[i] = ((Number)val).longValue();
+        }
+      }
+      numbers[f] = keys;
+    }
+
+    void setBytes(int f, List<?> vals) {
+      byte[] block = new byte[ids.length * 8];
+      int[] starts = new int[ids.length + 1];
+      BytesRef spare = new BytesRef();
+      int len = 0;
+      for (int i=0; i<ids.length; i++) {
+        starts[i] = len;
+        Object val = vals.get(i);
+        if (val == null) {
+          setMissing(f, i);
+          continue;
+        }
+        BytesRef bytesVal = spare;
+        if (val instanceof BytesRef) {
+          bytesVal = (BytesRef)val;
+        } else {
+          String str = val.toString();
+          UnicodeUtil.UTF16toUTF8(str, 0, str.length(), spare);
+        }
+        block = ArrayUtil.grow(block, len + bytesVal.length);
+        System.arraycopy(bytesVal.bytes, bytesVal.offset, block, len, bytesVal.length);
+        len += bytesVal.length;
+      }
+      starts[ids.length] = len;
+      bytes[f] = block;
+      offsets[f] = starts;
+    }
+
+    void setObjects(int f, List<?> vals, List<SchemaField> schemaFields) {
+      SchemaField sf = schemaFields == null ? null : schemaFields.get(f);
+      Object[] values = new Object[ids.length];
+      for (int i=0; i<values.length; i++) {
+        values[i] = sf == null ? vals.get(i) : sf.getType().unmarshalSortValue(vals.get(i));
+      }
+      objects[f] = values;
+    }
+  }
+}
@@ -24,5 +24,16 @@ public abstract class ShardHandler {
   public abstract void submit(ShardRequest sreq, String shard, ModifiableSolrParams params) ;
   public abstract ShardResponse takeCompletedIncludingErrors();
   public abstract ShardResponse takeCompletedOrError();
+
+  /**
+   * Returns the next response to arrive, without waiting for the other responses to its request.  It has
+   * been added to {@link ShardRequest#responses}, unless it is an error and <code>bailOnError</code> is set,
+   * so the request is complete once that holds a response from each of its shards.
+   * By default this waits for the whole request, as {@link #takeCompletedOrError} and
+   * {@link #takeCompletedIncludingErrors} do.
+   */
+  public ShardResponse takeResponse(boolean bailOnError) {
+    return bailOnError ? takeCompletedOrError() : takeCompletedIncludingErrors();
+  }
   public abstract void cancelAll();
 }
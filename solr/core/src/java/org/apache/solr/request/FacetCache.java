@@ -0,0 +1,140 @@
+package org.apache.solr.request;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.QueryResultKey;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Support for the facetCache, which holds the result of a single facet command (one facet.field, facet.query
+ * or facet.range) computed over a base set of documents.  The base set is identified by the queries it is the
+ * intersection of (the main query and filters, minus any excluded by tag), so navigation requests that repeat the
+ * same q, fq and facet parameters are answered without counting.  Configured in solrconfig.xml like the filterCache:
+ * <pre>
+ *   &lt;facetCache class="solr.FastLRUCache" size="512" autowarmCount="128"/&gt;
+ * </pre>
+ * Values are the NamedList for a facet.field or facet.range, or the Integer count for a facet.query, and are
+ * shared between requests so they must not be modified.
+ */
+public class FacetCache {
+
+  private FacetCache() {}
+
+  public static final class Key {
+    final List<Query> base;    // the base set is the intersection of these
+    final String type;         // FacetParams.FACET_FIELD, FACET_QUERY or FACET_RANGE
+    final Object command;      // the parameter value (with any local params) or the parsed query for facet.query
+    final Map<String,List<String>> params;  // the request params that apply to the command, sorted by name
+    private final int hc;
+
+    Key(List<Query> base, String type, Object command, Map<String,List<String>> params) {
+      this.base = base;
+      this.type = type;
+      this.command = command;
+      this.params = params;
+
+      int h = 0;
+      for (Query q : base) {
+        // summed so that the same queries in a different order have the same hashCode
+        h += q.hashCode();
+      }
+      h = h*31 + type.hashCode();
+      h = h*31 + command.hashCode();
+      h = h*31 + params.hashCode();
+      hc = h;
+    }
+
+    /** The request params to compute the command with */
+    ModifiableSolrParams toParams() {
+      ModifiableSolrParams p = new ModifiableSolrParams();
+      for (Map.Entry<String,List<String>> entry : params.entrySet()) {
+        p.set(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+      }
+      if (command instanceof String) {
+        p.set(type, (String)command);
+      }
+      return p;
+    }
+
+    @Override
+    public int hashCode() {
+      return hc;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) return true;
+      if (!(o instanceof Key)) return false;
+      Key other = (Key)o;
+      return this.hc == other.hc
+          && this.type.equals(other.type)
+          && this.command.equals(other.command)
+          && this.params.equals(other.params)
+          && QueryResultKey.unorderedCompare(this.base, other.base);
+    }
+
+    @Override
+    public String toString() {
+      return type + "=" + command + " base=" + base + " params=" + params;
+    }
+  }
+
+
+  /** Returns true if the two searchers have the same segments with the same deleted documents */
+  static boolean sameIndex(SolrIndexSearcher.WarmContext warmContext) {
+    List<AtomicReaderContext> oldLeaves = warmContext.oldSearcher.getTopReaderContext().leaves();
+    List<AtomicReaderContext> newLeaves = warmContext.searcher.getTopReaderContext().leaves();
+    if (oldLeaves.size() != newLeaves.size() || warmContext.segmentsShared != oldLeaves.size()) {
+      return false;
+    }
+    for (AtomicReaderContext oldLeaf : oldLeaves) {
+      AtomicReaderContext newLeaf = newLeaves.get(warmContext.oldToNewOrd[oldLeaf.ord]);
+      // deletes only accumulate on a segment, so the same number means the same docs
+      if (oldLeaf.reader().numDocs() != newLeaf.reader().numDocs()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Reuses the old result if the index did not change, and otherwise recomputes it against the new searcher.
+   * Recomputing intersects the base queries through the filterCache, which is warmed first and which re-uses the
+   * sets of unchanged segments.
+   */
+  public static class Regenerator implements CacheRegenerator {
+    @Override
+    public boolean regenerateItem(SolrIndexSearcher.WarmContext warmContext, Object oldKey, Object oldVal) throws IOException {
+      if (sameIndex(warmContext)) {
+        warmContext.searcher.getFacetCache().put((Key)oldKey, oldVal);
+      } else {
+        SimpleFacetsHS.regenerate(warmContext.searcher, (Key)oldKey);
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PriorityQueue;
+import org.apache.lucene.util.UnicodeUtil;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QueryContext;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.field.StrMultiFieldValues;
+import org.apache.solr.search.field.StrMultiLeafValues;
+import org.apache.solr.search.field.TopValues;
+
+/**
+ * Faceting on multi-valued string fields using the off-heap per-segment values in the nCache
+ * (see {@link StrMultiLeafValues}).  Counts are collected per segment and then merged by term.
+ */
+class PerSegmentMultiValuedFaceting {
+
+  // input params
+  SolrIndexSearcher searcher;
+  DocSet docs;
+  String fieldName;
+  int offset;
+  int limit;
+  int mincount;
+  boolean missing;
+  String sort;
+  String prefix;
+
+  Filter baseSet;
+  TopValues topValues;
+  QueryContext context;
+
+  int nThreads;
+
+  public PerSegmentMultiValuedFaceting(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix) {
+    this.searcher = searcher;
+    this.docs = docs;
+    this.fieldName = fieldName;
+    this.offset = offset;
+    this.limit = limit;
+    this.mincount = mincount;
+    this.missing = missing;
+    this.sort = sort;
+    this.prefix = prefix;
+  }
+
+  public void setNumThreads(int threads) {
+    nThreads = threads;
+  }
+
+  /** Returns true if the field can be faceted on with this class */
+  static boolean canFacet(SolrIndexSearcher searcher, SchemaField sf) {
+    return searcher.getnCache() != null && sf.indexed() && !sf.hasDocValues();
+  }
+
+
+  NamedList<Integer> getFacetCounts(Executor executor) throws IOException {
+    context = QueryContext.newContext(searcher);
+    try {
+      StrMultiFieldValues fieldValues = new StrMultiFieldValues(searcher.getSchema().getField(fieldName), null);
+      topValues = fieldValues.getTopValues(context);
+      return getFacetCounts(executor, context);
+    } finally {
+      context.close();  // releases the TopValues
+    }
+  }
+
+  private NamedList<Integer> getFacetCounts(Executor executor, QueryContext context) throws IOException {
+    CompletionService<SegFacet> completionService = new ExecutorCompletionService<>(executor);
+
+    // reuse the translation logic to go from top level set to per-segment set
+    baseSet = docs.getTopFilter();
+
+    final List<AtomicReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    LinkedList<Callable<SegFacet>> pending = new LinkedList<>();
+
+    int threads = nThreads <= 0 ? Integer.MAX_VALUE : nThreads;
+
+    for (final AtomicReaderContext leaf : leaves) {
+      final SegFacet segFacet = new SegFacet(leaf);
+
+      Callable<SegFacet> task = new Callable<SegFacet>() {
+        @Override
+        public SegFacet call() throws Exception {
+          segFacet.countTerms();
+          return segFacet;
+        }
+      };
+
+      if (--threads >= 0) {
+        completionService.submit(task);
+      } else {
+        pending.add(task);
+      }
+    }
+
+
+    // now merge the per-segment results
+    PriorityQueue<SegFacet> queue = new PriorityQueue<SegFacet>(leaves.size()) {
+      @Override
+      protected boolean lessThan(SegFacet a, SegFacet b) {
+        return a.tempBR.compareTo(b.tempBR) < 0;
+      }
+    };
+
+
+    int missingCount = 0;
+    for (int i=0, c=leaves.size(); i<c; i++) {
+      SegFacet seg = null;
+
+      try {
+        Future<SegFacet> future = completionService.take();
+        seg = future.get();
+        if (!pending.isEmpty()) {
+          completionService.submit(pending.removeFirst());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error in per-segment faceting on field: " + fieldName, cause);
+        }
+      }
+
+      missingCount += seg.missingCount;
+      if (seg.startTermIndex < seg.endTermIndex) {
+        seg.pos = seg.startTermIndex;
+        seg.values.ordToTerm(seg.pos, seg.tempBR);
+        queue.add(seg);
+      }
+    }
+
+    FacetCollector collector;
+    if (sort.equals(FacetParams.FACET_SORT_COUNT) || sort.equals(FacetParams.FACET_SORT_COUNT_LEGACY)) {
+      collector = new CountSortedFacetCollector(offset, limit, mincount);
+    } else {
+      collector = new IndexSortedFacetCollector(offset, limit, mincount);
+    }
+
+    BytesRef val = new BytesRef();
+
+    while (queue.size() > 0) {
+      SegFacet seg = queue.top();
+
+      // the term of this segment will be overwritten when it is advanced, so make a copy
+      val.copyBytes(seg.tempBR);
+
+      int count = 0;
+
+      do {
+        count += seg.counts[seg.pos - seg.startTermIndex];
+
+        seg.pos++;
+        if (seg.pos >= seg.endTermIndex) {
+          queue.pop();
+          seg = queue.top();
+        }  else {
+          seg.values.ordToTerm(seg.pos, seg.tempBR);
+          seg = queue.updateTop();
+        }
+      } while (seg != null && val.compareTo(seg.tempBR) == 0);
+
+      boolean stop = collector.collect(val, count);
+      if (stop) break;
+    }
+
+    NamedList<Integer> res = collector.getFacetCounts();
+
+    // convert labels to readable form
+    FieldType ft = searcher.getSchema().getFieldType(fieldName);
+    int sz = res.size();
+    for (int i=0; i<sz; i++) {
+      res.setName(i, ft.indexedToReadable(res.getName(i)));
+    }
+
+    if (missing) {
+      res.add(null, missingCount);
+    }
+
+    return res;
+  }
+
+  class SegFacet {
+    AtomicReaderContext context;
+    SegFacet(AtomicReaderContext context) {
+      this.context = context;
+    }
+
+    StrMultiLeafValues values;
+    int startTermIndex;
+    int endTermIndex;
+    int[] counts;
+    int missingCount;
+
+    int pos; // only used when merging
+
+    BytesRef tempBR = new BytesRef();
+
+    void countTerms() throws IOException {
+      values = (StrMultiLeafValues)topValues.getLeafValues(PerSegmentMultiValuedFaceting.this.context, context);
+
+      if (prefix!=null) {
+        BytesRef prefixRef = new BytesRef(prefix);
+        startTermIndex = (int)values.termToOrd(prefixRef);
+        if (startTermIndex<0) startTermIndex=-startTermIndex-1;
+        prefixRef.append(UnicodeUtil.BIG_TERM);
+        endTermIndex = (int)values.termToOrd(prefixRef);
+        assert endTermIndex < 0;
+        endTermIndex = -endTermIndex-1;
+      } else {
+        startTermIndex=0;
+        endTermIndex=values.getNumOrds();
+      }
+
+      final int nTerms = Math.max(0, endTermIndex-startTermIndex);
+      if (nTerms>0 || missing) {
+        // count collection array only needs to be as big as the number of terms we are
+        // going to collect counts for.
+        counts = new int[nTerms];
+        DocIdSet idSet = baseSet.getDocIdSet(context, null);  // this set only includes live docs
+        DocIdSetIterator iter = idSet == null ? null : idSet.iterator();
+        if (iter != null) {
+          missingCount = values.countOrds(iter, counts, startTermIndex, endTermIndex);
+        }
+      }
+    }
+  }
+
+}
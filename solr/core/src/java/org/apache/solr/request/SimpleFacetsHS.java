@@ -18,6 +18,7 @@
 package org.apache.solr.request;
 
 import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.MultiDocsEnum;
@@ -25,6 +26,7 @@ import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.Filter;
@@ -71,10 +73,16 @@ import org.apache.solr.search.DocSet;
 import org.apache.solr.search.Grouping;
 import org.apache.solr.search.HashDocSet;
 import org.apache.solr.search.QParser;
+import org.apache.solr.search.QueryContext;
 import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.SolrCache;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.SortedIntDocSet;
 import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.field.OrdinalMap;
+import org.apache.solr.search.field.StrFieldValues;
+import org.apache.solr.search.field.StrLeafValues;
+import org.apache.solr.search.field.StrTopValues;
 import org.apache.solr.search.grouping.GroupingSpecification;
 import org.apache.solr.util.BoundedTreeSet;
 import org.apache.solr.util.DateMathParser;
@@ -83,13 +91,17 @@ import org.apache.solr.util.LongPriorityQueue;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
@@ -125,6 +137,16 @@ public class SimpleFacetsHS {
   protected DocSet docs;            // the base docset for this particular facet
   protected String key;             // what name should the results be stored under
   protected int threads;
+  protected List<Query> baseQueries; // the queries that docs is the intersection of, or null if unknown
+
+  /** The queries that docsOrig is the intersection of, or null if unknown (and results should not be cached) */
+  protected final List<Query> origBaseQueries;
+  protected final SolrCache<FacetCache.Key,Object> facetCache;
+
+  // request params that don't change the result of a single facet command
+  private static final Set<String> NON_RESULT_PARAMS = new HashSet<String>(Arrays.asList(
+      FacetParams.FACET, FacetParams.FACET_FIELD, FacetParams.FACET_QUERY, FacetParams.FACET_RANGE,
+      FacetParams.FACET_DATE, FacetParams.FACET_PIVOT, FacetParams.FACET_PIVOT_MINCOUNT, FacetParams.FACET_THREADS));
 
   /** refcount of DocSet will not be changed. */
   public SimpleFacetsHS(SolrQueryRequest req,
@@ -138,12 +160,36 @@ public class SimpleFacetsHS {
                         DocSet docs,
                         SolrParams params,
                         ResponseBuilder rb) {
+    this(req, docs, params, rb, getBaseQueries(rb));
+  }
+
+  /** @param baseQueries the queries that docs is the intersection of, or null if unknown */
+  SimpleFacetsHS(SolrQueryRequest req,
+                 DocSet docs,
+                 SolrParams params,
+                 ResponseBuilder rb,
+                 List<Query> baseQueries) {
     this.req = req;
     this.searcher = req.getSearcher();
     this.docs = this.docsOrig = docs;
     this.params = orig = params;
     this.required = new RequiredSolrParams(params);
     this.rb = rb;
+    this.baseQueries = this.origBaseQueries = baseQueries;
+    this.facetCache = searcher.getFacetCache();
+  }
+
+  /** Returns the main query and filters that the result DocSet of the request is the intersection of */
+  private static List<Query> getBaseQueries(ResponseBuilder rb) {
+    if (rb == null || rb.getQuery() == null || rb.grouping()) {
+      return null;
+    }
+    List<Query> queries = new ArrayList<Query>();
+    queries.add(rb.getQuery());
+    if (rb.getFilters() != null) {
+      queries.addAll(rb.getFilters());
+    }
+    return queries;
   }
 
   protected void cleanup() {
@@ -157,6 +203,7 @@ public class SimpleFacetsHS {
   protected void parseParams(String type, String param) throws SyntaxError, IOException {
     localParams = QueryParsing.getLocalParams(param, req.getParams());
     docs = docsOrig;
+    baseQueries = origBaseQueries;
     facetValue = param;
     key = param;
     threads = -1;
@@ -232,6 +279,7 @@ public class SimpleFacetsHS {
           grouping.addFunctionCommand(rb.getGroupingSpec().getFunctions()[0], req);
         } else {
           this.docs = searcher.getDocSet(qlist);
+          this.baseQueries = null;
           return;
         }
         grouping.getCommands().get(0).prepare();
@@ -245,12 +293,69 @@ public class SimpleFacetsHS {
       } else {
           // Normal non-grouping path
           this.docs = searcher.getDocSet(qlist);
+          this.baseQueries = origBaseQueries == null ? null : qlist;
       }
     }
 
   }
 
 
+  /**
+   * Returns the facetCache key for the current facet command (after parseParams), or null if the
+   * result should not be cached.
+   * @param command the facet param value, or the parsed query for a facet.query
+   */
+  protected FacetCache.Key getCacheKey(String type, Object command) {
+    if (facetCache == null || baseQueries == null) return null;
+
+    Map<String,List<String>> facetParams = new TreeMap<String,List<String>>();
+    if (command instanceof String) {
+      // local params may dereference other request params
+      if (((String)command).indexOf('$') >= 0) return null;
+
+      String fieldPrefix = "f." + facetValue + ".";
+      for (Iterator<String> it = orig.getParameterNamesIterator(); it.hasNext(); ) {
+        String name = it.next();
+        if (name.startsWith("facet.") ? !NON_RESULT_PARAMS.contains(name) : name.startsWith(fieldPrefix)) {
+          facetParams.put(name, Arrays.asList(orig.getParams(name)));
+        }
+      }
+    }
+
+    return new FacetCache.Key(baseQueries, type, command, facetParams);
+  }
+
+  /** Computes the result for the key against the searcher and puts it in the searcher's facetCache. */
+  static void regenerate(final SolrIndexSearcher searcher, FacetCache.Key key) throws IOException {
+    SolrCache<FacetCache.Key,Object> facetCache = searcher.getFacetCache();
+    if (facetCache == null || facetCache.get(key) != null) return;
+
+    DocSet base = searcher.getDocSet(key.base);
+    try {
+      if (key.command instanceof Query) {
+        facetCache.put(key, searcher.numDocs((Query)key.command, base));
+        return;
+      }
+
+      SolrParams params = key.toParams();
+      SolrQueryRequest req = new LocalSolrQueryRequest(searcher.getCore(), params) {
+        @Override public SolrIndexSearcher getSearcher() { return searcher; }
+        @Override public void close() { }
+      };
+      SimpleFacetsHS facets = new SimpleFacetsHS(req, base, params, null, key.base);
+      if (FacetParams.FACET_RANGE.equals(key.type)) {
+        facets.getFacetRangeCounts();
+      } else {
+        facets.getFacetFieldCounts();
+      }
+    } catch (SyntaxError e) {
+      throw new SolrException(ErrorCode.BAD_REQUEST, e);
+    } finally {
+      base.decref();
+    }
+  }
+
+
   /**
    * Looks at various Params to determining if any simple Facet Constraint count
    * computations are desired.
@@ -315,7 +420,13 @@ public class SimpleFacetsHS {
           } else if (params.getBool(GroupParams.GROUP_FACET, false)) {
             res.add(key, getGroupedFacetQueryCount(qobj));
           } else {
-            res.add(key, searcher.numDocs(qobj, docs));
+            FacetCache.Key cacheKey = getCacheKey(FacetParams.FACET_QUERY, qobj);
+            Integer count = cacheKey == null ? null : (Integer)facetCache.get(cacheKey);
+            if (count == null) {
+              count = searcher.numDocs(qobj, docs);
+              if (cacheKey != null) facetCache.put(cacheKey, count);
+            }
+            res.add(key, count);
           }
         } finally {
           cleanup();
@@ -576,6 +687,12 @@ public class SimpleFacetsHS {
         case FC:
           if (sf.hasDocValues()) {
             counts = DocValuesFacets.getCounts(searcher, base, field, offset,limit, mincount, missing, sort, prefix);
+          } else if (multiToken && TrieField.getMainValuePrefix(ft) == null && PerSegmentMultiValuedFaceting.canFacet(searcher, sf)) {
+            // off-heap per-segment values from the nCache
+            PerSegmentMultiValuedFaceting ps = new PerSegmentMultiValuedFaceting(searcher, base, field, offset,limit, mincount, missing, sort, prefix);
+            Executor executor = threads == 0 ? directExecutor : facetExecutor;
+            ps.setNumThreads(threads);
+            counts = ps.getFacetCounts(executor);
           } else if (multiToken || TrieField.getMainValuePrefix(ft) != null) {
             UnInvertedField uif = UnInvertedField.getUnInvertedField(field, searcher);
             counts = uif.getCounts(searcher, base, offset, limit, mincount,missing,sort,prefix);
@@ -689,17 +806,23 @@ public class SimpleFacetsHS {
         final String workerFacetValue = facetValue;
         final DocSet workerBase = this.docs;
         if (workerBase != this.docsOrig) toFree.add(workerBase);
+        final FacetCache.Key cacheKey = getCacheKey(FacetParams.FACET_FIELD, f);
 
         Callable<NamedList> callable = new Callable<NamedList>() {
           @Override
           public NamedList call() throws Exception {
             try {
               NamedList<Object> result = new SimpleOrderedMap<Object>();
-              if(termList != null) {
-                result.add(workerKey, getListedTermCounts(workerFacetValue, termList, workerBase));
-              } else {
-                result.add(workerKey, getTermCounts(workerFacetValue, workerBase));
+              NamedList counts = cacheKey == null ? null : (NamedList)facetCache.get(cacheKey);
+              if (counts == null) {
+                if(termList != null) {
+                  counts = getListedTermCounts(workerFacetValue, termList, workerBase);
+                } else {
+                  counts = getTermCounts(workerFacetValue, workerBase);
+                }
+                if (cacheKey != null) facetCache.put(cacheKey, counts);
               }
+              result.add(workerKey, counts);
               return result;
             } catch (SolrException se) {
               throw se;
@@ -794,11 +917,28 @@ public class SimpleFacetsHS {
     // we also need a facet cache, and refactoring of SimpleFacets instead of
     // trying to pass all the various params around.
 
+    SchemaField sf = searcher.getSchema().getField(fieldName);
+    if (searcher.getnCache() == null || !sf.indexed() || sf.getType().getNumericType() != null) {
+      SortedDocValues si = FieldCache.DEFAULT.getTermsIndex(searcher.getAtomicReader(), fieldName);
+      return getFieldCacheCounts(searcher, docs, fieldName, si, null, offset, limit, mincount, missing, sort, prefix);
+    }
+
+    // count using per-segment ords from the nCache, mapped to global ords
+    QueryContext qcontext = QueryContext.newContext(searcher);
+    try {
+      StrTopValues topValues = (StrTopValues)new StrFieldValues(sf, null).getTopValues(qcontext);
+      OrdinalMap ordMap = topValues.getOrdinalMap(qcontext);
+      SortedDocValues si = ordMap.getSortedDocValues(searcher.getTopReaderContext().leaves());
+      return getFieldCacheCounts(searcher, docs, fieldName, si, ordMap, offset, limit, mincount, missing, sort, prefix);
+    } finally {
+      qcontext.close();  // releases the TopValues
+    }
+  }
+
+  private static NamedList<Integer> getFieldCacheCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, SortedDocValues si, OrdinalMap ordMap, int offset, int limit, int mincount, boolean missing, String sort, String prefix) throws IOException {
     FieldType ft = searcher.getSchema().getFieldType(fieldName);
     NamedList<Integer> res = new NamedList<Integer>();
 
-    SortedDocValues si = FieldCache.DEFAULT.getTermsIndex(searcher.getAtomicReader(), fieldName);
-
     final BytesRef br = new BytesRef();
 
     final BytesRef prefixRef;
@@ -833,12 +973,16 @@ public class SimpleFacetsHS {
       // going to collect counts for.
       final int[] counts = new int[nTerms];
 
-      DocIterator iter = docs.iterator();
+      if (ordMap != null) {
+        countPerSegment(searcher, docs, ordMap, counts, startTermIndex);
+      } else {
+        DocIterator iter = docs.iterator();
 
-      while (iter.hasNext()) {
-        int term = si.getOrd(iter.nextDoc());
-        int arrIdx = term-startTermIndex;
-        if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
+        while (iter.hasNext()) {
+          int term = si.getOrd(iter.nextDoc());
+          int arrIdx = term-startTermIndex;
+          if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
+        }
       }
 
       if (startTermIndex == -1) {
@@ -921,6 +1065,42 @@ public class SimpleFacetsHS {
   }
 
 
+  /**
+   * Counts into an array of segment ords for each segment, then maps the non-zero counts to global ords.
+   * Counts are added to <code>counts[globalOrd - startTermIndex]</code>, where missing values have a globalOrd of -1.
+   */
+  private static void countPerSegment(SolrIndexSearcher searcher, DocSet docs, OrdinalMap ordMap, int[] counts, int startTermIndex) throws IOException {
+    Filter filter = docs.getTopFilter();
+    int[] segCounts = null;
+    for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+      StrLeafValues values = ordMap.getLeaf(leaf.ord);
+      int numSegOrds = ordMap.getSegmentValueCount(leaf.ord);
+      if (segCounts == null || segCounts.length < numSegOrds + 1) {
+        segCounts = new int[numSegOrds + 1];
+      } else {
+        Arrays.fill(segCounts, 0, numSegOrds + 1, 0);
+      }
+
+      DocIdSet idSet = filter.getDocIdSet(leaf, null);  // this set only includes live docs
+      DocIdSetIterator iter = idSet == null ? null : idSet.iterator();
+      if (iter == null) continue;
+      int doc;
+      while ((doc = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        segCounts[values.ordVal(doc) + 1]++;  // missing (-1) goes in slot 0
+      }
+
+      // now remap to global ords
+      int nTerms = counts.length;
+      for (int segOrd=-1; segOrd<numSegOrds; segOrd++) {
+        int c = segCounts[segOrd + 1];
+        if (c == 0) continue;
+        int globalOrd = segOrd < 0 ? -1 : ordMap.getGlobalOrd(leaf.ord, segOrd);
+        int arrIdx = globalOrd - startTermIndex;
+        if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx] += c;
+      }
+    }
+  }
+
   /**
    * Returns a list of terms in the specified field along with the
    * corresponding count of documents in the set that match that constraint.
@@ -1350,7 +1530,14 @@ public class SimpleFacetsHS {
               "Unable to range facet on field:" + sf);
     }
 
-    resOuter.add(key, getFacetRangeCounts(sf, (RangeEndpointCalculator)calc));    // redundant cast helps intellij to resolve
+    // date ranges may be relative to NOW
+    FacetCache.Key cacheKey = calc instanceof DateRangeEndpointCalculator ? null : getCacheKey(FacetParams.FACET_RANGE, facetRange);
+    NamedList counts = cacheKey == null ? null : (NamedList)facetCache.get(cacheKey);
+    if (counts == null) {
+      counts = getFacetRangeCounts(sf, (RangeEndpointCalculator)calc);    // redundant cast helps intellij to resolve
+      if (cacheKey != null) facetCache.put(cacheKey, counts);
+    }
+    resOuter.add(key, counts);
   }
 
   private <T extends Comparable<T>> NamedList getFacetRangeCounts
@@ -20,6 +20,7 @@ package org.apache.solr.request;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.core.Diagnostics;
+import org.apache.solr.core.HS;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.response.SolrQueryResponse;
@@ -42,6 +43,7 @@ public class SolrRequestInfo {
   protected TimeZone tz;
   protected ResponseBuilder rb;
   protected Deque<Closeable> closeHooks;
+  protected final HS.Account memoryAccount = HS.newRequestAccount();
 
 
   public static SolrRequestInfo getRequestInfo() {
@@ -57,11 +59,12 @@ public class SolrRequestInfo {
     assert prev == null;
 
     threadLocal.set(info);
+    HS.setAccount(info == null ? null : info.memoryAccount);
   }
 
   public static void clearRequestInfo() {
+    SolrRequestInfo info = threadLocal.get();
     try {
-      SolrRequestInfo info = threadLocal.get();
 
       // TODO: detect if a search or update has no RequestInfo by inspecting stack trace?
       if (info == null) {
@@ -90,6 +93,10 @@ public class SolrRequestInfo {
 
     } finally {
       threadLocal.remove();
+      HS.setAccount(null);
+      if (info != null) {
+        info.memoryAccount.close();
+      }
     }
   }
 
@@ -98,6 +105,11 @@ public class SolrRequestInfo {
     this.rsp = rsp;    
   }
 
+  /** The account native memory allocated by this request is charged to */
+  public HS.Account getMemoryAccount() {
+    return memoryAccount;
+  }
+
   public Date getNOW() {    
     if (now != null) return now;
 
@@ -270,7 +270,7 @@ public class UnInvertedField extends DocTermOrds {
 
         boolean doNegative = baseSize > maxDoc >> 1 && termInstances > 0
             && startTerm==0 && endTerm==numTermsInField
-            && (docs instanceof BitDocSet || docs instanceof BitDocSetNative);
+            && (docs instanceof BitDocSet || docs instanceof BitDocSetNative || docs instanceof ChunkedDocSetNative);
 
         if (doNegative) {
           // TODO: when iterator across negative elements is available, use that
@@ -282,7 +282,13 @@ public class UnInvertedField extends DocTermOrds {
             bs.flip(0, maxDoc);
             docs = new BitDocSet(bs, maxDoc - baseSize);
           } else {
-            BitDocSetNative negSet = ((BitDocSetNative)docs).clone();
+            BitDocSetNative negSet;
+            if (docs instanceof BitDocSetNative) {
+              negSet = ((BitDocSetNative)docs).clone();
+            } else {
+              negSet = new BitDocSetNative(maxDoc);
+              docs.setBitsOn(negSet);
+            }
             negSet.flip(0, maxDoc);
             negSet.setSize(maxDoc - baseSize);
             docs = negSet;
@@ -535,7 +541,7 @@ public class UnInvertedField extends DocTermOrds {
       if (finfo.length == 0) {
         //if we're collecting statistics with a facet field, can't do inverted counting
         doNegative = baseSize > maxDoc >> 1 && termInstances > 0
-            && (docs instanceof BitDocSet || docs instanceof BitDocSetNative);
+            && (docs instanceof BitDocSet || docs instanceof BitDocSetNative || docs instanceof ChunkedDocSetNative);
       }
 
       if (doNegative) {
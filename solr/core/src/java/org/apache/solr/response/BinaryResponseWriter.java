@@ -34,6 +34,8 @@ import org.apache.solr.schema.*;
 import org.apache.solr.search.DocList;
 import org.apache.solr.search.ReturnFields;
 import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.StoredDocumentBatches;
+import org.apache.solr.search.StoredDocumentNative;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -71,6 +73,7 @@ public class BinaryResponseWriter implements BinaryQueryResponseWriter {
     protected IndexSchema schema;
     protected SolrIndexSearcher searcher;
     protected final ReturnFields returnFields;
+    private StoredDocumentNative.Reader storedReader;
 
     // transmit field values using FieldType.toObject()
     // rather than the String from FieldType.toExternal()
@@ -142,14 +145,32 @@ public class BinaryResponseWriter implements BinaryQueryResponseWriter {
       
       Set<String> fnames = returnFields.getLuceneFieldNames();
       context.iterator = ids.iterator();
-      for (int i = 0; i < sz; i++) {
-        int id = context.iterator.nextDoc();
-        Document doc = searcher.doc(id, fnames);
-        SolrDocument sdoc = getDoc(doc);
-        if( transformer != null ) {
-          transformer.transform(sdoc, id);
+      if (transformer == null && StoredDocumentBatches.useBatches(ids)) {
+        // large pages are read in batches, in docid order, and written without a SolrDocument for each
+        try (StoredDocumentBatches batches = new StoredDocumentBatches(searcher, ids, fnames)) {
+          for (int i = 0; i < sz; i++) {
+            writeStoredDocument(batches.next(), codec);
+          }
+        }
+      } else {
+        for (int i = 0; i < sz; i++) {
+          int id = context.iterator.nextDoc();
+          StoredDocumentNative stored = transformer == null ? searcher.getStoredDocument(id) : null;
+          if (stored != null) {
+            try {
+              writeStoredDocument(stored, codec);
+            } finally {
+              stored.decref();
+            }
+            continue;
+          }
+          Document doc = searcher.doc(id, fnames);
+          SolrDocument sdoc = getDoc(doc);
+          if( transformer != null ) {
+            transformer.transform(sdoc, id);
+          }
+          codec.writeSolrDocument(sdoc);
         }
-        codec.writeSolrDocument(sdoc);
       }
       if( transformer != null ) {
         transformer.setContext( null );
@@ -174,6 +195,43 @@ public class BinaryResponseWriter implements BinaryQueryResponseWriter {
       writeResultsBody( ctx, codec );
     }
 
+    /** Writes a document from the native documentCache as {@link #getDoc} would convert it, but without building it first */
+    protected void writeStoredDocument(StoredDocumentNative doc, JavaBinCodec codec) throws IOException {
+      if (storedReader == null) storedReader = new StoredDocumentNative.Reader();
+      StoredDocumentNative.Reader reader = storedReader;
+      reader.reset(doc);
+
+      int numFields = 0;
+      while (reader.nextField()) {
+        if (returnFields.wantsField(reader.getFieldName())) numFields++;
+      }
+      reader.rewind();
+
+      codec.writeTag(JavaBinCodec.SOLRDOC);
+      codec.writeTag(JavaBinCodec.ORDERED_MAP, numFields);
+      while (reader.nextField()) {
+        String fieldName = reader.getFieldName();
+        if (!returnFields.wantsField(fieldName)) continue;
+        codec.writeExternString(fieldName);
+
+        SchemaField sf = schema.getFieldOrNull(fieldName);
+        int numValues = reader.getNumValues();
+        if (numValues > 1 || (sf != null && sf.multiValued())) {
+          codec.writeTag(JavaBinCodec.ARR, numValues);
+        }
+        for (int i = 0; i < numValues; i++) {
+          Object val = null;
+          try {
+            val = getValue(sf, reader.nextValue());
+          } catch (Exception e) {
+            // the field has already been started, so write a null in place of the value
+            LOG.warn("Error reading field " + fieldName + " from document", e);
+          }
+          codec.writeVal(val);
+        }
+      }
+    }
+
     public SolrDocument getDoc(Document doc) {
       SolrDocument solrDoc = new SolrDocument();
       for (IndexableField f : doc) {
@@ -35,6 +35,7 @@ import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.ReturnFields;
+import org.apache.solr.search.StoredDocumentNative;
 
 /**
  *
@@ -360,6 +361,63 @@ class JSONWriter extends TextResponseWriter {
     writeMapCloser();
   }
 
+  private StoredDocumentNative.Reader storedReader;
+
+  @Override
+  public void writeStoredDocument(String name, StoredDocumentNative doc, ReturnFields returnFields, int idx) throws IOException {
+    if (storedReader == null) storedReader = new StoredDocumentNative.Reader();
+    StoredDocumentNative.Reader reader = storedReader;
+    reader.reset(doc);
+
+    if( idx > 0 ) {
+      writeArraySeparator();
+    }
+
+    indent();
+    writeMapOpener(reader.getNumFields());
+    incLevel();
+
+    boolean first=true;
+    while (reader.nextField()) {
+      String fname = reader.getFieldName();
+      if (!returnFields.wantsField(fname)) {
+        continue;
+      }
+
+      if (first) {
+        first=false;
+      }
+      else {
+        writeMapSeparator();
+      }
+
+      indent();
+      writeKey(fname, true);
+
+      // the same as writing the value(s) of a SolrDocument, where multiValued fields are lists
+      int numValues = reader.getNumValues();
+      SchemaField sf = schema.getFieldOrNull(fname);
+      if (numValues > 1 || (sf != null && sf.multiValued())) {
+        writeArrayOpener(-1);
+        incLevel();
+        for (int i=0; i<numValues; i++) {
+          if (i > 0) indent();
+          writeVal(null, reader.nextValue());
+          if (i < numValues - 1) {
+            writeArraySeparator();
+          }
+        }
+        decLevel();
+        writeArrayCloser();
+      } else {
+        writeVal(fname, reader.nextValue());
+      }
+    }
+
+    decLevel();
+    writeMapCloser();
+  }
+
   @Override
   public void writeStartDocumentList(String name, 
       long start, int size, long numFound, Float maxScore) throws IOException
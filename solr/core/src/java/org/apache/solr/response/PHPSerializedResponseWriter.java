@@ -32,6 +32,7 @@ import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.ReturnFields;
+import org.apache.solr.search.StoredDocumentNative;
 
 
 /**
@@ -116,6 +117,12 @@ class PHPSerializedWriter extends JSONWriter {
     writeMapCloser();
   }
   
+  @Override
+  public void writeStoredDocument(String name, StoredDocumentNative doc, ReturnFields returnFields, int idx) throws IOException {
+    // the sizes of maps must be known before they are written
+    writeSolrDocument(name, toSolrDocument(doc.toDocument()), returnFields, idx);
+  }
+
   @Override
   public void writeSolrDocument(String name, SolrDocument doc, ReturnFields returnFields, int idx) throws IOException 
   {
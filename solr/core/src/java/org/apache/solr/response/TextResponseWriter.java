@@ -37,6 +37,8 @@ import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.DateField;
 import org.apache.solr.search.DocList;
 import org.apache.solr.search.ReturnFields;
+import org.apache.solr.search.StoredDocumentBatches;
+import org.apache.solr.search.StoredDocumentNative;
 
 /** Base class for text-oriented response writers.
  *
@@ -211,6 +213,14 @@ public abstract class TextResponseWriter {
   public abstract void writeStartDocumentList(String name, long start, int size, long numFound, Float maxScore) throws IOException;  
 
   public abstract void writeSolrDocument(String name, SolrDocument doc, ReturnFields returnFields, int idx) throws IOException;  
+
+  /**
+   * Writes a document from the native documentCache, when there are no transformers.  By default it is
+   * converted to a {@link SolrDocument}, writers that can write the fields as they are read override this.
+   */
+  public void writeStoredDocument(String name, StoredDocumentNative doc, ReturnFields returnFields, int idx) throws IOException {
+    writeSolrDocument(name, toSolrDocument(doc.toDocument()), returnFields, idx);
+  }
   
   public abstract void writeEndDocumentList() throws IOException;
   
@@ -265,14 +275,32 @@ public abstract class TextResponseWriter {
     }
     int sz = ids.size();
     Set<String> fnames = fields.getLuceneFieldNames();
-    for (int i=0; i<sz; i++) {
-      int id = context.iterator.nextDoc();
-      Document doc = context.searcher.doc(id, fnames);
-      SolrDocument sdoc = toSolrDocument( doc );
-      if( transformer != null ) {
-        transformer.transform( sdoc, id);
+    if (transformer == null && StoredDocumentBatches.useBatches(ids)) {
+      // large pages are read in batches, in docid order, and written without a SolrDocument for each
+      try (StoredDocumentBatches batches = new StoredDocumentBatches(context.searcher, ids, fnames)) {
+        for (int i=0; i<sz; i++) {
+          writeStoredDocument(null, batches.next(), returnFields, i);
+        }
+      }
+    } else {
+      for (int i=0; i<sz; i++) {
+        int id = context.iterator.nextDoc();
+        StoredDocumentNative stored = transformer == null ? context.searcher.getStoredDocument(id) : null;
+        if (stored != null) {
+          try {
+            writeStoredDocument(null, stored, returnFields, i);
+          } finally {
+            stored.decref();
+          }
+          continue;
+        }
+        Document doc = context.searcher.doc(id, fnames);
+        SolrDocument sdoc = toSolrDocument( doc );
+        if( transformer != null ) {
+          transformer.transform( sdoc, id);
+        }
+        writeSolrDocument( null, sdoc, returnFields, i );
       }
-      writeSolrDocument( null, sdoc, returnFields, i );
     }
     if( transformer != null ) {
       transformer.setContext( null );
@@ -0,0 +1,1093 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.core.HS;
+
+import java.util.Arrays;
+
+/**
+ * A compressed DocSet that splits the docid space into chunks of 64K docs and stores each non-empty chunk
+ * in whichever container is smallest: a sorted array of the low 16 bits of each doc (sparse chunks),
+ * a bitmap of 1024 words (dense chunks), or a list of runs (clustered chunks).
+ * <p>
+ * The chunk index and all of the containers are kept in a single native array.  Each chunk has an index entry of
+ * 4 ints (key, type, cardinality, offset), and the containers follow the index.  Offsets are in units of
+ * shorts, and bitmaps are aligned so they can be read a long at a time.
+ * <p>
+ * This can be much smaller than a {@link BitDocSetNative} for sets that are sparse or clustered in parts of
+ * the index, and is always smaller than a {@link SortedIntDocSetNative} for sets too big to be a sorted list.
+ * See {@link #compact(BitDocSetNative)} for how the representation is chosen for sets put in the filterCache.
+ */
+public class ChunkedDocSetNative extends DocSetBaseNative {
+  static final int CHUNK_SHIFT = 16;
+  static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+  static final int CHUNK_WORDS = 1 << (CHUNK_SHIFT - 6);
+  static final int BITMAP_SHORTS = CHUNK_WORDS << 2;
+  static final int MAX_ARRAY = BITMAP_SHORTS;   // an array with more values than this is bigger than a bitmap
+
+  // container types.  The number of runs for a RUN container is kept in the upper bits of the type.
+  static final int ARRAY = 0;
+  static final int BITMAP = 1;
+  static final int RUN = 2;
+  static final int TYPE_MASK = 0x3;
+
+  // index entry layout
+  private static final int ENTRY = 4;
+  private static final int KEY = 0;
+  private static final int TYPE = 1;
+  private static final int CARD = 2;
+  private static final int OFFSET = 3;
+
+  /** A set is only compacted if it takes less than 1/COMPACT_RATIO of the memory of the bit set */
+  public static final int COMPACT_RATIO = 4;
+
+  private final long array;
+  private final int nChunks;
+  private final int size;
+  private final int maxDoc;
+
+  private ChunkedDocSetNative(long array, int nChunks, int size, int maxDoc) {
+    this.array = array;
+    this.nChunks = nChunks;
+    this.size = size;
+    this.maxDoc = maxDoc;
+  }
+
+  /** Creates a set from a list of sorted docs, each of which must be less than maxDoc */
+  public ChunkedDocSetNative(int[] docs, int len, int maxDoc) {
+    Builder builder = new Builder(maxDoc);
+    for (int i=0; i<len; i++) {
+      builder.add(docs[i]);
+    }
+    builder.finish();
+    this.array = builder.toNative();
+    this.nChunks = builder.nChunks;
+    this.size = builder.size;
+    this.maxDoc = maxDoc;
+  }
+
+  /** Creates a set with the docs of the bit set, which is not modified */
+  public ChunkedDocSetNative(BitDocSetNative bits) {
+    Builder builder = new Builder(bits.capacity());
+    long[] words = new long[CHUNK_WORDS];
+    for (int key=0; key < numChunks(bits); key++) {
+      loadWords(bits, key, words);
+      builder.addChunk(key, words);
+    }
+    this.array = builder.toNative();
+    this.nChunks = builder.nChunks;
+    this.size = builder.size;
+    this.maxDoc = bits.capacity();
+  }
+
+  /**
+   * Returns a ChunkedDocSetNative with the docs of <code>bits</code> if it would take less than
+   * 1/{@link #COMPACT_RATIO} of the memory, otherwise returns <code>bits</code> itself.
+   * The reference to <code>bits</code> is transferred to this method.
+   */
+  public static DocSet compact(BitDocSetNative bits) {
+    long[] words = new long[CHUNK_WORDS];
+    long maxBytes = bits.memSize() / COMPACT_RATIO;
+    long bytes = 0;
+    for (int key=0; key < numChunks(bits); key++) {
+      loadWords(bits, key, words);
+      int card = 0;
+      int nRuns = 0;
+      long carry = 0;
+      for (long word : words) {
+        card += Long.bitCount(word);
+        nRuns += Long.bitCount(word & ~((word << 1) | carry));
+        carry = word >>> 63;
+      }
+      if (card == 0) continue;
+      bytes += (ENTRY << 2) + (containerShorts(card, nRuns) << 1);
+      if (bytes >= maxBytes) {
+        return bits;
+      }
+    }
+
+    ChunkedDocSetNative answer = new ChunkedDocSetNative(bits);
+    bits.decref();
+    return answer;
+  }
+
+  private static int numChunks(BitDocSetNative bits) {
+    return (bits.wlen + CHUNK_WORDS - 1) / CHUNK_WORDS;
+  }
+
+  private static void loadWords(BitDocSetNative bits, int key, long[] words) {
+    int start = key * CHUNK_WORDS;
+    int n = Math.min(CHUNK_WORDS, bits.wlen - start);
+    HS.copyLongs(bits.array, start, words, 0, n);
+    if (n < CHUNK_WORDS) {
+      Arrays.fill(words, n, CHUNK_WORDS, 0);
+    }
+  }
+
+  private static int containerType(int card, int nRuns) {
+    if ((nRuns << 1) < Math.min(card, BITMAP_SHORTS)) return RUN;
+    return card <= MAX_ARRAY ? ARRAY : BITMAP;
+  }
+
+  private static int containerShorts(int card, int nRuns) {
+    switch (containerType(card, nRuns)) {
+      case RUN: return nRuns << 1;
+      case ARRAY: return card;
+      default: return BITMAP_SHORTS;
+    }
+  }
+
+  @Override
+  protected void free() {
+    HS.freeArray(array);
+  }
+
+  @Override
+  public void setAccount(HS.Account account) {
+    HS.setArrayAccount(array, account);
+  }
+
+  /** The number of docids this set was created for; all docs in the set are less than this. */
+  public int getMaxDoc() {
+    return maxDoc;
+  }
+
+  public int numChunks() {
+    return nChunks;
+  }
+
+  int getKey(int chunk) {
+    return HS.getInt(array, chunk*ENTRY + KEY);
+  }
+
+  int getType(int chunk) {
+    return HS.getInt(array, chunk*ENTRY + TYPE) & TYPE_MASK;
+  }
+
+  int getCardinality(int chunk) {
+    return HS.getInt(array, chunk*ENTRY + CARD);
+  }
+
+  private int getOffset(int chunk) {
+    return HS.getInt(array, chunk*ENTRY + OFFSET);
+  }
+
+  private int getNumRuns(int chunk) {
+    return HS.getInt(array, chunk*ENTRY + TYPE) >>> 2;
+  }
+
+  private int getShort(int index) {
+    return HS.getShort(array, index) & 0xffff;
+  }
+
+  /** Returns the chunk with the given key, or -(insertionPoint)-1 */
+  private int findChunk(int key, int low) {
+    int high = nChunks - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midKey = getKey(mid);
+      if (midKey < key) {
+        low = mid + 1;
+      } else if (midKey > key) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /** Returns the index of the first short in [low,high) that is >= value, or high if there is none */
+  private int lowerBound(int low, int high, int value) {
+    high--;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midVal = getShort(mid);
+      if (midVal < value) {
+        low = mid + 1;
+      } else if (midVal > value) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return low;
+  }
+
+  private boolean containsLow(int chunk, int low) {
+    int off = getOffset(chunk);
+    switch (getType(chunk)) {
+      case ARRAY: {
+        int end = off + getCardinality(chunk);
+        int idx = lowerBound(off, end, low);
+        return idx < end && getShort(idx) == low;
+      }
+      case BITMAP:
+        return (HS.getLong(array, (off >> 2) + (low >>> 6)) & (1L << low)) != 0;
+      default: {
+        // find the last run starting at or before low
+        int lo = 0;
+        int hi = getNumRuns(chunk) - 1;
+        while (lo <= hi) {
+          int mid = (lo + hi) >>> 1;
+          int start = getShort(off + (mid << 1));
+          if (start > low) {
+            hi = mid - 1;
+          } else if (low - start <= getShort(off + (mid << 1) + 1)) {
+            return true;
+          } else {
+            lo = mid + 1;
+          }
+        }
+        return false;
+      }
+    }
+  }
+
+  /** Copies the values of an ARRAY container to the target and returns the number copied */
+  private int getLows(int chunk, int[] target) {
+    int off = getOffset(chunk);
+    int n = getCardinality(chunk);
+    for (int i=0; i<n; i++) {
+      target[i] = getShort(off + i);
+    }
+    return n;
+  }
+
+  /** Sets the target words to the bits of a container */
+  private void loadBits(int chunk, long[] words) {
+    int off = getOffset(chunk);
+    switch (getType(chunk)) {
+      case BITMAP:
+        HS.copyLongs(array, off >> 2, words, 0, CHUNK_WORDS);
+        break;
+      case ARRAY: {
+        Arrays.fill(words, 0);
+        int n = getCardinality(chunk);
+        for (int i=0; i<n; i++) {
+          int low = getShort(off + i);
+          words[low >>> 6] |= 1L << low;
+        }
+        break;
+      }
+      default: {
+        Arrays.fill(words, 0);
+        int end = off + (getNumRuns(chunk) << 1);
+        for (int i=off; i<end; i+=2) {
+          int start = getShort(i);
+          setRange(words, start, start + getShort(i+1) + 1);
+        }
+        break;
+      }
+    }
+  }
+
+  /** Sets the bits from (inclusive) to to (exclusive) */
+  private static void setRange(long[] words, int from, int to) {
+    int startWord = from >>> 6;
+    int endWord = (to - 1) >>> 6;
+    long startMask = -1L << from;
+    long endMask = -1L >>> -to;
+    if (startWord == endWord) {
+      words[startWord] |= startMask & endMask;
+      return;
+    }
+    words[startWord] |= startMask;
+    for (int i=startWord+1; i<endWord; i++) {
+      words[i] = -1L;
+    }
+    words[endWord] |= endMask;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public long memSize() {
+    return HS.arraySizeBytes(array) + 32;
+  }
+
+  @Override
+  public boolean exists(int doc) {
+    int chunk = findChunk(doc >>> CHUNK_SHIFT, 0);
+    return chunk >= 0 && containsLow(chunk, doc & CHUNK_MASK);
+  }
+
+  @Override
+  public DocIterator iterator() {
+    final Cursor cursor = new Cursor();
+
+    return new DocIterator() {
+      int next = cursor.next();
+
+      @Override
+      public boolean hasNext() {
+        return next != DocIdSetIterator.NO_MORE_DOCS;
+      }
+
+      @Override
+      public Integer next() {
+        return nextDoc();
+      }
+
+      /**
+       * The remove  operation is not supported by this Iterator.
+       */
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("The remove  operation is not supported by this Iterator.");
+      }
+
+      @Override
+      public int nextDoc() {
+        int doc = next;
+        next = cursor.next();
+        return doc;
+      }
+
+      @Override
+      public float score() {
+        return 0.0f;
+      }
+    };
+  }
+
+  /** Iterates over the docs of the set in order, decoding one container at a time. */
+  private class Cursor {
+    private int chunk = -1;
+    private int key;
+    private int type;
+    private int base;
+    private int pos;       // next short for ARRAY and RUN, current word for BITMAP
+    private int start;     // first word of a BITMAP
+    private int end;
+    private long word;     // bits of the current word that have not been returned yet
+    private int runValue;  // next value of the current run
+    private int runEnd;    // last value of the current run
+
+    private boolean load(int c) {
+      chunk = c;
+      if (c >= nChunks) return false;
+      key = getKey(c);
+      type = getType(c);
+      base = key << CHUNK_SHIFT;
+      int off = getOffset(c);
+      switch (type) {
+        case ARRAY:
+          pos = off;
+          end = off + getCardinality(c);
+          break;
+        case BITMAP:
+          pos = start = off >> 2;
+          end = start + CHUNK_WORDS;
+          word = HS.getLong(array, pos);
+          break;
+        default:
+          pos = off;
+          end = off + (getNumRuns(c) << 1);
+          runValue = 0;
+          runEnd = -1;
+          break;
+      }
+      return true;
+    }
+
+    int next() {
+      for (;;) {
+        if (chunk >= nChunks) return DocIdSetIterator.NO_MORE_DOCS;
+        if (chunk >= 0) {
+          switch (type) {
+            case ARRAY:
+              if (pos < end) return base | getShort(pos++);
+              break;
+            case BITMAP:
+              for (;;) {
+                if (word != 0) {
+                  int bit = Long.numberOfTrailingZeros(word);
+                  word &= word - 1;
+                  return base + ((pos - start) << 6) + bit;
+                }
+                if (++pos >= end) break;
+                word = HS.getLong(array, pos);
+              }
+              break;
+            default:
+              if (runValue <= runEnd) return base | runValue++;
+              if (pos < end) {
+                runValue = getShort(pos);
+                runEnd = runValue + getShort(pos + 1);
+                pos += 2;
+                continue;
+              }
+              break;
+          }
+        }
+        load(chunk + 1);
+      }
+    }
+
+    /** Returns the first doc >= target.  Targets must increase, as for DocIdSetIterator.advance */
+    int advance(int target) {
+      if (chunk >= nChunks) return DocIdSetIterator.NO_MORE_DOCS;
+      int targetKey = target >>> CHUNK_SHIFT;
+      if (chunk < 0 || key < targetKey) {
+        int c = findChunk(targetKey, chunk + 1);
+        if (c < 0) c = -c - 1;
+        if (!load(c)) return DocIdSetIterator.NO_MORE_DOCS;
+      }
+      if (key > targetKey) return next();
+
+      int low = target & CHUNK_MASK;
+      switch (type) {
+        case ARRAY:
+          pos = lowerBound(pos, end, low);
+          break;
+        case BITMAP: {
+          int w = start + (low >>> 6);
+          if (w > pos) {
+            pos = w;
+            word = HS.getLong(array, pos);
+          }
+          if (w == pos) {
+            word &= -1L << low;
+          }
+          break;
+        }
+        default:
+          if (runValue <= runEnd && low <= runEnd) {
+            runValue = Math.max(runValue, low);
+            break;
+          }
+          runValue = 0;
+          runEnd = -1;
+          while (pos < end) {
+            int runStart = getShort(pos);
+            int last = runStart + getShort(pos + 1);
+            pos += 2;
+            if (last >= low) {
+              runValue = Math.max(runStart, low);
+              runEnd = last;
+              break;
+            }
+          }
+          break;
+      }
+      return next();
+    }
+  }
+
+
+  /**
+   * Combines this set with another chunk by chunk, and returns the size of the result.
+   * The result is added to <code>out</code> if it is not null.
+   */
+  private int combine(DocSet other, boolean andNot, Builder out) {
+    if (other instanceof ChunkedDocSetNative) {
+      return combine((ChunkedDocSetNative)other, andNot, out);
+    } else if (other instanceof BitDocSetNative) {
+      return combine((BitDocSetNative)other, andNot, out);
+    }
+
+    // assume other implementations are better at random access than we are
+    int count = 0;
+    if (!andNot && other.size() < size) {
+      int[] docs = out == null ? null : new int[other.size()];
+      boolean sorted = true;
+      int last = -1;
+      for (DocIterator iter = other.iterator(); iter.hasNext(); ) {
+        int doc = iter.nextDoc();
+        if (exists(doc)) {
+          if (docs != null) docs[count] = doc;
+          count++;
+          sorted = sorted && doc > last;
+          last = doc;
+        }
+      }
+      if (out != null) {
+        if (!sorted) Arrays.sort(docs, 0, count);  // HashDocSet and DocList aren't ordered
+        for (int i=0; i<count; i++) {
+          out.add(docs[i]);
+        }
+      }
+      return count;
+    }
+
+    Cursor cursor = new Cursor();
+    for (int doc = cursor.next(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = cursor.next()) {
+      if (other.exists(doc) != andNot) {
+        if (out != null) out.add(doc);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private int combine(ChunkedDocSetNative other, boolean andNot, Builder out) {
+    long[] words = null;
+    long[] otherWords = null;
+    int[] lows = null;
+    int count = 0;
+    int j = 0;
+
+    for (int i=0; i<nChunks; i++) {
+      int key = getKey(i);
+      j = other.findChunk(key, j);
+      if (j < 0) {
+        j = -j - 1;
+        if (andNot) {
+          count += getCardinality(i);
+          if (out != null) out.addChunk(this, i);
+        }
+        continue;
+      }
+
+      int n = 0;
+      if (getType(i) == ARRAY || (!andNot && other.getType(j) == ARRAY)) {
+        // probe the values of the array container against the other container
+        if (lows == null) lows = new int[MAX_ARRAY];
+        boolean probeThis = getType(i) == ARRAY;
+        ChunkedDocSetNative probeSet = probeThis ? other : this;
+        int probeChunk = probeThis ? j : i;
+        int len = probeThis ? getLows(i, lows) : other.getLows(j, lows);
+        for (int k=0; k<len; k++) {
+          if (probeSet.containsLow(probeChunk, lows[k]) != andNot) {
+            lows[n++] = lows[k];
+          }
+        }
+        if (out != null) out.addChunk(key, lows, n);
+      } else {
+        if (words == null) {
+          words = new long[CHUNK_WORDS];
+          otherWords = new long[CHUNK_WORDS];
+        }
+        loadBits(i, words);
+        other.loadBits(j, otherWords);
+        for (int w=0; w<CHUNK_WORDS; w++) {
+          long word = andNot ? words[w] & ~otherWords[w] : words[w] & otherWords[w];
+          words[w] = word;
+          n += Long.bitCount(word);
+        }
+        if (out != null) out.addChunk(key, words);
+      }
+
+      count += n;
+      j++;
+    }
+
+    return count;
+  }
+
+  private int combine(BitDocSetNative other, boolean andNot, Builder out) {
+    long[] words = null;
+    int[] lows = null;
+    int count = 0;
+
+    for (int i=0; i<nChunks; i++) {
+      int key = getKey(i);
+      int startWord = key * CHUNK_WORDS;
+      int nWords = Math.min(CHUNK_WORDS, other.wlen - startWord);
+      if (nWords <= 0) {
+        if (andNot) {
+          count += getCardinality(i);
+          if (out != null) out.addChunk(this, i);
+        }
+        continue;
+      }
+
+      int n = 0;
+      if (getType(i) == ARRAY) {
+        if (lows == null) lows = new int[MAX_ARRAY];
+        int len = getLows(i, lows);
+        int base = key << CHUNK_SHIFT;
+        int limit = nWords << 6;
+        for (int k=0; k<len; k++) {
+          int low = lows[k];
+          boolean found = low < limit && other.fastGet(base | low);
+          if (found != andNot) {
+            lows[n++] = low;
+          }
+        }
+        if (out != null) out.addChunk(key, lows, n);
+      } else {
+        if (words == null) words = new long[CHUNK_WORDS];
+        loadBits(i, words);
+        if (andNot) {
+          HS.andNotLongs(other.array, startWord, words, 0, nWords);
+        } else {
+          HS.andLongs(other.array, startWord, words, 0, nWords);
+          if (nWords < CHUNK_WORDS) Arrays.fill(words, nWords, CHUNK_WORDS, 0);
+        }
+        for (long word : words) {
+          n += Long.bitCount(word);
+        }
+        if (out != null) out.addChunk(key, words);
+      }
+
+      count += n;
+    }
+
+    return count;
+  }
+
+  @Override
+  public DocSet intersection(DocSet other) {
+    Builder out = new Builder(maxDoc);
+    combine(other, false, out);
+    return out.build();
+  }
+
+  @Override
+  public int intersectionSize(DocSet other) {
+    return combine(other, false, null);
+  }
+
+  @Override
+  public boolean intersects(DocSet other) {
+    return intersectionSize(other) > 0;
+  }
+
+  @Override
+  public DocSet andNot(DocSet other) {
+    if (other.size() == 0) {
+      this.incref();
+      return this;
+    }
+    Builder out = new Builder(maxDoc);
+    combine(other, true, out);
+    return out.build();
+  }
+
+  @Override
+  public int andNotSize(DocSet other) {
+    return combine(other, true, null);
+  }
+
+  @Override
+  public DocSet union(DocSet other) {
+    if (!(other instanceof ChunkedDocSetNative)) {
+      return super.union(other);
+    }
+
+    ChunkedDocSetNative o = (ChunkedDocSetNative)other;
+    Builder out = new Builder(Math.max(maxDoc, o.maxDoc));
+    long[] words = new long[CHUNK_WORDS];
+    long[] otherWords = new long[CHUNK_WORDS];
+    int i = 0;
+    int j = 0;
+    while (i < nChunks || j < o.nChunks) {
+      int key = i < nChunks ? getKey(i) : Integer.MAX_VALUE;
+      int otherKey = j < o.nChunks ? o.getKey(j) : Integer.MAX_VALUE;
+      if (key < otherKey) {
+        out.addChunk(this, i++);
+      } else if (otherKey < key) {
+        out.addChunk(o, j++);
+      } else {
+        loadBits(i++, words);
+        o.loadBits(j++, otherWords);
+        for (int w=0; w<CHUNK_WORDS; w++) {
+          words[w] |= otherWords[w];
+        }
+        out.addChunk(key, words);
+      }
+    }
+    return out.build();
+  }
+
+  @Override
+  public void setBitsOn(FixedBitSet target) {
+    long[] targetWords = target.getBits();
+    for (int i=0; i<nChunks; i++) {
+      int base = getKey(i) << CHUNK_SHIFT;
+      int off = getOffset(i);
+      switch (getType(i)) {
+        case ARRAY: {
+          int n = getCardinality(i);
+          for (int k=0; k<n; k++) {
+            target.set(base | getShort(off + k));
+          }
+          break;
+        }
+        case BITMAP: {
+          int startWord = base >>> 6;
+          int nWords = Math.min(CHUNK_WORDS, targetWords.length - startWord);
+          int src = off >> 2;
+          for (int w=0; w<nWords; w++) {
+            targetWords[startWord + w] |= HS.getLong(array, src + w);
+          }
+          break;
+        }
+        default: {
+          int end = off + (getNumRuns(i) << 1);
+          for (int k=off; k<end; k+=2) {
+            int start = base | getShort(k);
+            target.set(start, start + getShort(k+1) + 1);
+          }
+          break;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void setBitsOn(BitDocSetNative target) {
+    for (int i=0; i<nChunks; i++) {
+      int base = getKey(i) << CHUNK_SHIFT;
+      int off = getOffset(i);
+      switch (getType(i)) {
+        case ARRAY: {
+          int n = getCardinality(i);
+          for (int k=0; k<n; k++) {
+            target.fastSet(base | getShort(off + k));
+          }
+          break;
+        }
+        case BITMAP: {
+          int startWord = base >>> 6;
+          int nWords = Math.min(CHUNK_WORDS, target.wlen - startWord);
+          int src = off >> 2;
+          for (int w=0; w<nWords; w++) {
+            HS.setLong(target.array, startWord + w, HS.getLong(target.array, startWord + w) | HS.getLong(array, src + w));
+          }
+          break;
+        }
+        default: {
+          int end = off + (getNumRuns(i) << 1);
+          for (int k=off; k<end; k+=2) {
+            int start = base | getShort(k);
+            int last = start + getShort(k+1);
+            for (int doc=start; doc<=last; doc++) {
+              target.fastSet(doc);
+            }
+          }
+          break;
+        }
+      }
+    }
+    target.invalidateSize();
+  }
+
+  @Override
+  public FixedBitSet getBits() {
+    FixedBitSet bits = new FixedBitSet(maxDoc);
+    setBitsOn(bits);
+    return bits;
+  }
+
+  @Override
+  public Filter getTopFilter() {
+    return new Filter() {
+      @Override
+      public DocIdSet getDocIdSet(final AtomicReaderContext context, final Bits acceptDocs) {
+        AtomicReader reader = context.reader();
+        // all Solr DocSets that are used as filters already only include live docs
+        final Bits acceptDocs2 = acceptDocs == null ? null : (reader.getLiveDocs() == acceptDocs ? null : acceptDocs);
+
+        final int base = context.docBase;
+        final int max = base + reader.maxDoc();   // one past the max doc in this segment.
+
+        return BitsFilteredDocIdSet.wrap(new DocIdSet() {
+          @Override
+          public DocIdSetIterator iterator() {
+            return new DocIdSetIterator() {
+              final Cursor cursor = new Cursor();
+              int adjustedDoc = -1;
+
+              private int adjust(int doc) {
+                return adjustedDoc = doc < max ? doc - base : NO_MORE_DOCS;
+              }
+
+              @Override
+              public int docID() {
+                return adjustedDoc;
+              }
+
+              @Override
+              public int nextDoc() {
+                return adjust(adjustedDoc < 0 ? cursor.advance(base) : cursor.next());
+              }
+
+              @Override
+              public int advance(int target) {
+                if (target == NO_MORE_DOCS) return adjustedDoc = NO_MORE_DOCS;
+                return adjust(cursor.advance(target + base));
+              }
+
+              @Override
+              public long cost() {
+                return size;
+              }
+            };
+          }
+
+          @Override
+          public boolean isCacheable() {
+            return true;
+          }
+
+          @Override
+          public Bits bits() {
+            // random access is more expensive than for a bit set
+            return null;
+          }
+
+        }, acceptDocs2);
+      }
+    };
+  }
+
+  @Override
+  public ChunkedDocSetNative clone() {
+    long bytes = HS.arraySizeBytes(array);
+    long newArray = HS.allocArray(bytes, 1, false);
+    HS.copyBytes(array, 0, newArray, 0, bytes);
+    return new ChunkedDocSetNative(newArray, nChunks, size, maxDoc);
+  }
+
+
+  /**
+   * Builds a set on the heap a chunk at a time, in increasing order, before copying it to native memory.
+   * Bitmaps are kept separately from the other containers so that they stay aligned.
+   */
+  static class Builder {
+    final int maxDoc;
+    int nChunks;
+    int size;
+    private int[] index = new int[ENTRY * 8];
+    private long[] bitmaps = new long[0];
+    private int nBitmapWords;
+    private short[] shorts = new short[64];
+    private int nShorts;
+    private int lastKey = -1;
+
+    // docs of the current chunk when they are added one at a time
+    private int curKey = -1;
+    private int[] lows = new int[64];
+    private int nLows;
+
+    Builder(int maxDoc) {
+      this.maxDoc = maxDoc;
+    }
+
+    /** Adds a doc, which must be greater than all docs added before */
+    void add(int doc) {
+      assert doc < maxDoc;
+      int key = doc >>> CHUNK_SHIFT;
+      if (key != curKey) {
+        finish();
+        curKey = key;
+      }
+      if (nLows == lows.length) {
+        lows = Arrays.copyOf(lows, lows.length << 1);
+      }
+      lows[nLows++] = doc & CHUNK_MASK;
+    }
+
+    /** Adds any docs added by {@link #add} that have not been added as a chunk yet */
+    void finish() {
+      if (nLows > 0) {
+        addChunk(curKey, lows, nLows);
+        nLows = 0;
+      }
+    }
+
+    private void addEntry(int key, int type, int card, int offset) {
+      assert key > lastKey;
+      lastKey = key;
+      if (nChunks * ENTRY == index.length) {
+        index = Arrays.copyOf(index, index.length << 1);
+      }
+      int e = nChunks * ENTRY;
+      index[e + KEY] = key;
+      index[e + TYPE] = type;
+      index[e + CARD] = card;
+      index[e + OFFSET] = offset;
+      nChunks++;
+      size += card;
+    }
+
+    private int allocShorts(int n) {
+      if (nShorts + n > shorts.length) {
+        shorts = Arrays.copyOf(shorts, Math.max(nShorts + n, shorts.length + (shorts.length >> 1)));
+      }
+      int off = nShorts;
+      nShorts += n;
+      return off;
+    }
+
+    private int allocBitmap() {
+      if (nBitmapWords + CHUNK_WORDS > bitmaps.length) {
+        bitmaps = Arrays.copyOf(bitmaps, Math.max(nBitmapWords + CHUNK_WORDS, bitmaps.length + (bitmaps.length >> 1)));
+      }
+      int off = nBitmapWords;
+      nBitmapWords += CHUNK_WORDS;
+      return off;
+    }
+
+    /** Adds a chunk from the sorted low bits of its docs */
+    void addChunk(int key, int[] lows, int n) {
+      if (n == 0) return;
+      int nRuns = 1;
+      for (int i=1; i<n; i++) {
+        if (lows[i] != lows[i-1] + 1) nRuns++;
+      }
+
+      int type = containerType(n, nRuns);
+      if (type == RUN) {
+        int off = allocShorts(nRuns << 1);
+        addEntry(key, RUN | (nRuns << 2), n, off);
+        int start = lows[0];
+        for (int i=1; i<=n; i++) {
+          if (i == n || lows[i] != lows[i-1] + 1) {
+            shorts[off++] = (short)start;
+            shorts[off++] = (short)(lows[i-1] - start);
+            if (i < n) start = lows[i];
+          }
+        }
+      } else if (type == ARRAY) {
+        int off = allocShorts(n);
+        addEntry(key, ARRAY, n, off);
+        for (int i=0; i<n; i++) {
+          shorts[off + i] = (short)lows[i];
+        }
+      } else {
+        int off = allocBitmap();
+        addEntry(key, BITMAP, n, off << 2);
+        for (int i=0; i<n; i++) {
+          bitmaps[off + (lows[i] >>> 6)] |= 1L << lows[i];
+        }
+      }
+    }
+
+    /** Adds a chunk from a bitmap of {@link #CHUNK_WORDS} words */
+    void addChunk(int key, long[] words) {
+      int card = 0;
+      int nRuns = 0;
+      long carry = 0;
+      for (long word : words) {
+        card += Long.bitCount(word);
+        nRuns += Long.bitCount(word & ~((word << 1) | carry));
+        carry = word >>> 63;
+      }
+      if (card == 0) return;
+
+      int type = containerType(card, nRuns);
+      if (type == RUN) {
+        int off = allocShorts(nRuns << 1);
+        addEntry(key, RUN | (nRuns << 2), card, off);
+        int start = nextBit(words, 0, true);
+        while (start < CHUNK_MASK + 1) {
+          int end = nextBit(words, start, false);
+          shorts[off++] = (short)start;
+          shorts[off++] = (short)(end - 1 - start);
+          start = nextBit(words, end, true);
+        }
+      } else if (type == ARRAY) {
+        int off = allocShorts(card);
+        addEntry(key, ARRAY, card, off);
+        for (int w=0; w<CHUNK_WORDS; w++) {
+          long word = words[w];
+          while (word != 0) {
+            shorts[off++] = (short)((w << 6) + Long.numberOfTrailingZeros(word));
+            word &= word - 1;
+          }
+        }
+      } else {
+        int off = allocBitmap();
+        addEntry(key, BITMAP, card, off << 2);
+        System.arraycopy(words, 0, bitmaps, off, CHUNK_WORDS);
+      }
+    }
+
+    /** Adds a container of another set as is */
+    void addChunk(ChunkedDocSetNative set, int chunk) {
+      int key = set.getKey(chunk);
+      int card = set.getCardinality(chunk);
+      int setOff = set.getOffset(chunk);
+      switch (set.getType(chunk)) {
+        case BITMAP: {
+          int off = allocBitmap();
+          addEntry(key, BITMAP, card, off << 2);
+          HS.copyLongs(set.array, setOff >> 2, bitmaps, off, CHUNK_WORDS);
+          break;
+        }
+        case ARRAY: {
+          int off = allocShorts(card);
+          addEntry(key, ARRAY, card, off);
+          for (int i=0; i<card; i++) {
+            shorts[off + i] = (short)set.getShort(setOff + i);
+          }
+          break;
+        }
+        default: {
+          int nRuns = set.getNumRuns(chunk);
+          int off = allocShorts(nRuns << 1);
+          addEntry(key, RUN | (nRuns << 2), card, off);
+          for (int i=0; i<nRuns<<1; i++) {
+            shorts[off + i] = (short)set.getShort(setOff + i);
+          }
+          break;
+        }
+      }
+    }
+
+    /** Returns the index of the next set (or clear) bit at or after index, or the chunk size if there is none */
+    private static int nextBit(long[] words, int index, boolean set) {
+      int w = index >>> 6;
+      if (w >= CHUNK_WORDS) return CHUNK_MASK + 1;
+      long word = (set ? words[w] : ~words[w]) >>> index;
+      if (word != 0) return index + Long.numberOfTrailingZeros(word);
+      while (++w < CHUNK_WORDS) {
+        word = set ? words[w] : ~words[w];
+        if (word != 0) return (w << 6) + Long.numberOfTrailingZeros(word);
+      }
+      return CHUNK_MASK + 1;
+    }
+
+    /** Copies the index and containers to a new native array.  Bitmaps come right after the index. */
+    long toNative() {
+      int indexInts = nChunks * ENTRY;
+      int bitmapStart = indexInts << 1;                  // in shorts, always a multiple of 4
+      int shortStart = bitmapStart + (nBitmapWords << 2);
+      for (int e=0; e<indexInts; e+=ENTRY) {
+        index[e + OFFSET] += (index[e + TYPE] & TYPE_MASK) == BITMAP ? bitmapStart : shortStart;
+      }
+
+      long arr = HS.allocArray(shortStart + nShorts, 2, false);
+      HS.copyInts(index, 0, arr, 0, indexInts);
+      HS.copyLongs(bitmaps, 0, arr, bitmapStart >> 2, nBitmapWords);
+      HS.copyShorts(shorts, 0, arr, shortStart, nShorts);
+      return arr;
+    }
+
+    ChunkedDocSetNative build() {
+      finish();
+      return new ChunkedDocSetNative(toNative(), nChunks, size, maxDoc);
+    }
+  }
+}
@@ -27,6 +27,7 @@ import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.FixedBitSet;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.core.HS;
 import org.apache.solr.core.RefCount;
 import org.apache.solr.core.SolrCore;
 import org.slf4j.Logger;
@@ -186,6 +187,9 @@ public abstract class DocSetBaseNative implements RefCount, DocSet {
 
   protected abstract void free();
 
+  /** Charges the native memory of this set to the given account, as when it is put in a cache that outlives the request that created it */
+  public abstract void setAccount(HS.Account account);
+
   @Override  // for AutoCloseable
   public void close() {
     decref();
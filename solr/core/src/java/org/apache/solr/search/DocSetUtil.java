@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+/**
+ * Operations that combine many DocSets at once.
+ * <p>
+ * Intersecting N sets one pair at a time creates N-1 intermediate sets and makes N-1 passes over memory.
+ * These methods instead make a single pass: bit sets are combined a block of words at a time
+ * (see {@link BitDocSetNative#intersection(BitDocSetNative[], int, BitDocSetNative[], int, BitDocSetNative)}),
+ * and when the smallest set is a small sorted set, each of its docs is checked against all other sets.
+ * When the smallest set is a {@link ChunkedDocSetNative}, the sets are combined one at a time, a chunk at a time.
+ * Segmented sets with the same layout are combined segment by segment.
+ */
+public final class DocSetUtil {
+
+  private DocSetUtil() {}
+
+  /**
+   * Returns the docs in all of the first <code>n</code> sets for which <code>neg[i]</code> is false and in none
+   * of the sets for which it is true.  At least one set must be positive.  None of the sets are modified, and
+   * the returned set must be decref'd by the caller.
+   */
+  public static DocSet intersection(DocSet[] sets, boolean[] neg, int n) {
+    DocSet[] result = new DocSet[1];
+    apply(sets, neg, n, result);
+    return result[0];
+  }
+
+  /** Returns the size of {@link #intersection(DocSet[], boolean[], int)} without creating the set. */
+  public static int intersectionSize(DocSet[] sets, boolean[] neg, int n) {
+    return apply(sets, neg, n, null);
+  }
+
+  /** Returns the number of matching docs, and the set of them in result[0] if result is not null. */
+  private static int apply(DocSet[] sets, boolean[] neg, int n, DocSet[] result) {
+    if (sets[0] instanceof SegmentedDocSet) {
+      SegmentedDocSet first = (SegmentedDocSet)sets[0];
+      boolean sameLayout = true;
+      for (int i=1; i<n; i++) {
+        sameLayout = sameLayout && first.sameLayout(sets[i]);
+      }
+      if (sameLayout) {
+        return applySegmented(first, sets, neg, n, result);
+      }
+    }
+
+    DocSet[] tops = new DocSet[n];
+    int smallest = -1;
+    int smallestSize = Integer.MAX_VALUE;
+    int nPositive = 0;
+    for (int i=0; i<n; i++) {
+      tops[i] = sets[i] instanceof SegmentedDocSet ? ((SegmentedDocSet)sets[i]).getTopSet() : sets[i];
+      if (!neg[i]) {
+        nPositive++;
+        int sz = tops[i].size();
+        if (sz < smallestSize) {
+          smallestSize = sz;
+          smallest = i;
+        }
+      }
+    }
+    assert smallest >= 0;
+
+    DocSet smallestSet = tops[smallest];
+    if (smallestSize == 0 || n == 1) {
+      if (result != null) {
+        smallestSet.incref();
+        result[0] = smallestSet;
+      }
+      return smallestSize;
+    }
+
+    if (smallestSet instanceof ChunkedDocSetNative) {
+      // chunked sets are combined a chunk at a time, and may be too big for a sorted list
+      return pairwise(tops, neg, n, smallest, result);
+    }
+
+    if (!(smallestSet instanceof BitDocSetNative)) {
+      return probe(tops, neg, n, smallest, result);
+    }
+
+    int wlen = ((BitDocSetNative)smallestSet).wlen;
+    for (int i=0; i<n; i++) {
+      if (tops[i] instanceof BitDocSetNative && ((BitDocSetNative)tops[i]).wlen != wlen) {
+        return pairwise(tops, neg, n, smallest, result);
+      }
+    }
+
+    // the smallest set is a bit set, so the others are either bit sets or big enough to convert
+    BitDocSetNative[] include = new BitDocSetNative[nPositive];
+    BitDocSetNative[] exclude = new BitDocSetNative[n - nPositive];
+    BitDocSetNative[] converted = new BitDocSetNative[n];
+    int nInclude = 0;
+    int nExclude = 0;
+    include[nInclude++] = (BitDocSetNative)smallestSet;
+    BitDocSetNative target = null;
+    try {
+      for (int i=0; i<n; i++) {
+        if (i == smallest) continue;
+        BitDocSetNative bits;
+        if (tops[i] instanceof BitDocSetNative) {
+          bits = (BitDocSetNative)tops[i];
+        } else {
+          bits = converted[i] = new BitDocSetNative(wlen << 6);
+          tops[i].setBitsOn(bits);
+        }
+        if (neg[i]) {
+          exclude[nExclude++] = bits;
+        } else {
+          include[nInclude++] = bits;
+        }
+      }
+
+      if (result != null) {
+        target = new BitDocSetNative(wlen << 6);
+      }
+      int count = BitDocSetNative.intersection(include, nInclude, exclude, nExclude, target);
+      if (result != null) {
+        result[0] = target;
+        target = null;
+      }
+      return count;
+    } finally {
+      if (target != null) target.decref();
+      for (BitDocSetNative bits : converted) {
+        if (bits != null) bits.decref();
+      }
+    }
+  }
+
+  private static int applySegmented(SegmentedDocSet first, DocSet[] sets, boolean[] neg, int n, DocSet[] result) {
+    int nLeaves = first.numLeaves();
+    DocSet[] leafSets = new DocSet[n];
+    DocSet[] leafResult = result == null ? null : new DocSet[1];
+    DocSet[] resultLeaves = result == null ? null : new DocSet[nLeaves];
+    int count = 0;
+    boolean success = false;
+    try {
+      for (int leaf=0; leaf<nLeaves; leaf++) {
+        for (int i=0; i<n; i++) {
+          leafSets[i] = ((SegmentedDocSet)sets[i]).getLeaf(leaf);
+        }
+        count += apply(leafSets, neg, n, leafResult);
+        if (result != null) {
+          resultLeaves[leaf] = leafResult[0];
+        }
+      }
+      if (result != null) {
+        result[0] = first.withLeaves(resultLeaves);  // takes the leaves
+      }
+      success = true;
+      return count;
+    } finally {
+      if (!success && resultLeaves != null) {
+        // a leaf failed (most likely over the memory limit of the request): free the leaves done so far
+        for (DocSet leafSet : resultLeaves) {
+          if (leafSet != null) leafSet.decref();
+        }
+      }
+    }
+  }
+
+  /** Checks each doc of the smallest set against all of the others */
+  private static int probe(DocSet[] sets, boolean[] neg, int n, int smallest, DocSet[] result) {
+    DocSet smallestSet = sets[smallest];
+    int[] docs = result == null ? null : new int[smallestSet.size()];
+    int count = 0;
+
+    outer:
+    for (DocIterator iter = smallestSet.iterator(); iter.hasNext(); ) {
+      int doc = iter.nextDoc();
+      for (int i=0; i<n; i++) {
+        if (i != smallest && sets[i].exists(doc) == neg[i]) {
+          continue outer;
+        }
+      }
+      if (docs != null) docs[count] = doc;
+      count++;
+    }
+
+    if (result != null) {
+      result[0] = new SortedIntDocSetNative(docs, count);
+    }
+    return count;
+  }
+
+  /** Combines the sets one at a time */
+  private static int pairwise(DocSet[] sets, boolean[] neg, int n, int smallest, DocSet[] result) {
+    DocSet answer = sets[smallest];
+    answer.incref();
+    for (int i=0; i<n; i++) {
+      if (i == smallest) continue;
+      DocSet prev = answer;
+      answer = neg[i] ? answer.andNot(sets[i]) : answer.intersection(sets[i]);
+      prev.decref();
+    }
+    int count = answer.size();
+    if (result != null) {
+      result[0] = answer;
+    } else {
+      answer.decref();
+    }
+    return count;
+  }
+}
@@ -143,6 +143,11 @@ public class FastLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,V> {
     cache.clear();
   }
 
+  /** Evicts (up to) the <code>n</code> least recently used entries, returning the number evicted */
+  public int evictOldest(int n) {
+    return cache.evictOldest(n);
+  }
+
   @Override
   public void setState(State state) {
     super.setState(state);
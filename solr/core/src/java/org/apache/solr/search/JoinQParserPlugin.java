@@ -486,8 +486,13 @@ class JoinQuery extends Query {
           if (set == null) break;
           if (set instanceof SortedIntDocSet) {
             System.arraycopy(((SortedIntDocSet)set).getDocs(), 0, docs, pos, set.size());
-          } else {
+          } else if (set instanceof SortedIntDocSetNative) {
             HS.copyInts(((SortedIntDocSetNative)set).getIntArrayPointer(), 0, docs, pos, set.size());
+          } else {
+            DocIterator iter = set.iterator();
+            for (int i=0; iter.hasNext(); i++) {
+              docs[pos+i] = iter.nextDoc();
+            }
           }
           pos += set.size();
           set.decref();
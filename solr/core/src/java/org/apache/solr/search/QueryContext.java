@@ -75,8 +75,12 @@ public class QueryContext implements Closeable {
   public void addCloseHook(Closeable closeable) {
     if (closeHooks == null) {
       closeHooks = new ArrayList<>();
-      // for now, defer closing until the end of the request
-      SolrRequestInfo.getRequestInfo().addCloseHook(this);
+      // for now, defer closing until the end of the request.
+      // Without a request (i.e. facet worker threads) the owner must close this context.
+      SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+      if (requestInfo != null) {
+        requestInfo.addCloseHook(this);
+      }
     }
 
     closeHooks.add(closeable);
@@ -103,7 +107,7 @@ public class QueryContext implements Closeable {
   /** This can return null */
   public TopValues getTopValues(FieldValues fvals) {
     if (topValues == null) return null;
-    return topValues.get(fvals.getField().getName());
+    return topValues.get(fvals.getCacheKey());
   }
 
   public void setTopValues(FieldValues fvals, TopValues topVals) {
@@ -111,7 +115,7 @@ public class QueryContext implements Closeable {
       topValues = new HashMap<>();
     }
 
-    TopValues prev = topValues.put(fvals.getField().getName(), topVals);
+    TopValues prev = topValues.put(fvals.getCacheKey(), topVals);
     addCloseHook(topVals);
     assert prev == null;
   }
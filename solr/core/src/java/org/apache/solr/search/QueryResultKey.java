@@ -102,7 +102,7 @@ public final class QueryResultKey {
    * 
    * @return true if the lists of equivilent other then the ordering
    */
-  private static boolean unorderedCompare(List<Query> fqList1, List<Query> fqList2) {
+  public static boolean unorderedCompare(List<Query> fqList1, List<Query> fqList2) {
     // Do fast version first, expecting that filters are usually in the same order
     //
     // Fall back to unordered compare logic on the first non-equal elements.
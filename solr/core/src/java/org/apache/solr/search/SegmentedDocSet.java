@@ -0,0 +1,387 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.core.HS;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A DocSet made up of one segment-relative DocSet per index segment.
+ * Since the set for a segment only depends on that segment (and its deletions),
+ * the leaves can be carried over to a new searcher that shares the segment
+ * instead of re-executing the query against the whole index.
+ * <p>
+ * A top-level view of the set is only built (and then cached) for operations that
+ * can't be done segment by segment.
+ */
+public class SegmentedDocSet extends DocSetBaseNative {
+  final DocSet[] leaves;   // segment relative docids, indexed by leaf ord
+  final int[] docBases;
+  final int[] numDeleted;  // number of deleted docs in each segment when the leaf was created
+  final int maxDoc;
+  final int smallSetSize;
+  private int size = -1;
+  private DocSet topSet;   // lazily created top-level view
+  private HS.Account account;  // set if the memory of this set was moved to another account
+
+  /** Takes ownership of the leaf sets, which must be segment relative and indexed by leaf ord. */
+  public SegmentedDocSet(List<AtomicReaderContext> leafContexts, DocSet[] leaves, int smallSetSize) {
+    assert leafContexts.size() == leaves.length;
+    this.leaves = leaves;
+    this.docBases = new int[leaves.length];
+    this.numDeleted = new int[leaves.length];
+    this.smallSetSize = smallSetSize;
+    int max = 0;
+    for (AtomicReaderContext leaf : leafContexts) {
+      AtomicReader reader = leaf.reader();
+      docBases[leaf.ord] = leaf.docBase;
+      numDeleted[leaf.ord] = reader.numDeletedDocs();
+      max = Math.max(max, leaf.docBase + reader.maxDoc());
+    }
+    this.maxDoc = max;
+  }
+
+  private SegmentedDocSet(SegmentedDocSet layout, DocSet[] leaves) {
+    this.leaves = leaves;
+    this.docBases = layout.docBases;
+    this.numDeleted = layout.numDeleted;
+    this.maxDoc = layout.maxDoc;
+    this.smallSetSize = layout.smallSetSize;
+  }
+
+  /** Returns the segment relative set for the given leaf ord.  The set is not incref'd. */
+  public DocSet getLeaf(int ord) {
+    return leaves[ord];
+  }
+
+  public int numLeaves() {
+    return leaves.length;
+  }
+
+  /**
+   * Returns the (incref'd) set for leaf <code>ord</code> adjusted to the live docs of
+   * <code>reader</code>, which must share the same core as the segment the leaf was created from.
+   * The set is re-used as-is if no documents have been deleted from the segment since.
+   */
+  DocSet reuseLeaf(int ord, AtomicReader reader) throws IOException {
+    DocSet leaf = leaves[ord];
+    if (reader.numDeletedDocs() == numDeleted[ord]) {
+      ((DocSetBaseNative)leaf).incref();
+      return leaf;
+    }
+
+    // new deletions only remove documents, so filter the old set by the new live docs.
+    Bits liveDocs = reader.getLiveDocs();
+    int readerMaxDoc = reader.maxDoc();
+    try (DocSetCollector collector = new DocSetCollector(Math.min((readerMaxDoc>>6)+5, leaf.size()), readerMaxDoc)) {
+      for (DocIterator iter = leaf.iterator(); iter.hasNext(); ) {
+        int doc = iter.nextDoc();
+        if (liveDocs == null || liveDocs.get(doc)) {
+          collector.collect(doc);
+        }
+      }
+      return collector.getDocSet();
+    }
+  }
+
+  /** Returns a set with the same layout as this one made up of the given leaves (which it takes ownership of). */
+  SegmentedDocSet withLeaves(DocSet[] leaves) {
+    assert leaves.length == this.leaves.length;
+    return new SegmentedDocSet(this, leaves);
+  }
+
+  boolean sameLayout(DocSet other) {
+    if (!(other instanceof SegmentedDocSet)) return false;
+    SegmentedDocSet o = (SegmentedDocSet)other;
+    return o.maxDoc == maxDoc && Arrays.equals(o.docBases, docBases);
+  }
+
+  /** Returns the cached top-level view of this set.  The set is not incref'd. */
+  public DocSet getTopSet() {
+    synchronized (this) {
+      if (topSet == null) {
+        int sz = size();
+        if (sz <= smallSetSize) {
+          int[] docs = new int[sz];
+          int pos = 0;
+          for (DocIterator iter = iterator(); iter.hasNext(); ) {
+            docs[pos++] = iter.nextDoc();
+          }
+          topSet = new SortedIntDocSetNative(docs, sz);
+        } else {
+          BitDocSetNative bits = new BitDocSetNative(maxDoc);
+          setBitsOn(bits);
+          bits.setSize(sz);
+          topSet = bits;
+        }
+        if (account != null) {
+          ((DocSetBaseNative)topSet).setAccount(account);
+        }
+      }
+      return topSet;
+    }
+  }
+
+  @Override
+  public void setAccount(HS.Account account) {
+    for (DocSet leaf : leaves) {
+      if (leaf instanceof DocSetBaseNative) {
+        ((DocSetBaseNative)leaf).setAccount(account);
+      }
+    }
+    synchronized (this) {
+      this.account = account;
+      if (topSet instanceof DocSetBaseNative) {
+        ((DocSetBaseNative)topSet).setAccount(account);
+      }
+    }
+  }
+
+  @Override
+  protected void free() {
+    for (DocSet leaf : leaves) {
+      leaf.close();
+    }
+    synchronized (this) {
+      if (topSet != null) {
+        topSet.close();
+        topSet = null;
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    if (size < 0) {
+      int sz = 0;
+      for (DocSet leaf : leaves) {
+        sz += leaf.size();
+      }
+      size = sz;
+    }
+    return size;
+  }
+
+  @Override
+  public boolean exists(int doc) {
+    int idx = ReaderUtil.subIndex(doc, docBases);
+    return leaves[idx].exists(doc - docBases[idx]);
+  }
+
+  @Override
+  public DocIterator iterator() {
+    return new DocIterator() {
+      int idx = -1;
+      int base;
+      DocIterator iter;
+
+      @Override
+      public boolean hasNext() {
+        while (iter == null || !iter.hasNext()) {
+          if (++idx >= leaves.length) return false;
+          base = docBases[idx];
+          iter = leaves[idx].iterator();
+        }
+        return true;
+      }
+
+      @Override
+      public int nextDoc() {
+        hasNext();  // advance to the next non-empty leaf if needed
+        return iter.nextDoc() + base;
+      }
+
+      @Override
+      public Integer next() {
+        return nextDoc();
+      }
+
+      @Override
+      public float score() {
+        return 0.0f;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("The remove  operation is not supported by this Iterator.");
+      }
+    };
+  }
+
+  @Override
+  public FixedBitSet getBits() {
+    FixedBitSet bits = new FixedBitSet(maxDoc);
+    setBitsOn(bits);
+    return bits;
+  }
+
+  @Override
+  public long memSize() {
+    long sz = (leaves.length << 4) + 64;
+    for (DocSet leaf : leaves) {
+      sz += leaf.memSize();
+    }
+    synchronized (this) {
+      if (topSet != null) sz += topSet.memSize();
+    }
+    return sz;
+  }
+
+  @Override
+  public DocSet intersection(DocSet other) {
+    if (sameLayout(other)) {
+      SegmentedDocSet o = (SegmentedDocSet)other;
+      DocSet[] result = new DocSet[leaves.length];
+      for (int i=0; i<leaves.length; i++) {
+        result[i] = leaves[i].intersection(o.leaves[i]);
+      }
+      return new SegmentedDocSet(this, result);
+    }
+    return getTopSet().intersection(other);
+  }
+
+  @Override
+  public int intersectionSize(DocSet other) {
+    if (sameLayout(other)) {
+      SegmentedDocSet o = (SegmentedDocSet)other;
+      int sz = 0;
+      for (int i=0; i<leaves.length; i++) {
+        sz += leaves[i].intersectionSize(o.leaves[i]);
+      }
+      return sz;
+    }
+    return getTopSet().intersectionSize(other);
+  }
+
+  @Override
+  public boolean intersects(DocSet other) {
+    if (sameLayout(other)) {
+      SegmentedDocSet o = (SegmentedDocSet)other;
+      for (int i=0; i<leaves.length; i++) {
+        if (leaves[i].intersects(o.leaves[i])) return true;
+      }
+      return false;
+    }
+    return getTopSet().intersects(other);
+  }
+
+  @Override
+  public DocSet union(DocSet other) {
+    if (sameLayout(other)) {
+      SegmentedDocSet o = (SegmentedDocSet)other;
+      DocSet[] result = new DocSet[leaves.length];
+      for (int i=0; i<leaves.length; i++) {
+        result[i] = leaves[i].union(o.leaves[i]);
+      }
+      return new SegmentedDocSet(this, result);
+    }
+    return getTopSet().union(other);
+  }
+
+  @Override
+  public int unionSize(DocSet other) {
+    return size() + other.size() - intersectionSize(other);
+  }
+
+  @Override
+  public DocSet andNot(DocSet other) {
+    if (sameLayout(other)) {
+      SegmentedDocSet o = (SegmentedDocSet)other;
+      DocSet[] result = new DocSet[leaves.length];
+      for (int i=0; i<leaves.length; i++) {
+        result[i] = leaves[i].andNot(o.leaves[i]);
+      }
+      return new SegmentedDocSet(this, result);
+    }
+    return getTopSet().andNot(other);
+  }
+
+  @Override
+  public int andNotSize(DocSet other) {
+    return size() - intersectionSize(other);
+  }
+
+  @Override
+  public Filter getTopFilter() {
+    final Filter[] leafFilters = new Filter[leaves.length];
+    for (int i=0; i<leaves.length; i++) {
+      leafFilters[i] = leaves[i].getTopFilter();
+    }
+
+    return new Filter() {
+      Filter topFilter;
+
+      @Override
+      public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        int ord = context.ord;
+        if (!context.isTopLevel && ord < leafFilters.length && docBases[ord] == context.docBase) {
+          // the leaf filters are segment relative, so hand them a context with a docBase of 0
+          return leafFilters[ord].getDocIdSet(context.reader().getContext(), acceptDocs);
+        }
+
+        // not one of our segments... fall back to the top-level set
+        if (topFilter == null) topFilter = getTopSet().getTopFilter();
+        return topFilter.getDocIdSet(context, acceptDocs);
+      }
+    };
+  }
+
+  @Override
+  public void setBitsOn(FixedBitSet target) {
+    for (int i=0; i<leaves.length; i++) {
+      int base = docBases[i];
+      for (DocIterator iter = leaves[i].iterator(); iter.hasNext(); ) {
+        target.set(iter.nextDoc() + base);
+      }
+    }
+  }
+
+  @Override
+  public void setBitsOn(BitDocSetNative target) {
+    for (int i=0; i<leaves.length; i++) {
+      int base = docBases[i];
+      for (DocIterator iter = leaves[i].iterator(); iter.hasNext(); ) {
+        target.fastSet(iter.nextDoc() + base);
+      }
+    }
+  }
+
+  @Override
+  public SegmentedDocSet clone() {
+    DocSet[] copy = new DocSet[leaves.length];
+    for (int i=0; i<leaves.length; i++) {
+      copy[i] = leaves[i].clone();
+    }
+    return new SegmentedDocSet(this, copy);
+  }
+
+  @Override
+  public String toString() {
+    return "SegmentedDocSet{size=" + size() + ",leaves=" + leaves.length + "}";
+  }
+}
@@ -18,6 +18,7 @@
 package org.apache.solr.search;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -32,6 +33,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -95,9 +99,11 @@ import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.core.DirectoryFactory;
 import org.apache.solr.core.DirectoryFactory.DirContext;
+import org.apache.solr.core.HS;
 import org.apache.solr.core.SolrConfig;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.request.FacetCache;
 import org.apache.solr.request.LocalSolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.request.SolrRequestInfo;
@@ -105,6 +111,7 @@ import org.apache.solr.request.UnInvertedField;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.field.LeafValuesStore;
 import org.apache.solr.search.field.TopValues;
 import org.apache.solr.update.SolrIndexConfig;
 import org.slf4j.Logger;
@@ -146,10 +153,13 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
   private final boolean cachingEnabled;
   private final SolrCache<Query,DocSet> filterCache;
   private final SolrCache<QueryResultKey,DocList> queryResultCache;
+  private final SolrCache<FacetCache.Key,Object> facetCache;
   private final SolrCache<Integer,Document> documentCache;
+  private final SolrCache<Integer,StoredDocumentNative> nativeDocumentCache;
   private final SolrCache<String,UnInvertedField> fieldValueCache;
 
   private final SolrCache<String,TopValues> nCache;
+  private final LeafValuesStore leafValuesStore;
 
   // map of generic caches - not synchronized since it's read-only after the constructor.
   private final HashMap<String, SolrCache> cacheMap;
@@ -159,6 +169,9 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
   private final SolrCache[] cacheList;
   private static final SolrCache[] noCaches = new SolrCache[0];
 
+  // evict cache entries when the native memory used by the caches goes over the soft limit
+  private final List<CacheMemoryListener> memoryListeners = new ArrayList<>(2);
+
   private final FieldInfos fieldInfos;
   // TODO: do we need this separate set of field names? we can just use the fieldinfos?
   private final Collection<String> fieldNames;
@@ -170,6 +183,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
   private final boolean reserveDirectory;
   private final boolean createdDirectory;
   private final int smallSetSize;
+  private final boolean perSegmentFilterCache;
 
   private static DirectoryReader getReader(SolrCore core, SolrIndexConfig config, DirectoryFactory directoryFactory, String path) throws IOException {
     DirectoryReader reader = null;
@@ -224,6 +238,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     queryResultMaxDocsCached = solrConfig.queryResultMaxDocsCached;
     useFilterForSortedQuery = solrConfig.useFilterForSortedQuery;
     enableLazyFieldLoading = solrConfig.enableLazyFieldLoading;
+    perSegmentFilterCache = enableCache && solrConfig.perSegmentFilterCache;
 
     cachingEnabled=enableCache;
     if (cachingEnabled) {
@@ -237,8 +252,17 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       if (filterCache!=null) clist.add(filterCache);
       queryResultCache = solrConfig.queryResultCacheConfig==null ? null : solrConfig.queryResultCacheConfig.newInstance();
       if (queryResultCache!=null) clist.add(queryResultCache);
-      documentCache = solrConfig.documentCacheConfig==null ? null : solrConfig.documentCacheConfig.newInstance();
-      if (documentCache!=null) clist.add(documentCache);
+      facetCache = solrConfig.facetCacheConfig==null ? null : solrConfig.facetCacheConfig.newInstance();
+      if (facetCache!=null) clist.add(facetCache);
+      if (solrConfig.documentCacheNative) {
+        documentCache = null;
+        nativeDocumentCache = solrConfig.documentCacheConfig.newInstance();
+        clist.add(nativeDocumentCache);
+      } else {
+        nativeDocumentCache = null;
+        documentCache = solrConfig.documentCacheConfig==null ? null : solrConfig.documentCacheConfig.newInstance();
+        if (documentCache!=null) clist.add(documentCache);
+      }
 
       if (solrConfig.userCacheConfigs == null) {
         cacheMap = noGenericCaches;
@@ -255,11 +279,21 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       }
 
       cacheList = clist.toArray(new SolrCache[clist.size()]);
+
+      String dataDir = core.getDataDir();
+      if (nCache != null && solrConfig.nCachePersist && dataDir != null && !dataDir.startsWith("hdfs:")) {
+        leafValuesStore = new LeafValuesStore(new File(dataDir, "ncache"));
+      } else {
+        leafValuesStore = null;
+      }
     } else {
       nCache = null;
+      leafValuesStore = null;
       filterCache=null;
       queryResultCache=null;
+      facetCache=null;
       documentCache=null;
+      nativeDocumentCache=null;
       fieldValueCache=null;
       cacheMap = noGenericCaches;
       cacheList= noCaches;
@@ -271,10 +305,52 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       fieldNames.add(fieldInfo.name);
     }
 
+    if (nCache instanceof FastLRUCache) {
+      memoryListeners.add(new CacheMemoryListener((FastLRUCache)nCache, HS.nCacheAccount));
+    }
+    if (filterCache instanceof FastLRUCache) {
+      memoryListeners.add(new CacheMemoryListener((FastLRUCache)filterCache, HS.filterCacheAccount));
+    }
+    if (nativeDocumentCache instanceof FastLRUCache) {
+      memoryListeners.add(new CacheMemoryListener((FastLRUCache)nativeDocumentCache, HS.documentCacheAccount));
+    }
+
     // do this at the end since an exception in the constructor means we won't close    
+    for (CacheMemoryListener listener : memoryListeners) {
+      listener.register();
+    }
     numOpens.incrementAndGet();
   }
 
+  /** Evicts a portion of the least recently used entries of a cache when its account (or the total) reaches a limit. */
+  private static class CacheMemoryListener implements HS.MemoryListener {
+    private final FastLRUCache cache;
+    private final HS.Account account;
+
+    CacheMemoryListener(FastLRUCache cache, HS.Account account) {
+      this.cache = cache;
+      this.account = account;
+    }
+
+    void register() {
+      account.addListener(this);
+      HS.totalAccount.addListener(this);
+    }
+
+    void unregister() {
+      account.removeListener(this);
+      HS.totalAccount.removeListener(this);
+    }
+
+    @Override
+    public void memoryLimitReached(HS.Account account) {
+      int n = cache.evictOldest(Math.max(1, cache.size() / 10));
+      if (n > 0 && log.isDebugEnabled()) {
+        log.debug("Evicted " + n + " entries from " + cache.name() + " since " + account + " is over its limit");
+      }
+    }
+  }
+
   public boolean isCachingEnabled() { return cachingEnabled; }
 
   public String getPath() {
@@ -319,6 +395,11 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       core.getInfoRegistry().put(cache.name(), cache);
     }
     registerTime=System.currentTimeMillis();
+
+    if (leafValuesStore != null) {
+      // this searcher's segments are the only ones new searchers could still need
+      leafValuesStore.removeStale(getTopReaderContext().leaves());
+    }
   }
 
   /**
@@ -344,6 +425,10 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
 
     core.getInfoRegistry().remove(name);
 
+    for (CacheMemoryListener listener : memoryListeners) {
+      listener.unregister();
+    }
+
     // super.close();
     // can't use super.close() since it just calls reader.close() and that may only be called once
     // per reader (even if incRef() was previously called).
@@ -436,13 +521,21 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
           new CacheRegenerator() {
             @Override
             public boolean regenerateItem(WarmContext warmContext, Object oldKey, Object oldVal) throws IOException {
-              warmContext.searcher.cacheDocSet((Query)oldKey, null, false);
+              if (oldVal instanceof SegmentedDocSet && warmContext.searcher.perSegmentFilterCache) {
+                warmContext.searcher.regenerateSegmentedDocSet((Query)oldKey, (SegmentedDocSet)oldVal, warmContext);
+              } else {
+                warmContext.searcher.cacheDocSet((Query)oldKey, null, false);
+              }
               return true;
             }
           }
       );
     }
 
+    if (solrConfig.facetCacheConfig != null && solrConfig.facetCacheConfig.getRegenerator() == null) {
+      solrConfig.facetCacheConfig.setRegenerator(new FacetCache.Regenerator());
+    }
+
     if (solrConfig.queryResultCacheConfig != null && solrConfig.queryResultCacheConfig.getRegenerator() == null) {
       final int queryResultWindowSize = solrConfig.queryResultWindowSize;
       solrConfig.queryResultCacheConfig.setRegenerator(
@@ -587,6 +680,17 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
    * @see IndexReader#document(int, StoredFieldVisitor) */
   @Override
   public void doc(int n, StoredFieldVisitor visitor) throws IOException {
+    if (nativeDocumentCache != null) {
+      StoredDocumentNative cached = nativeDocumentCache.get(n);
+      if (cached != null) {
+        try {
+          cached.visit(visitor);
+        } finally {
+          cached.decref();
+        }
+        return;
+      }
+    }
     if (documentCache != null) {
       Document cached = documentCache.get(n);
       if (cached != null) {
@@ -643,6 +747,15 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
   @Override
   public Document doc(int i, Set<String> fields) throws IOException {
 
+    if (nativeDocumentCache != null) {
+      StoredDocumentNative stored = getStoredDocument(i);
+      try {
+        return stored.toDocument();
+      } finally {
+        stored.decref();
+      }
+    }
+
     Document d;
     if (documentCache != null) {
       d = documentCache.get(i);
@@ -664,6 +777,29 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     return d;
   }
 
+  /**
+   * Returns all of the stored fields of a document from the native (off-heap) documentCache, loading
+   * and caching them if they aren't there yet, or null if the documentCache isn't native.
+   * The caller must decref the document when done with it.
+   */
+  public StoredDocumentNative getStoredDocument(int i) throws IOException {
+    if (nativeDocumentCache == null) return null;
+    StoredDocumentNative doc = nativeDocumentCache.get(i);
+    if (doc != null) return doc;
+
+    StoredDocumentNative.Builder builder = new StoredDocumentNative.Builder(fieldInfos);
+    getIndexReader().document(i, builder);
+    HS.Account prevAccount = HS.setAccount(HS.documentCacheAccount);
+    try {
+      doc = builder.build();
+    } finally {
+      HS.setAccount(prevAccount);
+    }
+    doc.incref();  // one reference for the cache and one for the caller
+    nativeDocumentCache.put(i, doc);
+    return doc;
+  }
+
   /**
    * Takes a list of docs (the doc ids actually), and reads them into an array
    * of Documents.
@@ -693,11 +829,21 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     return fieldValueCache;
   }
 
+  /** expert: internal API, subject to change.  Returns null if there is no facetCache. */
+  public SolrCache<FacetCache.Key,Object> getFacetCache() {
+    return facetCache;
+  }
+
   /** expert: internal API, subject to change */
   public SolrCache<String,TopValues> getnCache() {
     return nCache;
   }
 
+  /** expert: internal API, subject to change.  Returns null unless the nCache is persisted. */
+  public LeafValuesStore getLeafValuesStore() {
+    return leafValuesStore;
+  }
+
   /** Returns a weighted sort according to this searcher */
   public Sort weightSort(Sort sort) throws IOException {
     return (sort != null) ? sort.rewrite(this) : null;
@@ -776,7 +922,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     // or OS disk cache.
     if (optionalAnswer != null) {
       if (filterCache!=null) {
-        filterCache.put(query,optionalAnswer);
+        putFilter(query, optionalAnswer);
       }
       return;
     }
@@ -832,7 +978,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       }
     }
 
-    DocSet absAnswer = getDocSetNC(absQ, null);
+    DocSet absAnswer = filterCache != null ? getDocSetForCache(absQ) : getDocSetNC(absQ, null);
     DocSet answer = absAnswer;
     if (positive) {
       absAnswer.incref();
@@ -845,7 +991,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
 
     if (filterCache != null) {
       // cache negative queries as positive
-      filterCache.put(absQ, absAnswer);
+      putFilter(absQ, absAnswer);
     } else {
       absAnswer.decref();  // free if we aren't putting it in the cache
     }
@@ -863,9 +1009,10 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     BitDocSetNative answerBits = new BitDocSetNative(maxDoc());
     answer.setBitsOn(answerBits);
     answer.decref();
-    if (filterCache != null) {
+    // a chunked set was cached because it is much smaller than the bits, so keep it
+    if (filterCache != null && !(answer instanceof ChunkedDocSetNative)) {
       answerBits.incref();
-      filterCache.put(q, answerBits);
+      putFilter(q, answerBits);
     }
     return answerBits;
   }
@@ -881,10 +1028,10 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
         return answer;
       }
     }
-    answer = getDocSetNC(q, null);
+    answer = filterCache != null ? getDocSetForCache(q) : getDocSetNC(q, null);
     if (filterCache != null) {
       answer.incref();
-      filterCache.put(q, answer);
+      putFilter(q, answer);
     }
     return answer;
   }
@@ -1032,17 +1179,14 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     List<Query> postFilters = null;
 
     int end = 0;
-    int smallestIndex = -1;
+    boolean hasPositive = false;
 
     if (setFilter != null) {
-      setFilter.incref();   // one for sets[] ref
-      setFilter.incref();   // one for scratch ref
-      scratch = sets[end++] = setFilter;
-
-      smallestIndex = end;
+      setFilter.incref();   // for sets[] ref
+      sets[end++] = setFilter;
+      hasPositive = true;
     }
 
-    int smallestCount = Integer.MAX_VALUE;
     for (Query q : queries) {
       if (q instanceof ExtendedQuery) {
         ExtendedQuery eq = (ExtendedQuery)q;
@@ -1070,45 +1214,24 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       Query posQuery = QueryUtils.getAbs(q);
       sets[end] = getPositiveDocSet(posQuery);
       // Negative query if absolute value different from original
-      if (q==posQuery) {
-        neg[end] = false;
-        // keep track of the smallest positive set.
-        // This optimization is only worth it if size() is cached, which it would
-        // be if we don't do any set operations.
-        int sz = sets[end].size();
-        if (sz<smallestCount) {
-          smallestCount=sz;
-          smallestIndex=end;
-          scratch = sets[end];
-        }
-      } else {
-        neg[end] = true;
-      }
-
+      neg[end] = q!=posQuery;
+      hasPositive |= !neg[end];
       end++;
     }
 
-    // Are all of our normal cached filters negative?
-    if (end > 0 && scratch==null) {
-      scratch = getPositiveDocSet(matchAllDocsQuery);
-    }
-
-    // do negative queries first to shrink set size
-    for (int i=0; i<end; i++) {
-      if (neg[i]) {
-        DocSet prev = scratch;
-        scratch = scratch.andNot(sets[i]);
-        prev.decref();
-        sets[i].decref();
+    if (end > 0) {
+      // Are all of our normal cached filters negative?
+      if (!hasPositive) {
+        sets[end++] = getPositiveDocSet(matchAllDocsQuery);
       }
-    }
 
-    for (int i=0; i<end; i++) {
-      if (!neg[i] && i != smallestIndex) {
-        DocSet prev = scratch;
-        scratch = scratch.intersection(sets[i]);
-        prev.decref();
-        sets[i].decref();
+      // combine all of the cached filters in a single pass
+      try {
+        scratch = DocSetUtil.intersection(sets, neg, end);
+      } finally {
+        for (int i=0; i<end; i++) {
+          sets[i].decref();
+        }
       }
     }
 
@@ -1238,12 +1361,95 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
 
     if (useCache) {
       result.incref();  // one for the cache
-      filterCache.put(key, result);
+      putFilter(key, result);
     }
 
     return result;
   }
 
+  /** Inserts a set into the filterCache, charging its memory to the filterCache rather than the request that computed it */
+  private void putFilter(Query query, DocSet set) {
+    if (set instanceof BitDocSetNative) {
+      // cached sets that are sparse or clustered in parts of the index are smaller when chunked.  Sets
+      // are only compacted here, rather than as they are collected, so other queries don't pay for the scan.
+      set = ChunkedDocSetNative.compact((BitDocSetNative)set);
+    }
+    if (set instanceof DocSetBaseNative) {
+      ((DocSetBaseNative)set).setAccount(HS.filterCacheAccount);
+    }
+    filterCache.put(query, set);
+  }
+
+  // query must be positive.  Computes the set that will be inserted into the filterCache.
+  private DocSet getDocSetForCache(Query query) throws IOException {
+    HS.Account prevAccount = HS.setAccount(HS.filterCacheAccount);
+    try {
+      return perSegmentFilterCache ? getSegmentedDocSetNC(query, null, null) : getDocSetNC(query, null);
+    } finally {
+      HS.setAccount(prevAccount);
+    }
+  }
+
+  /**
+   * Computes the set of documents matching the (positive) query one segment at a time.
+   * If <code>old</code> is provided (along with the mapping of old leaf ords to new leaf ords),
+   * the sets for segments shared with the old searcher are re-used and only the new segments
+   * are searched.
+   */
+  SegmentedDocSet getSegmentedDocSetNC(Query query, SegmentedDocSet old, int[] oldToNewOrd) throws IOException {
+    DocSet[] sets = new DocSet[leafContexts.size()];
+    try {
+      if (old != null) {
+        for (int oldOrd=0; oldOrd<oldToNewOrd.length; oldOrd++) {
+          int newOrd = oldToNewOrd[oldOrd];
+          if (newOrd < 0 || oldOrd >= old.numLeaves()) continue;
+          sets[newOrd] = old.reuseLeaf(oldOrd, leafContexts.get(newOrd).reader());
+        }
+      }
+
+      Weight weight = null;
+      for (AtomicReaderContext leaf : leafContexts) {
+        if (sets[leaf.ord] != null) continue;
+        if (weight == null) weight = createNormalizedWeight(query);
+        int leafMaxDoc = leaf.reader().maxDoc();
+        try (
+            DocSetCollector collector = new DocSetCollector((leafMaxDoc>>6)+5, leafMaxDoc) {
+              @Override
+              public void setNextReader(AtomicReaderContext context) {
+                // collect segment relative ids (base stays 0)
+              }
+            }
+        ) {
+          super.search(Collections.singletonList(leaf), weight, collector);
+          sets[leaf.ord] = collector.getDocSet();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      for (DocSet set : sets) {
+        if (set != null) set.close();
+      }
+      throw e;
+    }
+
+    return new SegmentedDocSet(leafContexts, sets, smallSetSize);
+  }
+
+  /** Inserts the set for <code>query</code> into the filterCache, re-using the leaves of a set from the old searcher. */
+  void regenerateSegmentedDocSet(Query query, SegmentedDocSet old, WarmContext warmContext) throws IOException {
+    if (filterCache == null) return;
+    DocSet existing = filterCache.get(query);
+    if (existing != null) {
+      existing.decref();
+      return;
+    }
+    HS.Account prevAccount = HS.setAccount(HS.filterCacheAccount);
+    try {
+      putFilter(query, getSegmentedDocSetNC(query, old, warmContext.oldToNewOrd));
+    } finally {
+      HS.setAccount(prevAccount);
+    }
+  }
+
   // query must be positive
   DocSet getDocSetNC(Query query, DocSet filter) throws IOException {
     try (
@@ -1320,9 +1526,9 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     if (filterCache != null) {
       first = filterCache.get(absQ);
       if (first==null) {
-        first = getDocSetNC(absQ, null);
+        first = getDocSetForCache(absQ);
         first.incref();
-        filterCache.put(absQ, first);
+        putFilter(absQ, first);
       }
       DocSet answer = positive ? first.intersection(filter) : filter.andNot(first);
       first.decref();
@@ -1535,7 +1741,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
         // cache the docSet matching the query w/o filtering
         if (qDocSet!=null && filterCache!=null && !qr.isPartialResults()) {
           qDocSet.incref();
-          filterCache.put(cmd.getQuery(),qDocSet);
+          putFilter(cmd.getQuery(), qDocSet);
         }
 
         // if we aren't returning the docset in the query results, then decref it...
@@ -2176,7 +2382,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
 
 
     // bit of a hack to tell if a set is sorted - do it better in the future.
-    boolean inOrder = set instanceof BitDocSet || set instanceof SortedIntDocSet || set instanceof BitDocSetNative || set instanceof SortedIntDocSetNative;
+    boolean inOrder = set instanceof BitDocSet || set instanceof SortedIntDocSet || set instanceof BitDocSetNative || set instanceof SortedIntDocSetNative || set instanceof ChunkedDocSetNative;
     assert inOrder;
 
     TopDocsCollector topCollector = buildTopDocsCollector(nDocs, cmd);
@@ -2308,6 +2514,38 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     public SolrCache oldCache;
     public int[] oldToNewOrd;
     public int segmentsShared;
+    public ExecutorService executor;  // for warming work that can be done in parallel, may be null
+    final List<Future<?>> futures = new ArrayList<>();
+
+    /** Runs the task on the warming executor if there is one, otherwise right away. */
+    public void submit(Runnable task) {
+      if (executor == null) {
+        task.run();
+      } else {
+        synchronized (futures) {
+          futures.add(executor.submit(task));
+        }
+      }
+    }
+
+    /** Waits for all submitted tasks to finish. */
+    void waitForTasks() {
+      for (;;) {
+        Future<?> future;
+        synchronized (futures) {
+          if (futures.isEmpty()) return;
+          future = futures.remove(futures.size() - 1);
+        }
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch (ExecutionException e) {
+          log.error("Error during parallel autowarming", e.getCause());
+        }
+      }
+    }
   }
 
   /**
@@ -2339,8 +2577,22 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       }
     }
 
+    // nCache segments are created by a bounded pool of threads while the other caches are warmed
+    if (nCache != null) {
+      warmContext.executor = core.getNCacheWarmExecutor();
+    }
+
     // Make sure nCache is first, followed by filters... then filters can help queryResults execute!
     long warmingStartTime = System.nanoTime();
+    try {
+      warmCaches(old, warmContext);
+    } finally {
+      warmContext.waitForTasks();
+    }
+    warmupTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - warmingStartTime, TimeUnit.NANOSECONDS);
+  }
+
+  private void warmCaches(SolrIndexSearcher old, WarmContext warmContext) {
     // warm the caches in order...
     ModifiableSolrParams params = new ModifiableSolrParams();
     params.add("warming","true");
@@ -2371,7 +2623,6 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
 
       if (debug) log.debug("autowarming result for " + this + "\n\t" + this.cacheList[i]);
     }
-    warmupTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - warmingStartTime, TimeUnit.NANOSECONDS);
   }
 
   /**
@@ -2381,6 +2632,11 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     return cacheMap.get(cacheName);
   }
 
+  /** @return the filterCache, or null if caching is disabled */
+  public SolrCache<Query,DocSet> getFilterCache() {
+    return filterCache;
+  }
+
 
   public long getOpenTime() {
     return openTime;
@@ -2440,6 +2696,11 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     lst.add("openedAt", new Date(openTime));
     if (registerTime!=0) lst.add("registeredAt", new Date(registerTime));
     lst.add("warmupTime", warmupTime);
+    lst.add("perSegmentFilterCache", perSegmentFilterCache);
+    if (leafValuesStore != null) {
+      lst.add("nCacheLoaded", leafValuesStore.getNumLoaded());
+      lst.add("nCacheStored", leafValuesStore.getNumStored());
+    }
     return lst;
   }
 
@@ -40,6 +40,11 @@ public class SortedIntDocSetNative extends DocSetBaseNative implements RefCount
     HS.freeArray(array);
   }
 
+  @Override
+  public void setAccount(HS.Account account) {
+    HS.setArrayAccount(array, account);
+  }
+
   /**
    * @param docs  Sorted list of ids
    */
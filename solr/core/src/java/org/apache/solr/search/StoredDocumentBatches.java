@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.IndexReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Reads the stored fields of the documents of a large {@link DocList} in batches, for writing them to a
+ * response.  The documents of each batch are loaded in docid order (so the stored fields of each segment
+ * are read front to back) into native memory charged to the request, and are then returned in the order
+ * of the list.  Only one batch is held at a time, and its charge is released when it is freed, so the memory
+ * used (and counted against {@code solr.hs.limit.perRequest}) does not grow with the number of rows asked for.  Documents are read from the index rather than the documentCache, which an export
+ * would otherwise flush.
+ */
+public class StoredDocumentBatches implements Closeable {
+  /** Pages of more than this many documents are read in batches of this size */
+  public static final int BATCH_SIZE = Integer.getInteger("solr.export.batchSize", 1000);
+
+  private final IndexReader reader;
+  private final StoredDocumentNative.Builder builder;
+  private final DocIterator iterator;
+  private int docsLeft;
+  private final long[] sorted;  // the docid of each document in the batch in the high bits, its position in the low bits
+  private final StoredDocumentNative[] docs;
+  private int size;
+  private int pos;
+
+  /**
+   * @param fieldNames the stored fields to load (see {@link ReturnFields#getLuceneFieldNames()}), or null for all
+   */
+  public StoredDocumentBatches(SolrIndexSearcher searcher, DocList list, Set<String> fieldNames) {
+    this.reader = searcher.getIndexReader();
+    this.builder = new StoredDocumentNative.Builder(searcher.getAtomicReader().getFieldInfos(), fieldNames);
+    this.iterator = list.iterator();
+    this.docsLeft = list.size();
+    int batchSize = Math.max(1, Math.min(BATCH_SIZE, docsLeft));
+    this.sorted = new long[batchSize];
+    this.docs = new StoredDocumentNative[batchSize];
+  }
+
+  /** Whether the documents of a list are better read in batches than one at a time */
+  public static boolean useBatches(DocList list) {
+    return list.size() > BATCH_SIZE;
+  }
+
+  /**
+   * Returns the next document of the list.  It is only valid until the next batch is loaded, which may
+   * be by the next call.
+   */
+  public StoredDocumentNative next() throws IOException {
+    if (pos == size) {
+      loadBatch();
+    }
+    return docs[pos++];
+  }
+
+  private void loadBatch() throws IOException {
+    release();
+    if (docsLeft == 0) {
+      throw new NoSuchElementException();
+    }
+    size = Math.min(docs.length, docsLeft);
+    docsLeft -= size;
+    for (int i=0; i<size; i++) {
+      sorted[i] = ((long)iterator.nextDoc() << 32) | i;
+    }
+    Arrays.sort(sorted, 0, size);
+    for (int i=0; i<size; i++) {
+      reader.document((int)(sorted[i] >>> 32), builder);
+      docs[(int)sorted[i]] = builder.build();
+    }
+  }
+
+  private void release() {
+    for (int i=0; i<size; i++) {
+      if (docs[i] != null) {
+        docs[i].decref();
+        docs[i] = null;
+      }
+    }
+    size = 0;
+    pos = 0;
+  }
+
+  @Override
+  public void close() {
+    release();
+  }
+}
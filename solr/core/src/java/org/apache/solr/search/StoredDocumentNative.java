@@ -0,0 +1,420 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.UnicodeUtil;
+import org.apache.solr.core.HS;
+import org.apache.solr.core.RefCount;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The stored fields of a document serialized into a single block of native memory, as kept by the
+ * off-heap documentCache (<code>&lt;documentCache native="true" .../&gt;</code>).
+ * <p>
+ * The values of each field are kept together, in the order the fields were first stored, so that
+ * response writers can write the fields of a document as they are read (see {@link Reader}) without
+ * building a {@link Document} or a {@link org.apache.solr.common.SolrDocument}.  The block holds the
+ * vInt number of fields, then for each field its vInt number (in the searcher's {@link FieldInfos}),
+ * its vInt number of values and the vInt length of its values, followed by the values.  Each value is
+ * a type byte followed by the vInt length and bytes of a string (UTF-8) or binary value, or by the
+ * bits of a numeric value.
+ */
+public class StoredDocumentNative implements RefCount {
+  static final byte STRING = 0;
+  static final byte BINARY = 1;
+  static final byte INT = 2;
+  static final byte LONG = 3;
+  static final byte FLOAT = 4;
+  static final byte DOUBLE = 5;
+
+  private final long array;
+  private final FieldInfos fieldInfos;
+  private final AtomicInteger refcount = new AtomicInteger(1);
+
+  private StoredDocumentNative(long array, FieldInfos fieldInfos) {
+    this.array = array;
+    this.fieldInfos = fieldInfos;
+  }
+
+  public FieldInfos getFieldInfos() {
+    return fieldInfos;
+  }
+
+  public long memSize() {
+    return HS.arraySizeBytes(array) + 32;
+  }
+
+  /** Visits the stored fields as {@link org.apache.lucene.index.IndexReader#document(int, StoredFieldVisitor)} would */
+  public void visit(StoredFieldVisitor visitor) throws IOException {
+    Reader reader = new Reader();
+    reader.reset(this);
+    while (reader.nextField()) {
+      switch (visitor.needsField(reader.getFieldInfo())) {
+        case YES:
+          for (int i=0; i<reader.getNumValues(); i++) {
+            reader.visitValue(visitor);
+          }
+          break;
+        case NO:
+          break;
+        case STOP:
+          return;
+      }
+    }
+  }
+
+  public Document toDocument() throws IOException {
+    DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
+    visit(visitor);
+    return visitor.getDocument();
+  }
+
+  @Override
+  public String toString() {
+    return "StoredDocumentNative{bytes=" + (refcount.get() > 0 ? HS.arraySizeBytes(array) : -1) + "}";
+  }
+
+
+  /**
+   * Reads the fields of a document, one at a time.  The document is copied into a buffer that is re-used
+   * across calls to {@link #reset}, so one reader may be used for all of the documents of a response.
+   */
+  public static class Reader {
+    private final ByteArrayDataInput in = new ByteArrayDataInput();
+    private byte[] buf = BytesRef.EMPTY_BYTES;
+    private FieldInfos fieldInfos;
+    private int numFields;
+    private int fieldsStart;
+    private int fieldsLeft;
+    private int fieldEnd;
+    private FieldInfo fieldInfo;
+    private int numValues;
+
+    public void reset(StoredDocumentNative doc) {
+      int len = (int) HS.arraySizeBytes(doc.array);
+      if (buf.length < len) {
+        buf = new byte[ArrayUtil.oversize(len, 1)];
+      }
+      HS.copyBytes(doc.array, 0, buf, 0, len);
+      in.reset(buf, 0, len);
+      fieldInfos = doc.fieldInfos;
+      numFields = in.readVInt();
+      fieldsStart = in.getPosition();
+      rewind();
+    }
+
+    /** Goes back to before the first field */
+    public void rewind() {
+      fieldsLeft = numFields;
+      fieldEnd = fieldsStart;
+      fieldInfo = null;
+    }
+
+    public int getNumFields() {
+      return numFields;
+    }
+
+    /** Moves to the next field (skipping any values of the current one that weren't read), returning false if there are no more */
+    public boolean nextField() {
+      if (fieldsLeft == 0) return false;
+      fieldsLeft--;
+      in.setPosition(fieldEnd);
+      fieldInfo = fieldInfos.fieldInfo(in.readVInt());
+      numValues = in.readVInt();
+      int len = in.readVInt();
+      fieldEnd = in.getPosition() + len;
+      return true;
+    }
+
+    public FieldInfo getFieldInfo() {
+      return fieldInfo;
+    }
+
+    public String getFieldName() {
+      return fieldInfo.name;
+    }
+
+    public int getNumValues() {
+      return numValues;
+    }
+
+    /** Reads the next value of the current field as a stored field, like those of a {@link Document} loaded from the index */
+    public IndexableField nextValue() {
+      byte type = in.readByte();
+      switch (type) {
+        case STRING:
+          final FieldType ft = new FieldType(TextField.TYPE_STORED);
+          ft.setStoreTermVectors(fieldInfo.hasVectors());
+          ft.setIndexed(fieldInfo.isIndexed());
+          ft.setOmitNorms(fieldInfo.omitsNorms());
+          ft.setIndexOptions(fieldInfo.getIndexOptions());
+          return new Field(fieldInfo.name, readString(), ft);
+        case BINARY:
+          return new StoredField(fieldInfo.name, readBinary());
+        case INT:
+          return new StoredField(fieldInfo.name, in.readInt());
+        case LONG:
+          return new StoredField(fieldInfo.name, in.readLong());
+        case FLOAT:
+          return new StoredField(fieldInfo.name, Float.intBitsToFloat(in.readInt()));
+        case DOUBLE:
+          return new StoredField(fieldInfo.name, Double.longBitsToDouble(in.readLong()));
+        default:
+          throw new IllegalStateException("Unknown type " + type + " of stored field " + fieldInfo.name);
+      }
+    }
+
+    void visitValue(StoredFieldVisitor visitor) throws IOException {
+      byte type = in.readByte();
+      switch (type) {
+        case STRING:
+          visitor.stringField(fieldInfo, readString());
+          break;
+        case BINARY:
+          visitor.binaryField(fieldInfo, readBinary());
+          break;
+        case INT:
+          visitor.intField(fieldInfo, in.readInt());
+          break;
+        case LONG:
+          visitor.longField(fieldInfo, in.readLong());
+          break;
+        case FLOAT:
+          visitor.floatField(fieldInfo, Float.intBitsToFloat(in.readInt()));
+          break;
+        case DOUBLE:
+          visitor.doubleField(fieldInfo, Double.longBitsToDouble(in.readLong()));
+          break;
+        default:
+          throw new IllegalStateException("Unknown type " + type + " of stored field " + fieldInfo.name);
+      }
+    }
+
+    private String readString() {
+      int len = in.readVInt();
+      String s = new String(buf, in.getPosition(), len, StandardCharsets.UTF_8);
+      in.skipBytes(len);
+      return s;
+    }
+
+    private byte[] readBinary() {
+      byte[] bytes = new byte[in.readVInt()];
+      in.readBytes(bytes, 0, bytes.length);
+      return bytes;
+    }
+  }
+
+
+  /**
+   * Collects the stored fields of a document as it is loaded from the index, and serializes them with
+   * {@link #build}.  Fields are numbered by the given (top level) field infos, so that documents from
+   * all segments can be read with them.
+   */
+  public static class Builder extends StoredFieldVisitor {
+    private final FieldInfos fieldInfos;
+    private final Set<String> fieldNames;
+    private final Map<FieldInfo,List<Object>> fields = new LinkedHashMap<>();
+    private final GrowableByteArrayDataOutput out = new GrowableByteArrayDataOutput(256);
+    private final GrowableByteArrayDataOutput values = new GrowableByteArrayDataOutput(256);
+    private final BytesRef utf8 = new BytesRef();
+
+    public Builder(FieldInfos fieldInfos) {
+      this(fieldInfos, null);
+    }
+
+    /** Only collects the named fields, or all of them if <code>fieldNames</code> is null */
+    public Builder(FieldInfos fieldInfos, Set<String> fieldNames) {
+      this.fieldInfos = fieldInfos;
+      this.fieldNames = fieldNames;
+    }
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) {
+      return fieldNames == null || fieldNames.contains(fieldInfo.name) ? Status.YES : Status.NO;
+    }
+
+    private void add(FieldInfo segmentInfo, Object value) {
+      FieldInfo info = fieldInfos.fieldInfo(segmentInfo.name);
+      if (info == null) info = segmentInfo;
+      List<Object> vals = fields.get(info);
+      if (vals == null) {
+        vals = new ArrayList<>(2);
+        fields.put(info, vals);
+      }
+      vals.add(value);
+    }
+
+    @Override
+    public void binaryField(FieldInfo fieldInfo, byte[] value) {
+      add(fieldInfo, value);
+    }
+
+    @Override
+    public void stringField(FieldInfo fieldInfo, String value) {
+      add(fieldInfo, value);
+    }
+
+    @Override
+    public void intField(FieldInfo fieldInfo, int value) {
+      add(fieldInfo, value);
+    }
+
+    @Override
+    public void longField(FieldInfo fieldInfo, long value) {
+      add(fieldInfo, value);
+    }
+
+    @Override
+    public void floatField(FieldInfo fieldInfo, float value) {
+      add(fieldInfo, value);
+    }
+
+    @Override
+    public void doubleField(FieldInfo fieldInfo, double value) {
+      add(fieldInfo, value);
+    }
+
+    /** Serializes the fields collected into native memory (charged to the current {@link HS.Account}) and resets the builder */
+    public StoredDocumentNative build() throws IOException {
+      out.length = 0;
+      out.writeVInt(fields.size());
+      for (Map.Entry<FieldInfo,List<Object>> entry : fields.entrySet()) {
+        values.length = 0;
+        for (Object val : entry.getValue()) {
+          writeValue(val);
+        }
+        out.writeVInt(entry.getKey().number);
+        out.writeVInt(entry.getValue().size());
+        out.writeVInt(values.length);
+        out.writeBytes(values.bytes, 0, values.length);
+      }
+      fields.clear();
+
+      long arr = HS.allocArray(out.length, 1, false);
+      HS.copyBytes(out.bytes, 0, arr, 0, out.length);
+      return new StoredDocumentNative(arr, fieldInfos);
+    }
+
+    private void writeValue(Object val) throws IOException {
+      if (val instanceof String) {
+        String s = (String) val;
+        UnicodeUtil.UTF16toUTF8(s, 0, s.length(), utf8);
+        values.writeByte(STRING);
+        values.writeVInt(utf8.length);
+        values.writeBytes(utf8.bytes, utf8.offset, utf8.length);
+      } else if (val instanceof byte[]) {
+        byte[] bytes = (byte[]) val;
+        values.writeByte(BINARY);
+        values.writeVInt(bytes.length);
+        values.writeBytes(bytes, 0, bytes.length);
+      } else if (val instanceof Integer) {
+        values.writeByte(INT);
+        values.writeInt((Integer) val);
+      } else if (val instanceof Long) {
+        values.writeByte(LONG);
+        values.writeLong((Long) val);
+      } else if (val instanceof Float) {
+        values.writeByte(FLOAT);
+        values.writeInt(Float.floatToRawIntBits((Float) val));
+      } else {
+        values.writeByte(DOUBLE);
+        values.writeLong(Double.doubleToRawLongBits((Double) val));
+      }
+    }
+  }
+
+
+  @Override
+  public int getRefCount() {
+    return refcount.get();
+  }
+
+  @Override
+  public int incref() {
+    int count;
+    while ((count = refcount.get()) > 0) {
+      if (refcount.compareAndSet(count, count+1)) {
+        return count+1;
+      }
+    }
+    throw new RuntimeException("Trying to incref freed native document " + this);
+  }
+
+  @Override
+  public int decref() {
+    int count;
+    while ((count = refcount.get()) > 0) {
+      int newCount = count - 1;
+      if (refcount.compareAndSet(count, newCount)) {
+        if (newCount == 0) {
+          HS.freeArray(array);
+        }
+        return newCount;
+      }
+    }
+    throw new RuntimeException("Too many decrefs detected for native document " + this);
+  }
+
+  @Override
+  public boolean tryIncref() {
+    int count;
+    while ((count = refcount.get()) > 0) {
+      if (refcount.compareAndSet(count, count+1)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean tryDecref() {
+    int count;
+    while ((count = refcount.get()) > 0) {
+      int newCount = count - 1;
+      if (refcount.compareAndSet(count, newCount)) {
+        if (newCount == 0) {
+          HS.freeArray(array);
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -52,6 +52,9 @@ public abstract class FieldValues extends ValueSource {
 
   public String getFieldName() { return field.getName(); }
 
+  /** The key under which the TopValues for this source are stored in the nCache and the QueryContext */
+  public String getCacheKey() { return field.getName(); }
+
   public TopValues getTopValues(QueryContext context) {
     assert context != null;
 
@@ -66,16 +69,17 @@ public abstract class FieldValues extends ValueSource {
     SolrCache<String, TopValues> fieldCache = context.searcher().getnCache();
 
     // just use the name for now
-    entry = fieldCache.get(field.getName());
+    String key = getCacheKey();
+    entry = fieldCache.get(key);
     if (entry == null) {
       TopValues newEntry = createTopValues(context.searcher());
       // is it kosher to synchronize on the cache?
       synchronized (fieldCache) {
         // try again to see if someone beat us to it
-        entry = fieldCache.check(field.getName());
+        entry = fieldCache.check(key);
         if (entry == null) {
           newEntry.incref();  // additional reference for the cache
-          fieldCache.put(field.getName(), newEntry);
+          fieldCache.put(key, newEntry);
           entry = newEntry;
         } else {
           // someone else beat us to it... discard ours.
@@ -24,6 +24,8 @@ import org.apache.solr.search.function.ValueSourceScorer;
 import org.apache.solr.search.mutable.MutableValue;
 import org.apache.solr.search.mutable.MutableValueInt;
 
+import java.io.IOException;
+
 
 public abstract class IntLeafValues extends LeafValues {
   protected IntFieldStats stats;
@@ -38,6 +40,17 @@ public abstract class IntLeafValues extends LeafValues {
     return stats;
   }
 
+  boolean write(LeafValuesStore.Writer out, byte type, long arr, int valueOffset, BitDocSetNative valid) throws IOException {
+    out.writeByte(type);
+    out.writeStats(stats);
+    out.writeInt(stats.firstValue);
+    out.writeInt(stats.lastValue);
+    out.writeInt(valueOffset);
+    out.writeDocSet(valid);
+    out.writeArray(arr);
+    return true;
+  }
+
   @Override
   public float floatVal(int doc) {
     return (float) intVal(doc);
@@ -121,6 +134,11 @@ class Int32LeafValues extends IntLeafValues {
     return HS.arraySizeBytes(arr) + (valid==null ? 0 : valid.memSize());
   }
 
+  @Override
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    return write(out, LeafValuesStore.INT_32, arr, 0, valid);
+  }
+
   @Override
   protected void free() {
     HS.freeArray(arr);
@@ -159,6 +177,11 @@ class Int8LeafValues extends IntLeafValues {
     return HS.arraySizeBytes(arr) + (valid==null ? 0 : valid.memSize());
   }
 
+  @Override
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    return write(out, LeafValuesStore.INT_8, arr, valueOffset, valid);
+  }
+
   @Override
   protected void free() {
     HS.freeArray(arr);
@@ -196,6 +219,11 @@ class Int16LeafValues extends IntLeafValues {
     return HS.arraySizeBytes(arr) + (valid==null ? 0 : valid.memSize());
   }
 
+  @Override
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    return write(out, LeafValuesStore.INT_16, arr, valueOffset, valid);
+  }
+
   @Override
   protected void free() {
     HS.freeArray(arr);
@@ -229,6 +257,12 @@ class Int0LeafValues extends IntLeafValues {
     return 0;
   }
 
+  @Override
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    out.writeByte(LeafValuesStore.INT_0);
+    return true;
+  }
+
   @Override
   protected void free() {
   }
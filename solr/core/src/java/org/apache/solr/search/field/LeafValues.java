@@ -54,6 +54,11 @@ public abstract class LeafValues extends FuncValues implements RefCount, Closeab
 
   public abstract FieldStats getFieldStats();
 
+  /** Writes these values so that they can be loaded by {@link LeafValuesStore}, returning false if not supported. */
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    return false;
+  }
+
 
   public static abstract class Uninvert implements Closeable {
     public int maxDoc;
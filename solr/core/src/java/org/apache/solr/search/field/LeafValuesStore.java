@@ -0,0 +1,514 @@
+package org.apache.solr.search.field;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Terms;
+import org.apache.solr.core.HS;
+import org.apache.solr.search.BitDocSetNative;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persists the per-segment {@link LeafValues} of the nCache to files next to the index so that
+ * after a restart they can be memory-mapped instead of un-inverted again.
+ * <p>
+ * There is one file per segment and field, named after both.  Since segments are write-once, a file stays
+ * valid until its segment is merged away (see {@link #removeStale}).  The file also records the
+ * segment's document and term statistics which must match for it to be used.  Deletions don't matter
+ * since values are un-inverted for deleted documents as well.
+ * <p>
+ * Arrays are stored in the native byte order with an HS array header in front of each, so that they can
+ * be used directly from the mapped file (see {@link HS#mapFile}).  Any file that can't be used is
+ * simply rebuilt.
+ */
+public class LeafValuesStore {
+  private static Logger log = LoggerFactory.getLogger(LeafValuesStore.class);
+
+  public static final String SUFFIX = ".hsv";
+  static final int MAGIC = 0x48535631;  // "HSV1"
+  static final int VERSION = 1;
+
+  // LeafValues types
+  static final byte STR_ARR = 1;
+  static final byte STR_0 = 2;
+  static final byte STR_FRONT_CODED = 3;
+  static final byte INT_0 = 10;
+  static final byte INT_8 = 11;
+  static final byte INT_16 = 12;
+  static final byte INT_32 = 13;
+  static final byte LONG_0 = 20;
+  static final byte LONG_8 = 21;
+  static final byte LONG_16 = 22;
+  static final byte LONG_32 = 23;
+  static final byte LONG_64 = 24;
+
+  // LongArray types
+  static final byte ARRAY_8 = 8;
+  static final byte ARRAY_16 = 16;
+  static final byte ARRAY_32 = 32;
+  static final byte ARRAY_64 = 64;
+  static final byte ARRAY_MONOTONIC = 1;
+
+  private final File dir;
+  private final AtomicLong numLoaded = new AtomicLong();
+  private final AtomicLong numStored = new AtomicLong();
+  private final AtomicLong numErrors = new AtomicLong();
+
+  public LeafValuesStore(File dir) {
+    this.dir = dir;
+  }
+
+  public File getDirectory() {
+    return dir;
+  }
+
+  /** The number of leaves that were mapped from a file instead of being created */
+  public long getNumLoaded() {
+    return numLoaded.get();
+  }
+
+  /** The number of leaves that were created and written to a file */
+  public long getNumStored() {
+    return numStored.get();
+  }
+
+  public long getNumErrors() {
+    return numErrors.get();
+  }
+
+  /** Loads the values for the segment if they were stored before, otherwise creates and stores them. */
+  LeafValues getOrCreate(TopValues topValues, TopValues.CreationLeafValue create, AtomicReaderContext readerContext) throws IOException {
+    File file = getFile(topValues, readerContext);
+    if (file == null) {
+      return topValues.createValue(topValues, create, readerContext);
+    }
+
+    long[] check = getChecks(topValues, readerContext.reader());
+
+    if (file.exists()) {
+      LeafValues leaf = load(file, check, topValues);
+      if (leaf != null) {
+        numLoaded.incrementAndGet();
+        return leaf;
+      }
+    }
+
+    LeafValues leaf = topValues.createValue(topValues, create, readerContext);
+    store(file, check, leaf);
+    return leaf;
+  }
+
+  /** Removes the files of all segments other than the given ones. */
+  public void removeStale(List<AtomicReaderContext> leaves) {
+    Set<String> segments = new HashSet<>(leaves.size());
+    for (AtomicReaderContext leaf : leaves) {
+      if (leaf.reader() instanceof SegmentReader) {
+        segments.add(((SegmentReader)leaf.reader()).getSegmentName());
+      }
+    }
+
+    String[] names = dir.list();
+    if (names == null) return;
+    for (String name : names) {
+      boolean temp = name.endsWith(".tmp");
+      if (!name.endsWith(SUFFIX) && !temp) continue;
+      int dot = name.indexOf('.');
+      if (temp || dot <= 0 || !segments.contains(name.substring(0, dot))) {
+        // on some platforms this will fail while still mapped... we'll try again next time.
+        new File(dir, name).delete();
+      }
+    }
+  }
+
+  private File getFile(TopValues topValues, AtomicReaderContext readerContext) throws IOException {
+    if (!(readerContext.reader() instanceof SegmentReader)) {
+      return null;
+    }
+    String segment = ((SegmentReader)readerContext.reader()).getSegmentName();
+    String key = URLEncoder.encode(topValues.fieldValues.getCacheKey(), "UTF-8");
+    return new File(dir, segment + '.' + key + '.' + topValues.getClass().getSimpleName() + SUFFIX);
+  }
+
+  /** The values that must match for a stored file to be used for a segment */
+  private long[] getChecks(TopValues topValues, AtomicReader reader) throws IOException {
+    long timestamp = 0;
+    String ts = ((SegmentReader)reader).getSegmentInfo().info.getDiagnostics().get("timestamp");
+    if (ts != null) {
+      try {
+        timestamp = Long.parseLong(ts);
+      } catch (NumberFormatException e) {
+        // ignore
+      }
+    }
+
+    Terms terms = reader.terms(topValues.fieldValues.getFieldName());
+    return new long[] {
+        reader.maxDoc(),
+        timestamp,
+        terms == null ? -1 : terms.size(),
+        terms == null ? -1 : terms.getSumDocFreq(),
+        terms == null ? -1 : terms.getDocCount()
+    };
+  }
+
+  private LeafValues load(File file, long[] check, TopValues topValues) {
+    Reader in = null;
+    try {
+      in = new Reader(HS.mapFile(file));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return null;
+      }
+      for (long val : check) {
+        if (in.readLong() != val) {
+          return null;
+        }
+      }
+      LeafValues leaf = read(in, topValues.fieldValues);
+      in.arrays.clear();  // now owned by the leaf
+      return leaf;
+    } catch (Exception e) {
+      numErrors.incrementAndGet();
+      log.warn("Unable to load " + file + ", rebuilding", e);
+      return null;
+    } finally {
+      if (in != null) {
+        in.close();
+      }
+    }
+  }
+
+  private void store(File file, long[] check, LeafValues leaf) {
+    File tmp = null;
+    try {
+      dir.mkdirs();
+      tmp = File.createTempFile(file.getName(), ".tmp", dir);
+      boolean written;
+      try (Writer out = new Writer(tmp)) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        for (long val : check) {
+          out.writeLong(val);
+        }
+        written = leaf.write(out);
+      }
+      if (written) {
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        tmp = null;
+        numStored.incrementAndGet();
+      }
+    } catch (Exception e) {
+      numErrors.incrementAndGet();
+      log.warn("Unable to store " + file, e);
+    } finally {
+      if (tmp != null) {
+        tmp.delete();
+      }
+    }
+  }
+
+  private static LeafValues read(Reader in, FieldValues fieldValues) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case STR_ARR: {
+        StrFieldStats stats = new StrFieldStats();
+        in.readStats(stats);
+        LongArray ords = in.readLongArray();
+        LongArray offsets = in.readLongArray();
+        long termBytes = in.readArray();
+        return new StrArrLeafValues(fieldValues, ords, offsets, termBytes, stats);
+      }
+      case STR_FRONT_CODED: {
+        StrFieldStats stats = new StrFieldStats();
+        in.readStats(stats);
+        LongArray ords = in.readLongArray();
+        LongArray blockOffsets = in.readLongArray();
+        long termBytes = in.readArray();
+        return new StrFrontCodedLeafValues(fieldValues, ords, blockOffsets, termBytes, stats);
+      }
+      case STR_0: {
+        StrFieldStats stats = new StrFieldStats();
+        in.readStats(stats);
+        return new Str0Values(fieldValues, stats);
+      }
+      case INT_0:
+        return new Int0LeafValues(fieldValues);
+      case INT_8:
+      case INT_16:
+      case INT_32: {
+        IntFieldStats stats = new IntFieldStats();
+        in.readStats(stats);
+        stats.firstValue = in.readInt();
+        stats.lastValue = in.readInt();
+        int valueOffset = in.readInt();
+        BitDocSetNative valid = in.readDocSet();
+        long arr = in.readArray();
+        if (type == INT_8) return new Int8LeafValues(fieldValues, arr, valueOffset, valid, stats);
+        if (type == INT_16) return new Int16LeafValues(fieldValues, arr, valueOffset, valid, stats);
+        return new Int32LeafValues(fieldValues, arr, valid, stats);
+      }
+      case LONG_0:
+        return new Long0LeafValues(fieldValues);
+      case LONG_8:
+      case LONG_16:
+      case LONG_32:
+      case LONG_64: {
+        LongFieldStats stats = new LongFieldStats();
+        in.readStats(stats);
+        stats.firstValue = in.readLong();
+        stats.lastValue = in.readLong();
+        long valueOffset = in.readLong();
+        BitDocSetNative valid = in.readDocSet();
+        long arr = in.readArray();
+        if (type == LONG_8) return new Long8LeafValues(fieldValues, arr, valueOffset, valid, stats);
+        if (type == LONG_16) return new Long16LeafValues(fieldValues, arr, valueOffset, valid, stats);
+        if (type == LONG_32) return new Long32LeafValues(fieldValues, arr, valueOffset, valid, stats);
+        return new Long64LeafValues(fieldValues, arr, valid, stats);
+      }
+      default:
+        throw new IOException("Unknown type " + type);
+    }
+  }
+
+
+  /** Writes the values of a leaf in the format expected by {@link Reader} */
+  static class Writer implements AutoCloseable {
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.nativeOrder());
+    private long pos;
+
+    Writer(File file) throws IOException {
+      out = new FileOutputStream(file);
+      channel = out.getChannel();
+    }
+
+    private void ensure(int n) throws IOException {
+      if (buf.remaining() < n) flush();
+    }
+
+    private void flush() throws IOException {
+      buf.flip();
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
+      buf.clear();
+    }
+
+    void writeByte(byte v) throws IOException {
+      ensure(1);
+      buf.put(v);
+      pos += 1;
+    }
+
+    void writeInt(int v) throws IOException {
+      ensure(4);
+      buf.putInt(v);
+      pos += 4;
+    }
+
+    void writeLong(long v) throws IOException {
+      ensure(8);
+      buf.putLong(v);
+      pos += 8;
+    }
+
+    private void align() throws IOException {
+      while ((pos & 0xf) != 0) {
+        writeByte((byte)0);
+      }
+    }
+
+    void writeStats(FieldStats stats) throws IOException {
+      writeInt(stats.numDocsWithField);
+      writeLong(stats.numUniqueValues);
+    }
+
+    /** Writes a native array (or 0 for no array) */
+    void writeArray(long ptr) throws IOException {
+      if (ptr == 0) {
+        writeLong(-1);
+        return;
+      }
+      long sz = HS.arraySizeBytes(ptr);
+      writeLong(sz);
+      align();
+      ensure(HS.HEADER_SIZE);
+      HS.writeMappedArrayHeader(sz, buf);
+      pos += HS.HEADER_SIZE;
+
+      byte[] arr = buf.array();
+      for (long off = 0; off < sz; ) {
+        if (!buf.hasRemaining()) flush();
+        int n = (int)Math.min(buf.remaining(), sz - off);
+        HS.copyBytes(ptr, off, arr, buf.arrayOffset() + buf.position(), n);
+        buf.position(buf.position() + n);
+        off += n;
+      }
+      pos += sz;
+    }
+
+    void writeLongArray(LongArray arr) throws IOException {
+      if (arr instanceof MonotonicLongArray) {
+        MonotonicLongArray monotonic = (MonotonicLongArray)arr;
+        writeByte(ARRAY_MONOTONIC);
+        writeLong(monotonic.getScaledAverageLength());
+        writeInt(monotonic.getOffset());
+        writeLongArray(monotonic.getAdjustments());
+      } else if (arr instanceof LongArrayBasicNative) {
+        byte type;
+        if (arr instanceof LongArray8) type = ARRAY_8;
+        else if (arr instanceof LongArray16) type = ARRAY_16;
+        else if (arr instanceof LongArray32) type = ARRAY_32;
+        else if (arr instanceof LongArray64) type = ARRAY_64;
+        else throw new IOException("Can't write " + arr.getClass());
+        writeByte(type);
+        writeArray(((LongArrayBasicNative)arr).getNativeArray());
+      } else {
+        throw new IOException("Can't write " + arr.getClass());
+      }
+    }
+
+    /** Writes a set of documents (or null for no set) */
+    void writeDocSet(BitDocSetNative set) throws IOException {
+      if (set == null) {
+        writeInt(-1);
+        return;
+      }
+      writeInt(set.numWords());
+      writeArray(set.getNativeArray());
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        flush();
+        channel.force(false);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+
+  /** Reads back what was written by {@link Writer}, taking arrays directly from the mapped file */
+  static class Reader {
+    private final HS.MappedFile file;
+    private final ByteBuffer buf;
+    final List<Long> arrays = new ArrayList<>();  // arrays to free if reading fails
+
+    Reader(HS.MappedFile file) {
+      this.file = file;
+      this.buf = file.getBuffer();
+    }
+
+    byte readByte() {
+      return buf.get();
+    }
+
+    int readInt() {
+      return buf.getInt();
+    }
+
+    long readLong() {
+      return buf.getLong();
+    }
+
+    void readStats(FieldStats stats) {
+      stats.numDocsWithField = readInt();
+      stats.numUniqueValues = readLong();
+    }
+
+    long readArray() throws IOException {
+      long sz = readLong();
+      if (sz == -1) {
+        return 0;
+      }
+      int pos = (buf.position() + 0xf) & ~0xf;
+      pos += HS.HEADER_SIZE;
+      if (sz < 0 || pos + sz > file.getSize()) {
+        throw new IOException("Bad array size " + sz);
+      }
+      long ptr = file.getArray(pos);
+      arrays.add(ptr);
+      if (HS.arraySizeBytes(ptr) != sz) {
+        throw new IOException("Bad array size " + sz);
+      }
+      buf.position((int)(pos + sz));
+      return ptr;
+    }
+
+    LongArray readLongArray() throws IOException {
+      byte type = readByte();
+      switch (type) {
+        case ARRAY_MONOTONIC:
+          long scaledAverageLength = readLong();
+          int offset = readInt();
+          return new MonotonicLongArray(readLongArray(), scaledAverageLength, offset);
+        case ARRAY_8:
+          return new LongArray8(readArray());
+        case ARRAY_16:
+          return new LongArray16(readArray());
+        case ARRAY_32:
+          return new LongArray32(readArray());
+        case ARRAY_64:
+          return new LongArray64(readArray());
+        default:
+          throw new IOException("Unknown array type " + type);
+      }
+    }
+
+    BitDocSetNative readDocSet() throws IOException {
+      int wlen = readInt();
+      if (wlen == -1) {
+        return null;
+      }
+      long arr = readArray();
+      if (HS.arraySizeBytes(arr) < ((long)wlen << 3)) {
+        throw new IOException("Bad set size " + wlen);
+      }
+      return new BitDocSetNative(arr, wlen);
+    }
+
+    /** Frees any arrays not handed off, and releases the reference to the file */
+    void close() {
+      for (long ptr : arrays) {
+        HS.freeArray(ptr);
+      }
+      arrays.clear();
+      file.close();
+    }
+  }
+}
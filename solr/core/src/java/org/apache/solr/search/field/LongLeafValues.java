@@ -25,6 +25,8 @@ import org.apache.solr.search.function.ValueSourceScorer;
 import org.apache.solr.search.mutable.MutableValue;
 import org.apache.solr.search.mutable.MutableValueLong;
 
+import java.io.IOException;
+
 // TODO: somehow unify with int better?
 public abstract class LongLeafValues extends LeafValues {
   protected LongFieldStats stats;
@@ -39,6 +41,17 @@ public abstract class LongLeafValues extends LeafValues {
     return stats;
   }
 
+  boolean write(LeafValuesStore.Writer out, byte type, long arr, long valueOffset, BitDocSetNative valid) throws IOException {
+    out.writeByte(type);
+    out.writeStats(stats);
+    out.writeLong(stats.firstValue);
+    out.writeLong(stats.lastValue);
+    out.writeLong(valueOffset);
+    out.writeDocSet(valid);
+    out.writeArray(arr);
+    return true;
+  }
+
   @Override
   public float floatVal(int doc) {
     return (float) longVal(doc);
@@ -125,6 +138,11 @@ class Long64LeafValues extends LongLeafValues {
     return HS.arraySizeBytes(arr) + (valid==null ? 0 : valid.memSize());
   }
 
+  @Override
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    return write(out, LeafValuesStore.LONG_64, arr, 0, valid);
+  }
+
   @Override
   protected void free() {
     HS.freeArray(arr);
@@ -162,6 +180,11 @@ class Long8LeafValues extends LongLeafValues {
     return HS.arraySizeBytes(arr) + (valid==null ? 0 : valid.memSize());
   }
 
+  @Override
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    return write(out, LeafValuesStore.LONG_8, arr, valueOffset, valid);
+  }
+
   @Override
   protected void free() {
     HS.freeArray(arr);
@@ -200,6 +223,11 @@ class Long16LeafValues extends LongLeafValues {
     return HS.arraySizeBytes(arr) + (valid==null ? 0 : valid.memSize());
   }
 
+  @Override
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    return write(out, LeafValuesStore.LONG_16, arr, valueOffset, valid);
+  }
+
   @Override
   protected void free() {
     HS.freeArray(arr);
@@ -238,6 +266,11 @@ class Long32LeafValues extends LongLeafValues {
     return HS.arraySizeBytes(arr) + (valid==null ? 0 : valid.memSize());
   }
 
+  @Override
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    return write(out, LeafValuesStore.LONG_32, arr, valueOffset, valid);
+  }
+
   @Override
   protected void free() {
     HS.freeArray(arr);
@@ -271,6 +304,12 @@ class Long0LeafValues extends LongLeafValues {
     return 0;
   }
 
+  @Override
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    out.writeByte(LeafValuesStore.LONG_0);
+    return true;
+  }
+
   @Override
   protected void free() {
   }
@@ -39,6 +39,18 @@ public class MonotonicLongArray extends LongArray {
     this.offset = offset;
   }
 
+  LongArray getAdjustments() {
+    return adjustments;
+  }
+
+  long getScaledAverageLength() {
+    return scaled_average_length;
+  }
+
+  int getOffset() {
+    return offset;
+  }
+
   @Override
   public long getSize() {
     return adjustments.getSize();
@@ -0,0 +1,305 @@
+package org.apache.solr.search.field;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PriorityQueue;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.solr.core.HS;
+import org.apache.solr.core.RefCountBase;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Maps the per-segment ords of a single-valued string field ({@link StrLeafValues}) to global ords
+ * across all segments of a searcher, and global ords back to terms.  All arrays are off-heap
+ * and packed.  An OrdinalMap is owned by the {@link StrTopValues} it was built from and is cached
+ * with it in the nCache.
+ */
+public class OrdinalMap extends RefCountBase {
+  private final StrLeafValues[] leaves;   // incref'd, indexed by leaf ord
+  private final int numGlobalOrds;
+  private final LongArray[] segToGlobal;  // null if there is only a single segment (identity mapping)
+  private final LongArray globalToSeg;    // the first segment containing the global ord
+  private final LongArray globalToSegOrd; // the ord of the global ord in that segment
+
+  private OrdinalMap(StrLeafValues[] leaves, int numGlobalOrds, LongArray[] segToGlobal, LongArray globalToSeg, LongArray globalToSegOrd) {
+    this.leaves = leaves;
+    this.numGlobalOrds = numGlobalOrds;
+    this.segToGlobal = segToGlobal;
+    this.globalToSeg = globalToSeg;
+    this.globalToSegOrd = globalToSegOrd;
+  }
+
+  private static int numOrds(StrLeafValues leaf) {
+    return (int)leaf.getFieldStats().getNumUniqueValues();
+  }
+
+  private static class SegState {
+    final int seg;
+    final int numOrds;
+    int ord;
+    final BytesRef term = new BytesRef();
+
+    SegState(int seg, int numOrds) {
+      this.seg = seg;
+      this.numOrds = numOrds;
+    }
+  }
+
+  /** Builds the map by merging the sorted terms of each segment.  The leaves are incref'd. */
+  public static OrdinalMap build(StrLeafValues[] leaves) throws IOException {
+    for (StrLeafValues leaf : leaves) {
+      leaf.incref();
+    }
+
+    if (leaves.length == 1) {
+      return new OrdinalMap(leaves, numOrds(leaves[0]), null, null, null);
+    }
+
+    final int nSegs = leaves.length;
+    final long[] tmp = new long[nSegs];  // native int arrays of segment ord -> global ord
+    LongArray[] segToGlobal = new LongArray[nSegs];
+    LongArray globalToSeg = null;
+    LongArray globalToSegOrd = null;
+    boolean success = false;
+
+    try {
+      PriorityQueue<SegState> queue = new PriorityQueue<SegState>(nSegs) {
+        @Override
+        protected boolean lessThan(SegState a, SegState b) {
+          int cmp = a.term.compareTo(b.term);
+          return cmp < 0 || (cmp == 0 && a.seg < b.seg);
+        }
+      };
+
+      int maxSegOrds = 0;
+      for (int i=0; i<nSegs; i++) {
+        int numOrds = numOrds(leaves[i]);
+        maxSegOrds = Math.max(maxSegOrds, numOrds);
+        tmp[i] = HS.allocArray(numOrds, 4, false);
+        if (numOrds > 0) {
+          SegState state = new SegState(i, numOrds);
+          leaves[i].ordToTerm(0, state.term);
+          queue.add(state);
+        }
+      }
+
+      int globalOrd = -1;
+      BytesRef lastTerm = new BytesRef();
+      while (queue.size() > 0) {
+        SegState top = queue.top();
+        if (globalOrd < 0 || !lastTerm.bytesEquals(top.term)) {
+          globalOrd++;
+          lastTerm.copyBytes(top.term);
+        }
+        HS.setInt(tmp[top.seg], top.ord, globalOrd);
+
+        if (++top.ord < top.numOrds) {
+          leaves[top.seg].ordToTerm(top.ord, top.term);
+          queue.updateTop();
+        } else {
+          queue.pop();
+        }
+      }
+      int numGlobalOrds = globalOrd + 1;
+
+      // segment ords map to increasing global ords, so pack them as monotonic arrays
+      for (int i=0; i<nSegs; i++) {
+        int numOrds = numOrds(leaves[i]);
+        if (numOrds == 0) continue;
+        MonotonicLongArray.Tracker tracker = new MonotonicLongArray.Tracker(numOrds, numGlobalOrds);
+        for (int ord=0; ord<numOrds; ord++) {
+          tracker.add(ord, HS.getInt(tmp[i], ord));
+        }
+        segToGlobal[i] = tracker.createArray();
+        for (int ord=0; ord<numOrds; ord++) {
+          segToGlobal[i].setLong(ord, HS.getInt(tmp[i], ord));
+        }
+      }
+
+      // add one to the bits required since values are signed
+      globalToSeg = LongArray.create(numGlobalOrds, PackedInts.bitsRequired(nSegs) + 1);
+      globalToSegOrd = LongArray.create(numGlobalOrds, PackedInts.bitsRequired(maxSegOrds) + 1);
+      // go backwards so that the first segment containing a term wins
+      for (int i=nSegs-1; i>=0; i--) {
+        int numOrds = numOrds(leaves[i]);
+        for (int ord=0; ord<numOrds; ord++) {
+          int g = HS.getInt(tmp[i], ord);
+          globalToSeg.setLong(g, i);
+          globalToSegOrd.setLong(g, ord);
+        }
+      }
+
+      OrdinalMap map = new OrdinalMap(leaves, numGlobalOrds, segToGlobal, globalToSeg, globalToSegOrd);
+      success = true;
+      return map;
+
+    } finally {
+      for (long arr : tmp) {
+        if (arr != 0) HS.freeArray(arr);
+      }
+      if (!success) {
+        for (LongArray arr : segToGlobal) {
+          if (arr != null) arr.close();
+        }
+        if (globalToSeg != null) globalToSeg.close();
+        if (globalToSegOrd != null) globalToSegOrd.close();
+        for (StrLeafValues leaf : leaves) {
+          leaf.decref();
+        }
+      }
+    }
+  }
+
+  /** Returns true if this map was built from exactly these leaves (in the same order) */
+  public boolean hasSameLeaves(LeafValues[] other) {
+    if (other == null || other.length != leaves.length) return false;
+    for (int i=0; i<leaves.length; i++) {
+      if (other[i] != leaves[i]) return false;
+    }
+    return true;
+  }
+
+  public int getNumSegments() {
+    return leaves.length;
+  }
+
+  /** Returns the values for the given leaf ord.  The values are not incref'd. */
+  public StrLeafValues getLeaf(int segIndex) {
+    return leaves[segIndex];
+  }
+
+  /** The number of unique terms in the given segment */
+  public int getSegmentValueCount(int segIndex) {
+    return numOrds(leaves[segIndex]);
+  }
+
+  /** The number of unique terms across all segments */
+  public int getValueCount() {
+    return numGlobalOrds;
+  }
+
+  public int getGlobalOrd(int segIndex, int segOrd) {
+    return segToGlobal == null ? segOrd : segToGlobal[segIndex].getInt(segOrd);
+  }
+
+  public void lookupOrd(int globalOrd, BytesRef target) {
+    if (segToGlobal == null) {
+      leaves[0].ordToTerm(globalOrd, target);
+    } else {
+      leaves[globalToSeg.getInt(globalOrd)].ordToTerm(globalToSegOrd.getInt(globalOrd), target);
+    }
+  }
+
+  /** Returns the global ord of the term if found, or -(insertionPoint)-1 if not */
+  public int lookupTerm(BytesRef key) {
+    if (segToGlobal == null) {
+      return (int)leaves[0].termToOrd(key);
+    }
+
+    BytesRef term = new BytesRef();
+    int low = 0;
+    int high = numGlobalOrds - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      lookupOrd(mid, term);
+      int cmp = term.compareTo(key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid; // key found
+      }
+    }
+
+    return -(low + 1);  // key not found.
+  }
+
+  /**
+   * Returns a top-level view of the values with global ords.
+   * @param leafContexts the leaves of the searcher this map was built for
+   */
+  public SortedDocValues getSortedDocValues(List<AtomicReaderContext> leafContexts) {
+    assert leafContexts.size() == leaves.length;
+    final int[] docStarts = new int[leafContexts.size()];
+    for (int i=0; i<docStarts.length; i++) {
+      docStarts[i] = leafContexts.get(i).docBase;
+    }
+
+    return new SortedDocValues() {
+      @Override
+      public int getOrd(int docID) {
+        int idx = ReaderUtil.subIndex(docID, docStarts);
+        int segOrd = leaves[idx].ordVal(docID - docStarts[idx]);
+        return segOrd < 0 ? -1 : getGlobalOrd(idx, segOrd);
+      }
+
+      @Override
+      public void lookupOrd(int ord, BytesRef result) {
+        OrdinalMap.this.lookupOrd(ord, result);
+      }
+
+      @Override
+      public int getValueCount() {
+        return numGlobalOrds;
+      }
+
+      @Override
+      public int lookupTerm(BytesRef key) {
+        return OrdinalMap.this.lookupTerm(key);
+      }
+    };
+  }
+
+  public long getSizeInBytes() {
+    long size = 0;
+    if (segToGlobal != null) {
+      for (LongArray arr : segToGlobal) {
+        if (arr != null) size += arr.memSize();
+      }
+      size += globalToSeg.memSize() + globalToSegOrd.memSize();
+    }
+    return size;
+  }
+
+  @Override
+  protected void free() {
+    try {
+      if (segToGlobal != null) {
+        for (LongArray arr : segToGlobal) {
+          if (arr != null) arr.close();
+        }
+        globalToSeg.close();
+        globalToSegOrd.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      for (StrLeafValues leaf : leaves) {
+        leaf.decref();
+      }
+    }
+  }
+}
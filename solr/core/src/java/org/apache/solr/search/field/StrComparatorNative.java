@@ -24,6 +24,7 @@ import org.apache.solr.core.HS;
 import org.apache.solr.search.QueryContext;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 public class StrComparatorNative extends FieldComparator<BytesRef> {
   protected final QueryContext qcontext;
@@ -31,15 +32,22 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
   protected StrLeafValues strValues;
 
   protected final int[] ords;
-  protected final long[] termPointers;
+  protected final long[] termPointers;  // 0 if missing, COPIED if the term is in termCopies
+  protected final BytesRef[] termCopies;  // for values from leaves without term pointers
+  protected boolean hasTermPointers;
   protected final int[] readerGen;
   protected int currentReaderGen = -1;
+  protected OrdinalMap ordinalMap;  // if available, used to compare values from different segments
+  protected int[] genToLeaf = new int[8];  // the leaf ord of each reader generation
   protected int bottomSlot = -1;  // only populated if the queue is full
   protected int bottomOrd;
 
 
   protected boolean bottomSameReader;
 
+  /** Marks a slot whose term was copied because the leaf it came from can't provide a stable pointer */
+  protected static final long COPIED = -1;
+
   protected long bottomPointer;
 
   protected BytesRef topValue;
@@ -62,6 +70,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
 
     ords = new int[numHits];
     termPointers = new long[numHits];
+    termCopies = new BytesRef[numHits];
     readerGen = new int[numHits];
     if (missingLast) {
       missingSortCmp = 1;
@@ -80,8 +89,12 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
 
     this.ords = prev.ords;
     this.termPointers = prev.termPointers;
+    this.termCopies = prev.termCopies;
+    this.hasTermPointers = prev.hasTermPointers;
     this.readerGen = prev.readerGen;
     this.currentReaderGen = prev.currentReaderGen;
+    this.ordinalMap = prev.ordinalMap;
+    this.genToLeaf = prev.genToLeaf;
     this.bottomSlot = prev.bottomSlot;
     this.bottomOrd = prev.bottomOrd;
     this.bottomSameReader = prev.bottomSameReader;  // rely on setNextReader code to change this if necessary
@@ -109,9 +122,47 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
     } else if (pointer2 == 0) {
       return -missingSortCmp;
     }
+    if (ordinalMap != null) {
+      // ords are exact for the generation of each slot, so global ords can be compared directly
+      int global1 = ordinalMap.getGlobalOrd(genToLeaf[readerGen[slot1]], ords[slot1]);
+      int global2 = ordinalMap.getGlobalOrd(genToLeaf[readerGen[slot2]], ords[slot2]);
+      return global1 - global2;
+    }
+    if (pointer1 == COPIED) {
+      if (pointer2 == COPIED) {
+        return termCopies[slot1].compareTo(termCopies[slot2]);
+      }
+      return -HS.compareLengthPrefixBytes(pointer2, termCopies[slot1]);
+    } else if (pointer2 == COPIED) {
+      return HS.compareLengthPrefixBytes(pointer1, termCopies[slot2]);
+    }
     return HS.compareLengthPrefixBytes(pointer1, pointer2);
   }
 
+  /** Records the term for ord of the current leaf in the slot */
+  protected final void setTerm(int slot, int ord) {
+    if (hasTermPointers) {
+      termPointers[slot] = strValues.ordToTermPointer(ord);
+    } else {
+      BytesRef term = termCopies[slot];
+      if (term == null) {
+        term = termCopies[slot] = new BytesRef();
+      }
+      strValues.ordToTerm(ord, term);
+      termPointers[slot] = COPIED;
+    }
+  }
+
+  /** Returns the doc to ord array of the values, or null if they don't have one */
+  protected static LongArray getDocToOrdArray(StrLeafValues values) {
+    if (values instanceof StrArrLeafValues) {
+      return ((StrArrLeafValues)values)._getDocToOrdArray();
+    } else if (values instanceof StrFrontCodedLeafValues) {
+      return ((StrFrontCodedLeafValues)values)._getDocToOrdArray();
+    }
+    return null;
+  }
+
   @Override
   public int compareBottom(int doc) {
     int docOrd = strValues.ordVal(doc);
@@ -138,7 +189,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
       ord = missingOrd;
       termPointers[slot] = 0;
     } else {
-      termPointers[slot] = strValues.ordToTermPointer(ord);
+      setTerm(slot, ord);
     }
     ords[slot] = ord;
     readerGen[slot] = currentReaderGen;
@@ -147,8 +198,18 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
   @Override
   public FieldComparator<BytesRef> setNextReader(AtomicReaderContext readerContext) throws IOException {
     strValues = (StrLeafValues)topValues.getLeafValues(qcontext, readerContext);
+    hasTermPointers = strValues.hasTermPointers();
     currentReaderGen++;
 
+    if (ordinalMap == null) {
+      // only use the map if it's already been built (by faceting or autowarming)
+      ordinalMap = topValues.getOrdinalMapIfBuilt();
+    }
+    if (currentReaderGen >= genToLeaf.length) {
+      genToLeaf = Arrays.copyOf(genToLeaf, genToLeaf.length << 1);
+    }
+    genToLeaf[currentReaderGen] = readerContext.ord;
+
     if (topValue != null) {
       // Recompute topOrd/SameReader
       int ord = (int)strValues.termToOrd(topValue);
@@ -170,9 +231,9 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
     }
 
 
+    LongArray arr = getDocToOrdArray(strValues);
     if (missingOrd < 0) {
-      if (strValues instanceof StrArrLeafValues) {
-        LongArray arr = ((StrArrLeafValues)strValues)._getDocToOrdArray();
+      if (arr != null) {
         if (arr instanceof LongArray8) {
           return new Ord8(this);
         } else if (arr instanceof LongArray16) {
@@ -184,8 +245,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
         return new Ord0(this);
       }
     } else {
-      if (strValues instanceof StrArrLeafValues) {
-        LongArray arr = ((StrArrLeafValues)strValues)._getDocToOrdArray();
+      if (arr != null) {
         if (arr instanceof LongArray8) {
           return new Ord8M(this);
         } else if (arr instanceof LongArray16) {
@@ -219,7 +279,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
         bottomSameReader = true;
         readerGen[bottomSlot] = currentReaderGen;
       } else {
-        final int ord = (int)strValues.termPointerToOrd(bottomPointer);
+        final int ord = bottomPointer == COPIED ? (int)strValues.termToOrd(termCopies[bottomSlot]) : strValues.termPointerToOrd(bottomPointer);
         if (ord < 0) {
           bottomOrd = -ord - 2;
           bottomSameReader = false;
@@ -249,6 +309,10 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
       return null;
     }
 
+    if (ptr == COPIED) {
+      return BytesRef.deepCopyOf(termCopies[slot]);
+    }
+
     BytesRef val = new BytesRef();
     HS.copyLengthPrefixBytes(ptr, val);
     return val;
@@ -327,7 +391,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
 
     public Ord8(StrComparatorNative prev) {
       super(prev);
-      longArr = (LongArray8) ((StrArrLeafValues)strValues)._getDocToOrdArray();
+      longArr = (LongArray8) getDocToOrdArray(strValues);
       arr = longArr.getNativeArray();
     }
 
@@ -354,7 +418,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
       if (ord < 0) {
         termPointers[slot] = 0;
       } else {
-        termPointers[slot] = strValues.ordToTermPointer(ord);
+        setTerm(slot, ord);
       }
       ords[slot] = ord;
       readerGen[slot] = currentReaderGen;
@@ -369,7 +433,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
 
     public Ord8M(StrComparatorNative prev) {
       super(prev);
-      longArr = (LongArray8) ((StrArrLeafValues)strValues)._getDocToOrdArray();
+      longArr = (LongArray8) getDocToOrdArray(strValues);
       arr = longArr.getNativeArray();
     }
 
@@ -400,7 +464,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
         ord = missingOrd;
         termPointers[slot] = 0;
       } else {
-        termPointers[slot] = strValues.ordToTermPointer(ord);
+        setTerm(slot, ord);
       }
       ords[slot] = ord;
       readerGen[slot] = currentReaderGen;
@@ -413,7 +477,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
 
     public Ord16(StrComparatorNative prev) {
       super(prev);
-      longArr = (LongArray16) ((StrArrLeafValues)strValues)._getDocToOrdArray();
+      longArr = (LongArray16) getDocToOrdArray(strValues);
       arr = longArr.getNativeArray();
     }
 
@@ -440,7 +504,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
       if (ord < 0) {
         termPointers[slot] = 0;
       } else {
-        termPointers[slot] = strValues.ordToTermPointer(ord);
+        setTerm(slot, ord);
       }
       ords[slot] = ord;
       readerGen[slot] = currentReaderGen;
@@ -455,7 +519,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
 
     public Ord16M(StrComparatorNative prev) {
       super(prev);
-      longArr = (LongArray16) ((StrArrLeafValues)strValues)._getDocToOrdArray();
+      longArr = (LongArray16) getDocToOrdArray(strValues);
       arr = longArr.getNativeArray();
     }
 
@@ -486,7 +550,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
         ord = missingOrd;
         termPointers[slot] = 0;
       } else {
-        termPointers[slot] = strValues.ordToTermPointer(ord);
+        setTerm(slot, ord);
       }
       ords[slot] = ord;
       readerGen[slot] = currentReaderGen;
@@ -501,7 +565,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
 
     public Ord32(StrComparatorNative prev) {
       super(prev);
-      longArr = (LongArray32) ((StrArrLeafValues)strValues)._getDocToOrdArray();
+      longArr = (LongArray32) getDocToOrdArray(strValues);
       arr = longArr.getNativeArray();
     }
 
@@ -528,7 +592,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
       if (ord < 0) {
         termPointers[slot] = 0;
       } else {
-        termPointers[slot] = strValues.ordToTermPointer(ord);
+        setTerm(slot, ord);
       }
       ords[slot] = ord;
       readerGen[slot] = currentReaderGen;
@@ -543,7 +607,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
 
     public Ord32M(StrComparatorNative prev) {
       super(prev);
-      longArr = (LongArray32) ((StrArrLeafValues)strValues)._getDocToOrdArray();
+      longArr = (LongArray32) getDocToOrdArray(strValues);
       arr = longArr.getNativeArray();
     }
 
@@ -574,7 +638,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
         ord = missingOrd;
         termPointers[slot] = 0;
       } else {
-        termPointers[slot] = strValues.ordToTermPointer(ord);
+        setTerm(slot, ord);
       }
       ords[slot] = ord;
       readerGen[slot] = currentReaderGen;
@@ -614,7 +678,7 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
         ord = missingOrd;
         termPointers[slot] = 0;
       } else {
-        termPointers[slot] = strValues.ordToTermPointer(ord);
+        setTerm(slot, ord);
       }
       ords[slot] = ord;
       readerGen[slot] = currentReaderGen;
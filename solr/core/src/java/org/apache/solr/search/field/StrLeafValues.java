@@ -18,6 +18,7 @@ package org.apache.solr.search.field;
  */
 
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.CharsRef;
 import org.apache.lucene.util.UnicodeUtil;
@@ -59,10 +60,18 @@ public abstract class StrLeafValues extends LeafValues {
 
   public abstract void ordToTerm(long ord, BytesRef target);
 
-  // TODO: can all subclasses support this?
+  /**
+   * Returns a pointer to the length prefixed bytes of the term, valid as long as these values are.
+   * Only supported if {@link #hasTermPointers()} returns true.
+   */
   public abstract long ordToTermPointer(long ord);
   public abstract int termPointerToOrd(long termPointer);
 
+  /** Returns false if terms are not stored whole, and ordToTermPointer is not supported. */
+  public boolean hasTermPointers() {
+    return true;
+  }
+
 
   @Override
   public abstract boolean bytesVal(int doc, BytesRef target);
@@ -238,6 +247,16 @@ class StrArrLeafValues extends StrLeafValues {
     return ords.memSize() + ordToOffset.memSize() + HS.arraySizeBytes(termBytes);
   }
 
+  @Override
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    out.writeByte(LeafValuesStore.STR_ARR);
+    out.writeStats(stats);
+    out.writeLongArray(ords);
+    out.writeLongArray(ordToOffset);
+    out.writeArray(termBytes);
+    return true;
+  }
+
   @Override
   protected void free() {
     try {
@@ -251,6 +270,267 @@ class StrArrLeafValues extends StrLeafValues {
 }
 
 
+/**
+ * Front coded terms: terms are stored in blocks of {@link #BLOCK_SIZE}, where the first term of each block
+ * is stored whole and each following term is stored as the length of the prefix it shares with the previous
+ * term plus the remaining suffix.  Only the offset of each block is kept.  Lookups by ord decode at most
+ * one block, and lookups by term binary search the first terms of the blocks before scanning a single block.
+ * <p>
+ * Used for fields with many terms that share long prefixes (ids, urls), where it can take a fraction of the
+ * memory of {@link StrArrLeafValues}.
+ */
+class StrFrontCodedLeafValues extends StrLeafValues {
+  static final int BLOCK_SHIFT = 4;
+  static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  static final int MIN_TERMS = 1024;  // not worth it for a small number of terms
+
+  private final LongArray ords;  // contains 1-numOrd, with 0 meaning "missing"... subtract 1 to get the "real" ord
+  private final LongArray blockToOffset;  // indexed by ord >> BLOCK_SHIFT
+  private final long termBytes;
+  private final int numTerms;
+
+  public StrFrontCodedLeafValues(FieldValues fieldValues, LongArray ords, LongArray blockOffsets, long termBytes, StrFieldStats stats) {
+    super(fieldValues, stats);
+    this.ords = ords;
+    this.blockToOffset = blockOffsets;
+    this.termBytes = termBytes;
+    this.numTerms = (int)stats.getNumUniqueValues();
+  }
+
+  /** The number of bytes needed to store a length */
+  private static int lengthSize(int len) {
+    return len <= 0x7f ? 1 : 2;
+  }
+
+  private static long writeLength(long arr, long pos, int len) {
+    if (len <= 0x7f) {
+      HS.setByte(arr, pos++, (byte)len);
+    } else {
+      HS.setByte(arr, pos++, (byte)(0x80 | (len >> 8)));
+      HS.setByte(arr, pos++, (byte)len);
+    }
+    return pos;
+  }
+
+  /** Returns the length of the prefix shared by two terms */
+  static int sharedPrefix(BytesRef a, BytesRef b) {
+    int max = Math.min(a.length, b.length);
+    int i = 0;
+    while (i < max && a.bytes[a.offset + i] == b.bytes[b.offset + i]) i++;
+    return i;
+  }
+
+  /** The number of bytes used to store term number <code>ord</code> of a sorted list, given the previous term */
+  static int entrySize(int ord, BytesRef term, BytesRef prev) {
+    if ((ord & (BLOCK_SIZE-1)) == 0) {
+      return lengthSize(term.length) + term.length;
+    }
+    int prefix = sharedPrefix(term, prev);
+    int suffix = term.length - prefix;
+    return lengthSize(prefix) + lengthSize(suffix) + suffix;
+  }
+
+  /** Returns true if front coding is worth it, given the size of the terms both ways */
+  static boolean shouldUse(int numTerms, long plainBytes, long frontCodedBytes) {
+    return numTerms >= MIN_TERMS && frontCodedBytes < plainBytes - (plainBytes >> 2);
+  }
+
+  /**
+   * Creates values from length prefixed terms stored one after the other in <code>plainTermBytes</code>,
+   * which is not modified.  <code>frontCodedBytes</code> is the sum of {@link #entrySize} over all terms.
+   */
+  static StrFrontCodedLeafValues create(FieldValues fieldValues, LongArray docToOrd, long plainTermBytes, int numTerms, long frontCodedBytes, StrFieldStats stats) throws IOException {
+    int numBlocks = (numTerms + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+    long arr = HS.allocArray(frontCodedBytes, 1, false);
+    LongArray offsets = null;
+    try {
+      MonotonicLongArray.Tracker tracker = new MonotonicLongArray.Tracker(numBlocks, frontCodedBytes);
+      long[] blockStarts = new long[numBlocks];
+      BytesRef term = new BytesRef();
+      BytesRef prev = new BytesRef();
+      long in = 0;
+      long out = 0;
+      for (int ord=0; ord<numTerms; ord++) {
+        HS.copyLengthPrefixBytes(plainTermBytes, in, term);
+        in += NativePagedBytes.getEntrySize(plainTermBytes, in);
+
+        if ((ord & (BLOCK_SIZE-1)) == 0) {
+          int block = ord >>> BLOCK_SHIFT;
+          blockStarts[block] = out;
+          tracker.add(block, out);
+          out = writeLength(arr, out, term.length);
+          HS.copyBytes(term.bytes, term.offset, arr, out, term.length);
+          out += term.length;
+        } else {
+          int prefix = sharedPrefix(term, prev);
+          int suffix = term.length - prefix;
+          out = writeLength(arr, out, prefix);
+          out = writeLength(arr, out, suffix);
+          HS.copyBytes(term.bytes, term.offset + prefix, arr, out, suffix);
+          out += suffix;
+        }
+
+        // swap so that prev owns the bytes of this term
+        BytesRef tmp = prev;
+        prev = term;
+        term = tmp;
+      }
+      assert out == frontCodedBytes;
+
+      offsets = tracker.createArray();
+      for (int block=0; block<numBlocks; block++) {
+        offsets.setLong(block, blockStarts[block]);
+      }
+
+      StrFrontCodedLeafValues values = new StrFrontCodedLeafValues(fieldValues, docToOrd, offsets, arr, stats);
+      arr = 0;
+      offsets = null;
+      return values;
+    } finally {
+      if (arr != 0) HS.freeArray(arr);
+      if (offsets != null) offsets.close();
+    }
+  }
+
+  // testing methods, subject to change with implementation
+  public LongArray _getDocToOrdArray() { return ords; }
+  public LongArray _getBlockToOffsetArray() { return blockToOffset; }
+
+  @Override
+  public boolean hasTermPointers() {
+    return false;
+  }
+
+  @Override
+  public long ordToTermPointer(long ord) {
+    throw new UnsupportedOperationException("Terms are front coded for field " + fieldValues.getFieldName());
+  }
+
+  @Override
+  public int termPointerToOrd(long termPointer) {
+    BytesRef term = new BytesRef();
+    HS.copyLengthPrefixBytes(termPointer, term);
+    return (int)termToOrd(term);
+  }
+
+  /** Decodes the whole term at pos into target, and returns the position after it */
+  private long readFirst(long pos, BytesRef target) {
+    HS.copyLengthPrefixBytes(termBytes, pos, target);
+    return pos + NativePagedBytes.getEntrySize(termBytes, pos);
+  }
+
+  /** Decodes the term at pos into target, which must contain the previous term, and returns the position after it */
+  private long readNext(long pos, BytesRef target) {
+    int prefix = HS.getByte(termBytes, pos++);
+    if (prefix < 0) {
+      prefix = ((prefix & 0x7f) << 8) | (HS.getByte(termBytes, pos++) & 0xff);
+    }
+    int suffix = HS.getByte(termBytes, pos++);
+    if (suffix < 0) {
+      suffix = ((suffix & 0x7f) << 8) | (HS.getByte(termBytes, pos++) & 0xff);
+    }
+
+    int len = prefix + suffix;
+    if (target.offset + len > target.bytes.length) {
+      byte[] newBytes = new byte[ArrayUtil.oversize(len, 1)];
+      System.arraycopy(target.bytes, target.offset, newBytes, 0, prefix);
+      target.bytes = newBytes;
+      target.offset = 0;
+    }
+    HS.copyBytes(termBytes, pos, target.bytes, target.offset + prefix, suffix);
+    target.length = len;
+    return pos + suffix;
+  }
+
+  @Override
+  public void ordToTerm(long ord, BytesRef target) {
+    int block = (int)(ord >>> BLOCK_SHIFT);
+    long pos = readFirst(blockToOffset.getLong(block), target);
+    for (int i = (int)(ord & (BLOCK_SIZE-1)); i > 0; i--) {
+      pos = readNext(pos, target);
+    }
+  }
+
+  @Override
+  public long termToOrd(BytesRef key) {
+    // find the last block starting with a term <= key
+    int low = 0;
+    int high = ((numTerms + BLOCK_SIZE - 1) >>> BLOCK_SHIFT) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = HS.compareLengthPrefixBytes(termBytes + blockToOffset.getLong(mid), key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid << BLOCK_SHIFT; // key found
+      }
+    }
+    if (high < 0) {
+      return -1;  // before the first term
+    }
+
+    // scan the rest of the block
+    int ord = high << BLOCK_SHIFT;
+    int end = Math.min(numTerms, ord + BLOCK_SIZE);
+    BytesRef term = new BytesRef();
+    long pos = readFirst(blockToOffset.getLong(high), term);
+    while (++ord < end) {
+      pos = readNext(pos, term);
+      int cmp = term.compareTo(key);
+      if (cmp == 0) {
+        return ord;
+      } else if (cmp > 0) {
+        break;
+      }
+    }
+    return -(ord + 1);  // key not found.
+  }
+
+  @Override
+  public int ordVal(int doc) {
+    return ords.getInt(doc) - 1;
+  }
+
+  @Override
+  public boolean bytesVal(int doc, BytesRef target) {
+    int ord = ordVal(doc);
+    if (ord < 0) {
+      target.length = 0;  // TODO should not be needed...
+      return false;
+    }
+    ordToTerm(ord, target);
+    return true;
+  }
+
+  @Override
+  public long getSizeInBytes() {
+    return ords.memSize() + blockToOffset.memSize() + HS.arraySizeBytes(termBytes);
+  }
+
+  @Override
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    out.writeByte(LeafValuesStore.STR_FRONT_CODED);
+    out.writeStats(stats);
+    out.writeLongArray(ords);
+    out.writeLongArray(blockToOffset);
+    out.writeArray(termBytes);
+    return true;
+  }
+
+  @Override
+  protected void free() {
+    try {
+      HS.freeArray(termBytes);
+      ords.close();
+      blockToOffset.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
+
 class Str0Values extends StrLeafValues {
   // offset = avg_term_length * ord + adjustment;
 
@@ -294,6 +574,13 @@ class Str0Values extends StrLeafValues {
     return 0;
   }
 
+  @Override
+  boolean write(LeafValuesStore.Writer out) throws IOException {
+    out.writeByte(LeafValuesStore.STR_0);
+    out.writeStats(stats);
+    return true;
+  }
+
   @Override
   protected void free() {
   }
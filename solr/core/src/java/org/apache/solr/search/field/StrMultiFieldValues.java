@@ -0,0 +1,60 @@
+package org.apache.solr.search.field;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Off-heap per-segment values for multi-valued (or multi-token) string fields,
+ * with the ords of each document stored in native memory.
+ */
+public class StrMultiFieldValues extends FieldValues {
+
+  public StrMultiFieldValues(SchemaField field, QParser qparser) {
+    super(field, qparser);
+  }
+
+  @Override
+  public String getCacheKey() {
+    // a field may also be used through StrFieldValues, so use a different key
+    return field.getName() + "/multi";
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof StrMultiFieldValues && this.field.equals(((StrMultiFieldValues)o).field);
+  }
+
+  @Override
+  public int hashCode() {
+    return field.hashCode() + 1;
+  }
+
+  @Override
+  public String description() {
+    return "strmulti(" + getFieldName() + ')';
+  }
+
+  @Override
+  public TopValues createTopValues(SolrIndexSearcher searcher) {
+    return new StrMultiTopValues(this);
+  }
+
+}
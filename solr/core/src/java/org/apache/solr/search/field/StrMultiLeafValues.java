@@ -0,0 +1,283 @@
+package org.apache.solr.search.field;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.UnicodeUtil;
+import org.apache.solr.core.HS;
+
+import java.io.IOException;
+
+/**
+ * Per-segment values for a multi-valued string field.  Ords are segment relative and
+ * the ords for a document are sorted.  The single-valued accessors (ordVal, bytesVal, strVal)
+ * return the smallest value of the document.
+ */
+public abstract class StrMultiLeafValues extends LeafValues {
+  protected StrFieldStats stats;
+
+  public StrMultiLeafValues(FieldValues fieldValues, StrFieldStats stats) {
+    super(fieldValues);
+    this.stats = stats;
+  }
+
+  @Override
+  public StrFieldStats getFieldStats() {
+    return stats;
+  }
+
+  /** The number of unique terms in this segment */
+  public abstract int getNumOrds();
+
+  /** The number of values the document has */
+  public abstract int getOrdCount(int doc);
+
+  /** Fills target (which must be at least getOrdCount(doc) in size) with the sorted ords of the document and returns the number of ords. */
+  public abstract int getOrds(int doc, int[] target);
+
+  public abstract long termToOrd(BytesRef term);
+
+  public abstract void ordToTerm(long ord, BytesRef target);
+
+  /**
+   * For every document returned by <code>docs</code>, increments <code>counts[ord-startOrd]</code>
+   * for each of the document's ords that fall in the range <code>[startOrd, endOrd)</code>.
+   * @return the number of documents that had no values
+   */
+  public abstract int countOrds(DocIdSetIterator docs, int[] counts, int startOrd, int endOrd) throws IOException;
+
+  @Override
+  public boolean exists(int doc) {
+    return getOrdCount(doc) > 0;
+  }
+
+  @Override
+  public boolean boolVal(int doc) {
+    return exists(doc);
+  }
+
+  @Override
+  public String strVal(int doc) {
+    BytesRef spare = new BytesRef();
+    boolean exists = bytesVal(doc, spare);
+    if (!exists) return null;
+
+    CharsRef spareChars = new CharsRef();
+    UnicodeUtil.UTF8toUTF16(spare, spareChars);
+    return spareChars.toString();
+  }
+
+  @Override
+  public Object objectVal(int doc) {
+    return strVal(doc);
+  }
+
+}
+
+
+class StrMultiArrLeafValues extends StrMultiLeafValues {
+  private final LongArray docToStart;   // the start of each document's ords in "ords", with an extra entry at maxDoc
+  private final LongArray ords;         // the concatenated (sorted) ords of every document
+  private final LongArray ordToOffset;  // indexed by ord
+  private final long termBytes;
+  private final int numOrds;
+
+  public StrMultiArrLeafValues(FieldValues fieldValues, LongArray docToStart, LongArray ords, LongArray offsets, long termBytes, int numOrds, StrFieldStats stats) {
+    super(fieldValues, stats);
+    this.docToStart = docToStart;
+    this.ords = ords;
+    this.ordToOffset = offsets;
+    this.termBytes = termBytes;
+    this.numOrds = numOrds;
+  }
+
+  @Override
+  public int getNumOrds() {
+    return numOrds;
+  }
+
+  @Override
+  public int getOrdCount(int doc) {
+    return (int)(docToStart.getLong(doc+1) - docToStart.getLong(doc));
+  }
+
+  @Override
+  public int getOrds(int doc, int[] target) {
+    int start = (int)docToStart.getLong(doc);
+    int end = (int)docToStart.getLong(doc+1);
+    for (int i=start; i<end; i++) {
+      target[i-start] = ords.getInt(i);
+    }
+    return end - start;
+  }
+
+  @Override
+  public int countOrds(DocIdSetIterator docs, int[] counts, int startOrd, int endOrd) throws IOException {
+    int missing = 0;
+    int doc;
+    if (startOrd == 0 && endOrd >= numOrds) {
+      // specialized version when collecting counts for all terms
+      while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        int start = (int)docToStart.getLong(doc);
+        int end = (int)docToStart.getLong(doc+1);
+        if (start == end) missing++;
+        for (int i=start; i<end; i++) {
+          counts[ords.getInt(i)]++;
+        }
+      }
+    } else {
+      while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        int start = (int)docToStart.getLong(doc);
+        int end = (int)docToStart.getLong(doc+1);
+        if (start == end) missing++;
+        for (int i=start; i<end; i++) {
+          int ord = ords.getInt(i);
+          if (ord >= endOrd) break;  // ords are sorted
+          if (ord >= startOrd) counts[ord-startOrd]++;
+        }
+      }
+    }
+    return missing;
+  }
+
+  @Override
+  public int ordVal(int doc) {
+    int start = (int)docToStart.getLong(doc);
+    int end = (int)docToStart.getLong(doc+1);
+    return start == end ? -1 : ords.getInt(start);
+  }
+
+  @Override
+  public long termToOrd(BytesRef key) {
+    int low = 0;
+    int high = numOrds - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midPointer = termBytes + ordToOffset.getLong(mid);
+      int cmp = HS.compareLengthPrefixBytes(midPointer, key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid; // key found
+      }
+    }
+
+    return -(low + 1);  // key not found.
+  }
+
+  @Override
+  public void ordToTerm(long ord, BytesRef target) {
+    long offset = ordToOffset.getLong((int)ord);
+    assert offset >= 0 && offset < HS.arraySizeBytes(termBytes);
+    HS.copyLengthPrefixBytes(termBytes + offset, target);  // a zero length term only takes a single byte
+  }
+
+  @Override
+  public boolean bytesVal(int doc, BytesRef target) {
+    int ord = ordVal(doc);
+    if (ord < 0) {
+      target.length = 0;
+      return false;
+    }
+    ordToTerm(ord, target);
+    return true;
+  }
+
+  @Override
+  public long getSizeInBytes() {
+    return docToStart.memSize() + ords.memSize() + ordToOffset.memSize() + HS.arraySizeBytes(termBytes);
+  }
+
+  @Override
+  protected void free() {
+    try {
+      HS.freeArray(termBytes);
+      docToStart.close();
+      ords.close();
+      ordToOffset.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
+
+
+class StrMulti0Values extends StrMultiLeafValues {
+
+  public StrMulti0Values(FieldValues fieldValues, StrFieldStats stats) {
+    super(fieldValues, stats);
+  }
+
+  @Override
+  public int getNumOrds() {
+    return 0;
+  }
+
+  @Override
+  public int getOrdCount(int doc) {
+    return 0;
+  }
+
+  @Override
+  public int getOrds(int doc, int[] target) {
+    return 0;
+  }
+
+  @Override
+  public int countOrds(DocIdSetIterator docs, int[] counts, int startOrd, int endOrd) throws IOException {
+    int missing = 0;
+    while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      missing++;
+    }
+    return missing;
+  }
+
+  @Override
+  public int ordVal(int doc) {
+    return -1;
+  }
+
+  @Override
+  public long termToOrd(BytesRef term) {
+    return -1;
+  }
+
+  @Override
+  public void ordToTerm(long ord, BytesRef target) {
+  }
+
+  @Override
+  public boolean bytesVal(int doc, BytesRef target) {
+    target.length = 0;
+    return false;
+  }
+
+  @Override
+  public long getSizeInBytes() {
+    return 0;
+  }
+
+  @Override
+  protected void free() {
+  }
+}
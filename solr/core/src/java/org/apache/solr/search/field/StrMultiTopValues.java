@@ -0,0 +1,192 @@
+package org.apache.solr.search.field;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.core.HS;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+
+public class StrMultiTopValues extends TopValues {
+
+  public StrMultiTopValues(StrMultiFieldValues fieldValues) {
+    super(fieldValues);
+  }
+
+
+  @Override
+  public StrMultiLeafValues createValue(TopValues topValues, CreationLeafValue create, AtomicReaderContext readerContext) throws IOException {
+    AtomicReader reader = readerContext.reader();
+    final int maxDoc = reader.maxDoc();
+
+    Terms terms = reader.terms(topValues.fieldValues.getFieldName());
+
+    if (terms == null) {
+      return new StrMulti0Values(topValues.fieldValues, new StrFieldStats());
+    }
+
+    StrFieldStats stats = new StrFieldStats();
+
+    NativePagedBytes bytes = new NativePagedBytes(15);
+    long docCounts = HS.allocArray(maxDoc, 4, true);  // number of values for each document
+    long termBytes = 0;
+    LongArray docToStart = null;
+    LongArray ords = null;
+    LongArray offsets = null;
+
+    try {
+      // first pass: collect the term bytes and count the number of values per document
+      int numOrds = 0;
+      long totalOrds = 0;
+      TermsEnum termsEnum = terms.iterator(null);
+      DocsEnum docs = null;
+      while (true) {
+        final BytesRef term = termsEnum.next();
+        if (term == null) {
+          break;
+        }
+        if (numOrds == Integer.MAX_VALUE) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Too many terms in segment for field " + topValues.fieldValues.getFieldName());
+        }
+        numOrds++;
+
+        bytes.copyUsingLengthPrefix(term);
+        docs = termsEnum.docs(null, docs, DocsEnum.FLAG_NONE);
+        while (true) {
+          final int docID = docs.nextDoc();
+          if (docID == DocIdSetIterator.NO_MORE_DOCS) {
+            break;
+          }
+          HS.setInt(docCounts, docID, HS.getInt(docCounts, docID) + 1);
+          totalOrds++;
+        }
+      }
+
+      if (numOrds == 0) {
+        return new StrMulti0Values(topValues.fieldValues, stats);
+      }
+
+      if (totalOrds >= Integer.MAX_VALUE) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Too many values in segment for field " + topValues.fieldValues.getFieldName() + " : " + totalOrds);
+      }
+
+      stats.numUniqueValues = numOrds;
+
+      long termBytesLength = bytes.getUsedSize();
+      termBytes = bytes.buildSingleArray();
+      assert termBytesLength == HS.arraySizeBytes(termBytes);
+      bytes.close();  // close early before building the other arrays to lower memory requirements
+      bytes = null;
+
+      offsets = buildTermOffsets(termBytes, termBytesLength, numOrds);
+
+      // the start of the ord list for each document (with an extra entry for the end of the last document)
+      MonotonicLongArray.Tracker tracker = new MonotonicLongArray.Tracker(maxDoc + 1, totalOrds);
+      long pos = 0;
+      int numDocsWithField = 0;
+      for (int doc=0; doc<maxDoc; doc++) {
+        tracker.add(doc, pos);
+        int count = HS.getInt(docCounts, doc);
+        if (count > 0) numDocsWithField++;
+        pos += count;
+      }
+      tracker.add(maxDoc, pos);
+      stats.numDocsWithField = numDocsWithField;
+
+      docToStart = tracker.createArray();
+      pos = 0;
+      for (int doc=0; doc<maxDoc; doc++) {
+        docToStart.setLong(doc, pos);
+        pos += HS.getInt(docCounts, doc);
+        HS.setInt(docCounts, doc, 0);  // reset so it can be used to track how many ords have been filled in
+      }
+      docToStart.setLong(maxDoc, pos);
+
+      // second pass: fill in the ords.  Terms are visited in order, so the ords for each document are sorted.
+      ords = LongArray.create(totalOrds, PackedInts.bitsRequired(numOrds) + 1);  // add one since values are signed
+      termsEnum = terms.iterator(null);
+      int ord = 0;
+      while (ord < numOrds) {
+        final BytesRef term = termsEnum.next();
+        if (term == null) {
+          break;
+        }
+        docs = termsEnum.docs(null, docs, DocsEnum.FLAG_NONE);
+        while (true) {
+          final int docID = docs.nextDoc();
+          if (docID == DocIdSetIterator.NO_MORE_DOCS) {
+            break;
+          }
+          int filled = HS.getInt(docCounts, docID);
+          ords.setLong((int)docToStart.getLong(docID) + filled, ord);
+          HS.setInt(docCounts, docID, filled + 1);
+        }
+        ord++;
+      }
+
+      StrMultiLeafValues values = new StrMultiArrLeafValues(topValues.fieldValues, docToStart, ords, offsets, termBytes, numOrds, stats);
+      // ownership has been transferred
+      termBytes = 0;
+      docToStart = ords = offsets = null;
+      return values;
+
+    } finally {
+      HS.freeArray(docCounts);
+      if (bytes != null) bytes.close();
+      if (termBytes != 0) HS.freeArray(termBytes);
+      if (docToStart != null) docToStart.close();
+      if (ords != null) ords.close();
+      if (offsets != null) offsets.close();
+    }
+  }
+
+  static LongArray buildTermOffsets(long termBytes, long termBytesLength, int numOrds) {
+    MonotonicLongArray.Tracker tracker = new MonotonicLongArray.Tracker(numOrds, termBytesLength);
+    long pos = 0;
+    for (int i=0; i<numOrds; i++) {
+      assert pos < termBytesLength;
+      tracker.add(i, pos);
+      pos += NativePagedBytes.getEntrySize(termBytes, pos);
+    }
+
+    LongArray offsets = tracker.createArray();
+
+    pos = 0;
+    for (int i=0; i<numOrds; i++) {
+      offsets.setLong(i, pos);
+      pos += NativePagedBytes.getEntrySize(termBytes, pos);
+    }
+    return offsets;
+  }
+
+  @Override
+  public StrMultiTopValues create(SolrIndexSearcher.WarmContext warmContext) {
+    StrMultiTopValues tv = new StrMultiTopValues((StrMultiFieldValues)fieldValues);
+    tv.create(warmContext, this);
+    return tv;
+  }
+}
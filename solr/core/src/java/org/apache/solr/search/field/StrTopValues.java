@@ -25,17 +25,72 @@ import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.packed.PackedInts;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.core.HS;
+import org.apache.solr.search.QueryContext;
 import org.apache.solr.search.SolrIndexSearcher;
 
 import java.io.IOException;
+import java.util.List;
 
 public class StrTopValues extends TopValues {
+  private final Object ordinalMapLock = new Object();
+  private volatile OrdinalMap ordinalMap;  // lazily built, owned by this TopValues
+  private boolean rebuildOrdinalMap;  // build the ordinal map once warmed
 
   public StrTopValues(StrFieldValues StrFieldValues) {
     super(StrFieldValues);
   }
 
+  /**
+   * Returns the map from segment ords to global ords, loading all segments and building the map
+   * if needed.  The map is not incref'd and is valid as long as this TopValues is.
+   */
+  public OrdinalMap getOrdinalMap(QueryContext context) throws IOException {
+    OrdinalMap map = ordinalMap;
+    if (map != null) return map;
+
+    List<AtomicReaderContext> leaves = context.searcher().getTopReaderContext().leaves();
+    StrLeafValues[] values = new StrLeafValues[leaves.size()];
+    for (AtomicReaderContext leaf : leaves) {
+      values[leaf.ord] = (StrLeafValues)getLeafValues(context, leaf);
+    }
+
+    synchronized (ordinalMapLock) {
+      if (ordinalMap == null) {
+        HS.Account prevAccount = HS.setAccount(HS.nCacheAccount);
+        try {
+          ordinalMap = OrdinalMap.build(values);
+        } finally {
+          HS.setAccount(prevAccount);
+        }
+      }
+      return ordinalMap;
+    }
+  }
+
+  /** Returns the ordinal map if it has already been built, otherwise null */
+  public OrdinalMap getOrdinalMapIfBuilt() {
+    return ordinalMap;
+  }
+
+  @Override
+  public long getSizeInBytes() {
+    OrdinalMap map = ordinalMap;
+    return super.getSizeInBytes() + (map == null ? 0 : map.getSizeInBytes());
+  }
+
+  @Override
+  public void free() {
+    synchronized (ordinalMapLock) {
+      if (ordinalMap != null) {
+        ordinalMap.decref();
+        ordinalMap = null;
+      }
+    }
+    super.free();
+  }
+
 
   @Override
   public StrLeafValues createValue(TopValues topValues, CreationLeafValue create, AtomicReaderContext readerContext) throws IOException {
@@ -83,6 +138,8 @@ public class StrTopValues extends TopValues {
 
     final TermsEnum termsEnum = terms.iterator(null);
     DocsEnum docs = null;
+    BytesRef prevTerm = new BytesRef();
+    long frontCodedSize = 0;
 
     while(true) {
       final BytesRef term = termsEnum.next();
@@ -93,6 +150,8 @@ public class StrTopValues extends TopValues {
         break;
       }
 
+      frontCodedSize += StrFrontCodedLeafValues.entrySize(termOrd, term, prevTerm);
+      prevTerm.copyBytes(term);
       termOrd++;
 
       bytes.copyUsingLengthPrefix(term);
@@ -113,6 +172,13 @@ public class StrTopValues extends TopValues {
     assert termBytesLength == HS.arraySizeBytes(termBytes);
     bytes.close();  // close early before building offset array to lower memory requirements
 
+    if (StrFrontCodedLeafValues.shouldUse(termOrd, termBytesLength, frontCodedSize)) {
+      try {
+        return StrFrontCodedLeafValues.create(topValues.fieldValues, docToOrd, termBytes, termOrd, frontCodedSize, stats);
+      } finally {
+        HS.freeArray(termBytes);
+      }
+    }
 
     MonotonicLongArray.Tracker tracker = new MonotonicLongArray.Tracker(termOrd, termBytesLength);
     long pos = 0;
@@ -202,7 +268,32 @@ public class StrTopValues extends TopValues {
   public StrTopValues create(SolrIndexSearcher.WarmContext warmContext) {
     StrTopValues tv = new StrTopValues((StrFieldValues)fieldValues);
     tv.create(warmContext, this);
+
+    // if every segment was carried over unchanged, so is the ordinal map
+    // otherwise it is rebuilt once the new segments have been warmed (re-using the carried over segments)
+    OrdinalMap map = ordinalMap;
+    if (map != null) {
+      if (tv.allSegmentsLoaded() && map.hasSameLeaves(tv.leafValues)) {
+        map.incref();
+        tv.ordinalMap = map;
+      } else {
+        tv.rebuildOrdinalMap = true;
+      }
+    }
     return tv;
   }
+
+  @Override
+  protected void warmed(QueryContext context) {
+    if (!rebuildOrdinalMap) return;
+    long start = System.nanoTime();
+    try {
+      getOrdinalMap(context);
+    } catch (IOException e) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error building ordinal map for " + fieldValues.getFieldName(), e);
+    } finally {
+      warmTime.addAndGet(System.nanoTime() - start);
+    }
+  }
 }
 
@@ -18,23 +18,35 @@ package org.apache.solr.search.field;
  */
 
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.solr.core.HS;
 import org.apache.solr.core.RefCountBase;
 import org.apache.solr.search.CacheRegenerator;
 import org.apache.solr.search.QueryContext;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.noggit.JSONUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public abstract class TopValues extends RefCountBase {
+  private static Logger log = LoggerFactory.getLogger(TopValues.class);
+
   protected FieldValues fieldValues;  // pointer back to the "source"
 
   protected LeafValues[] leafValues;
   protected volatile int nSegs;  // number of segments instantiated
   protected int carriedOver;    // number of segments carried over
+  protected final AtomicLong warmTime = new AtomicLong();  // nanoseconds spent creating segments during warming
 
   // top terms?
 
@@ -75,7 +87,17 @@ public abstract class TopValues extends RefCountBase {
       synchronized (leaf) {
         CreationLeafValue create = (CreationLeafValue)leaf;
         if (create.value == null) {
-          create.value = createValue(this, create, readerContext);
+          HS.Account prevAccount = HS.setAccount(HS.nCacheAccount);
+          try {
+            LeafValuesStore store = context.searcher().getLeafValuesStore();
+            if (store != null) {
+              create.value = store.getOrCreate(this, create, readerContext);
+            } else {
+              create.value = createValue(this, create, readerContext);
+            }
+          } finally {
+            HS.setAccount(prevAccount);
+          }
           synchronized (this) {
             leafValues[readerOrd] = create.value;
             nSegs++;
@@ -108,6 +130,7 @@ public abstract class TopValues extends RefCountBase {
     map.put("refcount", getRefCount());
     map.put("numSegments", nSegs);
     map.put("carriedOver", carriedOver);
+    map.put("warmTime", TimeUnit.MILLISECONDS.convert(warmTime.get(), TimeUnit.NANOSECONDS));
     map.put("size", getSizeInBytes());
   }
 
@@ -205,7 +228,13 @@ public abstract class TopValues extends RefCountBase {
     @Override
     public boolean regenerateItem(SolrIndexSearcher.WarmContext warmContext, Object oldKey, Object oldVal) throws IOException {
       TopValues newValues = ((TopValues)oldVal).create(warmContext);
-      warmContext.searcher.getnCache().put((String)oldKey, newValues);
+      newValues.incref();  // keep alive until warmed, in case the cache evicts it first
+      try {
+        warmContext.searcher.getnCache().put((String)oldKey, newValues);
+        newValues.warm(warmContext);
+      } finally {
+        newValues.decref();
+      }
       return true;
     }
   }
@@ -213,6 +242,86 @@ public abstract class TopValues extends RefCountBase {
   // called on the old TopValues
   public abstract TopValues create(SolrIndexSearcher.WarmContext warmContext);
 
+  /**
+   * Creates the values of all segments that weren't carried over, one task per segment
+   * (see {@link SolrIndexSearcher.WarmContext#submit}), so that segments of all fields are
+   * created in parallel.  {@link #warmed} is called once all of them are done.
+   */
+  public void warm(SolrIndexSearcher.WarmContext warmContext) {
+    final QueryContext context = QueryContext.newContext(warmContext.searcher);
+    List<AtomicReaderContext> missing = new ArrayList<>();
+    synchronized (this) {
+      for (AtomicReaderContext leaf : warmContext.searcher.getTopReaderContext().leaves()) {
+        if (leafValues == null || leafValues[leaf.ord] == null) {
+          missing.add(leaf);
+        }
+      }
+    }
+
+    if (missing.isEmpty()) {
+      finishWarming(context);
+      return;
+    }
+
+    final AtomicInteger remaining = new AtomicInteger(missing.size());
+    for (final AtomicReaderContext leaf : missing) {
+      incref();
+      try {
+        warmContext.submit(new Runnable() {
+          @Override
+          public void run() {
+            long start = System.nanoTime();
+            try {
+              getLeafValues(context, leaf);
+            } catch (Exception e) {
+              // not fatal... the segment will be created again when first used.
+              log.error("Error warming " + fieldValues.getFieldName() + " for segment " + leaf.ord, e);
+            } finally {
+              warmTime.addAndGet(System.nanoTime() - start);
+              try {
+                if (remaining.decrementAndGet() == 0) {
+                  finishWarming(context);
+                }
+              } finally {
+                decref();
+              }
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // the core is closing, so the segment won't be warmed
+        try {
+          if (remaining.decrementAndGet() == 0) {
+            finishWarming(context);
+          }
+        } finally {
+          decref();
+        }
+      }
+    }
+  }
+
+  private void finishWarming(QueryContext context) {
+    try {
+      warmed(context);
+    } finally {
+      try {
+        context.close();
+      } catch (IOException e) {
+        log.error("Error closing the context of warming " + fieldValues.getFieldName(), e);
+      }
+    }
+  }
+
+  /** Called during warming once the values of all segments have been created */
+  protected void warmed(QueryContext context) {
+  }
+
+  /** The time spent creating the values of segments during warming */
+  public long getWarmTime(TimeUnit unit) {
+    return unit.convert(warmTime.get(), TimeUnit.NANOSECONDS);
+  }
+
   // called on a newly created TopValues
   public void create(SolrIndexSearcher.WarmContext warmContext, TopValues oldTopValues) {
     LeafValues[] oldLeafValues = oldTopValues.leafValues;
@@ -319,6 +319,11 @@ public class HdfsTransactionLog extends TransactionLog {
     }
   }
 
+  @Override
+  public void seal() {
+    // logs in HDFS are not mapped or indexed
+  }
+
   public String toString() {
     return "hdfs tlog{file=" + tlogFile.toString() + " refcount=" + refcount.get() + "}";
   }
@@ -20,7 +20,13 @@ package org.apache.solr.update;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
@@ -38,17 +44,39 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
+/**
+ * Forwards updates to other nodes.  Asynchronous adds and deletes by id are coalesced per node into batches:
+ * a batch is sent once it holds <code>batchSize</code> commands, once it has waited <code>batchDelayMs</code>,
+ * when a command that can't join it is sent to the node (a delete following adds, different params, a delete
+ * by query...), and before commits, synchronous requests and finish().  Each batch is a request of its own,
+ * outside the stream to the node, so that an error is known to be the batch's; a few batches may be in flight
+ * to a replica at once (see {@link StreamingSolrServers#sendRequest}).  A batch is dropped once its response
+ * comes back.  If it fails, its commands are sent again each on its own, so that each is retried or reported
+ * by itself.
+ * <p>
+ * Batches are flushed from a timer thread, so the methods of this class are synchronized.
+ */
 public class SolrCmdDistributor {
   private static final int MAX_RETRIES_ON_FORWARD = 25;
+  public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("solr.distribUpdate.batchSize", 100);
+  public static final int DEFAULT_BATCH_DELAY_MS = Integer.getInteger("solr.distribUpdate.batchDelayMs", 100);
   public static Logger log = LoggerFactory.getLogger(SolrCmdDistributor.class);
   
   private StreamingSolrServers servers;
   
   private int retryPause = 500;
   private int maxRetriesOnForward = MAX_RETRIES_ON_FORWARD;
+  private int batchSize = DEFAULT_BATCH_SIZE;   // 1 sends every command on its own
+  private long batchDelayNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BATCH_DELAY_MS);
   
   private List<Error> allErrors = new ArrayList<>();
   private List<Error> errors = new ArrayList<>();
+
+  // adds or deletes by id waiting to be sent, by node
+  private Map<Node,Batch> batches = new LinkedHashMap<>();
+  // sends batches that have waited batchDelayMs when no command arrives to send them
+  private ScheduledExecutorService batchFlushScheduler;
+  private ScheduledFuture<?> flushTask;
   
   public static interface AbortCheck {
     public boolean abortCheck();
@@ -56,16 +84,30 @@ public class SolrCmdDistributor {
   
   public SolrCmdDistributor(UpdateShardHandler updateShardHandler) {
     servers = new StreamingSolrServers(updateShardHandler);
+    batchFlushScheduler = servers.getBatchFlushScheduler();
   }
   
+  /** Sends every command on its own */
   public SolrCmdDistributor(StreamingSolrServers servers, int maxRetriesOnForward, int retryPause) {
+    this(servers, maxRetriesOnForward, retryPause, 1, 0);
+  }
+
+  public SolrCmdDistributor(StreamingSolrServers servers, int maxRetriesOnForward, int retryPause, int batchSize, int batchDelayMs) {
     this.servers = servers;
     this.maxRetriesOnForward = maxRetriesOnForward;
     this.retryPause = retryPause;
+    this.batchSize = batchSize;
+    this.batchDelayNs = TimeUnit.MILLISECONDS.toNanos(batchDelayMs);
+    this.batchFlushScheduler = servers.getBatchFlushScheduler();
   }
   
-  public void finish() {
+  public synchronized void finish() {
     try {
+      if (flushTask != null) {
+        flushTask.cancel(false);
+        flushTask = null;
+      }
+      flushBatches();
       servers.blockUntilFinished();
       doRetriesIfNeeded();
     } finally {
@@ -79,55 +121,18 @@ public class SolrCmdDistributor {
     List<Error> errors = new ArrayList<>(this.errors);
     errors.addAll(servers.getErrors());
     List<Error> resubmitList = new ArrayList<>();
+    List<Req> resendList = new ArrayList<>();
 
     for (Error err : errors) {
+      if (err.req.batched != null) {
+        // the commands of a failed batch are sent again each on its own, to be retried or reported by itself.
+        // Those that had been applied are applied again, which is harmless for adds and deletes by id.
+        resendList.addAll(err.req.batched);
+        continue;
+      }
       try {
-        String oldNodeUrl = err.req.node.getUrl();
-        
-        // if there is a retry url, we want to retry...
-        boolean isRetry = err.req.node.checkRetry();
-        
-        boolean doRetry = false;
-        int rspCode = err.statusCode;
-        
-        if (testing_errorHook != null) Diagnostics.call(testing_errorHook,
-            err.e);
-        
-        // this can happen in certain situations such as shutdown
-        if (isRetry) {
-          if (rspCode == 404 || rspCode == 403 || rspCode == 503) {
-            doRetry = true;
-          }
-          
-          // if its a connect exception, lets try again
-          if (err.e instanceof SolrServerException) {
-            if (((SolrServerException) err.e).getRootCause() instanceof ConnectException) {
-              doRetry = true;
-            }
-          }
-          
-          if (err.e instanceof ConnectException) {
-            doRetry = true;
-          }
-          
-          if (err.req.retries < maxRetriesOnForward && doRetry) {
-            err.req.retries++;
-            
-            SolrException.log(SolrCmdDistributor.log, "forwarding update to "
-                + oldNodeUrl + " failed - retrying ... retries: "
-                + err.req.retries + " " + err.req.cmdString + " params:"
-                + err.req.uReq.getParams() + " rsp:" + rspCode, err.e);
-            try {
-              Thread.sleep(retryPause);
-            } catch (InterruptedException e) {
-              Thread.currentThread().interrupt();
-              log.warn(null, e);
-            }
-            
-            resubmitList.add(err);
-          } else {
-            allErrors.add(err);
-          }
+        if (checkRetry(err)) {
+          resubmitList.add(err);
         } else {
           allErrors.add(err);
         }
@@ -139,23 +144,92 @@ public class SolrCmdDistributor {
     
     servers.clearErrors();
     this.errors.clear();
+    for (Req req : resendList) {
+      submit(req);
+    }
     for (Error err : resubmitList) {
       submit(err.req);
     }
     
-    if (resubmitList.size() > 0) {
+    if (resubmitList.size() > 0 || resendList.size() > 0) {
       servers.blockUntilFinished();
       doRetriesIfNeeded();
     }
   }
   
+  /** Returns true if the failed request should be sent again, after waiting retryPause */
+  private boolean checkRetry(Error err) {
+    String oldNodeUrl = err.req.node.getUrl();
+    
+    // if there is a retry url, we want to retry...
+    boolean isRetry = err.req.node.checkRetry();
+    
+    boolean doRetry = false;
+    int rspCode = err.statusCode;
+    
+    if (testing_errorHook != null) Diagnostics.call(testing_errorHook,
+        err.e);
+    
+    // this can happen in certain situations such as shutdown
+    if (!isRetry) {
+      return false;
+    }
+
+    if (rspCode == 404 || rspCode == 403 || rspCode == 503) {
+      doRetry = true;
+    }
+    
+    // if its a connect exception, lets try again
+    if (err.e instanceof SolrServerException) {
+      if (((SolrServerException) err.e).getRootCause() instanceof ConnectException) {
+        doRetry = true;
+      }
+    }
+    
+    if (err.e instanceof ConnectException) {
+      doRetry = true;
+    }
+    
+    if (err.req.retries < maxRetriesOnForward && doRetry) {
+      err.req.retries++;
+      
+      SolrException.log(SolrCmdDistributor.log, "forwarding update to "
+          + oldNodeUrl + " failed - retrying ... retries: "
+          + err.req.retries + " " + err.req.cmdString + " params:"
+          + err.req.uReq.getParams() + " rsp:" + rspCode, err.e);
+      try {
+        Thread.sleep(retryPause);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        log.warn(null, e);
+      }
+      return true;
+    }
+    return false;
+  }
+
   public void distribDelete(DeleteUpdateCommand cmd, List<Node> nodes, ModifiableSolrParams params) throws IOException {
     distribDelete(cmd, nodes, params, false);
   }
   
-  public void distribDelete(DeleteUpdateCommand cmd, List<Node> nodes, ModifiableSolrParams params, boolean sync) throws IOException {
+  public synchronized void distribDelete(DeleteUpdateCommand cmd, List<Node> nodes, ModifiableSolrParams params, boolean sync) throws IOException {
     
+    if (!cmd.isDeleteById()) {
+      // must follow whatever was sent before it
+      flushBatches();
+    }
+
     for (Node node : nodes) {
+      if (cmd.isDeleteById() && !sync && batchSize > 1) {
+        Batch batch = getBatch(node, params, true);
+        batch.req.uReq.deleteById(cmd.getId(), cmd.getVersion());
+        UpdateRequest uReq = new UpdateRequest();
+        uReq.setParams(params);
+        uReq.deleteById(cmd.getId(), cmd.getVersion());
+        addToBatch(batch, new Req(cmd.toString(), node, uReq, false));
+        continue;
+      }
+
       UpdateRequest uReq = new UpdateRequest();
       uReq.setParams(params);
       if (cmd.isDeleteById()) {
@@ -172,9 +246,19 @@ public class SolrCmdDistributor {
     distribAdd(cmd, nodes, params, false);
   }
   
-  public void distribAdd(AddUpdateCommand cmd, List<Node> nodes, ModifiableSolrParams params, boolean synchronous) throws IOException {
+  public synchronized void distribAdd(AddUpdateCommand cmd, List<Node> nodes, ModifiableSolrParams params, boolean synchronous) throws IOException {
 
     for (Node node : nodes) {
+      if (!synchronous && batchSize > 1) {
+        Batch batch = getBatch(node, params, false);
+        batch.req.uReq.add(cmd.solrDoc, cmd.commitWithin, cmd.overwrite);
+        UpdateRequest uReq = new UpdateRequest();
+        uReq.setParams(params);
+        uReq.add(cmd.solrDoc, cmd.commitWithin, cmd.overwrite);
+        addToBatch(batch, new Req(cmd.toString(), node, uReq, false));
+        continue;
+      }
+
       UpdateRequest uReq = new UpdateRequest();
       uReq.setParams(params);
       uReq.add(cmd.solrDoc, cmd.commitWithin, cmd.overwrite);
@@ -183,10 +267,96 @@ public class SolrCmdDistributor {
     
   }
 
-  public void distribCommit(CommitUpdateCommand cmd, List<Node> nodes,
+  /** Returns the batch for the node that a command with the given params can join, sending the current one if it can't */
+  private Batch getBatch(Node node, ModifiableSolrParams params, boolean deletes) {
+    String paramString = params.toString();
+    Batch batch = batches.get(node);
+    if (batch != null && (batch.deletes != deletes || !batch.params.equals(paramString)
+        || System.nanoTime() - batch.started > batchDelayNs)) {
+      sendBatch(node);
+      batch = null;
+    }
+    if (batch == null) {
+      UpdateRequest uReq = new UpdateRequest();
+      uReq.setParams(params);
+      Req req = new Req(null, node, uReq, false);
+      req.ownRequest = true;
+      req.batched = new ArrayList<>();
+      batch = new Batch(req, paramString, deletes);
+      batches.put(node, batch);
+      scheduleFlush(batchDelayNs);
+    }
+    return batch;
+  }
+
+  /** Adds a command, also held as a request of its own in case the batch fails */
+  private void addToBatch(Batch batch, Req cmdReq) {
+    cmdReq.ownRequest = true;
+    if (!batch.req.batched.isEmpty()) {
+      batch.cmds.append(", ");
+    }
+    batch.cmds.append(cmdReq.cmdString);
+    batch.req.batched.add(cmdReq);
+    if (batch.req.batched.size() >= batchSize) {
+      sendBatch(batch.req.node);
+    }
+  }
+
+  private void sendBatch(Node node) {
+    Batch batch = batches.remove(node);
+    if (batch != null) {
+      batch.req.cmdString = batch.cmds.toString();
+      submit(batch.req);
+    }
+  }
+
+  private void scheduleFlush(long delayNs) {
+    if (flushTask != null || batchFlushScheduler == null) return;
+    try {
+      flushTask = batchFlushScheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (SolrCmdDistributor.this) {
+            flushTask = null;
+            flushWaitingBatches();
+          }
+        }
+      }, delayNs, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // shutting down: the batch is sent by the next command or by finish()
+    }
+  }
+
+  /** Sends the batches that have waited batchDelayMs, and schedules the next flush if others remain */
+  private void flushWaitingBatches() {
+    long now = System.nanoTime();
+    long nextDelay = Long.MAX_VALUE;
+    for (Batch batch : new ArrayList<>(batches.values())) {
+      long waited = now - batch.started;
+      if (waited >= batchDelayNs) {
+        sendBatch(batch.req.node);
+      } else {
+        nextDelay = Math.min(nextDelay, batchDelayNs - waited);
+      }
+    }
+    if (nextDelay != Long.MAX_VALUE) {
+      scheduleFlush(nextDelay);
+    }
+  }
+
+  /** Sends every batch, so that what follows is sent after them */
+  private void flushBatches() {
+    if (batches.isEmpty()) return;
+    for (Node node : new ArrayList<>(batches.keySet())) {
+      sendBatch(node);
+    }
+  }
+
+  public synchronized void distribCommit(CommitUpdateCommand cmd, List<Node> nodes,
       ModifiableSolrParams params) throws IOException {
     
     // we need to do any retries before commit...
+    flushBatches();
     servers.blockUntilFinished();
     doRetriesIfNeeded();
     
@@ -211,17 +381,13 @@ public class SolrCmdDistributor {
 
   private void submit(Req req) {
     if (req.synchronous) {
+      flushBatches();
       servers.blockUntilFinished();
       doRetriesIfNeeded();
       
-      HttpSolrServer server = new HttpSolrServer(req.node.getUrl(),
-          servers.getHttpClient());
-      try {
-        server.request(req.uReq);
-      } catch (Exception e) {
-        throw new SolrException(ErrorCode.SERVER_ERROR, "Failed synchronous update on shard " + req.node + " update: " + req.uReq , e);
-      } finally {
-        server.shutdown();
+      Error err = sendNow(req);
+      if (err != null) {
+        throw new SolrException(ErrorCode.SERVER_ERROR, "Failed synchronous update on shard " + req.node + " update: " + req.uReq , err.e);
       }
       
       return;
@@ -231,6 +397,10 @@ public class SolrCmdDistributor {
           + req.node.getUrl() + " retry:"
           + req.retries + " " + req.cmdString + " params:" + req.uReq.getParams());
     }
+    if (req.ownRequest) {
+      servers.sendRequest(req);
+      return;
+    }
     try {
       SolrServer solrServer = servers.getSolrServer(req);
       NamedList<Object> rsp = solrServer.request(req.uReq);
@@ -245,13 +415,49 @@ public class SolrCmdDistributor {
       errors.add(error);
     }
   }
+
+  /** Sends the request on its own, outside of the stream to the node, and returns its error if it fails */
+  private Error sendNow(Req req) {
+    HttpSolrServer server = new HttpSolrServer(req.node.getUrl(),
+        servers.getHttpClient());
+    try {
+      server.request(req.uReq);
+      return null;
+    } catch (Exception e) {
+      Error error = new Error();
+      error.e = e;
+      error.req = req;
+      if (e instanceof SolrException) {
+        error.statusCode = ((SolrException) e).code();
+      }
+      return error;
+    } finally {
+      server.shutdown();
+    }
+  }
   
+  private static class Batch {
+    final Req req;
+    final String params;
+    final boolean deletes;    // deletes by id, or adds
+    final long started = System.nanoTime();
+    final StringBuilder cmds = new StringBuilder();
+
+    Batch(Req req, String params, boolean deletes) {
+      this.req = req;
+      this.params = params;
+      this.deletes = deletes;
+    }
+  }
+
   public static class Req {
     public Node node;
     public UpdateRequest uReq;
     public int retries;
     public boolean synchronous;
     public String cmdString;
+    public List<Req> batched;   // for a batch, each of its commands as a request of its own
+    public boolean ownRequest;  // sent on its own rather than in the stream to the node
     
     public Req(String cmdString, Node node, UpdateRequest uReq, boolean synchronous) {
       this.node = node;
@@ -414,7 +620,7 @@ public class SolrCmdDistributor {
     }
   }
 
-  public List<Error> getErrors() {
+  public synchronized List<Error> getErrors() {
     return allErrors;
   }
 }
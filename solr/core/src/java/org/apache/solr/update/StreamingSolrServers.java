@@ -25,31 +25,50 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 
 import org.apache.http.client.HttpClient;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
 import org.apache.solr.client.solrj.impl.BinaryResponseParser;
 import org.apache.solr.client.solrj.impl.ConcurrentUpdateSolrServer;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.update.SolrCmdDistributor.Error;
 import org.apache.solr.update.processor.DistributedUpdateProcessor;
+import org.apache.solr.update.processor.DistributedUpdateProcessor.DistribPhase;
 import org.apache.solr.update.processor.DistributingUpdateProcessorFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class StreamingSolrServers {
   public static Logger log = LoggerFactory.getLogger(StreamingSolrServers.class);
+
+  // requests queued for a node before the sender blocks
+  static final int QUEUE_SIZE = 100;
+  // a single stream per node, so that the updates to a node arrive in the order they were sent
+  static final int RUNNERS_PER_SERVER = 1;
+  // requests of their own (batches) sent to a replica at once.  Replicas apply versioned adds and deletes by id
+  // in any order, but the requests to a leader are sent one at a time, as it versions them in the order they come.
+  public static final int REQUESTS_IN_FLIGHT = Integer.getInteger("solr.distribUpdate.batchesInFlight", 2);
   
   private HttpClient httpClient;
   
   private Map<String,ConcurrentUpdateSolrServer> solrServers = new HashMap<>();
+  // bounds the requests of their own in flight to each node
+  private Map<String,Semaphore> inFlight = new HashMap<>();
   private List<Error> errors = Collections.synchronizedList(new ArrayList<Error>());
 
   private ExecutorService updateExecutor;
+  private ScheduledExecutorService batchFlushScheduler;
 
   public StreamingSolrServers(UpdateShardHandler updateShardHandler) {
     this.updateExecutor = updateShardHandler.getUpdateExecutor();
+    this.batchFlushScheduler = updateShardHandler.getBatchFlushScheduler();
     
     httpClient = updateShardHandler.getHttpClient();
   }
@@ -64,9 +83,11 @@ public class StreamingSolrServers {
 
   public synchronized SolrServer getSolrServer(final SolrCmdDistributor.Req req) {
     String url = getFullUrl(req.node.getUrl());
+    // what is streamed to the node follows the requests of their own sent to it
+    blockUntilRequestsFinished(url);
     ConcurrentUpdateSolrServer server = solrServers.get(url);
     if (server == null) {
-      server = new ConcurrentUpdateSolrServer(url, httpClient, 100, 1, updateExecutor, true) {
+      server = new ConcurrentUpdateSolrServer(url, httpClient, QUEUE_SIZE, RUNNERS_PER_SERVER, updateExecutor, true) {
         @Override
         public void handleError(Throwable ex) {
           log.error("error", ex);
@@ -92,8 +113,109 @@ public class StreamingSolrServers {
     return server;
   }
 
-  public synchronized void blockUntilFinished() {
-    for (ConcurrentUpdateSolrServer server : solrServers.values()) {
+  /**
+   * Sends the request on its own, outside the stream to the node, from the update executor.  Once the
+   * response comes back the request is dropped, or, if it failed, recorded with its error.  This blocks while
+   * the node has as many requests in flight as it may have.
+   */
+  public void sendRequest(final SolrCmdDistributor.Req req) {
+    final String url = getFullUrl(req.node.getUrl());
+    ConcurrentUpdateSolrServer server;
+    synchronized (this) {
+      server = solrServers.get(url);
+    }
+    if (server != null) {
+      // after what was streamed to the node
+      server.blockUntilFinished();
+    }
+
+    final Semaphore semaphore = getInFlight(url);
+    final int permits = isFromLeader(req.uReq.getParams()) ? 1 : REQUESTS_IN_FLIGHT;
+    try {
+      semaphore.acquire(permits);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      addError(req, e);
+      return;
+    }
+    try {
+      updateExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            request(url, req);
+          } catch (Exception e) {
+            log.error("error", e);
+            addError(req, e);
+          } finally {
+            semaphore.release(permits);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      semaphore.release(permits);
+      addError(req, e);
+    }
+  }
+
+  /** Sends the request and waits for its response */
+  protected NamedList<Object> request(String url, SolrCmdDistributor.Req req) throws Exception {
+    HttpSolrServer server = new HttpSolrServer(url, httpClient, new BinaryResponseParser());
+    try {
+      server.setRequestWriter(new BinaryRequestWriter());
+      return server.request(req.uReq);
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  private static boolean isFromLeader(SolrParams params) {
+    return params != null && DistribPhase.FROMLEADER.toString().equals(
+        params.get(DistributingUpdateProcessorFactory.DISTRIB_UPDATE_PARAM));
+  }
+
+  private synchronized Semaphore getInFlight(String url) {
+    Semaphore semaphore = inFlight.get(url);
+    if (semaphore == null) {
+      semaphore = new Semaphore(REQUESTS_IN_FLIGHT);
+      inFlight.put(url, semaphore);
+    }
+    return semaphore;
+  }
+
+  /** Waits until the requests of their own sent to the node are done */
+  private void blockUntilRequestsFinished(String url) {
+    Semaphore semaphore;
+    synchronized (this) {
+      semaphore = inFlight.get(url);
+    }
+    if (semaphore != null) {
+      semaphore.acquireUninterruptibly(REQUESTS_IN_FLIGHT);
+      semaphore.release(REQUESTS_IN_FLIGHT);
+    }
+  }
+
+  private void addError(SolrCmdDistributor.Req req, Exception e) {
+    Error error = new Error();
+    error.e = e;
+    if (e instanceof SolrException) {
+      error.statusCode = ((SolrException) e).code();
+    }
+    error.req = req;
+    errors.add(error);
+  }
+
+  public void blockUntilFinished() {
+    List<String> urls;
+    List<ConcurrentUpdateSolrServer> servers;
+    synchronized (this) {
+      urls = new ArrayList<>(inFlight.keySet());
+      servers = new ArrayList<>(solrServers.values());
+    }
+    for (String url : urls) {
+      blockUntilRequestsFinished(url);
+    }
+    for (ConcurrentUpdateSolrServer server : servers) {
       server.blockUntilFinished();
     }
   }
@@ -117,4 +239,8 @@ public class StreamingSolrServers {
   public HttpClient getHttpClient() {
     return httpClient;
   }
+
+  public ScheduledExecutorService getBatchFlushScheduler() {
+    return batchFlushScheduler;
+  }
 }
@@ -17,14 +17,21 @@
 
 package org.apache.solr.update;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -39,6 +46,7 @@ import org.apache.solr.common.util.DataInputInputStream;
 import org.apache.solr.common.util.FastInputStream;
 import org.apache.solr.common.util.FastOutputStream;
 import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.core.HS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,6 +74,9 @@ public class TransactionLog {
 
   public final static String END_MESSAGE="SOLR_TLOG_END";
 
+  /** Suffix of the version index written next to a sealed log.  See {@link #seal()} */
+  public final static String INDEX_SUFFIX = ".vidx";
+
   long id;
   File tlogFile;
   RandomAccessFile raf;
@@ -82,6 +93,36 @@ public class TransactionLog {
 
   long snapshot_size;
   int snapshot_numRecords;
+
+  // group sync state, guarded by syncLock.  See groupSync()
+  private final Object syncLock = new Object();
+  private long syncedSize;   // everything written before this position is known to be on disk
+  private boolean syncing;   // true while a caller is syncing on behalf of the others
+  private long numSyncs;
+
+  // true once the header (and so the global strings) has been completely written.  Updates write to the log
+  // concurrently, and check this without synchronization before encoding their records.
+  private volatile boolean headerWritten;
+
+  // set by seal() once nothing more will be written to the log: read-only mappings of the whole file (in chunks,
+  // so that logs over 2GB can be mapped), and the index of the records in it
+  private volatile ByteBuffer[] mapped;
+  private volatile VersionIndex versionIndex;
+
+  // the position, version and operation of each record, collected as records are written so that seal() does not
+  // have to decode the log to index it.  Null for a log reopened with records already in it (its index is then
+  // read or rebuilt from the file) and once the log is sealed.  Guarded by "this".
+  private long[] recordPositions;
+  private long[] recordVersions;
+  private int[] recordOps;
+  private int numIndexed;
+
+  // true if the version index was built rather than read from its file, so it should be written when the log
+  // is closed without being deleted
+  private boolean writeIndexOnClose;
+
+  // set by forceClose(), when readers may still hold the mapped buffers
+  private volatile boolean forceClosed;
   
   // write a BytesRef as a byte array
   JavaBinCodec.ObjectResolver resolver = new JavaBinCodec.ObjectResolver() {
@@ -175,6 +216,12 @@ public class TransactionLog {
         addGlobalStrings(globalStrings);
       }
 
+      if (fos.size() == 0) {
+        recordPositions = new long[64];
+        recordVersions = new long[64];
+        recordOps = new int[64];
+      }
+
       success = true;
 
     } catch (IOException e) {
@@ -214,7 +261,7 @@ public class TransactionLog {
     byte[] buf = new byte[ END_MESSAGE.length() ];
     long pos = size - END_MESSAGE.length() - 4;
     if (pos < 0) return false;
-    ChannelFastInputStream is = new ChannelFastInputStream(channel, pos);
+    ChannelFastInputStream is = newInputStream(pos);
     is.read(buf);
     for (int i=0; i<buf.length; i++) {
       if (buf[i] != END_MESSAGE.charAt(i)) return false;
@@ -242,6 +289,15 @@ public class TransactionLog {
       fos.setWritten(pos);
       assert fos.size() == pos;
       numRecords = snapshot_numRecords;
+      headerWritten = pos != 0;
+      if (recordPositions != null) {
+        while (numIndexed > 0 && recordPositions[numIndexed-1] >= pos) {
+          numIndexed--;
+        }
+      }
+      synchronized (syncLock) {
+        syncedSize = Math.min(syncedSize, pos);
+      }
     }
   }
 
@@ -261,7 +317,7 @@ public class TransactionLog {
 
   private void readHeader(FastInputStream fis) throws IOException {
     // read existing header
-    fis = fis != null ? fis : new ChannelFastInputStream(channel, 0);
+    fis = fis != null ? fis : newInputStream(0);
     LogCodec codec = new LogCodec(resolver);
     Map header = (Map)codec.unmarshal(fis);
 
@@ -316,19 +372,36 @@ public class TransactionLog {
     numRecords++;
   }
 
+  /** Adds a record that was just written to the version index.  Must be called while synchronized on the log. */
+  private void indexRecord(long pos, int opAndFlags, long version) {
+    if (recordPositions == null) return;
+    if (numIndexed == recordPositions.length) {
+      int newSize = numIndexed * 2;
+      recordPositions = Arrays.copyOf(recordPositions, newSize);
+      recordVersions = Arrays.copyOf(recordVersions, newSize);
+      recordOps = Arrays.copyOf(recordOps, newSize);
+    }
+    recordPositions[numIndexed] = pos;
+    recordVersions[numIndexed] = version;
+    recordOps[numIndexed] = opAndFlags;
+    numIndexed++;
+  }
+
   private void checkWriteHeader(LogCodec codec, SolrInputDocument optional) throws IOException {
 
-    // Unsynchronized access.  We can get away with an unsynchronized access here
-    // since we will never get a false non-zero when the position is in fact 0.
+    // Unsynchronized access.  A non-zero fos.size() isn't enough since another update may be
+    // in the middle of writing the header (and adding to the global strings).
     // rollback() is the only function that can reset to zero, and it blocks updates.
-    if (fos.size() != 0) return;
+    if (headerWritten) return;
 
     synchronized (this) {
-      if (fos.size() != 0) return;  // check again while synchronized
-      if (optional != null) {
-        addGlobalStrings(optional.getFieldNames());
+      if (fos.size() == 0) {
+        if (optional != null) {
+          addGlobalStrings(optional.getFieldNames());
+        }
+        writeLogHeader(codec);
       }
-      writeLogHeader(codec);
+      headerWritten = true;
     }
   }
 
@@ -366,6 +439,7 @@ public class TransactionLog {
 
         out.writeAll(fos);
         endRecord(pos);
+        indexRecord(pos, UpdateLog.ADD | flags, cmd.getVersion());
         // fos.flushBuffer();  // flush later
         return pos;
       }
@@ -396,6 +470,7 @@ public class TransactionLog {
         assert pos != 0;
         out.writeAll(fos);
         endRecord(pos);
+        indexRecord(pos, UpdateLog.DELETE | flags, cmd.getVersion());
         // fos.flushBuffer();  // flush later
         return pos;
       }
@@ -422,6 +497,7 @@ public class TransactionLog {
         long pos = fos.size();   // if we had flushed, this should be equal to channel.position()
         out.writeAll(fos);
         endRecord(pos);
+        indexRecord(pos, UpdateLog.DELETE_BY_QUERY | flags, cmd.getVersion());
         // fos.flushBuffer();  // flush later
         return pos;
       }
@@ -449,6 +525,7 @@ public class TransactionLog {
         codec.writeStr(END_MESSAGE);  // ensure these bytes are (almost) last in the file
 
         endRecord(pos);
+        indexRecord(pos, UpdateLog.COMMIT | flags, cmd.getVersion());
         
         fos.flush();  // flush since this will be the last record in a log fill
         assert fos.size() == channel.size();
@@ -468,19 +545,21 @@ public class TransactionLog {
     if (pos < 0) return null;
 
     try {
-      // make sure any unflushed buffer has been flushed
-      synchronized (this) {
-        // TODO: optimize this by keeping track of what we have flushed up to
-        fos.flushBuffer();
-        /***
-         System.out.println("###flushBuffer to " + fos.size() + " raf.length()=" + raf.length() + " pos="+pos);
-        if (fos.size() != raf.length() || pos >= fos.size() ) {
-          throw new RuntimeException("ERROR" + "###flushBuffer to " + fos.size() + " raf.length()=" + raf.length() + " pos="+pos);
+      // make sure any unflushed buffer has been flushed (nothing more is written once the log is sealed)
+      if (mapped == null) {
+        synchronized (this) {
+          // TODO: optimize this by keeping track of what we have flushed up to
+          fos.flushBuffer();
+          /***
+           System.out.println("###flushBuffer to " + fos.size() + " raf.length()=" + raf.length() + " pos="+pos);
+          if (fos.size() != raf.length() || pos >= fos.size() ) {
+            throw new RuntimeException("ERROR" + "###flushBuffer to " + fos.size() + " raf.length()=" + raf.length() + " pos="+pos);
+          }
+          ***/
         }
-        ***/
       }
 
-      ChannelFastInputStream fis = new ChannelFastInputStream(channel, pos);
+      ChannelFastInputStream fis = newInputStream(pos);
       LogCodec codec = new LogCodec(resolver);
       return codec.readVal(fis);
     } catch (IOException e) {
@@ -495,8 +574,17 @@ public class TransactionLog {
     }
   }
 
+  /** Takes a reference unless the log is closed, never reviving a closed log's count */
   public boolean try_incref() {
-    return refcount.incrementAndGet() > 1;
+    for (;;) {
+      int count = refcount.get();
+      if (count <= 0) {
+        return false;
+      }
+      if (refcount.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
   }
 
   public void decref() {
@@ -531,19 +619,205 @@ public class TransactionLog {
     }
   }
 
+  /**
+   * Equivalent to finish(SyncLevel.FSYNC), except that concurrent callers share a single fsync (group commit).
+   * A caller whose records are not yet on disk and who finds no sync in progress becomes the syncer: it waits
+   * <code>windowMs</code> for other updates to be written, then flushes and syncs everything written so far, and
+   * releases every caller whose records that covered.  Callers that arrive during a sync wait for it, and if their
+   * records were written after it started, one of them syncs next.
+   */
+  public void groupSync(long windowMs) {
+    try {
+      long target;
+      synchronized (this) {
+        fos.flushBuffer();
+        target = fos.size();
+      }
+
+      synchronized (syncLock) {
+        while (syncedSize < target && syncing) {
+          syncLock.wait();
+        }
+        if (syncedSize >= target) return;
+        syncing = true;
+      }
+
+      long synced = -1;
+      try {
+        if (windowMs > 0) {
+          Thread.sleep(windowMs);
+        }
+        long size;
+        synchronized (this) {
+          fos.flushBuffer();
+          size = fos.size();
+        }
+        raf.getFD().sync();
+        synced = size;
+      } finally {
+        synchronized (syncLock) {
+          syncing = false;
+          if (synced >= 0) {
+            syncedSize = Math.max(syncedSize, synced);
+            numSyncs++;
+          }
+          syncLock.notifyAll();
+        }
+      }
+
+    } catch (IOException e) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+    }
+  }
+
+  /** Returns the number of fsyncs done by {@link #groupSync(long)} */
+  long getNumGroupSyncs() {
+    synchronized (syncLock) {
+      return numSyncs;
+    }
+  }
+
+  /** Returns a stream that reads the log starting at the given position */
+  ChannelFastInputStream newInputStream(long pos) {
+    return new ChannelFastInputStream(channel, pos, mapped);
+  }
+
+  File getIndexFile() {
+    return new File(tlogFile.getPath() + INDEX_SUFFIX);
+  }
+
+  /**
+   * Called once nothing more will be written to this log: after it has been capped by a commit, or when a capped
+   * log is opened at startup.  Maps the file, so that lookups and readers copy from memory instead of reading
+   * through the channel, and sets the version index of its records.  The index of a log written by this process
+   * was collected as its records were written; that of a reopened log is read from the file next to it, or
+   * rebuilt from the log if that file does not exist.  A built index is written when the log is closed without
+   * being deleted.  The caller must hold a reference to the log.
+   */
+  public void seal() {
+    if (mapped != null) return;
+    long size;
+    VersionIndex index = null;
+    synchronized (this) {
+      try {
+        fos.flush();
+      } catch (IOException e) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+      }
+      size = fos.size();
+
+      if (recordPositions != null) {
+        index = VersionIndex.create(recordPositions, recordVersions, recordOps, numIndexed);
+        writeIndexOnClose = true;
+        recordPositions = recordVersions = null;
+        recordOps = null;
+      }
+    }
+
+    try {
+      ByteBuffer[] chunks = new ByteBuffer[(int)((size + ChannelFastInputStream.CHUNK_SIZE - 1) >>> ChannelFastInputStream.CHUNK_SHIFT)];
+      for (int i=0; i<chunks.length; i++) {
+        long start = (long)i << ChannelFastInputStream.CHUNK_SHIFT;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, ChannelFastInputStream.CHUNK_SIZE));
+      }
+      mapped = chunks;
+    } catch (IOException e) {
+      // not fatal, the log is still read through the channel
+      log.warn("Unable to map " + tlogFile, e);
+    }
+
+    versionIndex = index != null ? index : loadVersionIndex(size);
+  }
+
+  /** Returns the index of the records in this log, or null if the log has not been sealed */
+  public VersionIndex getVersionIndex() {
+    return versionIndex;
+  }
+
+  private VersionIndex loadVersionIndex(long size) {
+    File indexFile = getIndexFile();
+    if (indexFile.exists()) {
+      try {
+        VersionIndex index = VersionIndex.read(indexFile, size);
+        if (index != null) return index;
+      } catch (IOException e) {
+        log.warn("Unable to read " + indexFile + ", rebuilding", e);
+      }
+    }
+
+    try {
+      VersionIndex index = VersionIndex.build(this);
+      synchronized (this) {
+        writeIndexOnClose = true;
+      }
+      return index;
+    } catch (Exception e) {
+      log.warn("Unable to index " + tlogFile, e);
+      return null;
+    }
+  }
+
+  private void writeVersionIndex(VersionIndex index, long size) {
+    File indexFile = getIndexFile();
+    File tmp = null;
+    try {
+      tmp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+      index.write(tmp, size);
+      Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      tmp = null;
+    } catch (IOException e) {
+      // the index just has to be built again the next time the log is opened
+      log.warn("Unable to write " + indexFile, e);
+    } finally {
+      if (tmp != null) {
+        tmp.delete();
+      }
+    }
+  }
+
   protected void close() {
     try {
       if (debug) {
         log.debug("Closing tlog" + this);
       }
 
+      long size;
+      boolean writeIndex;
       synchronized (this) {
         fos.flush();
         fos.close();
+        size = fos.size();
+        writeIndex = writeIndexOnClose;
+      }
+
+      VersionIndex index = versionIndex;
+      if (index != null && writeIndex && !deleteOnClose) {
+        writeVersionIndex(index, size);
+      }
+
+      // nothing can read the log once its last reference is gone, so release the mappings now rather than
+      // whenever the buffers happen to be garbage collected.  A forced close may leave readers behind, which
+      // would crash reading unmapped memory, so then the mappings are left to the garbage collector.
+      ByteBuffer[] chunks = mapped;
+      mapped = null;
+      versionIndex = null;
+      if (!forceClosed) {
+        if (chunks != null) {
+          for (ByteBuffer chunk : chunks) {
+            HS.unmap((MappedByteBuffer)chunk);
+          }
+        }
+        if (index != null) {
+          index.close();
+        }
       }
 
       if (deleteOnClose) {
         tlogFile.delete();
+        getIndexFile().delete();
       }
     } catch (IOException e) {
       throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
@@ -553,6 +827,7 @@ public class TransactionLog {
   public void forceClose() {
     if (refcount.get() > 0) {
       log.error("Error: Forcing close of " + this);
+      forceClosed = true;
       refcount.set(0);
       close();
     }
@@ -582,13 +857,143 @@ public class TransactionLog {
     return new FSReverseReader();
   }
 
+  /**
+   * For each record in a sealed log (oldest first, not including the header): its position, its operation and
+   * flags, and its version.  Lets readers that only need versions and positions (like RecentUpdates, for PeerSync)
+   * find them without decoding the log, and seek directly to the records they do need.
+   * <p>
+   * File format: magic int, size of the log long, number of records int, then a (position long, version long,
+   * opAndFlags int) entry per record.
+   */
+  public static class VersionIndex {
+    static final int MAGIC = 0x544c4f47;  // "TLOG"
+    static final int HEADER_SIZE = 16;
+    static final int ENTRY_SIZE = 20;
+
+    private final ByteBuffer entries;
+    private final int size;
+
+    private VersionIndex(ByteBuffer entries, int size) {
+      this.entries = entries;
+      this.size = size;
+    }
+
+    /** The number of records in the log */
+    public int size() {
+      return size;
+    }
+
+    public long getPosition(int i) {
+      return entries.getLong(i * ENTRY_SIZE);
+    }
+
+    public long getVersion(int i) {
+      return entries.getLong(i * ENTRY_SIZE + 8);
+    }
+
+    public int getOpAndFlags(int i) {
+      return entries.getInt(i * ENTRY_SIZE + 16);
+    }
+
+    /** Releases the mapping of an index read from its file.  The index must not be used afterwards. */
+    void close() {
+      if (entries instanceof MappedByteBuffer) {
+        HS.unmap((MappedByteBuffer)entries);
+      }
+    }
+
+    /** Creates an index from the first n records of the given arrays, oldest first */
+    static VersionIndex create(long[] positions, long[] versions, int[] ops, int n) {
+      ByteBuffer entries = ByteBuffer.allocate(n * ENTRY_SIZE);
+      for (int i=0; i<n; i++) {
+        entries.putLong(positions[i]).putLong(versions[i]).putInt(ops[i]);
+      }
+      return new VersionIndex(entries, n);
+    }
+
+    static VersionIndex build(TransactionLog tlog) throws IOException {
+      long[] positions = new long[64];
+      long[] versions = new long[64];
+      int[] ops = new int[64];
+      int n = 0;
+
+      ReverseReader reader = tlog.getReverseReader();
+      try {
+        Object o;
+        while ((o = reader.next()) != null) {
+          List entry = (List)o;
+          if (n == positions.length) {
+            positions = Arrays.copyOf(positions, n * 2);
+            versions = Arrays.copyOf(versions, n * 2);
+            ops = Arrays.copyOf(ops, n * 2);
+          }
+          positions[n] = reader.position();
+          ops[n] = (Integer)entry.get(0);
+          versions[n] = (Long)entry.get(1);
+          n++;
+        }
+      } finally {
+        reader.close();
+      }
+
+      // the records were read newest first
+      for (int i=0, j=n-1; i<j; i++, j--) {
+        long position = positions[i]; positions[i] = positions[j]; positions[j] = position;
+        long version = versions[i]; versions[i] = versions[j]; versions[j] = version;
+        int op = ops[i]; ops[i] = ops[j]; ops[j] = op;
+      }
+      return create(positions, versions, ops, n);
+    }
+
+    /** Returns the index stored in the file, or null if it is not the index of a log of the given size */
+    static VersionIndex read(File file, long logSize) throws IOException {
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        if (in.length() < HEADER_SIZE || in.readInt() != MAGIC || in.readLong() != logSize) {
+          return null;
+        }
+        int n = in.readInt();
+        if (in.length() != HEADER_SIZE + (long)n * ENTRY_SIZE) {
+          return null;
+        }
+        // the mapping stays valid after the file is closed
+        ByteBuffer entries = in.getChannel().map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long)n * ENTRY_SIZE);
+        return new VersionIndex(entries, n);
+      } finally {
+        in.close();
+      }
+    }
+
+    void write(File file, long logSize) throws IOException {
+      FileOutputStream fout = new FileOutputStream(file);
+      try {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout));
+        out.writeInt(MAGIC);
+        out.writeLong(logSize);
+        out.writeInt(size);
+        ByteBuffer dup = entries.duplicate();
+        dup.clear();
+        byte[] buf = new byte[ENTRY_SIZE * 1024];
+        while (dup.hasRemaining()) {
+          int len = Math.min(buf.length, dup.remaining());
+          dup.get(buf, 0, len);
+          out.write(buf, 0, len);
+        }
+        out.flush();
+        fout.getFD().sync();
+      } finally {
+        fout.close();
+      }
+    }
+  }
+
   public class LogReader {
     private ChannelFastInputStream fis;
     private LogCodec codec = new LogCodec(resolver);
 
     public LogReader(long startingPos) {
       incref();
-      fis = new ChannelFastInputStream(channel, startingPos);
+      fis = newInputStream(startingPos);
     }
 
     // for classes that extend
@@ -694,7 +1099,7 @@ public class TransactionLog {
         assert sz == channel.size();
       }
 
-      fis = new ChannelFastInputStream(channel, 0);
+      fis = newInputStream(0);
       if (sz >=4) {
         // readHeader(fis);  // should not be needed
         prevPos = sz - 4;
@@ -769,17 +1174,41 @@ public class TransactionLog {
 
 
 class ChannelFastInputStream extends FastInputStream {
+  // size of each mapped region of a sealed log
+  static final int CHUNK_SHIFT = 30;
+  static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+
   private FileChannel ch;
+  private final ByteBuffer[] mapped;  // mappings of the start of the file, or null
 
   public ChannelFastInputStream(FileChannel ch, long chPosition) {
+    this(ch, chPosition, null);
+  }
+
+  public ChannelFastInputStream(FileChannel ch, long chPosition, ByteBuffer[] mapped) {
     // super(null, new byte[10],0,0);    // a small buffer size for testing purposes
     super(null);
     this.ch = ch;
+    this.mapped = mapped;
     super.readFromStream = chPosition;
   }
 
   @Override
   public int readWrappedStream(byte[] target, int offset, int len) throws IOException {
+    if (mapped != null) {
+      int chunk = (int)(readFromStream >>> CHUNK_SHIFT);
+      if (chunk < mapped.length) {
+        ByteBuffer region = mapped[chunk].duplicate();
+        int start = (int)(readFromStream & (CHUNK_SIZE - 1));
+        int n = Math.min(len, region.limit() - start);
+        if (n > 0) {
+          region.position(start);
+          region.get(target, offset, n);
+          return n;
+        }
+      }
+    }
+
     ByteBuffer bb = ByteBuffer.wrap(target, offset, len);
     int ret = ch.read(bb, readFromStream);
     return ret;
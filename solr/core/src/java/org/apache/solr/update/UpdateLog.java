@@ -27,19 +27,29 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.lucene.util.BytesRef;
@@ -116,9 +126,11 @@ public class UpdateLog implements PluginInfoInitialized {
 
     public boolean failed;
 
+    public long replayTimeMs;  // how long the replay took, once it has finished
+
     @Override
     public String toString() {
-      return "RecoveryInfo{adds="+adds+" deletes="+deletes+ " deleteByQuery="+deleteByQuery+" errors="+errors + " positionOfStart="+positionOfStart+"}";
+      return "RecoveryInfo{adds="+adds+" deletes="+deletes+ " deleteByQuery="+deleteByQuery+" errors="+errors + " positionOfStart="+positionOfStart+" replayTimeMs="+replayTimeMs+"}";
     }
   }
 
@@ -126,23 +138,27 @@ public class UpdateLog implements PluginInfoInitialized {
   protected State state = State.ACTIVE;
   protected int operationFlags;  // flags to write in the transaction log with operations (i.e. FLAG_GAP)
 
-  protected TransactionLog tlog;
+  protected volatile TransactionLog tlog;
   protected TransactionLog prevTlog;
   protected Deque<TransactionLog> logs = new LinkedList<>();  // list of recent logs, newest first
   protected LinkedList<TransactionLog> newestLogsOnStartup = new LinkedList<>();
   protected int numOldRecords;  // number of records in the recent logs
 
-  protected Map<BytesRef,LogPtr> map = new HashMap<>();
-  protected Map<BytesRef,LogPtr> prevMap;  // used while committing/reopening is happening
-  protected Map<BytesRef,LogPtr> prevMap2;  // used while committing/reopening is happening
-  protected TransactionLog prevMapLog;  // the transaction log used to look up entries found in prevMap
-  protected TransactionLog prevMapLog2;  // the transaction log used to look up entries found in prevMap
+  // Adds and deletes only hold the read lock, so they write to the log and to the (lock-striped) map concurrently.
+  // Anything that switches the log or the maps, or that needs all in-flight updates to be finished, holds the
+  // write lock.  Lookups take no lock at all: the maps are published through volatile fields, and each entry
+  // records the log it was written to.
+  protected final ReentrantReadWriteLock updateLock = new ReentrantReadWriteLock();
+
+  protected volatile Map<BytesRef,LogPtr> map = newUpdateMap();
+  protected volatile Map<BytesRef,LogPtr> prevMap;  // used while committing/reopening is happening
+  protected volatile Map<BytesRef,LogPtr> prevMap2;  // used while committing/reopening is happening
 
   protected final int numDeletesToKeep = 1000;
   protected final int numDeletesByQueryToKeep = 100;
   public final int numRecordsToKeep = 100;
 
-  // keep track of deletes only... this is not updated on an add
+  // keep track of deletes only... this is not updated on an add.  All accesses should be synchronized on the map.
   protected LinkedHashMap<BytesRef, LogPtr> oldDeletes = new LinkedHashMap<BytesRef, LogPtr>(numDeletesToKeep) {
     @Override
     protected boolean removeEldestEntry(Map.Entry eldest) {
@@ -172,6 +188,10 @@ public class UpdateLog implements PluginInfoInitialized {
   protected VersionInfo versionInfo;
 
   protected SyncLevel defaultSyncLevel = SyncLevel.FLUSH;
+  // if >= 0, concurrent FSYNC requests share fsyncs, with the first waiting this long for others to join it
+  protected int groupSyncWindowMs = -1;
+  // number of threads that apply adds and deletes when replaying a log
+  protected int replayThreads = 1;
 
   volatile UpdateHandler uhandler;    // a core reload can change this reference!
   protected volatile boolean cancelApplyBufferUpdate;
@@ -181,10 +201,16 @@ public class UpdateLog implements PluginInfoInitialized {
   public static class LogPtr {
     final long pointer;
     final long version;
+    final TransactionLog tlog;  // the log the pointer is into, or null if the update was not logged
 
     public LogPtr(long pointer, long version) {
+      this(pointer, version, null);
+    }
+
+    public LogPtr(long pointer, long version, TransactionLog tlog) {
       this.pointer = pointer;
       this.version = version;
+      this.tlog = tlog;
     }
 
     @Override
@@ -215,6 +241,14 @@ public class UpdateLog implements PluginInfoInitialized {
   public void init(PluginInfo info) {
     dataDir = (String)info.initArgs.get("dir");
     defaultSyncLevel = SyncLevel.getSyncLevel((String)info.initArgs.get("syncLevel"));
+    Object window = info.initArgs.get("groupSyncWindowMs");
+    if (window != null) {
+      groupSyncWindowMs = Integer.parseInt(window.toString());
+    }
+    Object threads = info.initArgs.get("replayThreads");
+    if (threads != null) {
+      replayThreads = Math.max(1, Integer.parseInt(threads.toString()));
+    }
   }
 
   /* Note, when this is called, uhandler is not completely constructed.
@@ -260,11 +294,15 @@ public class UpdateLog implements PluginInfoInitialized {
       try {
         oldLog = new TransactionLog( f, null, true );
         addOldLog(oldLog, false);  // don't remove old logs on startup since more than one may be uncapped.
+        if (oldLog.endsWithCommit()) {
+          oldLog.seal();
+        }
       } catch (Exception e) {
         SolrException.log(log, "Failure to open existing log file (non fatal) " + f, e);
         deleteFile(f);
       }
     }
+    deleteUnusedIndexes(tlogDir, tlogFiles);
 
     // Record first two logs (oldest first) at startup for potential tlog recovery.
     // It's possible that at abnormal shutdown both "tlog" and "prevTlog" were uncapped.
@@ -288,9 +326,11 @@ public class UpdateLog implements PluginInfoInitialized {
       startingOperation = startingUpdates.getLatestOperation();
 
       // populate recent deletes list (since we can't get that info from the index)
-      for (int i=startingUpdates.deleteList.size()-1; i>=0; i--) {
-        DeleteUpdate du = startingUpdates.deleteList.get(i);
-        oldDeletes.put(new BytesRef(du.id), new LogPtr(-1,du.version));
+      synchronized (oldDeletes) {
+        for (int i=startingUpdates.deleteList.size()-1; i>=0; i--) {
+          DeleteUpdate du = startingUpdates.deleteList.get(i);
+          oldDeletes.put(new BytesRef(du.id), new LogPtr(-1,du.version));
+        }
       }
 
       // populate recent deleteByQuery commands
@@ -359,7 +399,8 @@ public class UpdateLog implements PluginInfoInitialized {
     String[] names = directory.list(new FilenameFilter() {
       @Override
       public boolean accept(File dir, String name) {
-        return name.startsWith(prefix);
+        // version indexes (and any partially written ones) are named after their log
+        return name.startsWith(prefix) && name.indexOf('.', prefix.length()) < 0;
       }
     });
     if (names == null) {
@@ -370,6 +411,25 @@ public class UpdateLog implements PluginInfoInitialized {
   }
 
 
+  /** Removes the version indexes of logs that no longer exist, and any left partially written */
+  private static void deleteUnusedIndexes(File directory, String[] logNames) {
+    final String prefix = TLOG_NAME+'.';
+    final Set<String> logs = new HashSet<>(Arrays.asList(logNames));
+    String[] names = directory.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        int end = name.indexOf('.', prefix.length());
+        if (!name.startsWith(prefix) || end < 0) return false;
+        return !logs.contains(name.substring(0, end)) || !name.endsWith(TransactionLog.INDEX_SUFFIX);
+      }
+    });
+    if (names == null) return;
+    for (String name : names) {
+      deleteFile(new File(directory, name));
+    }
+  }
+
+
   public long getLastLogId() {
     if (id != -1) return id;
     if (tlogFiles.length == 0) return -1;
@@ -388,19 +448,23 @@ public class UpdateLog implements PluginInfoInitialized {
     // TODO: we currently need to log to maintain correct versioning, rtg, etc
     // if ((cmd.getFlags() & UpdateCommand.REPLAY) != 0) return;
 
-    synchronized (this) {
+    // clearing the caches reopens the realtime searcher, so it must not race with other updates
+    Lock lock = clearCaches ? updateLock.writeLock() : updateLock.readLock();
+    lock.lock();
+    try {
       long pos = -1;
+      TransactionLog currLog = null;
 
       // don't log if we are replaying from another log
       if ((cmd.getFlags() & UpdateCommand.REPLAY) == 0) {
-        ensureLog();
-        pos = tlog.write(cmd, operationFlags);
+        currLog = ensureLogConcurrent();
+        pos = currLog.write(cmd, operationFlags);
       }
 
       if (!clearCaches) {
         // TODO: in the future we could support a real position for a REPLAY update.
         // Only currently would be useful for RTG while in recovery mode though.
-        LogPtr ptr = new LogPtr(pos, cmd.getVersion());
+        LogPtr ptr = new LogPtr(pos, cmd.getVersion(), currLog);
 
         // only update our map if we're not buffering
         if ((cmd.getFlags() & UpdateCommand.BUFFERING) == 0) {
@@ -408,16 +472,12 @@ public class UpdateLog implements PluginInfoInitialized {
         }
 
         if (trace) {
-          log.trace("TLOG: added id " + cmd.getPrintableId() + " to " + tlog + " " + ptr + " map=" + System.identityHashCode(map));
+          log.trace("TLOG: added id " + cmd.getPrintableId() + " to " + currLog + " " + ptr + " map=" + System.identityHashCode(map));
         }
 
       } else {
         // replicate the deleteByQuery logic.  See deleteByQuery for comments.
 
-        if (map != null) map.clear();
-        if (prevMap != null) prevMap.clear();
-        if (prevMap2 != null) prevMap2.clear();
-
         try {
           RefCounted<SolrIndexSearcher> holder = uhandler.core.openNewSearcher(true, true);
           holder.decref();
@@ -425,12 +485,16 @@ public class UpdateLog implements PluginInfoInitialized {
           SolrException.log(log, "Error opening realtime searcher for deleteByQuery", e);
         }
 
+        clearMaps();
+
         if (trace) {
           log.trace("TLOG: added id " + cmd.getPrintableId() + " to " + tlog + " clearCaches=true");
         }
 
       }
 
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -439,32 +503,39 @@ public class UpdateLog implements PluginInfoInitialized {
   public void delete(DeleteUpdateCommand cmd) {
     BytesRef br = cmd.getIndexedId();
 
-    synchronized (this) {
+    updateLock.readLock().lock();
+    try {
       long pos = -1;
+      TransactionLog currLog = null;
 
       // don't log if we are replaying from another log
       if ((cmd.getFlags() & UpdateCommand.REPLAY) == 0) {
-        ensureLog();
-        pos = tlog.writeDelete(cmd, operationFlags);
+        currLog = ensureLogConcurrent();
+        pos = currLog.writeDelete(cmd, operationFlags);
       }
 
-      LogPtr ptr = new LogPtr(pos, cmd.version);
+      LogPtr ptr = new LogPtr(pos, cmd.version, currLog);
 
       // only update our map if we're not buffering
       if ((cmd.getFlags() & UpdateCommand.BUFFERING) == 0) {
         map.put(br, ptr);
 
-        oldDeletes.put(br, ptr);
+        synchronized (oldDeletes) {
+          oldDeletes.put(br, ptr);
+        }
       }
 
       if (trace) {
-        log.trace("TLOG: added delete for id " + cmd.id + " to " + tlog + " " + ptr + " map=" + System.identityHashCode(map));
+        log.trace("TLOG: added delete for id " + cmd.id + " to " + currLog + " " + ptr + " map=" + System.identityHashCode(map));
       }
+    } finally {
+      updateLock.readLock().unlock();
     }
   }
 
   public void deleteByQuery(DeleteUpdateCommand cmd) {
-    synchronized (this) {
+    updateLock.writeLock().lock();
+    try {
       long pos = -1;
       // don't log if we are replaying from another log
       if ((cmd.getFlags() & UpdateCommand.REPLAY) == 0) {
@@ -474,18 +545,13 @@ public class UpdateLog implements PluginInfoInitialized {
 
       // only change our caches if we are not buffering
       if ((cmd.getFlags() & UpdateCommand.BUFFERING) == 0) {
-        // given that we just did a delete-by-query, we don't know what documents were
-        // affected and hence we must purge our caches.
-        if (map != null) map.clear();
-        if (prevMap != null) prevMap.clear();
-        if (prevMap2 != null) prevMap2.clear();
-
         trackDeleteByQuery(cmd.getQuery(), cmd.getVersion());
 
         // oldDeletes.clear();
 
         // We must cause a new IndexReader to be opened before anything looks at these caches again
-        // so that a cache miss will read fresh data.
+        // so that a cache miss will read fresh data.  Since lookups don't lock, it's opened before
+        // the maps are dropped.
         //
         // TODO: FUTURE: open a new searcher lazily for better throughput with delete-by-query commands
         try {
@@ -495,6 +561,10 @@ public class UpdateLog implements PluginInfoInitialized {
           SolrException.log(log, "Error opening realtime searcher for deleteByQuery", e);
         }
 
+        // given that we just did a delete-by-query, we don't know what documents were
+        // affected and hence we must purge our caches.
+        clearMaps();
+
       }
 
       LogPtr ptr = new LogPtr(pos, cmd.getVersion());
@@ -502,12 +572,15 @@ public class UpdateLog implements PluginInfoInitialized {
       if (trace) {
         log.trace("TLOG: added deleteByQuery " + cmd.query + " to " + tlog + " " + ptr + " map=" + System.identityHashCode(map));
       }
+    } finally {
+      updateLock.writeLock().unlock();
     }
   }
 
   /** currently for testing only */
   public void deleteAll() {
-    synchronized (this) {
+    updateLock.writeLock().lock();
+    try {
 
       try {
         RefCounted<SolrIndexSearcher> holder = uhandler.core.openNewSearcher(true, true);
@@ -516,12 +589,16 @@ public class UpdateLog implements PluginInfoInitialized {
         SolrException.log(log, "Error opening realtime searcher for deleteByQuery", e);
       }
 
-      if (map != null) map.clear();
-      if (prevMap != null) prevMap.clear();
-      if (prevMap2 != null) prevMap2.clear();
+      clearMaps();
 
-      oldDeletes.clear();
-      deleteByQueries.clear();
+      synchronized (oldDeletes) {
+        oldDeletes.clear();
+      }
+      synchronized (this) {
+        deleteByQueries.clear();
+      }
+    } finally {
+      updateLock.writeLock().unlock();
     }
   }
 
@@ -575,19 +652,29 @@ public class UpdateLog implements PluginInfoInitialized {
     }
   }
 
+  protected Map<BytesRef,LogPtr> newUpdateMap() {
+    return new ConcurrentHashMap<>(256, 0.75f, Math.max(16, Runtime.getRuntime().availableProcessors() * 2));
+  }
+
+  // Called with the write lock held.  The maps are shifted oldest first so that a concurrent lookup
+  // (which checks the newest map first) can't miss an entry that is being moved.
   protected void newMap() {
     prevMap2 = prevMap;
-    prevMapLog2 = prevMapLog;
-
     prevMap = map;
-    prevMapLog = tlog;
-
-    map = new HashMap<>();
+    map = newUpdateMap();
   }
 
+  // The oldest map is dropped first, so that a lookup that finds no prevMap won't find a stale entry in prevMap2.
   private void clearOldMaps() {
-    prevMap = null;
     prevMap2 = null;
+    prevMap = null;
+  }
+
+  // Called with the write lock held, once a realtime searcher has been opened that has all updates in the maps.
+  // The maps are replaced rather than cleared, so a concurrent lookup sees either all of an old map or none of it.
+  private void clearMaps() {
+    clearOldMaps();
+    map = newUpdateMap();
   }
 
   public boolean hasUncommittedChanges() {
@@ -595,37 +682,44 @@ public class UpdateLog implements PluginInfoInitialized {
   }
   
   public void preCommit(CommitUpdateCommand cmd) {
-    synchronized (this) {
-      if (debug) {
-        log.debug("TLOG: preCommit");
-      }
+    // wait for in-flight adds and deletes so that everything in the map is in the log being retired
+    updateLock.writeLock().lock();
+    try {
+      synchronized (this) {
+        if (debug) {
+          log.debug("TLOG: preCommit");
+        }
 
-      if (getState() != State.ACTIVE && (cmd.getFlags() & UpdateCommand.REPLAY) == 0) {
-        // if we aren't in the active state, and this isn't a replay
-        // from the recovery process, then we shouldn't mess with
-        // the current transaction log.  This normally shouldn't happen
-        // as DistributedUpdateProcessor will prevent this.  Commits
-        // that don't use the processor are possible though.
-        return;
-      }
+        if (getState() != State.ACTIVE && (cmd.getFlags() & UpdateCommand.REPLAY) == 0) {
+          // if we aren't in the active state, and this isn't a replay
+          // from the recovery process, then we shouldn't mess with
+          // the current transaction log.  This normally shouldn't happen
+          // as DistributedUpdateProcessor will prevent this.  Commits
+          // that don't use the processor are possible though.
+          return;
+        }
 
-      // since we're changing the log, we must change the map.
-      newMap();
+        // since we're changing the log, we must change the map.
+        newMap();
 
-      if (prevTlog != null) {
-        globalStrings = prevTlog.getGlobalStrings();
-      }
+        if (prevTlog != null) {
+          globalStrings = prevTlog.getGlobalStrings();
+        }
 
-      // since document additions can happen concurrently with commit, create
-      // a new transaction log first so that we know the old one is definitely
-      // in the index.
-      prevTlog = tlog;
-      tlog = null;
-      id++;
+        // since document additions can happen concurrently with commit, create
+        // a new transaction log first so that we know the old one is definitely
+        // in the index.
+        prevTlog = tlog;
+        tlog = null;
+        id++;
+      }
+    } finally {
+      updateLock.writeLock().unlock();
     }
   }
 
   public void postCommit(CommitUpdateCommand cmd) {
+    TransactionLog capped = null;
     synchronized (this) {
       if (debug) {
         log.debug("TLOG: postCommit");
@@ -635,32 +729,44 @@ public class UpdateLog implements PluginInfoInitialized {
         // TODO: check that this works to cap a tlog we were using to buffer so we don't replay on startup.
         prevTlog.writeCommit(cmd, operationFlags);
 
+        capped = prevTlog;
+        capped.incref();
         addOldLog(prevTlog, true);
         // the old log list will decref when no longer needed
         // prevTlog.decref();
         prevTlog = null;
       }
     }
+
+    if (capped != null) {
+      // nothing more is written to the capped log, so map it and keep the version index collected while writing it
+      try {
+        capped.seal();
+      } finally {
+        capped.decref();
+      }
+    }
   }
 
   public void preSoftCommit(CommitUpdateCommand cmd) {
     debug = log.isDebugEnabled(); // refresh our view of debugging occasionally
     trace = log.isTraceEnabled();
 
-    synchronized (this) {
-
-      if (!cmd.softCommit) return;  // already handled this at the start of the hard commit
-      newMap();
+    if (!cmd.softCommit) return;  // already handled this at the start of the hard commit
 
+    updateLock.writeLock().lock();
+    try {
       // start adding documents to a new map since we won't know if
       // any added documents will make it into this commit or not.
       // But we do know that any updates already added will definitely
       // show up in the latest reader after the commit succeeds.
-      map = new HashMap<>();
+      newMap();
 
       if (debug) {
         log.debug("TLOG: preSoftCommit: prevMap="+ System.identityHashCode(prevMap) + " new map=" + System.identityHashCode(map));
       }
+    } finally {
+      updateLock.writeLock().unlock();
     }
   }
 
@@ -679,35 +785,33 @@ public class UpdateLog implements PluginInfoInitialized {
     }
   }
 
+  /** Returns the newest entry for the id in the current or previous maps.  No locking is needed. */
+  private LogPtr lookupEntry(BytesRef indexedId) {
+    // the maps are checked newest first, the reverse of the order newMap() shifts them in
+    LogPtr entry = map.get(indexedId);
+    if (entry != null) return entry;
+    Map<BytesRef,LogPtr> m = prevMap;
+    if (m != null && (entry = m.get(indexedId)) != null) return entry;
+    m = prevMap2;
+    if (m != null) entry = m.get(indexedId);
+    return entry;
+  }
+
   public Object lookup(BytesRef indexedId) {
-    LogPtr entry;
-    TransactionLog lookupLog;
+    LogPtr entry = lookupEntry(indexedId);
+    // SolrCore.verbose("TLOG: lookup: for id ",indexedId.utf8ToString(),"got",entry);
+    if (entry == null || entry.tlog == null) {
+      return null;
+    }
 
-    synchronized (this) {
-      entry = map.get(indexedId);
-      lookupLog = tlog;  // something found in "map" will always be in "tlog"
-      // SolrCore.verbose("TLOG: lookup: for id ",indexedId.utf8ToString(),"in map",System.identityHashCode(map),"got",entry,"lookupLog=",lookupLog);
-      if (entry == null && prevMap != null) {
-        entry = prevMap.get(indexedId);
-        // something found in prevMap will always be found in preMapLog (which could be tlog or prevTlog)
-        lookupLog = prevMapLog;
-        // SolrCore.verbose("TLOG: lookup: for id ",indexedId.utf8ToString(),"in prevMap",System.identityHashCode(map),"got",entry,"lookupLog=",lookupLog);
-      }
-      if (entry == null && prevMap2 != null) {
-        entry = prevMap2.get(indexedId);
-        // something found in prevMap2 will always be found in preMapLog2 (which could be tlog or prevTlog)
-        lookupLog = prevMapLog2;
-        // SolrCore.verbose("TLOG: lookup: for id ",indexedId.utf8ToString(),"in prevMap2",System.identityHashCode(map),"got",entry,"lookupLog=",lookupLog);
-      }
-
-      if (entry == null) {
-        return null;
-      }
-      lookupLog.incref();
+    // something found in a map will always be in the log recorded in the entry, unless that log
+    // has since been closed (in which case the update is in the index).
+    TransactionLog lookupLog = entry.tlog;
+    if (!lookupLog.try_incref()) {
+      return null;
     }
 
     try {
-      // now do the lookup outside of the sync block for concurrency
       return lookupLog.lookup(entry.pointer);
     } finally {
       lookupLog.decref();
@@ -720,26 +824,8 @@ public class UpdateLog implements PluginInfoInitialized {
   // that have already grabbed higher version numbers.  Higher level coordination or
   // synchronization is needed for stronger guarantees (as VersionUpdateProcessor does).
   public Long lookupVersion(BytesRef indexedId) {
-    LogPtr entry;
-    TransactionLog lookupLog;
-
-    synchronized (this) {
-      entry = map.get(indexedId);
-      lookupLog = tlog;  // something found in "map" will always be in "tlog"
-      // SolrCore.verbose("TLOG: lookup ver: for id ",indexedId.utf8ToString(),"in map",System.identityHashCode(map),"got",entry,"lookupLog=",lookupLog);
-      if (entry == null && prevMap != null) {
-        entry = prevMap.get(indexedId);
-        // something found in prevMap will always be found in preMapLog (which could be tlog or prevTlog)
-        lookupLog = prevMapLog;
-        // SolrCore.verbose("TLOG: lookup ver: for id ",indexedId.utf8ToString(),"in prevMap",System.identityHashCode(map),"got",entry,"lookupLog=",lookupLog);
-      }
-      if (entry == null && prevMap2 != null) {
-        entry = prevMap2.get(indexedId);
-        // something found in prevMap2 will always be found in preMapLog2 (which could be tlog or prevTlog)
-        lookupLog = prevMapLog2;
-        // SolrCore.verbose("TLOG: lookup ver: for id ",indexedId.utf8ToString(),"in prevMap2",System.identityHashCode(map),"got",entry,"lookupLog=",lookupLog);
-      }
-    }
+    LogPtr entry = lookupEntry(indexedId);
+    // SolrCore.verbose("TLOG: lookup ver: for id ",indexedId.utf8ToString(),"got",entry);
 
     if (entry != null) {
       return entry.version;
@@ -755,7 +841,7 @@ public class UpdateLog implements PluginInfoInitialized {
     // We can't get any version info for deletes from the index, so if the doc
     // wasn't found, check a cache of recent deletes.
 
-    synchronized (this) {
+    synchronized (oldDeletes) {
       entry = oldDeletes.get(indexedId);
     }
 
@@ -782,7 +868,11 @@ public class UpdateLog implements PluginInfoInitialized {
     }
 
     try {
-      currLog.finish(syncLevel);
+      if (syncLevel == SyncLevel.FSYNC && groupSyncWindowMs >= 0) {
+        currLog.groupSync(groupSyncWindowMs);
+      } else {
+        currLog.finish(syncLevel);
+      }
     } finally {
       currLog.decref();
     }
@@ -835,6 +925,18 @@ public class UpdateLog implements PluginInfoInitialized {
     }
   }
 
+  /** Returns the current log, creating it if needed.  Called with the read lock held, so the log can't be switched. */
+  private TransactionLog ensureLogConcurrent() {
+    TransactionLog currLog = tlog;
+    if (currLog == null) {
+      synchronized (this) {
+        ensureLog();
+        currLog = tlog;
+      }
+    }
+    return currLog;
+  }
+
 
   private void doClose(TransactionLog theLog, boolean writeCommit) {
     if (theLog != null) {
@@ -950,6 +1052,27 @@ public class UpdateLog implements PluginInfoInitialized {
       for (TransactionLog oldLog : logList) {
         List<Update> updatesForLog = new ArrayList<>();
 
+        TransactionLog.VersionIndex index = oldLog.getVersionIndex();
+        if (index != null) {
+          // a sealed log: walk its index instead of decoding the records
+          for (int i=index.size()-1; i>=0 && numUpdates < numRecordsToKeep; i--) {
+            try {
+              addUpdate(oldLog, updatesForLog, index.getOpAndFlags(i), index.getVersion(i), index.getPosition(i), null);
+            } catch (ClassCastException cl) {
+              log.warn("Unexpected log entry or corrupt log.  Position=" + index.getPosition(i), cl);
+              // would be caused by a corrupt transaction log
+            } catch (Exception ex) {
+              log.warn("Exception reading log", ex);
+              break;
+            }
+
+            numUpdates++;
+          }
+
+          updateList.add(updatesForLog);
+          continue;
+        }
+
         TransactionLog.ReverseReader reader = null;
         try {
           reader = oldLog.getReverseReader();
@@ -965,37 +1088,8 @@ public class UpdateLog implements PluginInfoInitialized {
 
               // TODO: refactor this out so we get common error handling
               int opAndFlags = (Integer)entry.get(0);
-              if (latestOperation == 0) {
-                latestOperation = opAndFlags;
-              }
-              int oper = opAndFlags & UpdateLog.OPERATION_MASK;
               long version = (Long) entry.get(1);
-
-              switch (oper) {
-                case UpdateLog.ADD:
-                case UpdateLog.DELETE:
-                case UpdateLog.DELETE_BY_QUERY:
-                  Update update = new Update();
-                  update.log = oldLog;
-                  update.pointer = reader.position();
-                  update.version = version;
-
-                  updatesForLog.add(update);
-                  updates.put(version, update);
-                  
-                  if (oper == UpdateLog.DELETE_BY_QUERY) {
-                    deleteByQueryList.add(update);
-                  } else if (oper == UpdateLog.DELETE) {
-                    deleteList.add(new DeleteUpdate(version, (byte[])entry.get(2)));
-                  }
-                  
-                  break;
-
-                case UpdateLog.COMMIT:
-                  break;
-                default:
-                  throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,  "Unknown Operation! " + oper);
-              }
+              addUpdate(oldLog, updatesForLog, opAndFlags, version, reader.position(), entry);
             } catch (ClassCastException cl) {
               log.warn("Unexpected log entry or corrupt log.  Entry=" + o, cl);
               // would be caused by a corrupt transaction log
@@ -1018,6 +1112,44 @@ public class UpdateLog implements PluginInfoInitialized {
       }
 
     }
+
+    /** Records an operation read from the log at the given position.  The decoded record is only needed
+     * for deletes, and is looked up if it is not passed. */
+    private void addUpdate(TransactionLog oldLog, List<Update> updatesForLog, int opAndFlags, long version, long pointer, List entry) {
+      if (latestOperation == 0) {
+        latestOperation = opAndFlags;
+      }
+      int oper = opAndFlags & UpdateLog.OPERATION_MASK;
+
+      switch (oper) {
+        case UpdateLog.ADD:
+        case UpdateLog.DELETE:
+        case UpdateLog.DELETE_BY_QUERY:
+          Update update = new Update();
+          update.log = oldLog;
+          update.pointer = pointer;
+          update.version = version;
+
+          updatesForLog.add(update);
+          updates.put(version, update);
+
+          if (oper == UpdateLog.DELETE_BY_QUERY) {
+            deleteByQueryList.add(update);
+          } else if (oper == UpdateLog.DELETE) {
+            if (entry == null) {
+              entry = (List)oldLog.lookup(pointer);
+            }
+            deleteList.add(new DeleteUpdate(version, (byte[])entry.get(2)));
+          }
+
+          break;
+
+        case UpdateLog.COMMIT:
+          break;
+        default:
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,  "Unknown Operation! " + oper);
+      }
+    }
     
     public void close() {
       for (TransactionLog log : logList) {
@@ -1178,6 +1310,16 @@ public class UpdateLog implements PluginInfoInitialized {
 
   protected RecoveryInfo recoveryInfo;
 
+  // tells a replay worker that there is nothing more to apply
+  private static final List<UpdateCommand> REPLAY_STOP = Collections.emptyList();
+
+  /**
+   * Replays logs through the update processor chain.  With more than one replayThreads, adds and deletes are
+   * handed to worker threads in batches, partitioned by the hash of their id so that the updates to any one
+   * document are still applied in log order.  Deletes by query and commits are barriers: the workers finish
+   * everything read before them, and they are then applied by the replaying thread, as is everything once the
+   * end of an active log is reached (since the updates that are then blocked would also block the workers).
+   */
   class LogReplayer implements Runnable {
     private Logger loglog = log;  // set to something different?
 
@@ -1187,6 +1329,16 @@ public class UpdateLog implements PluginInfoInitialized {
     boolean finishing = false;  // state where we lock out other updates and finish those updates that snuck in before we locked
     boolean debug = loglog.isDebugEnabled();
 
+    static final int REPLAY_BATCH_SIZE = 100;
+    static final long PROGRESS_INTERVAL_MS = 10000;
+
+    private ReplayWorker[] workers;  // null if replaying on a single thread
+    private final AtomicInteger pendingBatches = new AtomicInteger();  // batches handed to workers and not yet applied
+    private volatile SolrException fatal;   // set by a worker that can't continue
+    private long numReplayed;
+    private long replayStart;
+    private long nextProgress;
+
     public LogReplayer(List<TransactionLog> translogs, boolean activeLog) {
       this.translogs = new LinkedList<>();
       this.translogs.addAll(translogs);
@@ -1199,14 +1351,20 @@ public class UpdateLog implements PluginInfoInitialized {
     private SolrQueryResponse rsp;
 
 
-    @Override
-    public void run() {
+    private SolrQueryRequest newRequest() {
       ModifiableSolrParams params = new ModifiableSolrParams();
       params.set(DISTRIB_UPDATE_PARAM, FROMLEADER.toString());
       params.set(DistributedUpdateProcessor.LOG_REPLAY, "true");
-      req = new LocalSolrQueryRequest(uhandler.core, params);
+      return new LocalSolrQueryRequest(uhandler.core, params);
+    }
+
+    @Override
+    public void run() {
+      req = newRequest();
       rsp = new SolrQueryResponse();
       SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));    // setting request info will help logging
+      replayStart = System.currentTimeMillis();
+      nextProgress = replayStart + PROGRESS_INTERVAL_MS;
 
       try {
         for(;;) {
@@ -1240,7 +1398,9 @@ public class UpdateLog implements PluginInfoInitialized {
         }
       }
 
-      loglog.warn("Log replay finished. recoveryInfo=" + recoveryInfo);
+      recoveryInfo.replayTimeMs = System.currentTimeMillis() - replayStart;
+      loglog.warn("Log replay finished. recoveryInfo=" + recoveryInfo + " threads=" + replayThreads
+          + " records/sec=" + (numReplayed * 1000 / Math.max(1, recoveryInfo.replayTimeMs)));
 
       if (testing_logReplayFinishHook != null) testing_logReplayFinishHook.run();
 
@@ -1259,6 +1419,9 @@ public class UpdateLog implements PluginInfoInitialized {
 
         UpdateRequestProcessorChain processorChain = req.getCore().getUpdateProcessingChain(null);
         UpdateRequestProcessor proc = processorChain.createProcessor(req, rsp);
+        if (replayThreads > 1) {
+          startWorkers(processorChain);
+        }
 
         long commitVersion = 0;
         int operationAndFlags = 0;
@@ -1272,6 +1435,9 @@ public class UpdateLog implements PluginInfoInitialized {
             o = tlogReader.next();
             if (o == null && activeLog) {
               if (!finishing) {
+                // the workers would be blocked too, so everything from here on is applied by this thread
+                awaitWorkers();
+
                 // block to prevent new adds, but don't immediately unlock since
                 // we could be starved from ever completing recovery.  Only unlock
                 // after we've finished this recovery.
@@ -1310,6 +1476,17 @@ public class UpdateLog implements PluginInfoInitialized {
             int oper = operationAndFlags & OPERATION_MASK;
             long version = (Long) entry.get(1);
 
+            numReplayed++;
+            if (numReplayed % 1000 == 0) {
+              logProgress(translog);
+            }
+
+            if (workers != null && !finishing && (oper == UpdateLog.ADD || oper == UpdateLog.DELETE)) {
+              dispatch(oper, entry, version);
+              continue;
+            }
+            awaitWorkers();  // everything else is a barrier
+
             switch (oper) {
               case UpdateLog.ADD:
               {
@@ -1367,27 +1544,29 @@ public class UpdateLog implements PluginInfoInitialized {
               throw rsp.getException();
             }
           } catch (IOException ex) {
-            recoveryInfo.errors++;
+            countError();
             loglog.warn("REYPLAY_ERR: IOException reading log", ex);
             // could be caused by an incomplete flush if recovering from log
           } catch (ClassCastException cl) {
-            recoveryInfo.errors++;
+            countError();
             loglog.warn("REPLAY_ERR: Unexpected log entry or corrupt log.  Entry=" + o, cl);
             // would be caused by a corrupt transaction log
           }  catch (SolrException ex) {
             if (ex.code() == ErrorCode.SERVICE_UNAVAILABLE.code) {
               throw ex;
             }
-            recoveryInfo.errors++;
+            countError();
             loglog.warn("REYPLAY_ERR: IOException reading log", ex);
             // could be caused by an incomplete flush if recovering from log
           } catch (Exception ex) {
-            recoveryInfo.errors++;
+            countError();
             loglog.warn("REPLAY_ERR: Exception replaying log", ex);
             // something wrong with the request?
           }
         }
 
+        awaitWorkers();
+
         CommitUpdateCommand cmd = new CommitUpdateCommand(req, false);
         cmd.setVersion(commitVersion);
         cmd.softCommit = false;
@@ -1397,7 +1576,7 @@ public class UpdateLog implements PluginInfoInitialized {
           if (debug) log.debug("commit " +  cmd);
           uhandler.commit(cmd);          // this should cause a commit to be added to the incomplete log and avoid it being replayed again after a restart.
         } catch (IOException ex) {
-          recoveryInfo.errors++;
+          countError();
           loglog.error("Replay exception: final commit.", ex);
         }
 
@@ -1413,15 +1592,214 @@ public class UpdateLog implements PluginInfoInitialized {
         try {
           proc.finish();
         } catch (IOException ex) {
-          recoveryInfo.errors++;
+          countError();
           loglog.error("Replay exception: finish()", ex);
         }
 
       } finally {
+        stopWorkers();
         if (tlogReader != null) tlogReader.close();
         translog.decref();
       }
     }
+
+    private void logProgress(TransactionLog translog) {
+      long now = System.currentTimeMillis();
+      if (now < nextProgress) return;
+      nextProgress = now + PROGRESS_INTERVAL_MS;
+      loglog.info("Log replay progress " + translog + " records=" + numReplayed
+          + " records/sec=" + (numReplayed * 1000 / Math.max(1, now - replayStart)) + " recoveryInfo=" + recoveryInfo);
+    }
+
+    private void startWorkers(UpdateRequestProcessorChain processorChain) {
+      ReplayWorker[] newWorkers = new ReplayWorker[replayThreads];
+      for (int i=0; i<newWorkers.length; i++) {
+        SolrQueryRequest workerReq = newRequest();
+        SolrQueryResponse workerRsp = new SolrQueryResponse();
+        newWorkers[i] = new ReplayWorker(workerReq, workerRsp, processorChain.createProcessor(workerReq, workerRsp));
+      }
+      for (ReplayWorker worker : newWorkers) {
+        recoveryExecutor.execute(worker);
+      }
+      workers = newWorkers;
+    }
+
+    /** Hands an add or delete to the worker for its id */
+    private void dispatch(int oper, List entry, long version) throws InterruptedException {
+      if (fatal != null) {
+        throw fatal;
+      }
+
+      UpdateCommand cmd;
+      BytesRef id;
+      if (oper == UpdateLog.ADD) {
+        recoveryInfo.adds++;
+        AddUpdateCommand add = new AddUpdateCommand(req);
+        add.solrDoc = (SolrInputDocument)entry.get(entry.size()-1);
+        id = add.getIndexedId();
+        cmd = add;
+      } else {
+        recoveryInfo.deletes++;
+        DeleteUpdateCommand delete = new DeleteUpdateCommand(req);
+        delete.setIndexedId(new BytesRef((byte[]) entry.get(2)));
+        id = delete.getIndexedId();
+        cmd = delete;
+      }
+      cmd.setVersion(version);
+      cmd.setFlags(UpdateCommand.REPLAY | UpdateCommand.IGNORE_AUTOCOMMIT);
+
+      ReplayWorker worker = workers[(id.hashCode() & Integer.MAX_VALUE) % workers.length];
+      cmd.setReq(worker.req);
+      worker.add(cmd);
+    }
+
+    /** Waits for the workers to apply everything handed to them so far */
+    private void awaitWorkers() {
+      if (workers == null) return;
+      try {
+        for (ReplayWorker worker : workers) {
+          worker.flush();
+        }
+        synchronized (pendingBatches) {
+          while (pendingBatches.get() > 0) {
+            pendingBatches.wait();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SolrException(ErrorCode.SERVER_ERROR, e);
+      }
+      if (fatal != null) {
+        throw fatal;
+      }
+    }
+
+    private void stopWorkers() {
+      if (workers == null) return;
+      try {
+        for (ReplayWorker worker : workers) {
+          worker.queue.put(REPLAY_STOP);
+        }
+        for (ReplayWorker worker : workers) {
+          worker.done.await();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        SolrException.log(log, e);
+      }
+      workers = null;
+    }
+
+    private void countError() {
+      synchronized (recoveryInfo) {
+        recoveryInfo.errors++;
+      }
+    }
+
+    /** Applies the adds and deletes for one partition of the ids, in the order they were read from the log */
+    private class ReplayWorker implements Runnable {
+      final SolrQueryRequest req;
+      final SolrQueryResponse rsp;
+      final UpdateRequestProcessor proc;
+      final BlockingQueue<List<UpdateCommand>> queue = new ArrayBlockingQueue<>(4);
+      final CountDownLatch done = new CountDownLatch(1);
+      List<UpdateCommand> batch = new ArrayList<>(REPLAY_BATCH_SIZE);  // only used by the replaying thread
+
+      ReplayWorker(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor proc) {
+        this.req = req;
+        this.rsp = rsp;
+        this.proc = proc;
+      }
+
+      void add(UpdateCommand cmd) throws InterruptedException {
+        batch.add(cmd);
+        if (batch.size() >= REPLAY_BATCH_SIZE) {
+          flush();
+        }
+      }
+
+      void flush() throws InterruptedException {
+        if (batch.isEmpty()) return;
+        pendingBatches.incrementAndGet();
+        queue.put(batch);
+        batch = new ArrayList<>(REPLAY_BATCH_SIZE);
+      }
+
+      @Override
+      public void run() {
+        SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+        Throwable abort = null;
+        try {
+          for (;;) {
+            List<UpdateCommand> cmds = queue.take();
+            if (cmds == REPLAY_STOP) break;
+            try {
+              for (UpdateCommand cmd : cmds) {
+                apply(cmd);
+              }
+            } catch (Throwable t) {
+              // fail the replay, and keep taking batches (without applying them) so it doesn't wait on this worker
+              if (abort == null) {
+                abort = t;
+                loglog.error("REPLAY_ERR: Replay worker aborted", t);
+              }
+              if (fatal == null) {
+                fatal = new SolrException(ErrorCode.SERVER_ERROR, "Replay worker aborted", t);
+              }
+            } finally {
+              if (pendingBatches.decrementAndGet() == 0) {
+                synchronized (pendingBatches) {
+                  pendingBatches.notifyAll();
+                }
+              }
+            }
+          }
+
+          if (abort == null) {
+            proc.finish();
+          }
+        } catch (Exception e) {
+          countError();
+          loglog.error("Replay exception: finish()", e);
+        } finally {
+          SolrRequestInfo.clearRequestInfo();
+          done.countDown();
+        }
+
+        if (abort instanceof Error) {
+          throw (Error) abort;
+        }
+      }
+
+      private void apply(UpdateCommand cmd) {
+        if (fatal != null) return;  // the replay is being abandoned
+        try {
+          if (cmd instanceof AddUpdateCommand) {
+            if (debug) log.debug("add " +  cmd);
+            proc.processAdd((AddUpdateCommand)cmd);
+          } else {
+            if (debug) log.debug("delete " +  cmd);
+            proc.processDelete((DeleteUpdateCommand)cmd);
+          }
+
+          if (rsp.getException() != null) {
+            loglog.error("REPLAY_ERR: Exception replaying log", rsp.getException());
+            throw rsp.getException();
+          }
+        } catch (SolrException ex) {
+          if (ex.code() == ErrorCode.SERVICE_UNAVAILABLE.code) {
+            fatal = ex;
+            return;
+          }
+          countError();
+          loglog.warn("REPLAY_ERR: Exception replaying log", ex);
+        } catch (Exception ex) {
+          countError();
+          loglog.warn("REPLAY_ERR: Exception replaying log", ex);
+          // something wrong with the request?
+        }
+      }
+    }
   }
 
   public void cancelApplyBufferedUpdates() {
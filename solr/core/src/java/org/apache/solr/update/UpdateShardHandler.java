@@ -19,6 +19,8 @@ package org.apache.solr.update;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 import org.apache.http.client.HttpClient;
 import org.apache.http.conn.ClientConnectionManager;
@@ -39,6 +41,10 @@ public class UpdateShardHandler {
   
   private ExecutorService updateExecutor = Executors.newCachedThreadPool(
       new SolrjNamedThreadFactory("updateExecutor"));
+
+  // sends batches of distributed updates that have waited long enough when no further update comes to send them
+  private ScheduledThreadPoolExecutor batchFlushScheduler = new ScheduledThreadPoolExecutor(1,
+      new SolrjNamedThreadFactory("updateBatchFlusher"));
   
   private PoolingClientConnectionManager clientConnectionManager;
   
@@ -56,6 +62,7 @@ public class UpdateShardHandler {
     params.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, cfg.getDistributedConnectionTimeout());
     params.set(HttpClientUtil.PROP_USE_RETRY, false);
     client = HttpClientUtil.createClient(params, clientConnectionManager);
+    batchFlushScheduler.setRemoveOnCancelPolicy(true);
   }
   
   
@@ -71,8 +78,13 @@ public class UpdateShardHandler {
     return updateExecutor;
   }
 
+  public ScheduledExecutorService getBatchFlushScheduler() {
+    return batchFlushScheduler;
+  }
+
   public void close() {
     try {
+      ExecutorUtil.shutdownNowAndAwaitTermination(batchFlushScheduler);
       ExecutorUtil.shutdownAndAwaitTermination(updateExecutor);
     } catch (Exception e) {
       SolrException.log(log, e);
@@ -423,6 +423,33 @@ public class ConcurrentLRUCache<K,V> {
     }
   }
 
+  /**
+   * Evicts (up to) the 'n' least recently accessed entries from this cache.
+   * Nothing is evicted if the cache is currently being cleaned by another thread.
+   * @return the number of entries evicted
+   */
+  public int evictOldest(int n) {
+    if (n <= 0 || !markAndSweepLock.tryLock()) return 0;
+    try {
+      TreeSet<CacheEntry<K,V>> tree = new TreeSet<CacheEntry<K,V>>();
+      for (CacheEntry<K,V> ce : map.values()) {
+        ce.lastAccessedCopy = ce.lastAccessed;
+        if (tree.size() < n) {
+          tree.add(ce);
+        } else if (ce.lastAccessedCopy < tree.first().lastAccessedCopy) {
+          tree.remove(tree.first());
+          tree.add(ce);
+        }
+      }
+      for (CacheEntry<K,V> ce : tree) {
+        evictEntry(ce.key);
+      }
+      return tree.size();
+    } finally {
+      markAndSweepLock.unlock();
+    }
+  }
+
   /**
    * Returns 'n' number of oldest accessed entries present in this cache.
    *
@@ -0,0 +1,43 @@
+package org.apache.solr;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.util.LuceneTestCase.Slow;
+import org.apache.solr.SolrTestCaseJ4.SuppressSSL;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Runs the distributed search tests with the shard requests sent asynchronously
+ *
+ * @see org.apache.solr.handler.component.AsyncShardClient
+ */
+@Slow
+@SuppressSSL     // asynchronous requests are only sent over plain http
+public class TestDistributedSearchAsync extends TestDistributedSearch {
+
+  @BeforeClass
+  public static void beforeAsync() {
+    System.setProperty("asyncShardRequests", "true");
+  }
+
+  @AfterClass
+  public static void afterAsync() {
+    System.clearProperty("asyncShardRequests");
+  }
+}
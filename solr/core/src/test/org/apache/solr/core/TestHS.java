@@ -19,6 +19,7 @@ package org.apache.solr.core;
 
 import org.apache.lucene.util.LuceneTestCase;
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -195,6 +196,146 @@ public class TestHS extends LuceneTestCase {
 
 
 
+  public void testSlabSizeClasses() {
+    long prevSize = 0;
+    for (int sizeClass=0; sizeClass<100; sizeClass++) {
+      long size = HS.SlabAllocator.classSize(sizeClass);
+      assertTrue(size > prevSize);
+      assertEquals(sizeClass, HS.SlabAllocator.sizeClass(size));
+      assertEquals(sizeClass, HS.SlabAllocator.sizeClass(prevSize + 1));
+      assertTrue("too much waste for class " + sizeClass, sizeClass == 0 || (prevSize + 1) * 5 >= size * 4);
+      prevSize = size;
+    }
+
+    for (int i=0; i<1000; i++) {
+      long bytes = random().nextInt(1 << 24) + 1;
+      assertTrue(HS.SlabAllocator.classSize(HS.SlabAllocator.sizeClass(bytes)) >= bytes);
+    }
+  }
+
+  public void testSlabAllocator() {
+    HS.SlabAllocator allocator = new HS.SlabAllocator(1 << 20, 1 << 16);
+    long allocs = HS.getNumAllocations();
+    long frees = HS.getNumFrees();
+
+    long arr = allocator.allocArray(100, 8, false);
+    HS.setLong(arr, 99, -1L);
+    allocator.freeArray(arr);
+    assertEquals(HS.SlabAllocator.classSize(HS.SlabAllocator.sizeClass(800 + HS.HEADER_SIZE)), allocator.getPooledBytes());
+
+    // a block of the same size class should be re-used, and zeroed if requested
+    long arr2 = allocator.allocArray(99, 8, true);
+    assertEquals(arr, arr2);
+    assertEquals(0, allocator.getPooledBytes());
+    assertEquals(792, HS.arraySizeBytes(arr2));
+    for (int i=0; i<99; i++) {
+      assertEquals(0L, HS.getLong(arr2, i));
+    }
+
+    // too big to be pooled
+    long big = allocator.allocArray(1 << 17, 1, false);
+    allocator.freeArray(big);
+    allocator.freeArray(arr2);
+    assertTrue(allocator.getPooledBytes() > 0);
+    allocator.trim();
+    assertEquals(0, allocator.getPooledBytes());
+
+    assertEquals(HS.getNumAllocations() - allocs, HS.getNumFrees() - frees);
+  }
+
+  public void testAccountLimits() {
+    HS.Account account = HS.newRequestAccount();
+    account.setHardLimit(1000);
+    long requestBytes = HS.requestAccount.getBytes();
+    HS.Account prev = HS.setAccount(account);
+    try {
+      long arr = HS.allocArray(100, 8, false);
+      assertEquals(800, account.getBytes());
+      assertEquals(requestBytes + 800, HS.requestAccount.getBytes());
+
+      try {
+        HS.allocArray(100, 8, false);
+        fail("allocation over the hard limit should be rejected");
+      } catch (SolrException e) {
+        assertEquals(SolrException.ErrorCode.SERVICE_UNAVAILABLE.code, e.code());
+      }
+      assertEquals(800, account.getBytes());
+      assertEquals(requestBytes + 800, HS.requestAccount.getBytes());
+
+      // frees are credited to the per-request account too, so the limit is on what the request holds
+      HS.freeArray(arr);
+      assertEquals(requestBytes, HS.requestAccount.getBytes());
+      assertEquals(0, account.getBytes());
+      arr = HS.allocArray(100, 8, false);
+      assertEquals(800, account.getBytes());
+
+      // an array moved to another account is no longer charged to the request
+      long filterCacheBytes = HS.filterCacheAccount.getBytes();
+      HS.setArrayAccount(arr, HS.filterCacheAccount);
+      assertEquals(0, account.getBytes());
+      assertEquals(requestBytes, HS.requestAccount.getBytes());
+      assertEquals(filterCacheBytes + 800, HS.filterCacheAccount.getBytes());
+      HS.freeArray(arr);
+      assertEquals(filterCacheBytes, HS.filterCacheAccount.getBytes());
+    } finally {
+      HS.setAccount(prev);
+      account.close();
+    }
+
+    // going over the soft limit should ask the listeners to free memory
+    final long[] toFree = new long[] { HS.allocArray(10, 8, false) };
+    HS.MemoryListener listener = new HS.MemoryListener() {
+      @Override
+      public void memoryLimitReached(HS.Account account) {
+        HS.freeArray(toFree[0]);
+        toFree[0] = 0;
+      }
+    };
+    long otherBytes = HS.otherAccount.getBytes();
+    HS.otherAccount.setSoftLimit(otherBytes + 50);
+    HS.otherAccount.addListener(listener);
+    try {
+      long arr = HS.allocArray(10, 8, false);
+      assertEquals(0, toFree[0]);
+      assertEquals(otherBytes, HS.otherAccount.getBytes());
+      HS.freeArray(arr);
+    } finally {
+      HS.otherAccount.removeListener(listener);
+      HS.otherAccount.setSoftLimit(Long.MAX_VALUE);
+    }
+
+    // listeners that can't get the account back under its limit aren't asked again on every allocation
+    final int[] calls = new int[1];
+    HS.MemoryListener uselessListener = new HS.MemoryListener() {
+      @Override
+      public void memoryLimitReached(HS.Account account) {
+        calls[0]++;
+      }
+    };
+    HS.otherAccount.setSoftLimit(HS.otherAccount.getBytes());
+    HS.otherAccount.addListener(uselessListener);
+    long[] arrs = new long[100];
+    try {
+      for (int i = 0; i < arrs.length; i++) {
+        arrs[i] = HS.allocArray(10, 8, false);
+      }
+      assertTrue("listener called " + calls[0] + " times", calls[0] >= 1 && calls[0] < arrs.length);
+    } finally {
+      for (long arr : arrs) {
+        if (arr != 0) HS.freeArray(arr);
+      }
+      HS.otherAccount.removeListener(uselessListener);
+      HS.otherAccount.setSoftLimit(Long.MAX_VALUE);
+    }
+  }
+
+  public void testParseSize() {
+    assertEquals(100, HS.parseSize("100"));
+    assertEquals(2048, HS.parseSize("2k"));
+    assertEquals(3L << 20, HS.parseSize("3M"));
+    assertEquals(5L << 30, HS.parseSize(" 5g "));
+  }
+
   public void testAsserts() {
     log.warn("CHECKPOINT 1");
     long arr = HS.allocArray(5, 8, false);
@@ -0,0 +1,95 @@
+package org.apache.solr.core;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.SolrCache;
+import org.junit.BeforeClass;
+
+public class TestHSAccounts extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeTests() throws Exception {
+    initCore("solrconfig.xml","schema15.xml");
+  }
+
+  public void testAccounts() throws Exception {
+    clearIndex();
+    for (int i=0; i<200; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_i", Integer.toString(i % 10), "val_s1", "v" + i));
+    }
+    assertU(commit());
+
+    long filterCacheBytes = HS.filterCacheAccount.getBytes();
+    assertJQ(req("q","*:*", "fq","val_i:[0 TO 6]", "rows","0"), "/response/numFound==140");
+    assertTrue(HS.filterCacheAccount.getBytes() > filterCacheBytes);
+
+    long nCacheBytes = HS.nCacheAccount.getBytes();
+    assertJQ(req("q","*:*", "sort","val_s1 desc", "rows","1", "fl","id"), "/response/docs==[{'id':'99'}]");
+    assertTrue(HS.nCacheAccount.getBytes() > nCacheBytes);
+
+    NamedList stats = h.getCore().getInfoRegistry().get("nativeMemory").getStatistics();
+    assertEquals(HS.getNumAllocations(), stats.get("allocations"));
+    NamedList nCacheStats = (NamedList)stats.get("nCache");
+    assertTrue((Long)nCacheStats.get("bytes") > 0);
+
+    // sets a request puts in the filterCache are charged to the filterCache, and the rest of what it allocates is freed
+    long requestBytes = HS.requestAccount.getBytes();
+    filterCacheBytes = HS.filterCacheAccount.getBytes();
+    assertJQ(req("q","val_i:[0 TO 3]", "facet","true", "facet.field","val_i", "rows","0"), "/response/numFound==80");
+    assertTrue(HS.filterCacheAccount.getBytes() > filterCacheBytes);
+    assertEquals(requestBytes, HS.requestAccount.getBytes());
+
+    // a request that allocates more than the per-request limit is rejected
+    long prevLimit = HS.getPerRequestLimit();
+    HS.setPerRequestLimit(16);
+    try {
+      assertQEx("request should go over the limit", req("q","*:*", "fq","{!cache=false}val_i:[0 TO 8]", "facet","true", "facet.field","val_i"), SolrException.ErrorCode.SERVICE_UNAVAILABLE);
+    } finally {
+      HS.setPerRequestLimit(prevLimit);
+    }
+    assertJQ(req("q","*:*", "fq","{!cache=false}val_i:[0 TO 8]", "facet","true", "facet.field","val_i", "rows","0"), "/response/numFound==180");
+  }
+
+  public void testSoftLimitEviction() throws Exception {
+    clearIndex();
+    for (int i=0; i<200; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_i", Integer.toString(i % 10)));
+    }
+    assertU(commit());
+
+    SolrCache filterCache = (SolrCache)h.getCore().getInfoRegistry().get("filterCache");
+    for (int i=0; i<10; i++) {
+      assertJQ(req("q","*:*", "fq","val_i:[0 TO " + i + "]", "rows","0"), "/response/numFound==" + ((i+1)*20));
+    }
+    int size = filterCache.size();
+    assertTrue(size >= 10);
+
+    long bytes = HS.filterCacheAccount.getBytes();
+    HS.filterCacheAccount.setSoftLimit(bytes);
+    try {
+      assertJQ(req("q","*:*", "fq","val_i:[1 TO 8]", "rows","0"), "/response/numFound==160");
+      assertTrue(filterCache.size() < size + 1);
+    } finally {
+      HS.filterCacheAccount.setSoftLimit(Long.MAX_VALUE);
+    }
+  }
+
+}
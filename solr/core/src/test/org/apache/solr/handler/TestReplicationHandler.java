@@ -44,6 +44,7 @@ import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.util.TestUtil;
 import org.apache.lucene.util.LuceneTestCase.Slow;
 import org.apache.solr.BaseDistributedSearchTestCase;
 import org.apache.solr.SolrTestCaseJ4;
@@ -757,6 +758,135 @@ public class TestReplicationHandler extends SolrTestCaseJ4 {
   }
   
   
+  @Test
+  public void doTestParallelSnapPull() throws Exception {
+    //change solrconfig on slave
+    //this has no entry for pollinginterval
+    slave.copyConfigFile(CONF_DIR + "solrconfig-slave1.xml", "solrconfig.xml");
+    slaveJetty.stop();
+    slaveJetty = createJetty(slave);
+    slaveClient = createNewSolrServer(slaveJetty.getLocalPort());
+
+    masterClient.deleteByQuery("*:*");
+    slaveClient.deleteByQuery("*:*");
+    slaveClient.commit();
+    // enough text that some files are larger than a range
+    int docs = 300;
+    for (int i = 0; i < docs; i++)
+      index(masterClient, "id", i, "name", TestUtil.randomSimpleString(random(), 8000, 10000));
+    masterClient.commit();
+
+    NamedList masterQueryRsp = rQuery(docs, "*:*", masterClient);
+    SolrDocumentList masterQueryResult = (SolrDocumentList) masterQueryRsp.get("response");
+    assertEquals(docs, masterQueryResult.getNumFound());
+
+    // snappull several files, and ranges of 1MB, at once
+    String masterUrl = buildUrl(slaveJetty.getLocalPort()) + "/replication?command=fetchindex&fetchThreads=3&fetchRangeSizeMB=1&masterUrl=";
+    masterUrl += buildUrl(masterJetty.getLocalPort()) + "/replication";
+    URL url = new URL(masterUrl);
+    InputStream stream = url.openStream();
+    try {
+      stream.close();
+    } catch (IOException e) {
+      //e.printStackTrace();
+    }
+
+    NamedList slaveQueryRsp = rQuery(docs, "*:*", slaveClient);
+    SolrDocumentList slaveQueryResult = (SolrDocumentList) slaveQueryRsp.get("response");
+    assertEquals(docs, slaveQueryResult.getNumFound());
+    String cmp = BaseDistributedSearchTestCase.compare(masterQueryResult, slaveQueryResult, 0, null);
+    assertEquals(null, cmp);
+    assertVersions(masterClient, slaveClient);
+
+    // every document came across intact
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set("q", "*:*");
+    params.set("sort", "id desc");
+    params.set("rows", docs);
+    masterQueryResult = masterClient.query(params).getResults();
+    slaveQueryResult = slaveClient.query(params).getResults();
+    assertEquals(docs, slaveQueryResult.size());
+    cmp = BaseDistributedSearchTestCase.compare(masterQueryResult, slaveQueryResult, 0, null);
+    assertEquals(null, cmp);
+
+    checkForSingleIndex(masterJetty);
+    checkForSingleIndex(slaveJetty);
+  }
+
+  @Test
+  public void doTestCompressedAndDeltaSnapPull() throws Exception {
+    //change solrconfig on slave
+    //this has no entry for pollinginterval
+    slave.copyConfigFile(CONF_DIR + "solrconfig-slave1.xml", "solrconfig.xml");
+    slaveJetty.stop();
+    slaveJetty = createJetty(slave);
+    slaveClient = createNewSolrServer(slaveJetty.getLocalPort());
+
+    masterClient.deleteByQuery("*:*");
+    slaveClient.deleteByQuery("*:*");
+    slaveClient.commit();
+    int docs = 200;
+    for (int i = 0; i < docs; i++)
+      index(masterClient, "id", i, "name", TestUtil.randomSimpleString(random(), 2000, 4000));
+    masterClient.commit();
+
+    NamedList masterQueryRsp = rQuery(docs, "*:*", masterClient);
+    SolrDocumentList masterQueryResult = (SolrDocumentList) masterQueryRsp.get("response");
+    assertEquals(docs, masterQueryResult.getNumFound());
+
+    // snappull with lz4 compressed packets
+    fetchIndexFromMaster("&packetCompression=lz4");
+    NamedList slaveQueryRsp = rQuery(docs, "*:*", slaveClient);
+    SolrDocumentList slaveQueryResult = (SolrDocumentList) slaveQueryRsp.get("response");
+    assertEquals(docs, slaveQueryResult.getNumFound());
+    assertVersions(masterClient, slaveClient);
+
+    // a commit on the slave forces a full copy, and the files the slave already has only need their block
+    // checksums to come across
+    index(slaveClient, "id", docs, "name", "slave only");
+    slaveClient.commit();
+    assertEquals(docs + 1, numFound(rQuery(docs + 1, "*:*", slaveClient)));
+
+    fetchIndexFromMaster("&packetCompression=deflate");
+    slaveQueryRsp = rQuery(docs, "*:*", slaveClient);
+    slaveQueryResult = (SolrDocumentList) slaveQueryRsp.get("response");
+    assertEquals(docs, slaveQueryResult.getNumFound());
+    assertVersions(masterClient, slaveClient);
+
+    // every document came across intact
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set("q", "*:*");
+    params.set("sort", "id desc");
+    params.set("rows", docs);
+    masterQueryResult = masterClient.query(params).getResults();
+    slaveQueryResult = slaveClient.query(params).getResults();
+    assertEquals(docs, slaveQueryResult.size());
+    String cmp = BaseDistributedSearchTestCase.compare(masterQueryResult, slaveQueryResult, 0, null);
+    assertEquals(null, cmp);
+
+    NamedList<Object> details = getDetails(slaveClient);
+    NamedList<Object> slaveDetails = (NamedList<Object>) details.get("slave");
+    long downloaded = Long.parseLong(slaveDetails.get("lastCycleBytesDownloaded").toString());
+    long transferred = Long.parseLong(slaveDetails.get("lastCycleBytesTransferred").toString());
+    assertTrue("transferred " + transferred + " of " + downloaded, transferred < downloaded);
+    assertNotNull(slaveDetails.get("lastCycleTransferRatio"));
+
+    checkForSingleIndex(masterJetty);
+    checkForSingleIndex(slaveJetty);
+  }
+
+  private void fetchIndexFromMaster(String args) throws IOException {
+    String masterUrl = buildUrl(slaveJetty.getLocalPort()) + "/replication?command=fetchindex" + args + "&masterUrl=";
+    masterUrl += buildUrl(masterJetty.getLocalPort()) + "/replication";
+    URL url = new URL(masterUrl);
+    InputStream stream = url.openStream();
+    try {
+      stream.close();
+    } catch (IOException e) {
+      //e.printStackTrace();
+    }
+  }
+
   @Test 
   public void doTestStressReplication() throws Exception {
     // change solrconfig on slave
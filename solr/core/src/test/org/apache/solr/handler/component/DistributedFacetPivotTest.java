@@ -0,0 +1,106 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.BaseDistributedSearchTestCase;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.util.NamedList;
+
+import java.util.List;
+
+/**
+ * Test for distributed pivot faceting
+ *
+ * @see org.apache.solr.handler.component.FacetComponent
+ */
+public class DistributedFacetPivotTest extends BaseDistributedSearchTestCase {
+
+  public DistributedFacetPivotTest() {
+    fixShardCount = true;
+    shardCount = 2;
+    stress = 0;
+  }
+
+  private int docId;
+
+  private void add(int shard, int n, Object... fields) throws Exception {
+    for (int i=0; i<n; i++) {
+      Object[] doc = new Object[fields.length + 2];
+      doc[0] = id;
+      doc[1] = docId++;
+      System.arraycopy(fields, 0, doc, 2, fields.length);
+      index_specific(shard, doc);
+    }
+  }
+
+  @Override
+  public void doTest() throws Exception {
+    del("*:*");
+
+    // "a" is not among the values the first shard returns, and neither is "z" beneath "b", so both need
+    // to be refined to get their counts right
+    for (int i=0; i<12; i++) {
+      add(0, 3, "cat_s", "v" + (i < 10 ? "0" : "") + i, "sub_s", "x", "num_i", 1);
+      add(0, 2, "cat_s", "b", "sub_s", "w" + (i < 10 ? "0" : "") + i, "num_i", 2);
+    }
+    add(0, 1, "cat_s", "b", "sub_s", "z", "num_i", 2);
+    add(0, 2, "cat_s", "a", "sub_s", "p", "num_i", 3);
+
+    add(1, 4, "cat_s", "a", "sub_s", "p", "num_i", 3);
+    add(1, 6, "cat_s", "a", "sub_s", "q", "num_i", 3);
+    add(1, 5, "cat_s", "b", "sub_s", "z", "num_i", 2);
+    add(1, 2, "cat_s", "c", "num_i", 4);
+    commit();
+
+    handle.clear();
+    handle.put("QTime", SKIPVAL);
+    handle.put("timestamp", SKIPVAL);
+    handle.put("maxScore", SKIPVAL);
+
+    QueryResponse rsp = query("q", "*:*", "rows", 0, "facet", "true", "facet.pivot", "cat_s,sub_s",
+        "facet.limit", 2, "f.sub_s.facet.limit", 1);
+    NamedList<?> facetCounts = (NamedList<?>) rsp.getResponse().get("facet_counts");
+    @SuppressWarnings("unchecked")
+    List<NamedList<Object>> pivots = (List<NamedList<Object>>) ((NamedList<?>) facetCounts.get("facet_pivot")).get("cat_s,sub_s");
+    assertEquals(2, pivots.size());
+    assertEquals("b", pivots.get(0).get("value"));
+    assertEquals(30, pivots.get(0).get("count"));
+    @SuppressWarnings("unchecked")
+    List<NamedList<Object>> subPivots = (List<NamedList<Object>>) pivots.get(0).get("pivot");
+    assertEquals("z", subPivots.get(0).get("value"));
+    assertEquals(6, subPivots.get(0).get("count"));
+    assertEquals("a", pivots.get(1).get("value"));
+    assertEquals(12, pivots.get(1).get("count"));
+
+    query("q", "*:*", "rows", 0, "facet", "true", "facet.pivot", "{!key=mykey}cat_s,sub_s",
+        "facet.limit", 2, "f.sub_s.facet.limit", 2, "facet.missing", "true");
+    query("q", "*:*", "rows", 0, "facet", "true", "facet.pivot", "num_i,cat_s,sub_s", "facet.pivot", "sub_s,cat_s",
+        "facet.limit", 3, "f.sub_s.facet.offset", 1);
+    query("q", "*:*", "rows", 0, "facet", "true", "facet.pivot", "cat_s,sub_s", "facet.pivot.mincount", 3,
+        "facet.limit", 4);
+    // values with a single sub_s value, or none, are left out when the list beneath them is shorter than the mincount
+    query("q", "*:*", "rows", 0, "facet", "true", "facet.pivot", "cat_s,sub_s", "facet.pivot.mincount", 2,
+        "facet.mincount", 1);
+    query("q", "*:*", "rows", 0, "facet", "true", "facet.pivot", "cat_s,num_i", "facet.limit", -1);
+    // refinements alongside those of a facet.field on the same field
+    query("q", "*:*", "rows", 0, "facet", "true", "facet.pivot", "cat_s,sub_s", "facet.field", "cat_s",
+        "facet.limit", 2, "f.sub_s.facet.limit", 1);
+    query("q", "-num_i:1", "rows", 5, "sort", "id asc", "fl", "id", "facet", "true", "facet.pivot", "cat_s,sub_s",
+        "facet.limit", 2, "f.sub_s.facet.limit", 1);
+  }
+}
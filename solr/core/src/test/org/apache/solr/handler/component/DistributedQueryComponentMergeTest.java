@@ -0,0 +1,106 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.BaseDistributedSearchTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test for the merge of the top ids of each shard, over the kinds of sort values it compares
+ *
+ * @see org.apache.solr.handler.component.ShardDocMerger
+ */
+public class DistributedQueryComponentMergeTest extends BaseDistributedSearchTestCase {
+
+  public DistributedQueryComponentMergeTest() {
+    fixShardCount = true;
+    shardCount = 3;
+    stress = 0;
+  }
+
+  @Override
+  public void doTest() throws Exception {
+    del("*:*");
+
+    String[] strings = {"a", "ab", "b", "é", "中", "𝐀", "Z", ""};
+    for (int i=0; i<150; i++) {
+      // few distinct values, so there are plenty of ties to be broken by the next sort field
+      List<Object> fields = new ArrayList<>();
+      fields.add(id);
+      fields.add(i);
+      if (random().nextInt(10) > 0) {
+        fields.add("a_i1");
+        fields.add(random().nextInt(10) - 5);
+      }
+      if (random().nextInt(10) > 0) {
+        fields.add("b_f1");
+        fields.add(random().nextInt(10) * 0.5f - 2);
+      }
+      if (random().nextInt(10) > 0) {
+        fields.add("c_s1");
+        fields.add(strings[random().nextInt(strings.length)]);
+      }
+      if (random().nextInt(10) > 0) {
+        fields.add("d_tdt1");
+        fields.add("2014-0" + (1 + random().nextInt(9)) + "-01T00:00:00Z");
+      }
+      if (random().nextInt(10) > 0) {
+        fields.add("e_td1");
+        fields.add(random().nextInt(10) * -1.25d);
+      }
+      if (random().nextInt(10) > 0) {
+        fields.add("g_si");  // compared by its FieldComparator
+        fields.add(random().nextInt(10));
+      }
+      fields.add("text");
+      fields.add(random().nextBoolean() ? "quick" : random().nextBoolean() ? "quick brown fox" : "quick quick");
+      index_specific(random().nextInt(shardCount), fields.toArray());
+      if (random().nextInt(50) == 0) {
+        commit();
+      }
+    }
+    commit();
+
+    handle.clear();
+    handle.put("QTime", SKIPVAL);
+    handle.put("timestamp", SKIPVAL);
+    handle.put("maxScore", SKIPVAL);
+
+    String[] sorts = {
+        "a_i1 desc, id asc",
+        "b_f1 asc, a_i1 desc, id desc",
+        "c_s1 asc, id asc",
+        "c_s1 desc, b_f1 desc, id asc",
+        "d_tdt1 desc, e_td1 asc, id asc",
+        "score desc, id asc",
+        "score asc, c_s1 asc, id desc",
+        "g_si desc, a_i1 asc, id asc",
+        "sum(a_i1,b_f1) asc, id asc",
+    };
+    for (String sort : sorts) {
+      query("q", "{!func}b_f1", "fq", "text:quick", "fl", "id,score", "sort", sort, "rows", 10);
+      query("q", "{!func}b_f1", "fq", "text:quick", "fl", "id,score", "sort", sort, "start", 37, "rows", 25);
+      query("q", "{!func}b_f1", "fq", "text:quick", "fl", "id", "sort", sort, "start", 140, "rows", 20);
+      query("q", "{!func}b_f1", "fq", "text:quick", "fl", "id", "sort", sort, "start", 200, "rows", 10);
+      query("q", "{!func}b_f1", "fq", "text:quick", "fl", "id", "sort", sort, "rows", 0);
+      query("q", "{!func}b_f1", "fq", "text:quick", "fl", "id", "sort", sort, "rows", 20, "cursorMark", "*");
+    }
+  }
+}
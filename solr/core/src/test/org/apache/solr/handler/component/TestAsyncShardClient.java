@@ -0,0 +1,175 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.util.LuceneTestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+public class TestAsyncShardClient extends LuceneTestCase {
+
+  private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+  /** Feeds a response to a reader one byte at a time, checking it is only complete after the last */
+  private static AsyncShardClient.ResponseReader readBytewise(String response) throws IOException {
+    AsyncShardClient.ResponseReader reader = new AsyncShardClient.ResponseReader();
+    byte[] bytes = response.getBytes(LATIN1);
+    for (int i=0; i<bytes.length; i++) {
+      assertFalse("complete after " + i + " bytes", reader.complete);
+      reader.add(ByteBuffer.wrap(bytes, i, 1));
+    }
+    return reader;
+  }
+
+  /** Feeds a response to a reader in pieces of random sizes */
+  private static AsyncShardClient.ResponseReader read(String response) throws IOException {
+    AsyncShardClient.ResponseReader reader = new AsyncShardClient.ResponseReader();
+    byte[] bytes = response.getBytes(LATIN1);
+    for (int pos=0; pos<bytes.length; ) {
+      int n = Math.min(bytes.length - pos, 1 + random().nextInt(16));
+      reader.add(ByteBuffer.wrap(bytes, pos, n));
+      pos += n;
+    }
+    return reader;
+  }
+
+  private static String body(AsyncShardClient.ResponseReader reader) throws IOException {
+    return IOUtils.toString(reader.getBody(), "ISO-8859-1");
+  }
+
+  public void testContentLength() throws Exception {
+    AsyncShardClient.ResponseReader reader = readBytewise(
+        "HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: 11\r\n\r\nhello world");
+    assertTrue(reader.complete);
+    assertEquals(200, reader.status);
+    assertEquals("OK", reader.reason);
+    assertEquals("application/octet-stream", reader.contentType);
+    assertTrue(reader.keepAlive);
+    assertEquals("hello world", body(reader));
+  }
+
+  public void testSplitChunkHeaders() throws Exception {
+    String response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+        + "5\r\nhello\r\n"
+        + "1;name=value\r\n \r\n"
+        + "1A\r\nabcdefghijklmnopqrstuvwxyz\r\n"
+        + "0\r\n\r\n";
+    String expected = "hello abcdefghijklmnopqrstuvwxyz";
+    AsyncShardClient.ResponseReader reader = readBytewise(response);
+    assertTrue(reader.complete);
+    assertTrue(reader.keepAlive);
+    assertEquals(expected, body(reader));
+
+    for (int i=0; i<20; i++) {
+      reader = read(response);
+      assertTrue(reader.complete);
+      assertEquals(expected, body(reader));
+    }
+  }
+
+  public void testTrailers() throws Exception {
+    String response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+        + "3\r\nabc\r\n"
+        + "0\r\nX-Checksum: 123\r\nX-Other: 456\r\n\r\n";
+    AsyncShardClient.ResponseReader reader = readBytewise(response);
+    assertTrue(reader.complete);
+    assertEquals("abc", body(reader));
+
+    // the response is only complete once the empty line after the trailers arrives
+    reader = new AsyncShardClient.ResponseReader();
+    reader.add(ByteBuffer.wrap(response.substring(0, response.length() - 2).getBytes(LATIN1)));
+    assertFalse(reader.complete);
+    reader.add(ByteBuffer.wrap("\r\n".getBytes(LATIN1)));
+    assertTrue(reader.complete);
+  }
+
+  public void testNoBody() throws Exception {
+    AsyncShardClient.ResponseReader reader = readBytewise("HTTP/1.1 204 No Content\r\n\r\n");
+    assertTrue(reader.complete);
+    assertEquals(204, reader.status);
+    assertTrue(reader.keepAlive);
+    assertEquals("", body(reader));
+
+    // the Content-Length of a 304 is that of the resource, not of a body
+    reader = readBytewise("HTTP/1.1 304 Not Modified\r\nContent-Length: 100\r\n\r\n");
+    assertTrue(reader.complete);
+    assertEquals(304, reader.status);
+    assertEquals("", body(reader));
+  }
+
+  public void testConnectionClose() throws Exception {
+    // a body delimited by the end of the connection
+    AsyncShardClient.ResponseReader reader = read("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nhello world");
+    assertFalse(reader.complete);
+    assertFalse(reader.keepAlive);
+    reader.eof();
+    assertTrue(reader.complete);
+    assertEquals("hello world", body(reader));
+
+    // a complete response, on a connection that can't be reused
+    reader = read("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nConnection: close\r\n\r\nhello");
+    assertTrue(reader.complete);
+    assertFalse(reader.keepAlive);
+
+    // HTTP/1.0 connections are closed unless asked otherwise
+    reader = read("HTTP/1.0 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+    assertTrue(reader.complete);
+    assertFalse(reader.keepAlive);
+    reader = read("HTTP/1.0 200 OK\r\nContent-Length: 5\r\nConnection: Keep-Alive\r\n\r\nhello");
+    assertTrue(reader.complete);
+    assertTrue(reader.keepAlive);
+  }
+
+  public void testEarlyEof() throws Exception {
+    AsyncShardClient.ResponseReader reader = read("HTTP/1.1 200 OK\r\nContent-Length: 11\r\n\r\nhello");
+    reader.eof();
+    assertFalse(reader.complete);
+    assertFalse(reader.keepAlive);
+
+    reader = read("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n");
+    reader.eof();
+    assertFalse(reader.complete);
+
+    reader = read("HTTP/1.1 200 OK\r\nContent-");
+    reader.eof();
+    assertFalse(reader.complete);
+
+    reader = new AsyncShardClient.ResponseReader();
+    assertTrue(reader.isEmpty());
+    reader.eof();
+    assertFalse(reader.complete);
+  }
+
+  public void testInvalidResponses() throws Exception {
+    for (String response : new String[] {
+        "SMTP ready\r\n\r\n",
+        "HTTP/1.1 abc OK\r\n\r\n",
+        "HTTP/1.1 200 OK\r\nContent-Length: x\r\n\r\n",
+        "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n"}) {
+      try {
+        read(response);
+        fail("no error reading: " + response);
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+}
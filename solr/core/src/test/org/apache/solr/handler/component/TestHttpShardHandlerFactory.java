@@ -0,0 +1,287 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.client.HttpClient;
+import org.apache.solr.SolrJettyTestBase;
+import org.apache.solr.SolrTestCaseJ4.SuppressSSL;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.PluginInfo;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+@SuppressSSL     // the unresponsive replica is a plain socket
+public class TestHttpShardHandlerFactory extends SolrJettyTestBase {
+
+  private static final File solrHomeDirectory = new File(TEMP_DIR, "TestHttpShardHandlerFactory");
+
+  @BeforeClass
+  public static void beforeTest() throws Exception {
+    setupJettyTestHome(solrHomeDirectory, "collection1");
+    createJetty(solrHomeDirectory.getAbsolutePath(), null, null);
+  }
+
+  @AfterClass
+  public static void afterTest() throws Exception {
+    cleanUpJettyHome(solrHomeDirectory);
+  }
+
+  private static HttpShardHandlerFactory newFactory(Object... args) {
+    NamedList<Object> initArgs = new NamedList<>();
+    for (int i=0; i<args.length; i+=2) {
+      initArgs.add((String)args[i], args[i+1]);
+    }
+    HttpShardHandlerFactory factory = new HttpShardHandlerFactory();
+    factory.init(new PluginInfo("shardHandlerFactory", Collections.<String,String>emptyMap(), initArgs, null));
+    return factory;
+  }
+
+  private static void addRequests(ReplicaStats stats, int n, long millis) {
+    for (int i=0; i<n; i++) {
+      stats.start();
+      stats.finish(TimeUnit.MILLISECONDS.toNanos(millis), false);
+    }
+  }
+
+  public void testReplicaSelection() throws Exception {
+    HttpShardHandlerFactory factory = newFactory(HttpShardHandlerFactory.INIT_REPLICA_SELECTION,
+        HttpShardHandlerFactory.REPLICA_SELECTION_LATENCY);
+    try {
+      addRequests(factory.getReplicaStats("http://a/solr"), 10, 200);
+      addRequests(factory.getReplicaStats("http://b/solr"), 10, 50);
+      addRequests(factory.getReplicaStats("http://c/solr"), 10, 100);
+      for (int i=0; i<10; i++) {
+        assertEquals(Arrays.asList("http://b/solr", "http://c/solr", "http://a/solr"),
+            factory.makeURLList("a/solr|b/solr|c/solr"));
+      }
+
+      // the requests waiting on a replica count against it
+      factory.getReplicaStats("http://b/solr").start();
+      factory.getReplicaStats("http://b/solr").start();
+      assertEquals("http://c/solr", factory.makeURLList("a/solr|b/solr|c/solr").get(0));
+
+      // replicas that haven't been tried yet are tried first
+      assertEquals("http://d/solr", factory.makeURLList("a/solr|d/solr").get(0));
+
+      // but not once their requests fail
+      ReplicaStats failing = factory.getReplicaStats("http://d/solr");
+      failing.start();
+      failing.finish(TimeUnit.MILLISECONDS.toNanos(1), true);
+      assertEquals(0.0, failing.getLatency(), 0.0);
+      assertEquals("http://a/solr", factory.makeURLList("a/solr|d/solr").get(0));
+
+      assertEquals(-1, factory.getHedgeDelay(factory.defaultClient, "http://a/solr"));  // hedging is off
+    } finally {
+      factory.close();
+    }
+  }
+
+  public void testHedgedRequest() throws Exception {
+    HttpShardHandlerFactory factory = newFactory(HttpShardHandlerFactory.INIT_REPLICA_SELECTION,
+        HttpShardHandlerFactory.REPLICA_SELECTION_LATENCY, HttpShardHandlerFactory.INIT_HEDGE_REQUESTS, true,
+        HttpShardHandlerFactory.INIT_HEDGE_MIN_DELAY, 5, HttpClientUtil.PROP_SO_TIMEOUT, 30000);
+    // accepts connections, but never answers
+    ServerSocket unresponsive = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+    try {
+      String slowUrl = "http://127.0.0.1:" + unresponsive.getLocalPort() + context + "/collection1";
+      String url = jetty.getBaseUrl() + "/collection1";
+
+      // the unresponsive replica has been the faster one so far, so it is asked first
+      addRequests(factory.getReplicaStats(slowUrl), HttpShardHandlerFactory.HEDGE_MIN_REQUESTS - 1, 1);
+      assertEquals(-1, factory.getHedgeDelay(factory.defaultClient, slowUrl));
+      addRequests(factory.getReplicaStats(slowUrl), 1, 1);
+      assertEquals(5, factory.getHedgeDelay(factory.defaultClient, slowUrl));
+      addRequests(factory.getReplicaStats(url), HttpShardHandlerFactory.HEDGE_MIN_REQUESTS, 1000);
+
+      String shard = slowUrl.substring("http://".length()) + "|" + url.substring("http://".length());
+      ShardRequest sreq = new ShardRequest();
+      sreq.actualShards = new String[] {shard};
+      sreq.responses = new ArrayList<>();
+      ModifiableSolrParams params = params(CommonParams.Q, "*:*", CommonParams.DISTRIB, "false");
+
+      ShardHandler shardHandler = factory.getShardHandler();
+      shardHandler.submit(sreq, shard, params);
+      ShardResponse srsp = shardHandler.takeCompletedOrError();
+      assertNull(srsp.getException());
+      assertEquals(url, srsp.getShardAddress());
+      assertTrue(srsp.getSolrResponse().getResponse().get("response") instanceof SolrDocumentList);
+
+      NamedList<?> stats = factory.getStatistics();
+      assertEquals(1L, stats.get("hedgedRequests"));
+      assertEquals(1L, stats.get("hedgesWon"));
+      assertEquals(1L, ((NamedList<?>)((NamedList<?>)stats.get("replicas")).get(url)).get("hedges"));
+
+      // the request to the unresponsive replica was aborted, rather than left waiting for the socket timeout
+      ReplicaStats slowStats = factory.getReplicaStats(slowUrl);
+      for (int i=0; i<100 && slowStats.getInFlight() > 0; i++) {
+        Thread.sleep(50);
+      }
+      assertEquals(0, slowStats.getInFlight());
+      assertEquals(HttpShardHandlerFactory.HEDGE_MIN_REQUESTS + 1, slowStats.getCount());
+
+      // requests sent with another client can't be aborted, so they aren't hedged
+      HttpClient otherClient = HttpClientUtil.createClient(null);
+      try {
+        assertEquals(-1, factory.getHedgeDelay(otherClient, slowUrl));
+      } finally {
+        otherClient.getConnectionManager().shutdown();
+      }
+    } finally {
+      unresponsive.close();
+      factory.close();
+    }
+  }
+
+  public void testAsyncRequests() throws Exception {
+    HttpShardHandlerFactory factory = newFactory(HttpShardHandlerFactory.INIT_ASYNC_REQUESTS, true,
+        HttpShardHandlerFactory.INIT_ASYNC_THREADS, 2);
+    HttpShardHandlerFactory timeoutFactory = newFactory(HttpShardHandlerFactory.INIT_ASYNC_REQUESTS, true,
+        HttpClientUtil.PROP_SO_TIMEOUT, 500);
+    // accepts connections, but never answers
+    ServerSocket unresponsive = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+    // refuses connections
+    ServerSocket dead = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+    dead.close();
+    try {
+      String url = jetty.getBaseUrl() + "/collection1";
+      String deadUrl = "http://127.0.0.1:" + dead.getLocalPort() + context + "/collection1";
+      String slowUrl = "http://127.0.0.1:" + unresponsive.getLocalPort() + context + "/collection1";
+      ShardHandler shardHandler = factory.getShardHandler();
+
+      // more shards than threads, some with a replica that is down
+      ShardRequest sreq = new ShardRequest();
+      sreq.actualShards = new String[10];
+      sreq.responses = new ArrayList<>();
+      for (int i=0; i<sreq.actualShards.length; i++) {
+        String shard = url.substring("http://".length());
+        if (i % 2 == 1) {
+          shard = deadUrl.substring("http://".length()) + "|" + shard;
+        }
+        sreq.actualShards[i] = shard;
+        shardHandler.submit(sreq, shard, params(CommonParams.Q, "*:*", CommonParams.DISTRIB, "false"));
+      }
+      assertSame(sreq, shardHandler.takeCompletedOrError().getShardRequest());
+      assertEquals(sreq.actualShards.length, sreq.responses.size());
+      for (ShardResponse srsp : sreq.responses) {
+        assertNull(srsp.getException());
+        assertEquals(url, srsp.getShardAddress());
+        assertTrue(srsp.getSolrResponse().getResponse().get("response") instanceof SolrDocumentList);
+      }
+      assertNull(shardHandler.takeCompletedOrError());
+
+      // errors of a replica are returned
+      String shard = url.substring("http://".length());
+      sreq = new ShardRequest();
+      sreq.actualShards = new String[] {shard};
+      sreq.responses = new ArrayList<>();
+      shardHandler.submit(sreq, shard, params(CommonParams.Q, "{!bogus}", CommonParams.DISTRIB, "false"));
+      ShardResponse srsp = shardHandler.takeCompletedIncludingErrors();
+      assertNotNull(srsp.getException());
+      assertEquals(400, ((SolrException)srsp.getException()).code());
+
+      // and so are timeouts
+      shard = slowUrl.substring("http://".length());
+      sreq = new ShardRequest();
+      sreq.actualShards = new String[] {shard};
+      sreq.responses = new ArrayList<>();
+      ShardHandler timeoutShardHandler = timeoutFactory.getShardHandler();
+      timeoutShardHandler.submit(sreq, shard, params(CommonParams.Q, "*:*", CommonParams.DISTRIB, "false"));
+      srsp = timeoutShardHandler.takeCompletedIncludingErrors();
+      assertTrue(srsp.getException().getCause() instanceof SocketTimeoutException);
+
+      // no thread of the pool waited on a request
+      assertEquals(0, factory.getThreadPoolExecutor().getTaskCount());
+      assertEquals(true, factory.getStatistics().get("asyncRequests"));
+      assertEquals(0, factory.getReplicaStats(url).getInFlight());
+      assertTrue(factory.getReplicaStats(url).getCount() >= 5);  // the shards without a replica that is down
+    } finally {
+      unresponsive.close();
+      factory.close();
+      timeoutFactory.close();
+    }
+  }
+
+  public void testAsyncRequestsPerHostLimit() throws Exception {
+    // more requests to the host than connections allowed to it, so most wait for a connection
+    HttpShardHandlerFactory factory = newFactory(HttpShardHandlerFactory.INIT_ASYNC_REQUESTS, true,
+        HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, 1);
+    try {
+      String shard = (jetty.getBaseUrl() + "/collection1").substring("http://".length());
+      ShardHandler shardHandler = factory.getShardHandler();
+      ShardRequest sreq = newShardRequest(shard, 10);
+      for (int i=0; i<sreq.actualShards.length; i++) {
+        shardHandler.submit(sreq, shard, params(CommonParams.Q, "*:*", CommonParams.DISTRIB, "false"));
+      }
+      assertSame(sreq, shardHandler.takeCompletedOrError().getShardRequest());
+      assertEquals(sreq.actualShards.length, sreq.responses.size());
+      for (ShardResponse srsp : sreq.responses) {
+        assertNull(srsp.getException());
+        assertTrue(srsp.getSolrResponse().getResponse().get("response") instanceof SolrDocumentList);
+      }
+
+      // requests cancelled while they wait don't hold up the others
+      sreq = newShardRequest(shard, 10);
+      for (int i=0; i<sreq.actualShards.length; i++) {
+        shardHandler.submit(sreq, shard, params(CommonParams.Q, "*:*", CommonParams.DISTRIB, "false"));
+      }
+      ShardHandler otherShardHandler = factory.getShardHandler();
+      ShardRequest otherSreq = newShardRequest(shard, 1);
+      otherShardHandler.submit(otherSreq, shard, params(CommonParams.Q, "*:*", CommonParams.DISTRIB, "false"));
+      shardHandler.cancelAll();
+      ShardResponse srsp = otherShardHandler.takeCompletedOrError();
+      assertNull(srsp.getException());
+      assertTrue(srsp.getSolrResponse().getResponse().get("response") instanceof SolrDocumentList);
+    } finally {
+      factory.close();
+    }
+  }
+
+  private static ShardRequest newShardRequest(String shard, int n) {
+    ShardRequest sreq = new ShardRequest();
+    sreq.actualShards = new String[n];
+    Arrays.fill(sreq.actualShards, shard);
+    sreq.responses = new ArrayList<>();
+    return sreq;
+  }
+
+  public void testStatistics() throws Exception {
+    // the shared factory is registered by each search handler
+    QueryResponse rsp = getSolrServer().query(params("qt", "/admin/mbeans", "stats", "true", "cat", "OTHER"));
+    NamedList<?> mbeans = (NamedList<?>)((NamedList<?>)rsp.getResponse().get("solr-mbeans")).get("OTHER");
+    NamedList<?> mbean = (NamedList<?>)mbeans.get(HttpShardHandlerFactory.class.getName());
+    assertNotNull(mbean);
+    NamedList<?> stats = (NamedList<?>)mbean.get("stats");
+    assertEquals(HttpShardHandlerFactory.REPLICA_SELECTION_RANDOM, stats.get("replicaSelection"));
+    assertNotNull(stats.get("replicas"));
+  }
+}
@@ -0,0 +1,95 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.junit.BeforeClass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestPivotFacetCounter extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeTests() throws Exception {
+    System.setProperty("enable.update.log", "false"); // schema12 doesn't support _version_
+    initCore("solrconfig.xml","schema12.xml");
+  }
+
+  public void testCreate() throws Exception {
+    SolrQueryRequest req = req();
+    try {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      assertNotNull(PivotFacetCounter.create(req.getSearcher(), params, new String[]{"a_s1","x_i","y_ti"}, 1));
+      // multiValued fields, text fields, and prefixes are faceted one value at a time
+      assertNull(PivotFacetCounter.create(req.getSearcher(), params, new String[]{"a_s1","cat_s"}, 1));
+      assertNull(PivotFacetCounter.create(req.getSearcher(), params, new String[]{"a_s1","title_t"}, 1));
+      assertNull(PivotFacetCounter.create(req.getSearcher(), params, new String[]{"a_s1","b_s1"}, 0));
+      params.set("f.b_s1.facet.prefix", "b");
+      assertNull(PivotFacetCounter.create(req.getSearcher(), params, new String[]{"a_s1","b_s1"}, 1));
+      params.set(PivotFacetCounter.SINGLE_PASS, false);
+      assertNull(PivotFacetCounter.create(req.getSearcher(), params, new String[]{"a_s1","c_s1"}, 1));
+    } finally {
+      req.close();
+    }
+  }
+
+  public void testSameAsFacetPasses() throws Exception {
+    clearIndex();
+    int numDocs = atLeast(300);
+    for (int i=0; i<numDocs; i++) {
+      List<String> fields = new ArrayList<>(Arrays.asList("id", Integer.toString(i)));
+      if (random().nextInt(10) > 0) fields.addAll(Arrays.asList("a_s1", "a" + random().nextInt(5)));
+      if (random().nextInt(10) > 0) fields.addAll(Arrays.asList("b_s1", "b" + random().nextInt(20)));
+      if (random().nextInt(10) > 0) fields.addAll(Arrays.asList("c_s1", "c" + random().nextInt(50)));
+      if (random().nextInt(10) > 0) fields.addAll(Arrays.asList("x_i", Integer.toString(random().nextInt(8) - 3)));
+      if (random().nextInt(10) > 0) fields.addAll(Arrays.asList("y_ti", Integer.toString(random().nextInt(30) * 1000)));
+      assertU(adoc(fields.toArray(new String[fields.size()])));
+      if (random().nextInt(100) == 0) {
+        assertU(commit());
+      }
+    }
+    assertU(adoc("id", "z", "c_s1", "unmatched"));  // a value that is never counted
+    assertU(commit());
+
+    String[][] requests = {
+        {"facet.pivot","a_s1,b_s1"},
+        {"facet.pivot","a_s1,b_s1,c_s1", "facet.limit","3"},
+        {"facet.pivot","b_s1,a_s1", "facet.missing","true", "facet.limit","4", "f.a_s1.facet.offset","1"},
+        {"facet.pivot","{!key=k}a_s1,x_i,c_s1", "facet.sort","index", "facet.limit","5", "facet.mincount","2"},
+        {"facet.pivot","a_s1,c_s1", "f.c_s1.facet.sort","index", "f.c_s1.facet.offset","40", "f.c_s1.facet.limit","12"},
+        {"facet.pivot","x_i,y_ti,a_s1", "facet.missing","true", "facet.pivot.mincount","3"},
+        {"facet.pivot","a_s1,y_ti", "facet.limit","-1", "f.y_ti.facet.mincount","1"},
+        {"facet.pivot","c_s1,a_s1", "facet.limit","2", "facet.pivot.mincount","4", "f.a_s1.facet.limit","0"},
+        {"facet.pivot","y_ti,x_i", "facet.missing","true", "facet.limit","7", "f.y_ti.facet.offset","2"},
+    };
+
+    for (String q : new String[] {"*:*", "id:[0 TO 5]", "a_s1:a1 OR x_i:0"}) {
+      for (String[] request : requests) {
+        List<String> params = new ArrayList<>(Arrays.asList("q",q, "rows","0", "facet","true", "wt","json", "omitHeader","true"));
+        params.addAll(Arrays.asList(request));
+        String expected = h.query(req(params.toArray(new String[params.size()]), PivotFacetCounter.SINGLE_PASS,"false"));
+        String actual = h.query(req(params.toArray(new String[params.size()])));
+        assertEquals(params.toString(), expected, actual);
+      }
+    }
+  }
+}
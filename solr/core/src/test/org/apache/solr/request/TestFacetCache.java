@@ -0,0 +1,115 @@
+package org.apache.solr.request;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.core.SolrInfoMBean;
+import org.junit.BeforeClass;
+
+public class TestFacetCache extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeTests() throws Exception {
+    initCore("solrconfig.xml","schema15.xml");
+  }
+
+  private long stat(String name) {
+    SolrInfoMBean cache = h.getCore().getInfoRegistry().get("facetCache");
+    assertNotNull(cache);
+    return (Long)cache.getStatistics().get(name);
+  }
+
+  private SolrQueryRequest facetReq(String... moreParams) {
+    String[] params = new String[] {"q","*:*", "rows","0", "facet","true"
+        , "facet.field","cat_s1"
+        , "facet.query","val_i:[0 TO 5]"
+        , "facet.range","val_i", "facet.range.start","0", "facet.range.end","20", "facet.range.gap","10"
+    };
+    String[] all = new String[params.length + moreParams.length];
+    System.arraycopy(params, 0, all, 0, params.length);
+    System.arraycopy(moreParams, 0, all, params.length, moreParams.length);
+    return req(all);
+  }
+
+  public void testFacetCache() throws Exception {
+    clearIndex();
+    assertU(adoc("id","1", "cat_s1","a", "val_i","1"));
+    assertU(adoc("id","2", "cat_s1","b", "val_i","5"));
+    assertU(commit());
+    assertU(adoc("id","3", "cat_s1","a", "val_i","12"));
+    assertU(adoc("id","4", "cat_s1","a", "val_i","15"));
+    assertU(adoc("id","5", "cat_s1","c", "val_i","30"));
+    assertU(commit());
+
+    String counts = "/facet_counts=={'facet_queries':{'val_i:[0 TO 5]':2}" +
+        ", 'facet_fields':{'cat_s1':['a',3,'b',1,'c',0]}, 'facet_dates':{}" +
+        ", 'facet_ranges':{'val_i':{'counts':['0',2,'10',2], 'gap':10, 'start':0, 'end':20}}}";
+
+    long inserts = stat("inserts");
+    long hits = stat("hits");
+    assertJQ(facetReq("fq","val_i:[0 TO 20]"), counts);
+    assertEquals(inserts + 3, stat("inserts"));
+    assertEquals(hits, stat("hits"));
+
+    // the same request is answered from the cache, even with the filters in a different order
+    assertJQ(facetReq("fq","val_i:[0 TO 20]"), counts);
+    assertEquals(hits + 3, stat("hits"));
+    assertJQ(facetReq("fq","val_i:[0 TO 20]", "fq","*:*"), counts);
+    assertJQ(facetReq("fq","*:*", "fq","val_i:[0 TO 20]"), counts);
+    assertEquals(inserts + 6, stat("inserts"));
+    assertEquals(hits + 6, stat("hits"));
+
+    // a param that changes the result of a command is part of the key
+    assertJQ(facetReq("fq","val_i:[0 TO 20]", "f.cat_s1.facet.mincount","1")
+        , "/facet_counts/facet_fields/cat_s1==['a',3,'b',1]"
+    );
+    assertEquals(inserts + 7, stat("inserts"));
+
+    // the base set is identified by the filters left after excluding by tag
+    assertJQ(req("q","*:*", "rows","0", "facet","true", "fq","{!tag=t}cat_s1:a", "facet.field","{!ex=t}cat_s1")
+        , "/facet_counts/facet_fields/cat_s1==['a',3,'b',1,'c',1]"
+    );
+    hits = stat("hits");
+    assertJQ(req("q","*:*", "rows","0", "facet","true", "fq","{!tag=t}cat_s1:b", "facet.field","{!ex=t}cat_s1")
+        , "/facet_counts/facet_fields/cat_s1==['a',3,'b',1,'c',1]"
+    );
+    assertEquals(hits + 1, stat("hits"));
+    assertJQ(req("q","*:*", "rows","0", "facet","true", "fq","{!tag=t}cat_s1:b", "facet.field","cat_s1")
+        , "/facet_counts/facet_fields/cat_s1==['b',1,'a',0,'c',0]"
+    );
+
+    // the most recently used entries are reused when the index has not changed...
+    assertJQ(facetReq("fq","val_i:[0 TO 20]"), counts);
+    assertU(commit());
+    assertTrue(stat("size") > 0);
+    hits = stat("hits");
+    assertJQ(facetReq("fq","val_i:[0 TO 20]"), counts);
+    assertTrue(stat("hits") > hits);
+
+    // ... and recomputed when it has
+    assertU(adoc("id","6", "cat_s1","b", "val_i","11"));
+    assertU(commit());
+    assertTrue(stat("size") > 0);
+    hits = stat("hits");
+    assertJQ(facetReq("fq","val_i:[0 TO 20]"), "/facet_counts=={'facet_queries':{'val_i:[0 TO 5]':2}" +
+        ", 'facet_fields':{'cat_s1':['a',3,'b',2,'c',0]}, 'facet_dates':{}" +
+        ", 'facet_ranges':{'val_i':{'counts':['0',2,'10',3], 'gap':10, 'start':0, 'end':20}}}"
+    );
+    assertTrue(stat("hits") > hits);
+  }
+}
@@ -147,6 +147,46 @@ public class TestDocSetNative extends TestDocSet {
     s2.decref();
   }
 
+  public void testMultiIntersection() throws Exception {
+    for (int iter=0; iter<200; iter++) {
+      int sz = rand.nextInt(70000) + 1;   // spans multiple blocks of words
+      int n = rand.nextInt(8) + 1;
+      DocSet[] sets = new DocSet[n];
+      boolean[] neg = new boolean[n];
+      FixedBitSet expected = new FixedBitSet(sz);
+      expected.set(0, sz);
+
+      for (int i=0; i<n; i++) {
+        int bitsToSet = rand.nextBoolean() ? rand.nextInt(sz/10 + 1) : rand.nextInt(sz*2 + 1);
+        FixedBitSet obs = getRandomSet(sz, bitsToSet);
+        sets[i] = rand.nextBoolean() ? getIntDocSetNative(obs) : getBitDocSetNative(obs);
+        neg[i] = i > 0 && rand.nextInt(3) == 0;
+        if (neg[i]) {
+          expected.andNot(obs);
+        } else {
+          expected.and(obs);
+        }
+      }
+
+      int expectedSize = (int)expected.cardinality();
+      assertEquals(expectedSize, DocSetUtil.intersectionSize(sets, neg, n));
+
+      DocSet result = DocSetUtil.intersection(sets, neg, n);
+      assertEquals(expectedSize, result.size());
+      DocIterator it = result.iterator();
+      for (int doc = expected.nextSetBit(0); doc >= 0; doc = doc+1 >= sz ? -1 : expected.nextSetBit(doc+1)) {
+        assertTrue(it.hasNext());
+        assertEquals(doc, it.nextDoc());
+      }
+      assertFalse(it.hasNext());
+
+      result.decref();
+      for (DocSet set : sets) {
+        set.decref();
+      }
+    }
+  }
+
   /**
   @Override
   public DocSet getHashDocSet(FixedBitSet obs) {
@@ -173,7 +213,141 @@ public class TestDocSetNative extends TestDocSet {
   @Override
   public DocSet getBigSet(FixedBitSet obs) {
     // return super.getIntDocSetNative(obs);
-    return super.getBitDocSetNative(obs);
+    return rand.nextBoolean() ? super.getBitDocSetNative(obs) : getChunkedDocSetNative(obs);
+  }
+
+  public DocSet getChunkedDocSetNative(FixedBitSet obs) {
+    if (rand.nextBoolean()) {
+      BitDocSetNative bits = (BitDocSetNative)getBitDocSetNative(obs);
+      DocSet set = new ChunkedDocSetNative(bits);
+      bits.decref();
+      return set;
+    }
+    int[] docs = new int[(int)obs.cardinality()];
+    FixedBitSet.FixedBitSetIterator iter = new FixedBitSet.FixedBitSetIterator(obs);
+    for (int i=0; i<docs.length; i++) {
+      docs[i] = iter.nextDoc();
+    }
+    return new ChunkedDocSetNative(docs, docs.length, obs.length());
+  }
+
+  /** Creates a set with a mix of sparse, dense and clustered chunks */
+  private FixedBitSet getChunkedPattern(int sz) {
+    FixedBitSet obs = new FixedBitSet(sz);
+    for (int start=0; start<sz; start+=1<<16) {
+      int end = Math.min(sz, start + (1<<16));
+      switch (rand.nextInt(4)) {
+        case 0: break;  // empty
+        case 1:         // sparse
+          for (int i=rand.nextInt(100); i>=0; i--) obs.set(start + rand.nextInt(end-start));
+          break;
+        case 2:         // dense
+          for (int i=start; i<end; i++) if (rand.nextInt(3) != 0) obs.set(i);
+          break;
+        default:        // runs
+          for (int i=rand.nextInt(20); i>=0; i--) {
+            int runStart = start + rand.nextInt(end-start);
+            obs.set(runStart, Math.min(end, runStart + rand.nextInt(5000) + 1));
+          }
+          break;
+      }
+    }
+    return obs;
+  }
+
+  // bit sets may be rounded up to a different number of bits
+  private void assertSameBits(FixedBitSet expected, FixedBitSet actual) {
+    assertEquals(expected.cardinality(), actual.cardinality());
+    assertEquals(expected.cardinality(), FixedBitSet.intersectionCount(expected, actual));
+  }
+
+  public void testChunkedDocSet() throws Exception {
+    for (int iter=0; iter<50; iter++) {
+      int sz = rand.nextInt(300000) + 1;
+      FixedBitSet obs1 = getChunkedPattern(sz);
+      FixedBitSet obs2 = rand.nextBoolean() ? getChunkedPattern(sz) : getRandomSet(sz, rand.nextInt(sz/10+1));
+      DocSet s1 = getChunkedDocSetNative(obs1);
+      DocSet s2;
+      switch (rand.nextInt(3)) {
+        case 0: s2 = getChunkedDocSetNative(obs2); break;
+        case 1: s2 = getBitDocSetNative(obs2); break;
+        default: s2 = getIntDocSetNative(obs2); break;
+      }
+
+      assertSameBits(obs1, s1.getBits());
+      iter(new BitDocSet(obs1), s1);
+      for (int i=0; i<100; i++) {
+        int doc = rand.nextInt(sz);
+        assertEquals(obs1.get(doc), s1.exists(doc));
+      }
+
+      doSingle(obs1, obs2, s1, s2);
+      doSingle(obs2, obs1, s2, s1);
+
+      FixedBitSet target = new FixedBitSet(sz);
+      s1.setBitsOn(target);
+      assertEquals(obs1, target);
+
+      BitDocSetNative nativeTarget = new BitDocSetNative(sz);
+      s1.setBitsOn(nativeTarget);
+      assertEquals(obs1.cardinality(), nativeTarget.size());
+      assertSameBits(obs1, nativeTarget.getBits());
+      nativeTarget.decref();
+
+      DocSet copy = s1.clone();
+      assertEquals(s1.size(), copy.size());
+      iter(s1, copy);
+      copy.decref();
+
+      s1.decref();
+      s2.decref();
+    }
+  }
+
+  public void testChunkedFilter() throws Exception {
+    for (int iter=0; iter<10; iter++) {
+      IndexReader[] subs = new IndexReader[rand.nextInt(4)+1];
+      for (int i=0; i<subs.length; i++) {
+        subs[i] = dummyIndexReader(rand.nextInt(150000));
+      }
+      IndexReader reader = new MultiReader(subs);
+      FixedBitSet obs = getChunkedPattern(reader.maxDoc());
+      DocSet a = new BitDocSet(obs);
+      DocSet b = getChunkedDocSetNative(obs);
+      doFilterTest(reader, a, b);
+      b.decref();
+    }
+  }
+
+  public void testCompact() throws Exception {
+    int sz = 1000000;
+
+    // clustered docs should be compacted
+    BitDocSetNative bits = new BitDocSetNative(sz);
+    for (int i=5000; i<200000; i++) bits.fastSet(i);
+    for (int i=0; i<1000; i++) bits.fastSet(600000 + i*7);
+    DocSet set = ChunkedDocSetNative.compact(bits);
+    assertTrue(set instanceof ChunkedDocSetNative);
+    assertEquals(196000, set.size());
+    assertTrue(set.memSize() * ChunkedDocSetNative.COMPACT_RATIO < bits.memSize() + 16);
+    set.decref();
+
+    // random docs at this density shouldn't be
+    bits = new BitDocSetNative(sz);
+    for (int i=0; i<sz; i+=3) bits.fastSet(i);
+    set = ChunkedDocSetNative.compact(bits);
+    assertSame(bits, set);
+    set.decref();
+
+    // collected sets are left as bits: only those put in the filterCache are compacted
+    DocSetCollector collector = new DocSetCollector(sz >> 6, sz);
+    collector.setNextReader(dummyIndexReader(sz).getContext());
+    for (int i=0; i<100000; i++) collector.collect(i);
+    set = collector.getDocSet();
+    collector.close();
+    assertTrue(set instanceof BitDocSetNative);
+    assertEquals(100000, set.size());
+    set.decref();
   }
 
 
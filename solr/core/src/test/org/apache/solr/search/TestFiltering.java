@@ -18,11 +18,15 @@
 package org.apache.solr.search;
 
 
+import org.apache.lucene.search.Query;
 import org.apache.lucene.util.FixedBitSet;
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.UnInvertedField;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -241,6 +245,56 @@ public class TestFiltering extends SolrTestCaseJ4 {
   }
 
   @Test
+  public void testCompactCachedFilters() throws Exception {
+    clearIndex();
+    StringBuilder sb = new StringBuilder("<add>");
+    for (int i=0; i<5000; i++) {
+      sb.append(doc("id", Integer.toString(i), "val_i", Integer.toString(i), "cat_ti", Integer.toString(i % 1000)));
+    }
+    sb.append("</add>");
+    assertU(sb.toString());
+    assertU(commit());
+
+    SolrQueryRequest req = req();
+    try {
+      SolrIndexSearcher searcher = req.getSearcher();
+      Query q = QParser.getParser("val_i:[0 TO 1999]", null, req).getQuery();
+
+      // the set is used as collected, and compacted as it is cached
+      DocSet set = searcher.getDocSet(q);
+      assertEquals(2000, set.size());
+      set.decref();
+      DocSet cached = searcher.getFilterCache().get(q);
+      assertTrue(cached instanceof ChunkedDocSetNative);
+      cached.decref();
+
+      // asking for the bits doesn't replace the compact set in the cache
+      BitDocSetNative bits = searcher.getDocSetBits(q);
+      assertEquals(2000, bits.size());
+      assertTrue(bits.exists(1999) && !bits.exists(2000));
+      bits.decref();
+      cached = searcher.getFilterCache().get(q);
+      assertTrue(cached instanceof ChunkedDocSetNative);
+      cached.decref();
+
+      // faceting on a compacted set of more than half the index counts the docs not in the set instead
+      q = QParser.getParser("val_i:[0 TO 3999]", null, req).getQuery();
+      searcher.getDocSet(q).decref();
+      cached = searcher.getFilterCache().get(q);
+      assertTrue(cached instanceof ChunkedDocSetNative);
+      NamedList<Integer> counts = UnInvertedField.getUnInvertedField("cat_ti", searcher)
+          .getCounts(searcher, cached, 0, 3, 1, false, FacetParams.FACET_SORT_INDEX, null);
+      cached.decref();
+      assertEquals(3, counts.size());
+      for (int i=0; i<3; i++) {
+        assertEquals(Integer.toString(i), counts.getName(i));
+        assertEquals(4, counts.getVal(i).intValue());
+      }
+    } finally {
+      req.close();
+    }
+  }
+
   public void testRandomFiltering() throws Exception {
     int indexIter=5 * RANDOM_MULTIPLIER;
     int queryIter=250 * RANDOM_MULTIPLIER;
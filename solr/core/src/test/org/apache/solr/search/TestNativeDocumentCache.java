@@ -0,0 +1,107 @@
+package org.apache.solr.search;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.HS;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.BinaryResponseWriter;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+public class TestNativeDocumentCache extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeTests() throws Exception {
+    System.setProperty("solr.documentCache.native", "true");
+    System.setProperty("enable.update.log", "false"); // schema12 doesn't support _version_
+    initCore("solrconfig.xml","schema12.xml");
+  }
+
+  @AfterClass
+  public static void afterTests() throws Exception {
+    System.clearProperty("solr.documentCache.native");
+  }
+
+  private static List<String> fields(Document doc) {
+    List<String> fields = new ArrayList<>();
+    for (IndexableField f : doc) {
+      fields.add(f.name() + "=" + (f.numericValue() != null ? f.numericValue() : f.stringValue()));
+    }
+    return fields;
+  }
+
+  public void testStoredFields() throws Exception {
+    clearIndex();
+    assertU(adoc("id","1", "title_t","hello été 中文", "cat_ss","a", "cat_ss","b", "val_i","5", "val_l","-7",
+        "val_f","1.5", "val_d","2.25", "val_dt","2014-01-02T03:04:05Z", "val_b","true", "val_is","3"));
+    assertU(adoc("id","2", "cat_ss","c"));
+    assertU(commit());
+
+    long cachedBytes = HS.documentCacheAccount.getBytes();
+    String doc1 = "{'id':'1','title_t':'hello été 中文','cat_ss':['a','b'],'val_i':5,'val_l':-7,'val_f':1.5,"
+        + "'val_d':2.25,'val_dt':'2014-01-02T03:04:05Z','val_b':true,'val_is':[3]}";
+    // the first request loads the document into the cache, the second writes it from there
+    assertJQ(req("q","id:1", "fl","*"), "/response/docs/[0]==" + doc1);
+    assertTrue(HS.documentCacheAccount.getBytes() > cachedBytes);
+    assertJQ(req("q","id:1", "fl","*"), "/response/docs/[0]==" + doc1);
+    assertJQ(req("q","*:*", "fl","id,cat_ss", "sort","id asc"),
+        "/response/docs==[{'id':'1','cat_ss':['a','b']},{'id':'2','cat_ss':['c']}]");
+    // transformers are applied to a SolrDocument as before
+    assertJQ(req("q","id:2", "fl","id,score"), "/response/docs/[0]=={'id':'2','score':1.0}");
+
+    SolrQueryRequest req = req("q","id:1", "fl","*");
+    try {
+      SolrQueryResponse rsp = h.queryAndResponse(null, req);
+      NamedList<Object> parsed = BinaryResponseWriter.getParsedResponse(req, rsp);
+      SolrDocumentList docs = (SolrDocumentList) parsed.get("response");
+      assertEquals(1, docs.size());
+      SolrDocument doc = docs.get(0);
+      assertEquals(10, doc.size());
+      assertEquals("1", doc.getFieldValue("id"));
+      assertEquals("hello été 中文", doc.getFieldValue("title_t"));
+      assertEquals(Arrays.asList("a", "b"), doc.getFieldValue("cat_ss"));
+      assertEquals(5, doc.getFieldValue("val_i"));
+      assertEquals(-7L, doc.getFieldValue("val_l"));
+      assertEquals(1.5f, doc.getFieldValue("val_f"));
+      assertEquals(2.25, doc.getFieldValue("val_d"));
+      assertTrue(doc.getFieldValue("val_dt") instanceof Date);
+      assertEquals(Boolean.TRUE, doc.getFieldValue("val_b"));
+      assertEquals(Arrays.asList(3), doc.getFieldValue("val_is"));
+
+      // documents built from the cache have the same fields as those loaded from the index
+      SolrIndexSearcher searcher = req.getSearcher();
+      for (int i=0; i<searcher.maxDoc(); i++) {
+        assertEquals(fields(searcher.getIndexReader().document(i)), fields(searcher.doc(i)));
+      }
+    } finally {
+      req.close();
+    }
+  }
+}
@@ -69,11 +69,14 @@ public class TestRecovery extends SolrTestCaseJ4 {
   public static void beforeClass() throws Exception {
     savedFactory = System.getProperty("solr.DirectoryFactory");
     System.setProperty("solr.directoryFactory", "org.apache.solr.core.MockFSDirectoryFactory");
+    // replay on one thread, or with the adds and deletes spread over several
+    System.setProperty("solr.ulog.replayThreads", Integer.toString(random().nextBoolean() ? 1 : 3));
     initCore("solrconfig-tlog.xml","schema15.xml");
   }
   
   @AfterClass
   public static void afterClass() {
+    System.clearProperty("solr.ulog.replayThreads");
     if (savedFactory == null) {
       System.clearProperty("solr.directoryFactory");
     } else {
@@ -0,0 +1,100 @@
+package org.apache.solr.search;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.search.Query;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.request.SolrQueryRequest;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+public class TestSegmentedFilterCache extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeTests() throws Exception {
+    // we need a consistent segmentation so that segments are shared across commits
+    System.setProperty("solr.tests.mergePolicy", LogDocMergePolicy.class.getName());
+    System.setProperty("solr.filterCache.perSegment", "true");
+    System.setProperty("enable.update.log", "false"); // schema12 doesn't support _version_
+    initCore("solrconfig.xml","schema12.xml");
+  }
+
+  @AfterClass
+  public static void afterTests() throws Exception {
+    System.clearProperty("solr.filterCache.perSegment");
+  }
+
+  private SegmentedDocSet getCached(SolrQueryRequest req, String fq) throws Exception {
+    Query q = QParser.getParser(fq, null, req).getQuery();
+    DocSet set = req.getSearcher().getFilterCache().get(q);
+    assertNotNull("filter not cached: " + fq, set);
+    set.decref();  // the searcher's cache keeps it alive while req is open
+    assertTrue(set instanceof SegmentedDocSet);
+    return (SegmentedDocSet)set;
+  }
+
+  public void testCarryOver() throws Exception {
+    clearIndex();
+    assertU(adoc("id","1", "val_i","1"));
+    assertU(adoc("id","2", "val_i","2"));
+    assertU(adoc("id","3", "val_i","3"));
+    assertU(commit());
+
+    String fq = "val_i:[1 TO 2]";
+    assertJQ(req("q","*:*", "fq",fq), "/response/numFound==2");
+
+    SolrQueryRequest req1 = req();
+    SegmentedDocSet set1 = getCached(req1, fq);
+    assertEquals(2, set1.size());
+
+    // a new segment... the first segment's set should be carried over during autowarming
+    assertU(adoc("id","4", "val_i","1"));
+    assertU(adoc("id","5", "val_i","5"));
+    assertU(commit());
+
+    SolrQueryRequest req2 = req();
+    SegmentedDocSet set2 = getCached(req2, fq);
+    assertEquals(2, set2.numLeaves());
+    assertSame(set1.getLeaf(0), set2.getLeaf(0));
+    assertEquals(3, set2.size());
+    assertJQ(req("q","*:*", "fq",fq), "/response/numFound==3");
+    assertJQ(req("q","*:*", "fq","-" + fq), "/response/numFound==2");
+    assertJQ(req("q","id:[1 TO 4]", "fq",fq, "fq","id:[2 TO 5]"), "/response/numFound==2");
+
+    // deleting from the first segment means its set must be recomputed against the new live docs
+    assertU(delI("2"));
+    assertU(commit());
+
+    SolrQueryRequest req3 = req();
+    SegmentedDocSet set3 = getCached(req3, fq);
+    assertNotSame(set2.getLeaf(0), set3.getLeaf(0));
+    assertSame(set2.getLeaf(1), set3.getLeaf(1));
+    assertEquals(2, set3.size());
+    assertTrue(set3.exists(0));
+    assertFalse(set3.exists(1));
+    assertEquals(set3.size(), set3.getTopSet().size());
+    assertEquals(set3.getBits().cardinality(), set3.size());
+    assertJQ(req("q","*:*", "fq",fq), "/response/numFound==2");
+    assertJQ(req("q","*:*", "fq",fq, "sort","id desc", "fl","id"), "/response/docs==[{'id':'4'},{'id':'1'}]");
+
+    req1.close();
+    req2.close();
+    req3.close();
+  }
+}
@@ -0,0 +1,119 @@
+package org.apache.solr.search;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.HS;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.BinaryResponseWriter;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.BeforeClass;
+
+import java.util.Arrays;
+
+public class TestStoredDocumentBatches extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeTests() throws Exception {
+    System.setProperty("enable.update.log", "false"); // schema12 doesn't support _version_
+    initCore("solrconfig.xml","schema12.xml");
+  }
+
+  public void testLargePages() throws Exception {
+    clearIndex();
+    int numDocs = StoredDocumentBatches.BATCH_SIZE * 2 + 10;
+    StringBuilder sb = new StringBuilder("<add>");
+    for (int i=0; i<numDocs; i++) {
+      sb.append(doc("id", Integer.toString(i), "val_i", Integer.toString(i), "cat_ss", "a" + i, "cat_ss", "b" + i,
+          "title_t", "document " + i));
+      if (i % 500 == 499) {
+        sb.append("</add>");
+        assertU(sb.toString());
+        assertU(commit());  // several segments
+        sb = new StringBuilder("<add>");
+      }
+    }
+    sb.append("</add>");
+    assertU(sb.toString());
+    assertU(commit());
+
+    // the reverse of index order, so every batch is re-ordered
+    int last = numDocs - 1;
+    String rows = Integer.toString(numDocs);
+    assertJQ(req("q","*:*", "sort","val_i desc", "rows",rows, "fl","id,cat_ss"),
+        "/response/docs/[0]=={'id':'" + last + "','cat_ss':['a" + last + "','b" + last + "']}",
+        "/response/docs/[" + (StoredDocumentBatches.BATCH_SIZE) + "]/id=='" + (last - StoredDocumentBatches.BATCH_SIZE) + "'",
+        "/response/docs/[" + last + "]=={'id':'0','cat_ss':['a0','b0']}");
+    // globs are matched against the fields loaded
+    assertJQ(req("q","*:*", "sort","val_i asc", "rows",rows, "fl","val_*,title_t"),
+        "/response/docs/[1]=={'val_i':1,'title_t':'document 1'}");
+    // with a transformer, documents are written one at a time as before
+    assertJQ(req("q","*:*", "sort","val_i desc", "rows",rows, "fl","id,score"),
+        "/response/docs/[" + last + "]=={'id':'0','score':1.0}");
+
+    SolrQueryRequest req = req("q","*:*", "sort","val_i desc", "rows",rows, "fl","*");
+    try {
+      SolrQueryResponse rsp = h.queryAndResponse(null, req);
+      NamedList<Object> parsed = BinaryResponseWriter.getParsedResponse(req, rsp);
+      SolrDocumentList docs = (SolrDocumentList) parsed.get("response");
+      assertEquals(numDocs, docs.size());
+      for (int i=0; i<numDocs; i++) {
+        SolrDocument doc = docs.get(i);
+        int val = last - i;
+        assertEquals(Integer.toString(val), doc.getFieldValue("id"));
+        assertEquals(val, doc.getFieldValue("val_i"));
+        assertEquals(Arrays.asList("a" + val, "b" + val), doc.getFieldValue("cat_ss"));
+        assertEquals("document " + val, doc.getFieldValue("title_t"));
+      }
+    } finally {
+      req.close();
+    }
+  }
+
+  public void testExportOverRequestLimit() throws Exception {
+    clearIndex();
+    int numDocs = StoredDocumentBatches.BATCH_SIZE * 5 + 10;
+    char[] padding = new char[200];
+    Arrays.fill(padding, 'x');
+    StringBuilder sb = new StringBuilder("<add>");
+    for (int i=0; i<numDocs; i++) {
+      sb.append(doc("id", Integer.toString(i), "val_i", Integer.toString(i), "title_t", new String(padding)));
+    }
+    sb.append("</add>");
+    assertU(sb.toString());
+    assertU(commit());
+
+    // each batch is released before the next is read, so an export may hold less than it writes out
+    long batchBytes = (long)StoredDocumentBatches.BATCH_SIZE * padding.length;
+    long requestBytes = HS.requestAccount.getBytes();
+    long prevLimit = HS.getPerRequestLimit();
+    HS.setPerRequestLimit(batchBytes * 3);
+    try {
+      String rows = Integer.toString(numDocs);
+      assertJQ(req("q","*:*", "sort","val_i desc", "rows",rows, "fl","id,title_t"),
+          "/response/numFound==" + numDocs,
+          "/response/docs/[" + (numDocs - 1) + "]/id=='0'");
+    } finally {
+      HS.setPerRequestLimit(prevLimit);
+    }
+    assertEquals(requestBytes, HS.requestAccount.getBytes());
+  }
+}
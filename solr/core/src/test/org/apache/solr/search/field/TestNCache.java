@@ -17,7 +17,9 @@ package org.apache.solr.search.field;
  * limitations under the License.
  */
 
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.util.BytesRef;
 import org.apache.solr.JSONTestUtil;
 import org.apache.solr.SolrTestCaseJ4;
 import org.apache.solr.request.SolrQueryRequest;
@@ -33,10 +35,13 @@ import org.noggit.ObjectBuilder;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class TestNCache extends SolrTestCaseJ4 {
 
@@ -160,6 +165,252 @@ public class TestNCache extends SolrTestCaseJ4 {
 
 
 
+  public void testFrontCoded() throws Exception {
+    clearIndex();
+    String prefix = "http://www.example.com/some/long/path/";
+    int nDocs = StrFrontCodedLeafValues.MIN_TERMS * 2 + 37;  // enough for two segments that are front coded
+    for (int i=0; i<nDocs; i++) {
+      if (i % 2 == 0) {
+        assertU(adoc("id", Integer.toString(i), "val_s1", prefix + String.format(Locale.ROOT, "%06d", i)));
+      }
+    }
+    assertU(adoc("id", "-1"));  // missing value
+    assertU(commit());
+    for (int i=0; i<nDocs; i++) {
+      if (i % 2 == 1) {
+        assertU(adoc("id", Integer.toString(i), "val_s1", prefix + String.format(Locale.ROOT, "%06d", i)));
+      }
+    }
+    assertU(commit());
+
+    checkFrontCoded(prefix, false);
+
+    String first = prefix + "000000";
+    String last = prefix + String.format(Locale.ROOT, "%06d", nDocs - 1);
+
+    // sort across segments both before and after faceting builds the ordinal map
+    for (int i=0; i<2; i++) {
+      assertJQ(req("q", "*:*", "sort", "val_s1 asc", "fl", "id", "rows", "3")
+          , "/response/docs==[{'id':'0'},{'id':'1'},{'id':'2'}]"
+      );
+      assertJQ(req("q", "*:*", "sort", "val_s1 desc", "fl", "id,val_s1", "rows", "2")
+          , "/response/docs==[{'id':'" + (nDocs-1) + "','val_s1':'" + last + "'},{'id':'" + (nDocs-2) + "'," +
+              "'val_s1':'" + prefix + String.format(Locale.ROOT, "%06d", nDocs - 2) + "'}]"
+      );
+      assertJQ(req("q", "*:*", "sort", "val_s1 asc", "fl", "id", "rows", "2", "start", "1000")
+          , "/response/docs==[{'id':'1000'},{'id':'1001'}]"
+      );
+
+      assertJQ(req("q", "*:*", "facet", "true", "facet.field", "val_s1", "facet.sort", "index", "facet.limit", "2", "facet.offset", "1000")
+          , "/facet_counts/facet_fields/val_s1==['" + prefix + "001000',1,'" + prefix + "001001',1]"
+      );
+    }
+
+    assertJQ(req("q", "{!frange l='" + first + "' u='" + prefix + "000002'}val_s1", "sort", "id asc", "fl", "id")
+        , "/response/docs==[{'id':'0'},{'id':'1'},{'id':'2'}]"
+    );
+
+    assertU(optimize());
+    checkFrontCoded(prefix, true);
+    assertJQ(req("q", "*:*", "sort", "val_s1 desc", "fl", "id", "rows", "1")
+        , "/response/docs==[{'id':'" + (nDocs-1) + "'}]"
+    );
+  }
+
+  /** checks the terms of each leaf big enough to be front coded */
+  private void checkFrontCoded(String prefix, boolean requireAll) throws Exception {
+    SolrQueryRequest req = req();
+    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, new SolrQueryResponse()));
+    try {
+      SchemaField sf = req.getSchema().getField("val_s1");
+      ValueSource vs = sf.getType().getValueSource(sf, null);
+      QueryContext qcontext = QueryContext.newContext(req.getSearcher());
+      vs.createWeight(qcontext);
+
+      for (AtomicReaderContext leaf : req.getSearcher().getTopReaderContext().leaves()) {
+        FuncValues funcValues = vs.getValues(qcontext, leaf);
+        StrLeafValues strValues = (StrLeafValues)funcValues;
+        if (strValues.getFieldStats().getNumUniqueValues() < StrFrontCodedLeafValues.MIN_TERMS) {
+          assertFalse(requireAll);
+          assertFalse(funcValues instanceof StrFrontCodedLeafValues);
+          continue;
+        }
+        assertTrue(funcValues instanceof StrFrontCodedLeafValues);
+        StrFrontCodedLeafValues vals = (StrFrontCodedLeafValues)funcValues;
+        assertFalse(vals.hasTermPointers());
+
+        int numTerms = (int)vals.getFieldStats().getNumUniqueValues();
+        BytesRef term = new BytesRef();
+        BytesRef prev = null;
+        for (int ord=0; ord<numTerms; ord++) {
+          vals.ordToTerm(ord, term);
+          assertTrue(term.utf8ToString().startsWith(prefix));
+          assertTrue(prev == null || prev.compareTo(term) < 0);
+          assertEquals(ord, vals.termToOrd(term));
+
+          // a term just after this one should sort before the next term
+          BytesRef after = BytesRef.deepCopyOf(term);
+          after.append(new BytesRef("x"));
+          assertEquals(-(ord + 2), vals.termToOrd(after));
+          prev = BytesRef.deepCopyOf(term);
+        }
+        assertEquals(-1, vals.termToOrd(new BytesRef("a")));
+        assertEquals(-(numTerms + 1), vals.termToOrd(new BytesRef("z")));
+
+        // the whole point... should be much smaller than storing the terms whole
+        assertTrue(vals.getSizeInBytes() < (long)numTerms * prefix.length() / 2);
+      }
+    } finally {
+      req.close();
+      SolrRequestInfo.clearRequestInfo();
+    }
+  }
+
+  public void testMultiValued() throws Exception {
+    clearIndex();
+    assertU(adoc("id","1", "tag_ss","a", "tag_ss","b"));
+    assertU(adoc("id","2", "tag_ss","b", "tag_ss","c", "tag_ss","d"));
+    assertU(adoc("id","3"));
+    assertU(commit());
+    assertU(adoc("id","4", "tag_ss","", "tag_ss","b"));
+    assertU(adoc("id","5", "tag_ss","c"));
+    assertU(commit());
+
+    String expected = "/facet_counts/facet_fields/tag_ss==['b',3,'c',2,'',1,'a',1,'d',1]";
+    assertJQ(req("q","*:*", "rows","0", "facet","true", "facet.field","tag_ss", "facet.method","fc")
+        , expected
+    );
+    assertJQ(req("q","*:*", "rows","0", "facet","true", "facet.field","tag_ss", "facet.method","enum")
+        , expected
+    );
+    assertJQ(req("q","id:[2 TO 5]", "rows","0", "facet","true", "facet.field","tag_ss", "facet.sort","index", "facet.mincount","1", "facet.missing","true")
+        , "/facet_counts/facet_fields/tag_ss==['',1,'b',2,'c',2,'d',1,null,1]"
+    );
+    assertJQ(req("q","*:*", "rows","0", "facet","true", "facet.field","tag_ss", "facet.prefix","c", "facet.mincount","0")
+        , "/facet_counts/facet_fields/tag_ss==['c',2]"
+    );
+
+    SolrQueryRequest req = req();
+    SchemaField sf = req.getSchema().getField("tag_ss");
+    StrMultiFieldValues fv = new StrMultiFieldValues(sf, null);
+    TopValues topValues = req.getSearcher().getnCache().get(fv.getCacheKey());
+    assertNotNull(topValues);
+    assertTrue(topValues.allSegmentsLoaded());
+
+    QueryContext qcontext = QueryContext.newContext(req.getSearcher());
+    StrMultiLeafValues vals = (StrMultiLeafValues)topValues.getLeafValues(qcontext, req.getSearcher().getTopReaderContext().leaves().get(0));
+    assertEquals(4, vals.getNumOrds());
+    assertEquals(2, vals.getFieldStats().getNumDocsWithField());
+    int[] ords = new int[4];
+    assertEquals(3, vals.getOrdCount(1));
+    assertEquals(3, vals.getOrds(1, ords));
+    assertEquals(1, ords[0]);
+    assertEquals(3, ords[2]);
+    assertEquals(0, vals.getOrdCount(2));
+    assertEquals("a", vals.strVal(0));
+    assertEquals(-1, vals.ordVal(2));
+    Set<Object> oldCores = new HashSet<>();
+    for (AtomicReaderContext leaf : req.getSearcher().getTopReaderContext().leaves()) {
+      oldCores.add(leaf.reader().getCoreCacheKey());
+    }
+    topValues.decref();
+    req.close();
+
+    // the values for the unchanged segments should be carried over to the new searcher
+    assertU(adoc("id","6", "tag_ss","e"));
+    assertU(commit());
+    req = req();
+    int shared = 0;
+    for (AtomicReaderContext leaf : req.getSearcher().getTopReaderContext().leaves()) {
+      if (oldCores.contains(leaf.reader().getCoreCacheKey())) shared++;
+    }
+    topValues = req.getSearcher().getnCache().get(fv.getCacheKey());
+    assertEquals(shared, topValues.carriedOver);
+    // the new segment is created during warming rather than by the first request
+    assertTrue(topValues.allSegmentsLoaded());
+    assertTrue(topValues.getWarmTime(TimeUnit.NANOSECONDS) > 0);
+    topValues.decref();
+    req.close();
+
+    assertJQ(req("q","*:*", "rows","0", "facet","true", "facet.field","tag_ss", "facet.limit","2")
+        , "/facet_counts/facet_fields/tag_ss==['b',3,'c',2]"
+    );
+  }
+
+
+  public void testOrdinalMap() throws Exception {
+    clearIndex();
+    assertU(adoc("id","1", "val_s1","b"));
+    assertU(adoc("id","2", "val_s1","d"));
+    assertU(adoc("id","3"));
+    assertU(commit());
+    assertU(adoc("id","4", "val_s1","a"));
+    assertU(adoc("id","5", "val_s1","d"));
+    assertU(commit());
+    assertU(adoc("id","6", "val_s1","c"));
+    assertU(adoc("id","7", "val_s1",""));
+    assertU(commit());
+
+    String expected = "/facet_counts/facet_fields/val_s1==['d',2,'',1,'a',1,'b',1,'c',1]";
+    assertJQ(req("q","*:*", "rows","0", "facet","true", "facet.field","val_s1", "facet.method","fc")
+        , expected
+    );
+    assertJQ(req("q","*:*", "rows","0", "facet","true", "facet.field","val_s1", "facet.method","enum")
+        , expected
+    );
+    assertJQ(req("q","id:[2 TO 6]", "rows","0", "facet","true", "facet.field","val_s1", "facet.method","fc", "facet.sort","index", "facet.mincount","0", "facet.missing","true")
+        , "/facet_counts/facet_fields/val_s1==['',0,'a',1,'b',0,'c',1,'d',2,null,1]"
+    );
+    assertJQ(req("q","*:*", "rows","0", "facet","true", "facet.field","val_s1", "facet.method","fc", "facet.prefix","c", "facet.mincount","0")
+        , "/facet_counts/facet_fields/val_s1==['c',1]"
+    );
+    assertJQ(req("q","*:*", "fl","id", "sort","val_s1 asc, id asc", "rows","3")
+        , "/response/docs==[{'id':'7'},{'id':'4'},{'id':'1'}]"
+    );
+
+    SolrQueryRequest req = req();
+    SchemaField sf = req.getSchema().getField("val_s1");
+    StrTopValues topValues = (StrTopValues)req.getSearcher().getnCache().get(new StrFieldValues(sf, null).getCacheKey());
+    OrdinalMap ordMap = topValues.getOrdinalMapIfBuilt();
+    assertNotNull(ordMap);
+    assertEquals(req.getSearcher().getTopReaderContext().leaves().size(), ordMap.getNumSegments());
+    assertEquals(5, ordMap.getValueCount());
+    assertEquals(3, ordMap.lookupTerm(new BytesRef("c")));
+    assertEquals(0, ordMap.lookupTerm(new BytesRef("")));
+    assertEquals(-5, ordMap.lookupTerm(new BytesRef("cc")));
+    BytesRef br = new BytesRef();
+    ordMap.lookupOrd(4, br);
+    assertEquals("d", br.utf8ToString());
+
+    Set<Object> oldCores = new HashSet<>();
+    for (AtomicReaderContext leaf : req.getSearcher().getTopReaderContext().leaves()) {
+      oldCores.add(leaf.reader().getCoreCacheKey());
+    }
+    topValues.decref();
+    req.close();
+
+    // only deletions... the map can be re-used as long as no segments were merged away
+    assertU(delI("2"));
+    assertU(commit());
+    req = req();
+    boolean allShared = true;
+    for (AtomicReaderContext leaf : req.getSearcher().getTopReaderContext().leaves()) {
+      allShared &= oldCores.contains(leaf.reader().getCoreCacheKey());
+    }
+    topValues = (StrTopValues)req.getSearcher().getnCache().get(new StrFieldValues(sf, null).getCacheKey());
+    if (allShared && oldCores.size() == req.getSearcher().getTopReaderContext().leaves().size()) {
+      assertSame(ordMap, topValues.getOrdinalMapIfBuilt());
+    }
+    assertNotNull(topValues.getOrdinalMapIfBuilt());
+    topValues.decref();
+    req.close();
+
+    assertJQ(req("q","*:*", "rows","0", "facet","true", "facet.field","val_s1", "facet.method","fc", "facet.limit","2")
+        , "/facet_counts/facet_fields/val_s1==['',1,'a',1]"
+    );
+  }
+
+
   public static class LongSpecial extends LVals {
     static long x = 0x8000000000000000L;
     static long y = 0x7fffffffffffffffL;
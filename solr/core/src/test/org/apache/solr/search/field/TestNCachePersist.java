@@ -0,0 +1,156 @@
+package org.apache.solr.search.field;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.core.HS;
+import org.apache.solr.request.SolrQueryRequest;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+public class TestNCachePersist extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeTests() throws Exception {
+    System.setProperty("solr.nCache.persist", "true");
+    initCore("solrconfig.xml","schema15.xml");
+  }
+
+  @AfterClass
+  public static void afterTests() throws Exception {
+    System.clearProperty("solr.nCache.persist");
+  }
+
+  private LeafValuesStore getStore(SolrQueryRequest req) {
+    LeafValuesStore store = req.getSearcher().getLeafValuesStore();
+    assertNotNull(store);
+    return store;
+  }
+
+  private File[] getFiles(File dir) {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(LeafValuesStore.SUFFIX);
+      }
+    });
+    return files == null ? new File[0] : files;
+  }
+
+  private void check() throws Exception {
+    assertJQ(req("q","*:*", "sort","val_s1 asc, id asc", "fl","id", "rows","3")
+        , "/response/docs==[{'id':'10'},{'id':'3'},{'id':'5'}]"
+    );
+    assertJQ(req("q","*:*", "sort","val_i desc, id asc", "fl","id", "rows","3")
+        , "/response/docs==[{'id':'10'},{'id':'5'},{'id':'3'}]"
+    );
+    assertJQ(req("q","val_l:*", "sort","val_l asc, id asc", "fl","id", "rows","3")
+        , "/response/docs==[{'id':'1'},{'id':'3'},{'id':'5'}]"
+    );
+    assertJQ(req("q","small_i:*", "sort","small_i desc, id asc", "fl","id")
+        , "/response/docs==[{'id':'3'},{'id':'1'}]"
+    );
+    assertJQ(req("q","*:*", "sort","missing_i asc, id asc", "fl","id", "rows","1")
+        , "/response/docs==[{'id':'1'}]"
+    );
+    assertJQ(req("q","*:*", "facet","true", "facet.field","cat_s1", "facet.mincount","1")
+        , "/facet_counts/facet_fields/cat_s1==['a',3,'b',2]"
+    );
+  }
+
+  public void testPersist() throws Exception {
+    clearIndex();
+    assertU(adoc("id","1", "val_s1","z", "val_i","1", "val_l","-5000000000", "small_i","-2", "cat_s1","a"));
+    assertU(adoc("id","3", "val_s1","c", "val_i","3", "val_l","3", "small_i","7", "cat_s1","b"));
+    assertU(commit());
+    assertU(adoc("id","5", "val_s1","x", "val_i","5", "val_l","5", "cat_s1","a"));
+    assertU(adoc("id","10", "val_s1","b", "val_i","100000", "val_l","10", "cat_s1","a"));
+    assertU(adoc("id","11", "cat_s1","b"));
+    assertU(commit());
+
+    check();
+
+    SolrQueryRequest req = req();
+    LeafValuesStore store = getStore(req);
+    File dir = store.getDirectory();
+    assertTrue(store.getNumStored() > 0);
+    assertEquals(0, store.getNumLoaded());
+    assertEquals(0, store.getNumErrors());
+    int numFiles = getFiles(dir).length;
+    assertTrue(numFiles > 0);
+    req.close();
+
+    // a new core can map what was stored instead of un-inverting again
+    long mappedBefore = HS.getMappedBytes();
+    h.reload();
+    check();
+
+    req = req();
+    store = getStore(req);
+    assertEquals(0, store.getNumStored());
+    assertTrue(store.getNumLoaded() > 0);
+    assertEquals(0, store.getNumErrors());
+    assertEquals(numFiles, getFiles(dir).length);
+    assertTrue(HS.getMappedBytes() > mappedBefore);
+    req.close();
+
+    // files for merged away segments are removed
+    assertU(optimize());
+    check();
+    req = req();
+    store = getStore(req);
+    assertTrue(store.getNumStored() > 0);
+    req.close();
+    Set<String> segments = new HashSet<>();
+    for (File file : getFiles(dir)) {
+      segments.add(file.getName().substring(0, file.getName().indexOf('.')));
+    }
+    assertEquals(1, segments.size());
+  }
+
+  public void testPersistFrontCoded() throws Exception {
+    clearIndex();
+    String prefix = "http://www.example.com/some/long/path/";
+    int nDocs = StrFrontCodedLeafValues.MIN_TERMS + 10;
+    for (int i=0; i<nDocs; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_s1", prefix + String.format(Locale.ROOT, "%06d", i)));
+    }
+    assertU(optimize());
+
+    String check = "/response/docs==[{'id':'" + (nDocs-1) + "','val_s1':'" + prefix + String.format(Locale.ROOT, "%06d", nDocs-1) + "'}]";
+    assertJQ(req("q","*:*", "sort","val_s1 desc", "fl","id,val_s1", "rows","1"), check);
+
+    h.reload();
+    assertJQ(req("q","*:*", "sort","val_s1 desc", "fl","id,val_s1", "rows","1"), check);
+    assertJQ(req("q","{!frange l='" + prefix + "000010' u='" + prefix + "000011'}val_s1", "sort","id asc", "fl","id")
+        , "/response/docs==[{'id':'10'},{'id':'11'}]"
+    );
+
+    SolrQueryRequest req = req();
+    LeafValuesStore store = getStore(req);
+    assertTrue(store.getNumLoaded() > 0);
+    assertEquals(0, store.getNumErrors());
+    req.close();
+  }
+}
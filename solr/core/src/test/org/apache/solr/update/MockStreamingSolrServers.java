@@ -47,6 +47,18 @@ public class MockStreamingSolrServers extends StreamingSolrServers {
     return new MockSolrServer(server);
   }
   
+  @Override
+  protected NamedList<Object> request(String url, SolrCmdDistributor.Req req) throws Exception {
+    if (exp != null) {
+      if (LuceneTestCase.random().nextBoolean()) {
+        throw exception();
+      } else {
+        throw new SolrServerException(exception());
+      }
+    }
+    return super.request(url, req);
+  }
+
   public void setExp(Exp exp) {
     this.exp = exp;
   }
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -317,6 +318,9 @@ public class SolrCmdDistributorTest extends BaseDistributedSearchTestCase {
     
     testMaxRetries();
     testOneRetry();
+    testBatchRetry();
+    testBatchErrorPerCommand();
+    testBatchDelayFlush();
     testRetryNodeAgainstBadAddress();
     testRetryNodeWontRetrySocketError();
   }
@@ -398,6 +402,124 @@ public class SolrCmdDistributorTest extends BaseDistributedSearchTestCase {
     assertEquals(0, cmdDistrib.getErrors().size());
   }
 
+  private void testBatchRetry() throws Exception {
+    final HttpSolrServer solrclient = (HttpSolrServer) clients.get(0);
+    long numFoundBefore = solrclient.query(new SolrQuery("*:*")).getResults()
+        .getNumFound();
+    final MockStreamingSolrServers ss = new MockStreamingSolrServers(updateShardHandler);
+    SolrCmdDistributor cmdDistrib = new SolrCmdDistributor(ss, 5, 0, 10, 60000);
+    ss.setExp(Exp.CONNECT_EXCEPTION);
+    ArrayList<Node> nodes = new ArrayList<>();
+
+    final AtomicInteger retries = new AtomicInteger();
+    ZkNodeProps nodeProps = new ZkNodeProps(ZkStateReader.BASE_URL_PROP, solrclient.getBaseURL(), ZkStateReader.CORE_NAME_PROP, "");
+    RetryNode retryNode = new RetryNode(new ZkCoreNodeProps(nodeProps), null, "collection1", "shard1") {
+      @Override
+      public boolean checkRetry() {
+        ss.setExp(null);
+        retries.incrementAndGet();
+        return true;
+      }
+    };
+    nodes.add(retryNode);
+
+    // 25 adds go as batches of 10, 10 and 5.  The first two fail, and are sent again a command at a time.
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    for (int i = 0; i < 25; i++) {
+      AddUpdateCommand cmd = new AddUpdateCommand(null);
+      cmd.solrDoc = sdoc("id", id.incrementAndGet());
+      cmdDistrib.distribAdd(cmd, nodes, params);
+    }
+    ss.blockUntilFinished();
+    ss.setExp(null);
+
+    CommitUpdateCommand ccmd = new CommitUpdateCommand(null, false);
+    cmdDistrib.distribCommit(ccmd, nodes, params);
+    cmdDistrib.finish();
+
+    // the commands went through on their own, so the node did not have to be retried
+    assertEquals(0, retries.get());
+    assertEquals(0, cmdDistrib.getErrors().size());
+
+    long numFoundAfter = solrclient.query(new SolrQuery("*:*")).getResults()
+        .getNumFound();
+    assertEquals(numFoundBefore + 25, numFoundAfter);
+  }
+
+  private void testBatchErrorPerCommand() throws Exception {
+    final HttpSolrServer solrclient = (HttpSolrServer) clients.get(0);
+    long numFoundBefore = solrclient.query(new SolrQuery("*:*")).getResults()
+        .getNumFound();
+    final AtomicInteger requests = new AtomicInteger();
+    StreamingSolrServers ss = new StreamingSolrServers(updateShardHandler) {
+      @Override
+      protected NamedList<Object> request(String url, SolrCmdDistributor.Req req) throws Exception {
+        requests.incrementAndGet();
+        return super.request(url, req);
+      }
+    };
+    SolrCmdDistributor cmdDistrib = new SolrCmdDistributor(ss, 5, 0, 10, 60000);
+    ZkNodeProps nodeProps = new ZkNodeProps(ZkStateReader.BASE_URL_PROP, solrclient.getBaseURL(), ZkStateReader.CORE_NAME_PROP, "");
+    List<Node> nodes = Collections.<Node>singletonList(new StdNode(new ZkCoreNodeProps(nodeProps)));
+
+    // one bad document fails its batch, but only that document is reported, and the others are added.
+    // Only the commands of the failed batch are sent again.
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    int badId = 0;
+    for (int i = 0; i < 20; i++) {
+      AddUpdateCommand cmd = new AddUpdateCommand(null);
+      if (i == 3) {
+        badId = id.incrementAndGet();
+        cmd.solrDoc = sdoc("id", badId, "bad_i", "not a number");
+      } else {
+        cmd.solrDoc = sdoc("id", id.incrementAndGet());
+      }
+      cmdDistrib.distribAdd(cmd, nodes, params);
+    }
+
+    CommitUpdateCommand ccmd = new CommitUpdateCommand(null, false);
+    cmdDistrib.distribCommit(ccmd, nodes, params);
+    cmdDistrib.finish();
+
+    List<Error> errors = cmdDistrib.getErrors();
+    assertEquals(errors.toString(), 1, errors.size());
+    assertNull(errors.get(0).req.batched);
+    assertEquals(1, errors.get(0).req.uReq.getDocuments().size());
+    assertEquals(badId, errors.get(0).req.uReq.getDocuments().get(0).getFieldValue("id"));
+    assertEquals(2 + 10, requests.get());
+
+    long numFoundAfter = solrclient.query(new SolrQuery("*:*")).getResults()
+        .getNumFound();
+    assertEquals(numFoundBefore + 19, numFoundAfter);
+  }
+
+  private void testBatchDelayFlush() throws Exception {
+    final HttpSolrServer solrclient = (HttpSolrServer) clients.get(0);
+    SolrCmdDistributor cmdDistrib = new SolrCmdDistributor(new StreamingSolrServers(updateShardHandler), 5, 0, 100, 50);
+    ZkNodeProps nodeProps = new ZkNodeProps(ZkStateReader.BASE_URL_PROP, solrclient.getBaseURL(), ZkStateReader.CORE_NAME_PROP, "");
+    List<Node> nodes = Collections.<Node>singletonList(new StdNode(new ZkCoreNodeProps(nodeProps)));
+
+    // a batch that no further command comes to send is sent once it has waited batchDelayMs
+    AddUpdateCommand cmd = new AddUpdateCommand(null);
+    int docId = id.incrementAndGet();
+    cmd.solrDoc = sdoc("id", docId);
+    cmdDistrib.distribAdd(cmd, nodes, new ModifiableSolrParams());
+    try {
+      SolrQuery get = new SolrQuery();
+      get.setRequestHandler("/get");
+      get.set("id", Integer.toString(docId));
+      long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+      while (solrclient.query(get).getResponse().get("doc") == null) {
+        assertTrue("batch was not sent", System.nanoTime() < timeout);
+        Thread.sleep(20);
+      }
+      cmdDistrib.distribCommit(new CommitUpdateCommand(null, false), nodes, new ModifiableSolrParams());
+    } finally {
+      cmdDistrib.finish();
+    }
+    assertEquals(0, cmdDistrib.getErrors().size());
+  }
+
   private void testRetryNodeWontRetrySocketError() throws Exception {
     final HttpSolrServer solrclient = (HttpSolrServer) clients.get(0);
     long numFoundBefore = solrclient.query(new SolrQuery("*:*")).getResults()
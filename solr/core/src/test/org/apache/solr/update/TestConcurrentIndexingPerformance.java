@@ -0,0 +1,147 @@
+package org.apache.solr.update;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.junit.BeforeClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Indexes through the update processor chain (and so through the transaction log) from an increasing number
+ * of threads while soft commits switch the update log's maps, and reports the throughput for each thread count.
+ * Every add and delete is checked against the update log's version lookup as it completes.
+ *
+ * $ ant test -Dtestcase=TestConcurrentIndexingPerformance -Dargs="-server -Diter=200000 -Dthreads=1,2,4,8,16"; grep throughput build/test-results/*TestConcurrentIndexingPerformance.xml
+ */
+public class TestConcurrentIndexingPerformance extends SolrTestCaseJ4 {
+
+  public static final Logger log
+    = LoggerFactory.getLogger(TestConcurrentIndexingPerformance.class);
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig-tlog.xml", "schema15.xml");
+  }
+
+  public void testConcurrentIndexingPerf() throws Exception {
+    int iter = Integer.parseInt(System.getProperty("iter", "2000"));
+    String[] threadCounts = System.getProperty("threads", "1,2,4").split(",");
+
+    for (String threadCount : threadCounts) {
+      clearIndex();
+      assertU(commit());
+
+      int nThreads = Integer.parseInt(threadCount.trim());
+      long time = index(nThreads, iter / nThreads);
+      int nDocs = (iter / nThreads) * nThreads;
+      log.info("threads=" + nThreads + " iter=" + nDocs + " time=" + time + " throughput=" + ((long)nDocs*1000)/Math.max(1,time));
+
+      assertU(commit());
+      // every 10th doc was deleted again
+      assertJQ(req("q","*:*", "rows","0"), "/response/numFound==" + (nDocs - nDocs/nThreads/10*nThreads));
+    }
+  }
+
+  /** Returns the time in milliseconds for each of the threads to index the given number of docs */
+  private long index(int nThreads, final int docsPerThread) throws Exception {
+    final UpdateLog ulog = h.getCore().getUpdateHandler().getUpdateLog();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final AtomicBoolean done = new AtomicBoolean();
+
+    List<Thread> threads = new ArrayList<>();
+    for (int t=0; t<nThreads; t++) {
+      final String prefix = "t" + t + "_";
+      threads.add(new Thread("WRITER" + t) {
+        @Override
+        public void run() {
+          SolrQueryRequest req = req();
+          try {
+            UpdateRequestProcessor processor = req.getCore().getUpdateProcessingChain(null).createProcessor(req, new SolrQueryResponse());
+            for (int i=0; i<docsPerThread; i++) {
+              AddUpdateCommand add = new AddUpdateCommand(req);
+              add.solrDoc = sdoc("id", prefix + i, "val_i", i);
+              processor.processAdd(add);
+              checkVersion(ulog, add.getIndexedId(), add.getVersion());
+
+              if (i % 10 == 9) {
+                DeleteUpdateCommand del = new DeleteUpdateCommand(req);
+                del.setId(prefix + (i - 5));
+                processor.processDelete(del);
+                checkVersion(ulog, del.getIndexedId(), del.getVersion());
+              }
+            }
+            processor.finish();
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          } finally {
+            req.close();
+          }
+        }
+      });
+    }
+
+    // soft commits switch the maps out from under the writers
+    Thread committer = new Thread("COMMITTER") {
+      @Override
+      public void run() {
+        try {
+          while (!done.get()) {
+            assertU(commit("softCommit","true"));
+            Thread.sleep(20);
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      }
+    };
+
+    long start = System.currentTimeMillis();
+    committer.start();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long end = System.currentTimeMillis();
+    done.set(true);
+    committer.join();
+
+    if (failure.get() != null) {
+      throw new RuntimeException(failure.get());
+    }
+    return end - start;
+  }
+
+  private static void checkVersion(UpdateLog ulog, BytesRef indexedId, long version) {
+    // nothing else updates this id, so the latest version must be the one just assigned
+    Long found = ulog.lookupVersion(indexedId);
+    if (found == null || found != version) {
+      throw new AssertionError("id=" + indexedId.utf8ToString() + " expected version " + version + " but found " + found);
+    }
+  }
+}
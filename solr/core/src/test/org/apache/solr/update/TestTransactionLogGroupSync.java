@@ -0,0 +1,101 @@
+package org.apache.solr.update;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.util.TestUtil;
+import org.apache.solr.SolrTestCaseJ4;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestTransactionLogGroupSync extends SolrTestCaseJ4 {
+
+  private static long add(TransactionLog tlog, String id, long version) {
+    AddUpdateCommand cmd = new AddUpdateCommand(null);
+    cmd.solrDoc = sdoc("id", id);
+    cmd.setVersion(version);
+    return tlog.write(cmd, 0);
+  }
+
+  public void testGroupSync() throws Exception {
+    File dir = TestUtil.getTempDir("groupSync");
+    final TransactionLog tlog = new TransactionLog(new File(dir, "tlog.0000000000000000001"), null);
+    try {
+      // nothing new was written, so the second call doesn't sync
+      add(tlog, "0", 1);
+      tlog.groupSync(0);
+      assertEquals(1, tlog.getNumGroupSyncs());
+      tlog.groupSync(0);
+      assertEquals(1, tlog.getNumGroupSyncs());
+
+      final int nThreads = 8;
+      final int perThread = 20;
+      final AtomicLong version = new AtomicLong(1);
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      List<Thread> threads = new ArrayList<>();
+      for (int t=0; t<nThreads; t++) {
+        threads.add(new Thread("WRITER" + t) {
+          @Override
+          public void run() {
+            try {
+              for (int i=0; i<perThread; i++) {
+                add(tlog, getName() + "_" + i, version.incrementAndGet());
+                tlog.groupSync(5);
+              }
+            } catch (Throwable e) {
+              failure.compareAndSet(null, e);
+            }
+          }
+        });
+      }
+      for (Thread thread : threads) {
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      if (failure.get() != null) {
+        throw new RuntimeException(failure.get());
+      }
+
+      // waiting requests were released by fsyncs done on their behalf
+      long numSyncs = tlog.getNumGroupSyncs() - 1;
+      assertTrue("numSyncs=" + numSyncs, numSyncs > 0 && numSyncs < nThreads * perThread);
+
+      // everything written is readable
+      TransactionLog.LogReader reader = tlog.getReader(0);
+      int numAdds = 0;
+      try {
+        Object o;
+        while ((o = reader.next()) != null) {
+          List entry = (List)o;
+          assertEquals(UpdateLog.ADD, ((Integer)entry.get(0)) & UpdateLog.OPERATION_MASK);
+          numAdds++;
+        }
+      } finally {
+        reader.close();
+      }
+      assertEquals(1 + nThreads * perThread, numAdds);
+    } finally {
+      tlog.decref();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package org.apache.solr.update;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.TestUtil;
+import org.apache.solr.SolrTestCaseJ4;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestTransactionLogVersionIndex extends SolrTestCaseJ4 {
+
+  private static void checkIndex(TransactionLog tlog, List<Long> positions, List<Long> versions, List<Integer> ops) {
+    TransactionLog.VersionIndex index = tlog.getVersionIndex();
+    assertNotNull(index);
+    assertEquals(positions.size(), index.size());
+    for (int i=0; i<index.size(); i++) {
+      assertEquals(positions.get(i).longValue(), index.getPosition(i));
+      assertEquals(versions.get(i).longValue(), index.getVersion(i));
+      assertEquals(ops.get(i).intValue(), index.getOpAndFlags(i) & UpdateLog.OPERATION_MASK);
+
+      // records are read from the mapping
+      List entry = (List)tlog.lookup(index.getPosition(i));
+      assertEquals(versions.get(i), entry.get(1));
+    }
+  }
+
+  public void testVersionIndex() throws Exception {
+    File dir = TestUtil.getTempDir("versionIndex");
+    File file = new File(dir, "tlog.0000000000000000001");
+    List<Long> positions = new ArrayList<>();
+    List<Long> versions = new ArrayList<>();
+    List<Integer> ops = new ArrayList<>();
+
+    TransactionLog tlog = new TransactionLog(file, null);
+    try {
+      int n = atLeast(200);
+      for (int i=0; i<n; i++) {
+        long version = i + 1;
+        if (i % 10 == 9) {
+          DeleteUpdateCommand cmd = new DeleteUpdateCommand(null);
+          cmd.setIndexedId(new BytesRef(Integer.toString(i - 5)));
+          cmd.setVersion(-version);
+          positions.add(tlog.writeDelete(cmd, 0));
+          versions.add(-version);
+          ops.add(UpdateLog.DELETE);
+        } else {
+          AddUpdateCommand cmd = new AddUpdateCommand(null);
+          cmd.solrDoc = sdoc("id", Integer.toString(i), "text", "document " + i);
+          cmd.setVersion(version);
+          positions.add(tlog.write(cmd, 0));
+          versions.add(version);
+          ops.add(UpdateLog.ADD);
+        }
+      }
+      CommitUpdateCommand commit = new CommitUpdateCommand(null, false);
+      commit.setVersion(n + 1);
+      positions.add(tlog.writeCommit(commit, 0));
+      versions.add((long)n + 1);
+      ops.add(UpdateLog.COMMIT);
+
+      assertNull(tlog.getVersionIndex());
+      tlog.seal();
+      // the index was collected as the records were written, and is only written out when the log is closed
+      assertFalse(tlog.getIndexFile().exists());
+      checkIndex(tlog, positions, versions, ops);
+
+      // forward and reverse readers see the same records through the mapping
+      TransactionLog.LogReader reader = tlog.getReader(0);
+      try {
+        for (int i=0; i<positions.size(); i++) {
+          List entry = (List)reader.next();
+          assertEquals(versions.get(i), entry.get(1));
+        }
+        assertNull(reader.next());
+      } finally {
+        reader.close();
+      }
+      TransactionLog.ReverseReader reverseReader = tlog.getReverseReader();
+      try {
+        for (int i=positions.size()-1; i>=0; i--) {
+          List entry = (List)reverseReader.next();
+          assertEquals(versions.get(i), entry.get(1));
+          assertEquals(positions.get(i).longValue(), reverseReader.position());
+        }
+        assertNull(reverseReader.next());
+      } finally {
+        reverseReader.close();
+      }
+    } finally {
+      tlog.deleteOnClose = false;
+      tlog.decref();
+    }
+
+    File indexFile = new File(file.getPath() + TransactionLog.INDEX_SUFFIX);
+    assertTrue(indexFile.exists());
+    long indexModified = indexFile.lastModified();
+
+    // reopening the log reads the index that was written, and does not write it again
+    tlog = new TransactionLog(file, null, true);
+    try {
+      assertTrue(tlog.endsWithCommit());
+      tlog.seal();
+      checkIndex(tlog, positions, versions, ops);
+    } finally {
+      tlog.deleteOnClose = false;
+      tlog.decref();
+    }
+    assertEquals(indexModified, indexFile.lastModified());
+
+    // without the index file, it is rebuilt from the log
+    assertTrue(indexFile.delete());
+    tlog = new TransactionLog(file, null, true);
+    try {
+      tlog.seal();
+      checkIndex(tlog, positions, versions, ops);
+    } finally {
+      tlog.decref();
+    }
+
+    // the index is removed with the log
+    assertFalse(file.exists());
+    assertFalse(indexFile.exists());
+  }
+}
@@ -23,6 +23,7 @@ import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.SolrInputField;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -573,9 +574,15 @@ public class JavaBinCodec {
 
   byte[] bytes;
   CharArr arr = new CharArr();
+  // decode strings straight out of the buffer of a FastInputStream
+  boolean streamStrings = true;
+  private final byte[] splitChar = new byte[4];
 
   public String readStr(DataInputInputStream dis) throws IOException {
     int sz = readSize(dis);
+    if (streamStrings && dis instanceof FastInputStream) {
+      return readStr((FastInputStream) dis, sz);
+    }
     if (bytes == null || bytes.length < sz) bytes = new byte[sz];
     dis.readFully(bytes, 0, sz);
 
@@ -584,6 +591,54 @@ public class JavaBinCodec {
     return arr.toString();
   }
 
+  /**
+   * Decodes the UTF-8 bytes of a string a buffer fill at a time, without first copying them to a buffer of their
+   * own, which for large field values would be as large as the value.  A character split between two fills is
+   * read on its own.
+   */
+  private String readStr(FastInputStream fis, int sz) throws IOException {
+    arr.reset();
+    arr.reserve(sz);
+    int remaining = sz;
+    while (remaining > 0) {
+      if (fis.pos >= fis.end) {
+        fis.refill();
+        if (fis.pos >= fis.end) throw new EOFException();
+      }
+      int n = wholeChars(fis.buf, fis.pos, Math.min(fis.end - fis.pos, remaining));
+      if (n == 0) {
+        int len = utf8Length(fis.buf[fis.pos]);
+        fis.readFully(splitChar, 0, len);
+        ByteUtils.UTF8toUTF16(splitChar, 0, len, arr);
+        remaining -= len;
+        continue;
+      }
+      ByteUtils.UTF8toUTF16(fis.buf, fis.pos, n, arr);
+      fis.pos += n;
+      remaining -= n;
+    }
+    return arr.toString();
+  }
+
+  /** The number of bytes of the given ones that hold whole UTF-8 characters */
+  private static int wholeChars(byte[] buf, int start, int len) {
+    int end = start + len;
+    for (int i = end - 1; i >= start && i >= end - 4; i--) {
+      int b = buf[i] & 0xff;
+      if (b < 0x80) return i + 1 - start;
+      if (b >= 0xc0) {
+        // the lead byte of the last character
+        return (end - i >= utf8Length(buf[i]) ? end : i) - start;
+      }
+    }
+    return len;
+  }
+
+  private static int utf8Length(byte lead) {
+    int b = lead & 0xff;
+    return b < 0xc0 ? 1 : b < 0xe0 ? 2 : b < 0xf0 ? 3 : 4;
+  }
+
   public void writeInt(int val) throws IOException {
     if (val > 0) {
       int b = SINT | (val & 0x0f);
@@ -59,6 +59,21 @@ private final String BIN_FILE_LOCATION = "./solr/solrj/src/test-files/solrj/java
     }
   }
 
+  public void testStreamedStrings() throws Exception {
+    List<String> strings = new ArrayList<>();
+    for (int i = 0; i < 1000 * RANDOM_MULTIPLIER; i++) {
+      strings.add(TestUtil.randomUnicodeString(random(), 50));
+    }
+    strings.add(TestUtil.randomRealisticUnicodeString(random(), 10000, 20000));
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new JavaBinCodec().marshal(strings, os);
+
+    // a small buffer splits strings, and the characters in them, between fills
+    byte[] buf = new byte[TestUtil.nextInt(random(), 1, 16)];
+    FastInputStream is = new FastInputStream(new ByteArrayInputStream(os.toByteArray()), buf, 0, 0);
+    assertEquals(strings, new JavaBinCodec().unmarshal(is));
+  }
+
   private List<Object> generateAllDataTypes() {
     List<Object> types = new ArrayList<>();
 
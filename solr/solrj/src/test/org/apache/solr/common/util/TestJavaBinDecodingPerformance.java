@@ -0,0 +1,103 @@
+package org.apache.solr.common.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.util.TestUtil;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Compares decoding javabin documents with their strings streamed out of the input buffer (the default) against
+ * copying each string's bytes to a buffer of their own first.  Logs docs/sec and bytes allocated per doc.
+ *
+ * $ ant test -Dtestcase=TestJavaBinDecodingPerformance -Dargs="-server -Diter=200 -DdocSize=100000"
+ */
+public class TestJavaBinDecodingPerformance extends SolrTestCaseJ4 {
+  public static final Logger log = LoggerFactory.getLogger(TestJavaBinDecodingPerformance.class);
+
+  private static byte[] makeDocs(int numDocs, int docSize) throws IOException {
+    List<SolrInputDocument> docs = new ArrayList<>();
+    for (int i=0; i<numDocs; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("id", Integer.toString(i));
+      doc.addField("title_t", "just how fast is this text indexing? " + i);
+      doc.addField("body_t", TestUtil.randomRealisticUnicodeString(random(), docSize, docSize));
+      for (int j=0; j<5; j++) {
+        doc.addField("tags_ss", "tag" + ((i + j) % 50));
+      }
+      doc.addField("popularity_i", i % 10);
+      docs.add(doc);
+    }
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new JavaBinCodec().marshal(docs, os);
+    return os.toByteArray();
+  }
+
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private List<?> run(String name, boolean streamStrings, byte[] bytes, int docsPerRequest, int iter) throws Exception {
+    List<?> docs = null;
+    long startBytes = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i=0; i<iter; i++) {
+      // a codec per request, as the update handler's loader has
+      JavaBinCodec codec = new JavaBinCodec();
+      codec.streamStrings = streamStrings;
+      docs = (List<?>) codec.unmarshal(new ByteArrayInputStream(bytes));
+    }
+    long end = System.nanoTime();
+    long endBytes = allocatedBytes();
+
+    long numDocs = (long)iter * docsPerRequest;
+    long ms = Math.max(1, (end - start) / 1000000);
+    log.info(name + " iter=" + iter + " docs=" + numDocs + " time=" + ms + " throughput=" + (numDocs * 1000 / ms)
+        + " docs/sec" + (startBytes < 0 ? "" : " allocated=" + (endBytes - startBytes) / numDocs + " bytes/doc"));
+    return docs;
+  }
+
+  public void testDecodingPerf() throws Exception {
+    int iter = Integer.getInteger("iter", 20);
+    int docSize = Integer.getInteger("docSize", 10000);
+    int docsPerRequest = 10;
+    byte[] bytes = makeDocs(docsPerRequest, docSize);
+
+    // warm up both paths before measuring
+    run("warmup copied", false, bytes, docsPerRequest, Math.max(1, iter / 10));
+    run("warmup streamed", true, bytes, docsPerRequest, Math.max(1, iter / 10));
+
+    List<?> copied = run("copied", false, bytes, docsPerRequest, iter);
+    List<?> streamed = run("streamed", true, bytes, docsPerRequest, iter);
+    assertEquals(docsPerRequest, streamed.size());
+    assertEquals(copied.toString(), streamed.toString());
+  }
+}